@@ -0,0 +1,48 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.layers.DropoutLayer;
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.LogSoftMaxLayer;
+import org.n3rd.layers.ReLULayer;
+import org.n3rd.layers.SigmoidLayer;
+import org.n3rd.layers.TanhLayer;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Element-wise layers.  These are memory bound, so the interesting number is how close they get to a copy
+ */
+public class ActivationBenchmark extends LayerBenchmark
+{
+    @Param({"relu", "tanh", "sigmoid", "logsoftmax", "dropout"})
+    public String impl;
+
+    @Param({"100", "100000"})
+    public int size;
+
+    @Override
+    protected Layer createLayer()
+    {
+        switch (impl)
+        {
+            case "relu":
+                return new ReLULayer();
+            case "tanh":
+                return new TanhLayer();
+            case "sigmoid":
+                return new SigmoidLayer();
+            case "logsoftmax":
+                return new LogSoftMaxLayer();
+            case "dropout":
+                DropoutLayer dropout = new DropoutLayer(0.5);
+                dropout.setSeed(1234);
+                return dropout;
+        }
+        throw new IllegalArgumentException("Unknown impl " + impl);
+    }
+
+    @Override
+    protected int[] inputDims()
+    {
+        return new int[]{size};
+    }
+}
@@ -0,0 +1,81 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.ops.Blas;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The BLAS implementations against each other, on an m x n matrix.  gemv and gemvT are the forward and backward of
+ * a fully connected layer on one example, and gemm is its forward on a batch of n
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlasBenchmark
+{
+    @Param({"jblas", "java"})
+    public String blas;
+
+    @Param({"10x100", "100x784", "500x500"})
+    public String shape;
+
+    Blas impl;
+    int m;
+    int n;
+    double[] a;
+    double[] x;
+    double[] y;
+    double[] b;
+    double[] c;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(1234);
+        int[] dims = Tensors.shape(shape);
+        m = dims[0];
+        n = dims[1];
+        impl = Blas.forName(blas);
+        a = Tensors.random(random, m * n);
+        x = Tensors.random(random, n);
+        y = Tensors.random(random, m);
+        b = Tensors.random(random, n * n);
+        c = new double[m * n];
+    }
+
+    @Benchmark
+    public double[] gemv()
+    {
+        impl.dgemv('N', m, n, 1.0, a, 0, m, x, 0, 1, 0.0, y, 0, 1);
+        return y;
+    }
+
+    @Benchmark
+    public double[] gemvT()
+    {
+        impl.dgemv('T', m, n, 1.0, a, 0, m, y, 0, 1, 0.0, x, 0, 1);
+        return x;
+    }
+
+    @Benchmark
+    public double[] gemm()
+    {
+        impl.dgemm('N', 'N', m, n, n, 1.0, a, 0, m, b, 0, n, 0.0, c, 0, m);
+        return c;
+    }
+}
@@ -0,0 +1,115 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.Tensor;
+import org.n3rd.ops.FilterOps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The blocked direct filters in FilterOps against the loops they replaced (see NaiveFilterOps).  A shape with 6
+ * dimensions is 2D, nK x kL x kH x kW x dH x dW, and one with 5 is 1D, nK x kL x embedSz x kW x iT
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectConvolutionBenchmark
+{
+    @Param({"blocked", "naive"})
+    public String impl;
+
+    @Param({"20x1x5x5x28x28", "50x20x5x5x12x12", "16x3x3x3x64x64", "100x1x300x5x50", "32x4x50x7x100"})
+    public String shape;
+
+    boolean spatial;
+    boolean naive;
+    Tensor data;
+    Tensor kernels;
+    double[] biases;
+    Tensor output;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(1234);
+        int[] dims = Tensors.shape(shape);
+        spatial = dims.length == 6;
+        naive = "naive".equals(impl);
+        kernels = Tensors.random(random, dims[0], dims[1], dims[2], dims[3]);
+        biases = Tensors.random(random, dims[0]);
+        if (spatial)
+        {
+            data = Tensors.random(random, dims[1], dims[4], dims[5]);
+            output = new Tensor(dims[0], dims[4] - dims[2] + 1, dims[5] - dims[3] + 1);
+        }
+        else
+        {
+            data = Tensors.random(random, dims[1], dims[2], dims[4]);
+            output = new Tensor(dims[0], dims[2], dims[4] - dims[3] + 1);
+        }
+    }
+
+    @Benchmark
+    public Tensor corr()
+    {
+        if (spatial)
+        {
+            if (naive)
+            {
+                NaiveFilterOps.corr2(data, kernels, biases, output);
+            }
+            else
+            {
+                FilterOps.corr2(data, kernels, biases, output);
+            }
+        }
+        else if (naive)
+        {
+            NaiveFilterOps.corr1(data, kernels, biases, output);
+        }
+        else
+        {
+            FilterOps.corr1(data, kernels, biases, output);
+        }
+        return output;
+    }
+
+    @Benchmark
+    public Tensor conv()
+    {
+        if (spatial)
+        {
+            if (naive)
+            {
+                NaiveFilterOps.conv2(data, kernels, biases, output);
+            }
+            else
+            {
+                FilterOps.conv2(data, kernels, biases, output);
+            }
+        }
+        else if (naive)
+        {
+            NaiveFilterOps.conv1(data, kernels, biases, output);
+        }
+        else
+        {
+            FilterOps.conv1(data, kernels, biases, output);
+        }
+        return output;
+    }
+}
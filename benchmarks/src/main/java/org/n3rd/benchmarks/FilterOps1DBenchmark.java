@@ -0,0 +1,92 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.Tensor;
+import org.n3rd.ops.FFTOps;
+import org.n3rd.ops.FilterOps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The 1D FilterOps kernels, without any layer around them.  The shape is nK x kL x embedSz x kW x iT.
+ *
+ * corr1 and conv1 are the direct forward and backward filters, fftfilt is the same correlation done in the frequency
+ * domain, and corr1Weights is the weight gradient
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterOps1DBenchmark
+{
+    @Param({"100x1x300x5x50", "32x4x50x7x100", "32x1x50x25x200"})
+    public String shape;
+
+    Tensor data;
+    Tensor kernels;
+    double[] biases;
+    Tensor output;
+    Tensor ygrad;
+    Tensor weightGrads;
+    FFTOps fft;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(1234);
+        int[] dims = Tensors.shape(shape);
+        final int nK = dims[0];
+        final int kL = dims[1];
+        final int embedSz = dims[2];
+        final int kW = dims[3];
+        final int iT = dims[4];
+        final int oT = iT - kW + 1;
+        data = Tensors.random(random, kL, embedSz, iT);
+        kernels = Tensors.random(random, nK, kL, embedSz, kW);
+        biases = Tensors.random(random, nK);
+        output = new Tensor(nK, embedSz, oT);
+        ygrad = Tensors.random(random, nK, embedSz, oT);
+        weightGrads = new Tensor(nK, kL, embedSz, kW);
+        fft = new FFTOps();
+    }
+
+    @Benchmark
+    public Tensor corr1()
+    {
+        FilterOps.corr1(data, kernels, biases, output);
+        return output;
+    }
+
+    @Benchmark
+    public Tensor conv1()
+    {
+        FilterOps.conv1(data, kernels, biases, output);
+        return output;
+    }
+
+    @Benchmark
+    public Tensor fftfilt()
+    {
+        FilterOps.fftfilt(fft, data, kernels, biases, true, output);
+        return output;
+    }
+
+    @Benchmark
+    public Tensor corr1Weights()
+    {
+        return FilterOps.corr1Weights(data, ygrad, weightGrads);
+    }
+}
@@ -0,0 +1,85 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.Tensor;
+import org.n3rd.ops.FilterOps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The 2D FilterOps kernels, without any layer around them.  The shape is nK x kL x kH x kW x dH x dW.
+ *
+ * corr2 and conv2 are the direct forward and backward filters, and corr2Weights is the weight gradient.  The matrix
+ * multiply version of these lives in the Blas layers, so see SpatialConvolutionBenchmark for that
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterOps2DBenchmark
+{
+    @Param({"6x1x5x5x32x32", "16x6x5x5x14x14", "64x32x3x3x28x28"})
+    public String shape;
+
+    Tensor data;
+    Tensor kernels;
+    double[] biases;
+    Tensor output;
+    Tensor ygrad;
+    Tensor weightGrads;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(1234);
+        int[] dims = Tensors.shape(shape);
+        final int nK = dims[0];
+        final int kL = dims[1];
+        final int kH = dims[2];
+        final int kW = dims[3];
+        final int dH = dims[4];
+        final int dW = dims[5];
+        final int oH = dH - kH + 1;
+        final int oW = dW - kW + 1;
+        data = Tensors.random(random, kL, dH, dW);
+        kernels = Tensors.random(random, nK, kL, kH, kW);
+        biases = Tensors.random(random, nK);
+        output = new Tensor(nK, oH, oW);
+        ygrad = Tensors.random(random, nK, oH, oW);
+        weightGrads = new Tensor(nK, kL, kH, kW);
+    }
+
+    @Benchmark
+    public Tensor corr2()
+    {
+        FilterOps.corr2(data, kernels, biases, output);
+        return output;
+    }
+
+    @Benchmark
+    public Tensor conv2()
+    {
+        FilterOps.conv2(data, kernels, biases, output);
+        return output;
+    }
+
+    @Benchmark
+    public Tensor corr2Weights()
+    {
+        FilterOps.corr2Weights(data, ygrad, weightGrads);
+        return weightGrads;
+    }
+}
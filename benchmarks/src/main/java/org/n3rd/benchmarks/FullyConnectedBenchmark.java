@@ -0,0 +1,41 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.layers.FullyConnectedLayer;
+import org.n3rd.layers.FullyConnectedLayerBlas;
+import org.n3rd.layers.FullyConnectedLayerMixed;
+import org.n3rd.layers.Layer;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Fully connected layers.  The shape is outputLength x inputLength
+ */
+public class FullyConnectedBenchmark extends LayerBenchmark
+{
+    @Param({"plain", "blas", "mixed"})
+    public String impl;
+
+    @Param({"10x84", "128x784", "512x1024"})
+    public String shape;
+
+    @Override
+    protected Layer createLayer()
+    {
+        int[] dims = Tensors.shape(shape);
+        switch (impl)
+        {
+            case "plain":
+                return new FullyConnectedLayer(dims[0], dims[1]);
+            case "blas":
+                return new FullyConnectedLayerBlas(dims[0], dims[1]);
+            case "mixed":
+                return new FullyConnectedLayerMixed(dims[0], dims[1]);
+        }
+        throw new IllegalArgumentException("Unknown impl " + impl);
+    }
+
+    @Override
+    protected int[] inputDims()
+    {
+        return new int[]{Tensors.shape(shape)[1]};
+    }
+}
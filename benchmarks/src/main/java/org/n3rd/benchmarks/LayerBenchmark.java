@@ -0,0 +1,105 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.Tensor;
+import org.n3rd.layers.Layer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base for the per-layer benchmarks.  A subclass builds the layer and says what its input looks like, and this
+ * times forward and backward on a single example, and forwardBatch and backwardBatch on a batch of them.  Layers
+ * without a batch path of their own fall back to AbstractLayer's loop over examples, which is worth knowing too.
+ *
+ * The backward benchmarks run against the state left by one forward during setup, which is all back prop needs.
+ * The gradients accumulate across invocations, but the cost doesn't depend on their values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class LayerBenchmark
+{
+    public static final int BATCH_SZ = 16;
+
+    protected final Random random = new Random(1234);
+
+    protected Layer layer;
+    protected Tensor x;
+    protected Tensor chainGrad;
+    protected Tensor batchX;
+    protected Tensor batchChainGrad;
+    protected double[] y;
+
+    /**
+     * Create the layer under test, according to the subclass's parameters
+     *
+     * @return A layer
+     */
+    protected abstract Layer createLayer();
+
+    /**
+     * The dimensions of a single input example
+     *
+     * @return Input dimensions
+     */
+    protected abstract int[] inputDims();
+
+    @Setup
+    public void setup()
+    {
+        layer = createLayer();
+        int[] dims = inputDims();
+        x = Tensors.random(random, dims);
+        Tensor output = layer.forward(x);
+        chainGrad = Tensors.random(random, output.dims);
+
+        int[] batchDims = new int[dims.length + 1];
+        batchDims[0] = BATCH_SZ;
+        System.arraycopy(dims, 0, batchDims, 1, dims.length);
+        batchX = Tensors.random(random, batchDims);
+        y = new double[BATCH_SZ];
+        Tensor batchOutput = layer.forwardBatch(batchX);
+        batchChainGrad = Tensors.random(random, batchOutput.dims);
+        // Leave the single example path primed for backward
+        layer.forward(x);
+    }
+
+    @Benchmark
+    public Tensor forward()
+    {
+        return layer.forward(x);
+    }
+
+    @Benchmark
+    public Tensor backward()
+    {
+        return layer.backward(chainGrad, 0.);
+    }
+
+    @Benchmark
+    public Tensor forwardBatch()
+    {
+        return layer.forwardBatch(batchX);
+    }
+
+    @Benchmark
+    public Tensor forwardBackwardBatch()
+    {
+        // The batch backward shares workspace with the batch forward, so they are timed together
+        layer.forwardBatch(batchX);
+        return layer.backwardBatch(batchChainGrad, y);
+    }
+}
@@ -0,0 +1,221 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.Tensor;
+import org.n3rd.ops.Parallel;
+import org.sgdtk.ArrayDouble;
+
+/**
+ * The direct FilterOps loops as they were before they were blocked, so the benchmarks have something to compare
+ * against.  They split their rows across threads the same way, so the difference is just the inner loops
+ */
+final class NaiveFilterOps
+{
+    private NaiveFilterOps()
+    {
+    }
+
+    static void corr1(final Tensor data, final Tensor kernels, final double[] biases, Tensor output)
+    {
+        final int iT = data.dims[2];
+        final int embedSz = data.dims[1];
+        final int nK = kernels.dims[0];
+        final int kL = kernels.dims[1];
+        final int kW = kernels.dims[3];
+        final int oT = iT - kW + 1;
+        //Tensor output = new Tensor(nK, embedSz, oT);
+        final ArrayDouble dA = data.getArray();
+        final ArrayDouble oA = output.getArray();
+
+        // Each embedding row of each output feature map is independent, so they can be split up
+        Parallel.forRows(nK * embedSz, (long) kL * oT * kW, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                for (int row = from; row < to; ++row)
+                {
+                    final int k = row / embedSz;
+                    final int j = row % embedSz;
+                    final double bias = biases == null ? 0.0 : biases[k];
+                    final int outAddr0 = row * oT;
+
+                    for (int i = 0; i < oT; ++i)
+                    {
+                        oA.set(outAddr0 + i, bias);
+                    }
+
+                    for (int l = 0, lbase = 0; l < kL; ++l, lbase += embedSz)
+                    {
+                        final int dataAddr0 = (lbase + j) * iT;
+                        final int kernAddr0 = ((k * kL + l) * embedSz + j) * kW;
+
+                        for (int i = 0; i < oT; ++i)
+                        {
+                            final int outAddr = outAddr0 + i;
+                            for (int m = 0; m < kW; ++m)
+                            {
+                                final int dataAddr = dataAddr0 + i + m;
+                                final int kernAddr = kernAddr0 + m;
+                                oA.addi(outAddr, dA.at(dataAddr) * kernels.at(kernAddr));
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    static void conv1(final Tensor data, final Tensor kernels, final double[] biases, Tensor output)
+    {
+        final int iT = data.dims[2];
+        final int embedSz = data.dims[1];
+        final int nK = kernels.dims[0];
+        final int kL = kernels.dims[1];
+        // Note that this is still the 3rd argument.  Now the fourth arg is not used
+        final int kW = kernels.dims[3];
+        final int oT = iT - kW + 1;
+        //Tensor output = new Tensor(nK, embedSz, oT);
+        final ArrayDouble dA = data.getArray();
+        final ArrayDouble oA = output.getArray();
+
+        // Each embedding row of each output feature map is independent, so they can be split up
+        Parallel.forRows(nK * embedSz, (long) kL * oT * kW, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                for (int row = from; row < to; ++row)
+                {
+                    final int k = row / embedSz;
+                    final int j = row % embedSz;
+                    final double bias = biases == null ? 0.0 : biases[k];
+                    final int outAddr0 = row * oT;
+
+                    for (int i = 0; i < oT; ++i)
+                    {
+                        oA.set(outAddr0 + i, bias);
+                    }
+
+                    for (int l = 0, lbase = 0; l < kL; ++l, lbase += embedSz)
+                    {
+                        final int dataAddr0 = (lbase + j) * iT;
+                        final int kernAddr0 = ((k * kL + l) * embedSz + j) * kW;
+
+                        for (int i = 0; i < oT; ++i)
+                        {
+                            final int outAddr = outAddr0 + i;
+                            for (int m = 0; m < kW; ++m)
+                            {
+                                final int dataAddr = dataAddr0 + i + m;
+                                final int kernAddr = kernAddr0 + (kW - m - 1);
+                                oA.addi(outAddr, dA.at(dataAddr) * kernels.at(kernAddr));
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    static void corr2(final Tensor data, final Tensor kernels, final double[] biases, Tensor output)
+    {
+        final int dH = data.dims[1];
+        final int dW = data.dims[2];
+        final int nK = kernels.dims[0];
+        final int kL = kernels.dims[1];
+        final int kH = kernels.dims[2];
+        final int kW = kernels.dims[3];
+        final int oH = dH - kH + 1;
+        final int oW = dW - kW + 1;
+        //Tensor output = new Tensor(nK, oH, oW);
+        final ArrayDouble dA = data.getArray();
+        final ArrayDouble oA = output.getArray();
+
+        // Each row of each output feature map is independent, so they can be split up
+        Parallel.forRows(nK * oH, (long) oW * kL * kH * kW, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                for (int row = from; row < to; ++row)
+                {
+                    final int k = row / oH;
+                    final int i = row % oH;
+                    final int kbase = k * kL;
+                    final int ibase = row * oW;
+                    final double bias = biases == null ? 0.0 : biases[k];
+                    for (int j = 0; j < oW; ++j)
+                    {
+                        int outAddr = ibase + j;
+                        double acc = 0.;
+                        for (int l = 0; l < kL; ++l)
+                        {
+                            for (int m = 0; m < kH; ++m)
+                            {
+                                for (int n = 0; n < kW; ++n)
+                                {
+                                    int dataAddr = (l * dH + i + m) * dW + j + n;
+                                    int kernAddr = ((kbase + l) * kH + m) * kW + n;
+                                    acc += dA.at(dataAddr) * kernels.at(kernAddr);
+                                }
+                            }
+                        }
+                        oA.set(outAddr, acc + bias);
+                    }
+                }
+            }
+        });
+    }
+
+    static void conv2(final Tensor data, final Tensor kernels, final double[] biases, Tensor output)
+    {
+        final int dH = data.dims[1];
+        final int dW = data.dims[2];
+        final int nK = kernels.dims[0];
+        final int kL = kernels.dims[1];
+        final int kH = kernels.dims[2];
+        final int kW = kernels.dims[3];
+        final int oH = dH - kH + 1;
+        final int oW = dW - kW + 1;
+        //Tensor output = new Tensor(nK, oH, oW);
+        final ArrayDouble dA = data.getArray();
+        final ArrayDouble oA = output.getArray();
+
+        // Each row of each output feature map is independent, so they can be split up
+        Parallel.forRows(nK * oH, (long) oW * kL * kH * kW, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                for (int row = from; row < to; ++row)
+                {
+                    final int k = row / oH;
+                    final int i = row % oH;
+                    final int kbase = k * kL;
+                    final int ibase = row * oW;
+                    final double bias = biases == null ? 0.0 : biases[k];
+                    for (int j = 0; j < oW; ++j)
+                    {
+                        int outAddr = ibase + j;
+                        double acc = 0.;
+                        for (int l = 0; l < kL; ++l)
+                        {
+                            for (int m = 0; m < kH; ++m)
+                            {
+                                for (int n = 0; n < kW; ++n)
+                                {
+                                    int dataAddr = (l * dH + i + m) * dW + j + n;
+                                    int mh = kH - m - 1;
+                                    int nw = kW - n - 1;
+                                    int kernAddr = ((kbase + l) * kH + mh) * kW + nw;
+                                    acc += dA.at(dataAddr) * kernels.at(kernAddr);
+                                }
+                            }
+                        }
+                        oA.set(outAddr, acc + bias);
+                    }
+                }
+            }
+        });
+    }
+}
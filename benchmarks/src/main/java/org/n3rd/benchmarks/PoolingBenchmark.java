@@ -0,0 +1,56 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.layers.AverageFoldingLayer;
+import org.n3rd.layers.KMaxPoolingLayer;
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.MaxOverTimePoolingLayer;
+import org.n3rd.layers.MaxPoolingLayer;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Pooling and folding layers.  The size is the image height and width for max pooling, and the number of frames for
+ * the others.  The rest of the shape is fixed at something typical of where these layers sit in a network
+ */
+public class PoolingBenchmark extends LayerBenchmark
+{
+    public static final int FEATURE_MAPS = 100;
+    public static final int EMBED_SZ = 4;
+    public static final int K = 4;
+
+    @Param({"maxpool", "kmax", "maxovertime", "fold"})
+    public String impl;
+
+    @Param({"32", "128"})
+    public int size;
+
+    @Override
+    protected Layer createLayer()
+    {
+        switch (impl)
+        {
+            case "maxpool":
+                return new MaxPoolingLayer(2, 2, 16, size, size);
+            case "kmax":
+                return new KMaxPoolingLayer(K, FEATURE_MAPS, EMBED_SZ);
+            case "maxovertime":
+                return new MaxOverTimePoolingLayer(FEATURE_MAPS);
+            case "fold":
+                return new AverageFoldingLayer(FEATURE_MAPS, EMBED_SZ);
+        }
+        throw new IllegalArgumentException("Unknown impl " + impl);
+    }
+
+    @Override
+    protected int[] inputDims()
+    {
+        switch (impl)
+        {
+            case "maxpool":
+                return new int[]{16, size, size};
+            case "maxovertime":
+                return new int[]{FEATURE_MAPS, 1, size};
+            default:
+                return new int[]{FEATURE_MAPS, EMBED_SZ, size};
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.SpatialConvolutionalLayer;
+import org.n3rd.layers.SpatialConvolutionalLayerAuto;
+import org.n3rd.layers.SpatialConvolutionalLayerBlas;
+import org.n3rd.layers.SpatialConvolutionalLayerFFT;
+import org.n3rd.layers.SpatialConvolutionalLayerMixed;
+import org.n3rd.layers.SpatialConvolutionalLayerWinograd;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 2D convolutional layers.  The shape is nK x kH x kW x kL x iH x iW.  The first two are LeNet-5's convolutions, the
+ * last one is closer to what a modern network does, lots of small kernels over a lot of feature maps.  The kernels
+ * are all square, so the Winograd layer runs on every shape, and "auto" is whichever of the others it picks
+ */
+public class SpatialConvolutionBenchmark extends LayerBenchmark
+{
+    @Param({"plain", "blas", "mixed", "winograd", "fft", "auto"})
+    public String impl;
+
+    @Param({"6x5x5x1x32x32", "16x5x5x6x14x14", "64x3x3x32x28x28"})
+    public String shape;
+
+    @Override
+    protected Layer createLayer()
+    {
+        int[] dims = Tensors.shape(shape);
+        switch (impl)
+        {
+            case "plain":
+                return new SpatialConvolutionalLayer(dims[0], dims[1], dims[2], dims[3], dims[4], dims[5]);
+            case "blas":
+                return new SpatialConvolutionalLayerBlas(dims[0], dims[1], dims[2], dims[3], dims[4], dims[5]);
+            case "mixed":
+                return new SpatialConvolutionalLayerMixed(dims[0], dims[1], dims[2], dims[3], dims[4], dims[5]);
+            case "winograd":
+                return new SpatialConvolutionalLayerWinograd(dims[0], dims[1], dims[2], dims[3], dims[4], dims[5]);
+            case "fft":
+                return new SpatialConvolutionalLayerFFT(dims[0], dims[1], dims[2], dims[3], dims[4], dims[5]);
+            case "auto":
+                return new SpatialConvolutionalLayerAuto(dims[0], dims[1], dims[2], dims[3], dims[4], dims[5]);
+        }
+        throw new IllegalArgumentException("Unknown impl " + impl);
+    }
+
+    @Override
+    protected int[] inputDims()
+    {
+        int[] dims = Tensors.shape(shape);
+        return new int[]{dims[3], dims[4], dims[5]};
+    }
+}
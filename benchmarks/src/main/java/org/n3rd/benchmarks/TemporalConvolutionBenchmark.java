@@ -0,0 +1,50 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.TemporalConvolutionalLayer;
+import org.n3rd.layers.TemporalConvolutionalLayerAuto;
+import org.n3rd.layers.TemporalConvolutionalLayerBlas;
+import org.n3rd.layers.TemporalConvolutionalLayerFFT;
+import org.n3rd.layers.TemporalConvolutionalLayerMixed;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * 1D convolutional layers over word vectors, as in a sentence classifier.  The shape is nK x kL x kW x numFrames,
+ * where kL is the embedding size, treated as input feature maps.  The FFT layer only pays off for wide kernels,
+ * hence the last shape.  "auto" is whichever of the others the autotuner picks for the shape
+ */
+public class TemporalConvolutionBenchmark extends LayerBenchmark
+{
+    @Param({"plain", "blas", "fft", "mixed", "auto"})
+    public String impl;
+
+    @Param({"100x300x5x50", "200x50x3x100", "32x50x25x200"})
+    public String shape;
+
+    @Override
+    protected Layer createLayer()
+    {
+        int[] dims = Tensors.shape(shape);
+        switch (impl)
+        {
+            case "plain":
+                return new TemporalConvolutionalLayer(dims[0], dims[1], dims[2]);
+            case "blas":
+                return new TemporalConvolutionalLayerBlas(dims[0], dims[1], dims[2]);
+            case "fft":
+                return new TemporalConvolutionalLayerFFT(dims[0], dims[1], dims[2]);
+            case "mixed":
+                return new TemporalConvolutionalLayerMixed(dims[0], dims[1], dims[2]);
+            case "auto":
+                return new TemporalConvolutionalLayerAuto(dims[0], dims[1], dims[2]);
+        }
+        throw new IllegalArgumentException("Unknown impl " + impl);
+    }
+
+    @Override
+    protected int[] inputDims()
+    {
+        int[] dims = Tensors.shape(shape);
+        return new int[]{dims[1], 1, dims[3]};
+    }
+}
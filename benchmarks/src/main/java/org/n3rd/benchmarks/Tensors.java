@@ -0,0 +1,52 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.Tensor;
+
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks.  Everything is seeded, so two runs see the same data
+ */
+final class Tensors
+{
+    private Tensors()
+    {
+    }
+
+    static Tensor random(Random random, int... dims)
+    {
+        Tensor t = new Tensor(dims);
+        for (int i = 0, sz = t.size(); i < sz; ++i)
+        {
+            t.set(i, random.nextDouble() - 0.5);
+        }
+        return t;
+    }
+
+    static double[] random(Random random, int length)
+    {
+        double[] v = new double[length];
+        for (int i = 0; i < length; ++i)
+        {
+            v[i] = random.nextDouble() - 0.5;
+        }
+        return v;
+    }
+
+    /**
+     * Parse a shape parameter like "16x5x5x6x14x14"
+     *
+     * @param shape The shape, as dimensions separated by x
+     * @return The dimensions
+     */
+    static int[] shape(String shape)
+    {
+        String[] parts = shape.split("x");
+        int[] dims = new int[parts.length];
+        for (int i = 0; i < parts.length; ++i)
+        {
+            dims[i] = Integer.parseInt(parts[i].trim());
+        }
+        return dims;
+    }
+}
@@ -0,0 +1,125 @@
+package org.n3rd.benchmarks;
+
+import org.n3rd.Tensor;
+import org.n3rd.layers.FullyConnectedLayer;
+import org.n3rd.ops.AdaDeltaUpdate;
+import org.n3rd.ops.AdagradUpdate;
+import org.n3rd.ops.AdamUpdate;
+import org.n3rd.ops.RMSPropUpdate;
+import org.n3rd.ops.SGDWithMomentumUpdate;
+import org.n3rd.ops.Update;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The weight update loops, over a fully connected layer with the given number of parameters.
+ *
+ * The updates zero the gradients as they go, and skip zero gradients, so each invocation copies a fresh set of
+ * gradients in first.  That is one arraycopy, which is small next to the update itself, but compare against the
+ * copy benchmark if you need the update on its own.
+ *
+ * The density is the fraction of the input columns that are non-zero, and so of the gradients, which is where sparse
+ * Adagrad pays off.  A second layer runs back prop once on such an input, and each invocation hands its touched
+ * columns to the layer being updated (see SparseGradients)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark
+{
+    public static final int INPUT_LENGTH = 1000;
+
+    @Param({"adagrad", "sparse", "momentum", "adam", "rmsprop", "adadelta"})
+    public String impl;
+
+    @Param({"10000", "1000000"})
+    public int numParams;
+
+    @Param({"1.0", "0.05"})
+    public double density;
+
+    FullyConnectedLayer layer;
+    FullyConnectedLayer source;
+    Update update;
+    double[] gradients;
+
+    @Setup
+    public void setup()
+    {
+        layer = new FullyConnectedLayer(numParams / INPUT_LENGTH, INPUT_LENGTH);
+        switch (impl)
+        {
+            case "adagrad":
+                update = new AdagradUpdate(1.0);
+                break;
+            case "sparse":
+                update = new AdagradUpdate(1.0, true);
+                break;
+            case "momentum":
+                update = new SGDWithMomentumUpdate(0.9);
+                break;
+            case "adam":
+                update = new AdamUpdate();
+                break;
+            case "rmsprop":
+                update = new RMSPropUpdate();
+                break;
+            case "adadelta":
+                update = new AdaDeltaUpdate();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown impl " + impl);
+        }
+        Random random = new Random(1234);
+        double[] x = Tensors.random(random, INPUT_LENGTH);
+        for (int j = 0; j < INPUT_LENGTH; ++j)
+        {
+            if (random.nextDouble() >= density)
+            {
+                x[j] = 0.;
+            }
+        }
+        final int outputLength = layer.getOutputLength();
+        source = new FullyConnectedLayer(outputLength, INPUT_LENGTH);
+        source.clearTouchedParams();
+        source.forward(new Tensor(x, INPUT_LENGTH));
+        source.backward(new Tensor(Tensors.random(random, outputLength), outputLength), 0.);
+        gradients = source.getParamGrads().getArray().v.clone();
+    }
+
+    private void resetGradients()
+    {
+        System.arraycopy(gradients, 0, layer.getParamGrads().getArray().v, 0, gradients.length);
+        layer.mergeTouchedParams(source);
+    }
+
+    @Benchmark
+    public Tensor copy()
+    {
+        resetGradients();
+        return layer.getParamGrads();
+    }
+
+    @Benchmark
+    public Tensor update()
+    {
+        resetGradients();
+        update.run(layer, 0.01, 1e-4);
+        return layer.getParams();
+    }
+}
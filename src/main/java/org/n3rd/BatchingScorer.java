@@ -0,0 +1,409 @@
+package org.n3rd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * In-process micro-batching for online scoring.
+ *
+ * Callers on any number of threads submit single inputs.  Each worker thread takes the first waiting request, and
+ * then keeps collecting requests until it has maxBatchSz of them, or maxWaitMicros have passed, whichever comes first.
+ * The batch then goes through the model in one {@link NeuralNetModel#forwardBatch(Tensor)} call, so the blas-backed
+ * layers (FullyConnectedLayerBlas, SpatialConvolutionalLayerBlas, TemporalConvolutionalLayerBlas) do a single GEMM
+ * for the whole batch.  Every worker has its own replica of the model, sharing the weights.
+ *
+ * Requests in a batch must be the same length.  A request of a different length just ends the current batch and
+ * starts the next one.
+ *
+ * Waiting longer fills bigger batches, which helps throughput, but costs latency.  To help tune that, we track the
+ * latency from submission to completion for the most recent requests, and how full the batches are (see
+ * {@link Metrics}).
+ */
+public class BatchingScorer
+{
+    private final NeuralNetModel model;
+    private final int maxBatchSz;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue;
+    private final List<Thread> workers;
+    private final Metrics metrics;
+    private volatile boolean running = true;
+
+    private static class Request
+    {
+        final double[] x;
+        final long start = System.nanoTime();
+        final CompletableFuture<double[]> result = new CompletableFuture<double[]>();
+
+        Request(double[] x)
+        {
+            this.x = x;
+        }
+    }
+
+    /**
+     * Constructor with a single worker thread
+     *
+     * @param model A trained model, which should not be updated while we are scoring
+     * @param maxBatchSz The most requests to put in a batch
+     * @param maxWaitMicros How long to wait for a batch to fill up after the first request arrives
+     */
+    public BatchingScorer(NeuralNetModel model, int maxBatchSz, long maxWaitMicros)
+    {
+        this(model, maxBatchSz, maxWaitMicros, 1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param model A trained model, which should not be updated while we are scoring
+     * @param maxBatchSz The most requests to put in a batch
+     * @param maxWaitMicros How long to wait for a batch to fill up after the first request arrives
+     * @param numWorkers Number of threads running batches
+     */
+    public BatchingScorer(NeuralNetModel model, int maxBatchSz, long maxWaitMicros, int numWorkers)
+    {
+        this.model = model;
+        this.maxBatchSz = maxBatchSz;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.queue = new LinkedBlockingQueue<Request>();
+        this.metrics = new Metrics(maxBatchSz);
+        this.workers = new ArrayList<Thread>(numWorkers);
+        for (int i = 0; i < numWorkers; ++i)
+        {
+            NeuralNetModel replica = model.replicate();
+            replica.setIsTraining(false);
+            Thread worker = new Thread(new Worker(replica.fuse()), "BatchingScorer-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue an input for scoring
+     *
+     * @param x The input
+     * @return A future for the scores, as in {@link NeuralNetModel#score(org.sgdtk.FeatureVector)}, which is cancelled
+     * if the scorer is shut down before it is scored
+     * @throws IllegalStateException if the scorer has already been shut down
+     */
+    public Future<double[]> submit(double[] x)
+    {
+        if (!running)
+        {
+            throw new IllegalStateException("Scorer has been shut down");
+        }
+        Request request = new Request(x);
+        queue.add(request);
+        // If we were shut down while adding it, the workers and the drain in shutdown() may both have missed it
+        if (!running)
+        {
+            queue.remove(request);
+            request.result.cancel(false);
+        }
+        return request.result;
+    }
+
+    /**
+     * Score an input, blocking until its batch has run
+     *
+     * @param x The input
+     * @return The scores, as in {@link NeuralNetModel#score(org.sgdtk.FeatureVector)}
+     */
+    public double[] score(double[] x)
+    {
+        try
+        {
+            return submit(x).get();
+        }
+        catch (InterruptedException intEx)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(intEx);
+        }
+        catch (ExecutionException execEx)
+        {
+            throw new RuntimeException(execEx.getCause());
+        }
+    }
+
+    /**
+     * Stop the workers.  Anything still in the queue fails with a CancellationException
+     */
+    public void shutdown()
+    {
+        running = false;
+        for (Thread worker : workers)
+        {
+            worker.interrupt();
+        }
+        for (Thread worker : workers)
+        {
+            try
+            {
+                worker.join();
+            }
+            catch (InterruptedException intEx)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Request request = queue.poll(); request != null; request = queue.poll())
+        {
+            request.result.cancel(false);
+        }
+    }
+
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public int getMaxBatchSz()
+    {
+        return maxBatchSz;
+    }
+
+    public long getMaxWaitMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos);
+    }
+
+    private class Worker implements Runnable
+    {
+        final NeuralNetModel replica;
+        final List<Request> batch = new ArrayList<Request>();
+        final Tensor input = new Tensor(1);
+        final long[] latencies = new long[maxBatchSz];
+        Tensor output;
+
+        // A request that didnt fit into the last batch, which starts the next one
+        Request carry;
+
+        Worker(NeuralNetModel replica)
+        {
+            this.replica = replica;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (running)
+                {
+                    fill();
+                    runBatch();
+                }
+            }
+            catch (InterruptedException intEx)
+            {
+                // Shutting down, so fail anything we took off the queue but didnt get to
+                for (Request request : batch)
+                {
+                    request.result.cancel(false);
+                }
+            }
+            if (carry != null)
+            {
+                carry.result.cancel(false);
+            }
+        }
+
+        void fill() throws InterruptedException
+        {
+            batch.clear();
+            Request first = carry == null ? queue.take() : carry;
+            carry = null;
+            batch.add(first);
+
+            final long deadline = System.nanoTime() + maxWaitNanos;
+            while (batch.size() < maxBatchSz)
+            {
+                long remaining = deadline - System.nanoTime();
+                Request request = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                if (request == null)
+                {
+                    break;
+                }
+                if (request.x.length != first.x.length)
+                {
+                    carry = request;
+                    break;
+                }
+                batch.add(request);
+            }
+        }
+
+        void runBatch()
+        {
+            final int batchSz = batch.size();
+            final int sz = batch.get(0).x.length;
+            RuntimeException failure = null;
+            try
+            {
+                input.resize(batchSz, sz);
+                double[] xA = input.getArray().v;
+                for (int i = 0; i < batchSz; ++i)
+                {
+                    System.arraycopy(batch.get(i).x, 0, xA, i * sz, sz);
+                }
+                output = replica.forwardBatch(input);
+            }
+            catch (RuntimeException runEx)
+            {
+                failure = runEx;
+            }
+
+            // Record before completing, so a caller who sees their result also sees it in the metrics
+            final long end = System.nanoTime();
+            for (int i = 0; i < batchSz; ++i)
+            {
+                latencies[i] = end - batch.get(i).start;
+            }
+            metrics.record(batchSz, latencies);
+
+            if (failure != null)
+            {
+                for (Request request : batch)
+                {
+                    request.result.completeExceptionally(failure);
+                }
+                return;
+            }
+
+            final int oSz = output.size() / batchSz;
+            final double[] oA = output.getArray().v;
+            for (int i = 0; i < batchSz; ++i)
+            {
+                double[] scores = Arrays.copyOfRange(oA, i * oSz, (i + 1) * oSz);
+                if (model.scaleOutput)
+                {
+                    for (int j = 0; j < oSz; ++j)
+                    {
+                        scores[j] = 2 * (scores[j] - 0.5);
+                    }
+                }
+                batch.get(i).result.complete(scores);
+            }
+        }
+    }
+
+    /**
+     * Latency and batch-fill statistics.  Latencies are kept for a window of the most recent requests, so the
+     * percentiles follow the current traffic.  Batch sizes are counted over everything since the last reset
+     */
+    public static class Metrics
+    {
+        public static final int DEFAULT_WINDOW = 8192;
+
+        private final int maxBatchSz;
+        private final long[] window;
+        private int next;
+        private long numRequests;
+        private long numBatches;
+        private long[] batchSizes;
+
+        Metrics(int maxBatchSz)
+        {
+            this(maxBatchSz, DEFAULT_WINDOW);
+        }
+
+        Metrics(int maxBatchSz, int windowSz)
+        {
+            this.maxBatchSz = maxBatchSz;
+            this.window = new long[windowSz];
+            this.batchSizes = new long[maxBatchSz + 1];
+        }
+
+        synchronized void record(int batchSz, long[] latencies)
+        {
+            for (int i = 0; i < batchSz; ++i)
+            {
+                window[next] = latencies[i];
+                next = (next + 1) % window.length;
+            }
+            numRequests += batchSz;
+            ++numBatches;
+            ++batchSizes[batchSz];
+        }
+
+        /**
+         * Get a latency percentile over the most recent requests
+         *
+         * @param p The percentile, between 0 and 100
+         * @return The latency in microseconds, or 0 if nothing has been scored
+         */
+        public synchronized double getLatencyPercentile(double p)
+        {
+            final int n = (int) Math.min(numRequests, window.length);
+            if (n == 0)
+            {
+                return 0.;
+            }
+            long[] sorted = Arrays.copyOf(window, n);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(p / 100. * n) - 1;
+            rank = Math.max(0, Math.min(n - 1, rank));
+            return sorted[rank] / 1000.;
+        }
+
+        public double getP50Micros()
+        {
+            return getLatencyPercentile(50);
+        }
+
+        public double getP99Micros()
+        {
+            return getLatencyPercentile(99);
+        }
+
+        /**
+         * How full the batches are on average, where 1 means every batch had maxBatchSz requests
+         *
+         * @return The average batch size over maxBatchSz
+         */
+        public synchronized double getMeanBatchFill()
+        {
+            return numBatches == 0 ? 0. : numRequests / (double) (numBatches * maxBatchSz);
+        }
+
+        /**
+         * Get a count of batches by size
+         *
+         * @return An array where index i is the number of batches with i requests
+         */
+        public synchronized long[] getBatchSizeHistogram()
+        {
+            return Arrays.copyOf(batchSizes, batchSizes.length);
+        }
+
+        public synchronized long getNumRequests()
+        {
+            return numRequests;
+        }
+
+        public synchronized long getNumBatches()
+        {
+            return numBatches;
+        }
+
+        public synchronized void reset()
+        {
+            next = 0;
+            numRequests = numBatches = 0;
+            Arrays.fill(batchSizes, 0);
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return String.format("requests=%d batches=%d fill=%.3f p50=%.1fus p99=%.1fus", numRequests, numBatches,
+                    getMeanBatchFill(), getP50Micros(), getP99Micros());
+        }
+    }
+}
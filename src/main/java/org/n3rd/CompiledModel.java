@@ -0,0 +1,184 @@
+package org.n3rd;
+
+import org.n3rd.layers.FusedLayer;
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.ScoringOnly;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A NeuralNetModel compiled for scoring only.
+ *
+ * Every layer in a NeuralNetModel keeps its own activations and its own gradients for as long as the model lives,
+ * which is a lot of memory for a model that only ever scores.  Compiling makes a replica of the model (sharing its
+ * weights), fuses the activations into the layers below them (see {@link NeuralNetModel#fuse()}), and has each layer
+ * let go of its gradients (see {@link ScoringOnly}).  Then it plans where the activations live.  An activation is
+ * only needed until the next layer has read it, so they take turns in the two slots of a ping-pong arena: each layer
+ * reads its input from one slot, and writes its output into the other, over the activation before its input.  So the
+ * arena is only as big as the two largest activations, rather than all of them put together.
+ *
+ * The plan comes from a dry run on an input of the shape given when compiling.  A bigger input still scores
+ * correctly, but any activation that outgrows the arena goes back to having storage of its own.
+ *
+ * A compiled model is for one thread at a time (see {@link InferenceSession} for scoring from several).  The weights
+ * are shared with the original model, so dont keep training that while scoring with this.  Once the model is
+ * compiled, the original can be dropped, leaving just the weights, the arena and whatever small state the layers
+ * need to score
+ * <pre>
+ * CompiledModel compiled = new CompiledModel(model, 1, 28, 28);
+ * model = null;
+ * ...
+ * compiled.score(x, scores);
+ * </pre>
+ */
+public class CompiledModel
+{
+    private final Layer[] layers;
+    private final boolean scaleOutput;
+    private final Tensor input;
+    private final double[][] arena = new double[2][];
+
+    /**
+     * Compile a trained model
+     *
+     * @param model The model, which should not be updated while the compiled model is in use
+     * @param inputDims The shape of the input to plan for
+     */
+    public CompiledModel(NeuralNetModel model, int... inputDims)
+    {
+        NeuralNetModel replica = model.replicate();
+        replica.setIsTraining(false);
+        layers = replica.fuse().getLayers();
+        scaleOutput = model.scaleOutput;
+        input = new Tensor(inputDims);
+
+        // A dry run, a step at a time, to find every activation and how big it gets.  A fused layer writes its
+        // activation in place, so the only steps in it with outputs of their own are the layer and its pooling
+        List<Tensor> activations = new ArrayList<Tensor>();
+        activations.add(input);
+        Tensor z = input;
+        for (Layer layer : layers)
+        {
+            for (Layer step : steps(layer))
+            {
+                z = step.forward(z);
+                if (z != activations.get(activations.size() - 1))
+                {
+                    activations.add(z);
+                }
+            }
+        }
+
+        for (Layer layer : layers)
+        {
+            if (layer instanceof ScoringOnly)
+            {
+                ((ScoringOnly) layer).releaseTrainingState();
+            }
+        }
+
+        // Every activation is written while the one before it is read, so they alternate between the slots
+        int[] slotSz = new int[2];
+        for (int i = 0; i < activations.size(); ++i)
+        {
+            slotSz[i % 2] = Math.max(slotSz[i % 2], activations.get(i).size());
+        }
+        arena[0] = new double[slotSz[0]];
+        arena[1] = new double[slotSz[1]];
+        for (int i = 0; i < activations.size(); ++i)
+        {
+            activations.get(i).share(arena[i % 2]);
+        }
+    }
+
+    // The steps that each write an activation of their own
+    private static Layer[] steps(Layer layer)
+    {
+        if (layer instanceof FusedLayer)
+        {
+            FusedLayer fused = (FusedLayer) layer;
+            if (fused.getPooling() != null)
+            {
+                return new Layer[] { fused.getLayer(), fused.getPooling() };
+            }
+            return new Layer[] { fused.getLayer() };
+        }
+        return new Layer[] { layer };
+    }
+
+    /**
+     * Score an input, writing the output layer into out.  This is the same as
+     * {@link NeuralNetModel#score(org.sgdtk.FeatureVector)}
+     *
+     * @param in The input
+     * @param out Where to put the scores, which must be at least as long as the output layer
+     * @return The number of scores written to out
+     */
+    public int score(double[] in, double[] out)
+    {
+        Tensor z = input;
+        if (in.length != z.size())
+        {
+            z.resize(in.length);
+        }
+        System.arraycopy(in, 0, z.getArray().v, 0, in.length);
+
+        for (int i = 0; i < layers.length; ++i)
+        {
+            z = layers[i].forward(z);
+        }
+
+        final int sz = z.size();
+        if (out.length < sz)
+        {
+            throw new IllegalArgumentException("Output array too small, need " + sz + " but got " + out.length);
+        }
+        final double[] zA = z.getArray().v;
+        for (int i = 0; i < sz; ++i)
+        {
+            // Assuming a probability distribution, we are going to want to shift and scale
+            out[i] = scaleOutput ? 2 * (zA[i] - 0.5) : zA[i];
+        }
+        return sz;
+    }
+
+    /**
+     * Score an input and give back the best score.  This is the same as
+     * {@link NeuralNetModel#predict(org.sgdtk.FeatureVector)}
+     *
+     * @param in The input
+     * @param out Scratch space for the scores, which must be at least as long as the output layer
+     * @return The highest score
+     */
+    public double predict(double[] in, double[] out)
+    {
+        final int sz = score(in, out);
+        double mx = out[0];
+        for (int i = 1; i < sz; ++i)
+        {
+            mx = Math.max(out[i], mx);
+        }
+        return mx;
+    }
+
+    /**
+     * The compiled layers, which share their weights with the original model
+     *
+     * @return The layers
+     */
+    public Layer[] getLayers()
+    {
+        return layers;
+    }
+
+    /**
+     * How much memory the activations take up
+     *
+     * @return The number of doubles in the arena
+     */
+    public int getArenaSize()
+    {
+        return arena[0].length + arena[1].length;
+    }
+}
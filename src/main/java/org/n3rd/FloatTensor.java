@@ -0,0 +1,117 @@
+package org.n3rd;
+
+/**
+ * Single-precision version of a Tensor.
+ *
+ * This is used as the workspace for the mixed-precision layers (e.g. FullyConnectedLayerMixed), which do their
+ * GEMMs with sgemm instead of dgemm.  Since the data is half the size, it moves through memory twice as fast, and
+ * twice as many values fit in a SIMD register.  Resizing only reallocates when the data gets bigger.
+ *
+ * @author dpressel
+ */
+public class FloatTensor
+{
+    public int[] dims;
+    private float[] array;
+    private int size;
+
+    public FloatTensor(int... dims)
+    {
+        this.dims = new int[dims.length];
+        resize(dims);
+    }
+
+    /**
+     * Make a single-precision copy of a Tensor
+     *
+     * @param x The tensor to copy
+     */
+    public FloatTensor(Tensor x)
+    {
+        this.dims = new int[x.dims.length];
+        copyFrom(x);
+    }
+
+    public void resize(int... dims)
+    {
+        if (this.dims.length != dims.length)
+        {
+            this.dims = new int[dims.length];
+        }
+
+        int length = 1;
+        for (int i = 0; i < dims.length; ++i)
+        {
+            this.dims[i] = dims[i];
+            length *= dims[i];
+        }
+        if (array == null || array.length < length)
+        {
+            array = new float[length];
+        }
+        size = length;
+    }
+
+    /**
+     * Narrow a Tensor into this one, resizing to match
+     *
+     * @param x The (double precision) tensor to copy
+     */
+    public void copyFrom(Tensor x)
+    {
+        resize(x.dims);
+        final double[] xA = x.getArray().v;
+        for (int i = 0; i < size; ++i)
+        {
+            array[i] = (float) xA[i];
+        }
+    }
+
+    /**
+     * Widen this into a Tensor, resizing it to match
+     *
+     * @param x The (double precision) tensor to copy into
+     */
+    public void copyTo(Tensor x)
+    {
+        x.resize(dims);
+        final double[] xA = x.getArray().v;
+        for (int i = 0; i < size; ++i)
+        {
+            xA[i] = array[i];
+        }
+    }
+
+    /**
+     * Get the backing array.  This may be bigger than the tensor, see {@link #size()}
+     *
+     * @return The data
+     */
+    public float[] getArray()
+    {
+        return array;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void constant(float x)
+    {
+        for (int i = 0; i < size; ++i)
+        {
+            array[i] = x;
+        }
+    }
+
+    public float at(int index)
+    {
+        return array[index];
+    }
+
+    public void set(int index, float element)
+    {
+        array[index] = element;
+    }
+}
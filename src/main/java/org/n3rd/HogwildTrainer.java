@@ -0,0 +1,135 @@
+package org.n3rd;
+
+import org.n3rd.ops.StripedLockUpdate;
+import org.n3rd.ops.Update;
+import org.sgdtk.FeatureVector;
+import org.sgdtk.Loss;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Multi-core data-parallel trainer in the style of Hogwild! (Niu, Recht, Re, Wright).
+ *
+ * Each thread gets a replica of the model (see {@link NeuralNetModel#replicate()}), which shares the weights, biases
+ * and update accumulators with the original, but has its own activations and gradients.  The threads each walk their
+ * own share of the training data, and apply their updates straight to the shared weights.  By default there is no
+ * locking at all, which is the Hogwild approach: the occasional lost update is cheaper than coordinating.  If that
+ * is too noisy for your model, turn on striped locking, which runs each layer's update under one of a fixed set of
+ * locks.
+ *
+ * Since the threads race, results are not reproducible from run to run.  Use {@link SynchronousParallelTrainer} if
+ * you need that.
+ */
+public class HogwildTrainer extends MiniBatchTrainer
+{
+    protected int numThreads;
+    protected boolean striped;
+
+    /**
+     * Constructor for lock-free training, updating after every example
+     *
+     * @param loss The loss function
+     * @param lambda Regularization parameter
+     * @param eta Learning rate
+     * @param numThreads Number of worker threads
+     */
+    public HogwildTrainer(Loss loss, double lambda, double eta, int numThreads)
+    {
+        this(loss, lambda, eta, numThreads, 1, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param loss The loss function
+     * @param lambda Regularization parameter
+     * @param eta Learning rate
+     * @param numThreads Number of worker threads
+     * @param batchSz Number of examples each thread processes per update
+     * @param striped Use striped locks for the updates instead of going lock-free
+     */
+    public HogwildTrainer(Loss loss, double lambda, double eta, int numThreads, int batchSz, boolean striped)
+    {
+        super(loss, lambda, eta, batchSz);
+        this.numThreads = numThreads;
+        this.striped = striped;
+    }
+
+    /**
+     * Do one pass over the training data, with the examples dealt round-robin to each thread
+     *
+     * @param model The model to train
+     * @param trainingExamples The training data
+     */
+    @Override
+    public void trainEpoch(NeuralNetModel model, List<FeatureVector> trainingExamples)
+    {
+        Update update = striped ? new StripedLockUpdate(model.getUpdate()) : model.getUpdate();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+            for (int t = 0; t < numThreads; ++t)
+            {
+                final NeuralNetModel replica = model.replicate(update);
+                final List<FeatureVector> shard =
+                        new ArrayList<FeatureVector>(trainingExamples.size() / numThreads + 1);
+                for (int i = t, sz = trainingExamples.size(); i < sz; i += numThreads)
+                {
+                    shard.add(trainingExamples.get(i));
+                }
+                futures.add(executor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (int i = 0, sz = shard.size(); i < sz; i += batchSz)
+                        {
+                            trainBatch(replica, shard.subList(i, Math.min(i + batchSz, sz)));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException intEx)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(intEx);
+        }
+        catch (ExecutionException execEx)
+        {
+            throw new RuntimeException(execEx.getCause());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads)
+    {
+        this.numThreads = numThreads;
+    }
+
+    public boolean isStriped()
+    {
+        return striped;
+    }
+
+    public void setStriped(boolean striped)
+    {
+        this.striped = striped;
+    }
+}
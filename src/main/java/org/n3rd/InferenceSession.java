@@ -0,0 +1,131 @@
+package org.n3rd;
+
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.ScoringOnly;
+
+/**
+ * Thread-safe scoring against a trained NeuralNetModel.
+ *
+ * The layers in a NeuralNetModel write their activations into buffers they own, so a single model can only score
+ * on one thread at a time.  A session gives each calling thread its own replica of the model (see
+ * {@link NeuralNetModel#replicate()}), which shares the weights, but has its own activations.  The replica is
+ * created the first time a thread scores, and then reused, along with its input buffer, so once the buffers have
+ * grown to fit the input, {@link #score(double[], double[])} doesnt allocate anything on the heap.
+ *
+ * To score on a single thread with as little memory as possible, see {@link CompiledModel}.
+ *
+ * The weights are shared, not copied, so dont keep training the model while a session is scoring with it.  If you
+ * need to do that, make the session from a {@link NeuralNetModel#prototype()} of the model instead.
+ *
+ * Typical usage from a request handler is to create the session once, and then call score() from any thread:
+ * <pre>
+ * InferenceSession session = new InferenceSession(model);
+ * ...
+ * double[] scores = new double[numLabels];
+ * session.score(x, scores);
+ * </pre>
+ */
+public class InferenceSession
+{
+    private final NeuralNetModel model;
+    private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>()
+    {
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace(model);
+        }
+    };
+
+    // Everything one thread needs to score
+    private static class Workspace
+    {
+        final Layer[] layers;
+        final Tensor input = new Tensor(1);
+
+        Workspace(NeuralNetModel model)
+        {
+            NeuralNetModel replica = model.replicate();
+            // e.g. turn off Dropout, without touching the original model
+            replica.setIsTraining(false);
+            // The replica is ours alone, so its activations can be fused into the layers below them, and it never
+            // needs its gradients
+            layers = replica.fuse().getLayers();
+            for (Layer layer : layers)
+            {
+                if (layer instanceof ScoringOnly)
+                {
+                    ((ScoringOnly) layer).releaseTrainingState();
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a session for scoring with a trained model
+     *
+     * @param model The model, which should not be updated while the session is in use
+     */
+    public InferenceSession(NeuralNetModel model)
+    {
+        this.model = model;
+    }
+
+    /**
+     * Score an input, writing the output layer into out.  This is the same as
+     * {@link NeuralNetModel#score(org.sgdtk.FeatureVector)}, but its safe to call from several threads at once
+     *
+     * @param in The input
+     * @param out Where to put the scores, which must be at least as long as the output layer
+     * @return The number of scores written to out
+     */
+    public int score(double[] in, double[] out)
+    {
+        Workspace ws = workspace.get();
+        Tensor z = ws.input;
+        z.resize(in.length);
+        System.arraycopy(in, 0, z.getArray().v, 0, in.length);
+
+        for (int i = 0; i < ws.layers.length; ++i)
+        {
+            z = ws.layers[i].forward(z);
+        }
+
+        final int sz = z.size();
+        if (out.length < sz)
+        {
+            throw new IllegalArgumentException("Output array too small, need " + sz + " but got " + out.length);
+        }
+        final double[] zA = z.getArray().v;
+        for (int i = 0; i < sz; ++i)
+        {
+            // Assuming a probability distribution, we are going to want to shift and scale
+            out[i] = model.scaleOutput ? 2 * (zA[i] - 0.5) : zA[i];
+        }
+        return sz;
+    }
+
+    /**
+     * Score an input and give back the best score.  This is the same as
+     * {@link NeuralNetModel#predict(org.sgdtk.FeatureVector)}, but its safe to call from several threads at once
+     *
+     * @param in The input
+     * @param out Scratch space for the scores, which must be at least as long as the output layer
+     * @return The highest score
+     */
+    public double predict(double[] in, double[] out)
+    {
+        final int sz = score(in, out);
+        double mx = out[0];
+        for (int i = 1; i < sz; ++i)
+        {
+            mx = Math.max(out[i], mx);
+        }
+        return mx;
+    }
+
+    public NeuralNetModel getModel()
+    {
+        return model;
+    }
+}
@@ -0,0 +1,134 @@
+package org.n3rd;
+
+import org.sgdtk.DenseVectorN;
+import org.sgdtk.FeatureVector;
+import org.sgdtk.Loss;
+
+import java.util.List;
+
+/**
+ * Train a NeuralNetModel using mini-batches instead of one example at a time.
+ *
+ * SGDTk's Learner walks the data one example at a time, which means every layer does a matrix-vector op per example.
+ * This trainer instead stacks up batchSz examples into a single Tensor with a leading batch dimension and pushes them
+ * through the layers together, so the BLAS layers can do one big GEMM per batch.  Every example in a batch must be
+ * the same length.
+ *
+ * The loss derivatives are averaged over the batch, so eta means roughly the same thing as it does for single
+ * example SGD
+ */
+public class MiniBatchTrainer
+{
+    protected Loss loss;
+    protected double lambda;
+    protected double eta;
+    protected int batchSz;
+
+    /**
+     * Constructor
+     *
+     * @param loss The loss function
+     * @param lambda Regularization parameter
+     * @param eta Learning rate
+     * @param batchSz Number of examples per batch
+     */
+    public MiniBatchTrainer(Loss loss, double lambda, double eta, int batchSz)
+    {
+        this.loss = loss;
+        this.lambda = lambda;
+        this.eta = eta;
+        this.batchSz = batchSz;
+    }
+
+    /**
+     * Do one pass over the training data.  The last batch may be smaller than batchSz
+     *
+     * @param model The model to train
+     * @param trainingExamples The training data
+     */
+    public void trainEpoch(NeuralNetModel model, List<FeatureVector> trainingExamples)
+    {
+        for (int i = 0, sz = trainingExamples.size(); i < sz; i += batchSz)
+        {
+            trainBatch(model, trainingExamples.subList(i, Math.min(i + batchSz, sz)));
+        }
+    }
+
+    /**
+     * Do a forward and backward pass on a single batch, and update the model
+     *
+     * @param model The model to train
+     * @param batch The examples in this batch
+     */
+    public void trainBatch(NeuralNetModel model, List<FeatureVector> batch)
+    {
+        final int n = batch.size();
+
+        // No sense paying for the batch machinery on a single example
+        if (n == 1)
+        {
+            FeatureVector fv = batch.get(0);
+            double p = model.predict(fv);
+            model.updateWeights(fv.getX(), eta, lambda, loss.dLoss(p, fv.getY()), fv.getY());
+            return;
+        }
+
+        double[] y = new double[n];
+        for (int i = 0; i < n; ++i)
+        {
+            y[i] = batch.get(i).getY();
+        }
+        double[] p = model.predict(toBatch(batch));
+
+        double[] dLoss = new double[n];
+        for (int i = 0; i < n; ++i)
+        {
+            dLoss[i] = loss.dLoss(p[i], y[i]) / n;
+        }
+        model.updateWeights(eta, lambda, dLoss, y);
+    }
+
+    /**
+     * Stack a list of dense feature vectors into a single batch Tensor
+     *
+     * @param batch The examples, which must all be the same length
+     * @return A Tensor with dims (batch.size(), example length)
+     */
+    public static Tensor toBatch(List<FeatureVector> batch)
+    {
+        final int n = batch.size();
+        final int sz = ((DenseVectorN) batch.get(0).getX()).getX().size();
+        Tensor x = new Tensor(n, sz);
+        double[] xA = x.getArray().v;
+        for (int i = 0; i < n; ++i)
+        {
+            DenseVectorN dvn = (DenseVectorN) batch.get(i).getX();
+            if (dvn.getX().size() != sz)
+            {
+                throw new IllegalArgumentException("All examples in a batch must be the same length");
+            }
+            System.arraycopy(dvn.getX().v, 0, xA, i * sz, sz);
+        }
+        return x;
+    }
+
+    public int getBatchSz()
+    {
+        return batchSz;
+    }
+
+    public void setBatchSz(int batchSz)
+    {
+        this.batchSz = batchSz;
+    }
+
+    public double getEta()
+    {
+        return eta;
+    }
+
+    public void setEta(double eta)
+    {
+        this.eta = eta;
+    }
+}
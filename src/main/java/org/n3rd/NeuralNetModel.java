@@ -1,16 +1,23 @@
 package org.n3rd;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.n3rd.layers.DiffersOnTraining;
+import org.n3rd.layers.FusedLayer;
 import org.n3rd.layers.Layer;
 import org.n3rd.ops.AdagradUpdate;
+import org.n3rd.ops.BiasUpdate;
 import org.n3rd.ops.Update;
+import org.n3rd.util.BinaryModelFormat;
 import org.n3rd.util.Layers;
 import org.sgdtk.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -19,8 +26,8 @@ import java.util.*;
  * This model is basically a wrapper around a set of Layers as building blocks, similar to Torch, and trained
  * using Adagrad (for now anyway)
  *
- * For simplicity, serialization is done using Jackson to JSON, though we could use the fast serialization provided
- * in SGDTk in the future if its helpful.
+ * Models are saved in a compact binary format (see {@link BinaryModelFormat}), and can also be exported to JSON,
+ * which is streamed using Jackson.
  *
  * @author dpressel
  */
@@ -88,6 +95,51 @@ public class NeuralNetModel implements WeightModel
         return layers;
     }
 
+    public Update getUpdate()
+    {
+        return updater;
+    }
+
+    /**
+     * Create a model that shares this model's parameters, but has its own layer activations and gradients.
+     * This is what lets us train (or score) on several threads at once against a single set of weights
+     *
+     * @return A replica model
+     */
+    public NeuralNetModel replicate()
+    {
+        return replicate(updater);
+    }
+
+    /**
+     * Create a model that shares this model's parameters, but uses a different update rule
+     *
+     * @param update The update to use for the replica
+     * @return A replica model
+     */
+    public NeuralNetModel replicate(Update update)
+    {
+        Layer[] replicas = new Layer[layers.length];
+        for (int i = 0; i < layers.length; ++i)
+        {
+            replicas[i] = layers[i].replicate();
+        }
+        return new NeuralNetModel(replicas, scaleOutput, update);
+    }
+
+    /**
+     * Create a model that runs this model's layers with each layer that has parameters fused with the activation
+     * (and max pooling) after it, see {@link FusedLayer}.  The fused model uses these same layers, so it scores (and
+     * trains) exactly like this one with fewer trips through memory, but only one of the two should be run.  Saving
+     * the fused model saves the unfused layers, so it loads like this one
+     *
+     * @return A fused model
+     */
+    public NeuralNetModel fuse()
+    {
+        return new NeuralNetModel(FusedLayer.fuse(layers), scaleOutput, updater);
+    }
+
     // Leftover mismatch from base model in SGDTk
     @Override
     public double mag()
@@ -154,15 +206,13 @@ public class NeuralNetModel implements WeightModel
 
     void updateBiasWeights(Layer layer, double eta)
     {
-        double[] biasGrads = layer.getBiasGrads();
-        double[] biasParams = layer.getBiasParams();
-        for (int i = 0; i < biasParams.length; ++i)
+        // Updates that keep state for the biases do their own, the rest get plain SGD
+        if (updater instanceof BiasUpdate)
         {
-            // Dont bother to regularize
-            double delta = -(biasGrads[i] * eta);// * 0.01; // last number is total fudge
-            biasParams[i] += delta;
-            biasGrads[i] = 0;
+            ((BiasUpdate) updater).runBias(layer, eta);
+            return;
         }
+        BiasUpdate.sgd(layer, eta);
     }
     void updateLayerWeights(Layer layer, double eta, double lambda)
     {
@@ -227,21 +277,93 @@ public class NeuralNetModel implements WeightModel
     }
 
     /**
-     * Load a model from a JSON file
+     * Mini-batch version of {@link #updateWeights(VectorN, double, double, double, double)}.  This must follow a
+     * call to {@link #forwardBatch(Tensor)} on the same batch, since the layers use the state from that forward pass.
+     * Gradients are summed over the batch before each layer is updated, so the whole batch gets a single update
      *
-     * @param file A JSON file
+     * @param eta learning rate
+     * @param lambda regularization
+     * @param dLoss the loss derivative for each example in the batch
+     * @param y the labels for each example in the batch
+     */
+    public void updateWeights(double eta, double lambda, double[] dLoss, double[] y)
+    {
+        Tensor chainGrad = new Tensor(dLoss, dLoss.length, 1);
+
+        for (int k = layers.length - 1; k >= 0; --k)
+        {
+            Layer layer = layers[k];
+            chainGrad = layer.backwardBatch(chainGrad, y);
+            updateLayerWeights(layer, eta, lambda);
+        }
+    }
+
+    /**
+     * Backprop a batch to compute the gradients, without updating the weights.  This must follow a call to
+     * {@link #forwardBatch(Tensor)} on the same batch.  The gradients stay in each layer for the caller to combine and
+     * apply
+     *
+     * @param dLoss the loss derivative for each example in the batch
+     * @param y the labels for each example in the batch
+     */
+    public void backwardBatch(double[] dLoss, double[] y)
+    {
+        Tensor chainGrad = new Tensor(dLoss, dLoss.length, 1);
+
+        for (int k = layers.length - 1; k >= 0; --k)
+        {
+            chainGrad = layers[k].backwardBatch(chainGrad, y);
+        }
+    }
+
+    /**
+     * Load a model from a file, in either the binary format or JSON.  Binary files are memory-mapped, and the weights
+     * are bulk-copied straight from the mapping into the layers
+     *
+     * @param file A binary or JSON model file
      * @throws IOException
      */
     @Override
     public void load(File file) throws IOException
     {
-        load(new FileInputStream(file));
+        load(file, false);
     }
 
     /**
-     * Save a model to a JSON file.  This only writes parameters necessary for prediction, not training
+     * Load a model from a file, optionally leaving the weights in the memory-mapped file.  This is meant for scoring:
+     * the weights of any {@link org.n3rd.layers.OffHeapCapable} layers stay off the heap, out of the way of the
+     * garbage collector, and every process mapping the same file shares them.  The mapped weights are read-only, so
+     * a model loaded this way cannot be trained.  Other layers, and JSON files, are loaded as usual
      *
-     * @param file A JSON file
+     * @param file A binary or JSON model file
+     * @param mapWeights Leave the weights in the mapped file where possible
+     * @throws IOException
+     */
+    public void load(File file, boolean mapWeights) throws IOException
+    {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!BinaryModelFormat.isBinary(buffer))
+            {
+                load(new FileInputStream(file));
+                return;
+            }
+            scaleOutput = BinaryModelFormat.readHeader(buffer);
+            layers = BinaryModelFormat.readLayers(buffer, mapWeights);
+        }
+        finally
+        {
+            // The mapping stays valid after the channel is closed
+            channel.close();
+        }
+    }
+
+    /**
+     * Save a model to a file in the binary format.  This only writes parameters necessary for prediction, not training
+     *
+     * @param file A model file
      * @throws IOException
      */
     @Override
@@ -251,54 +373,174 @@ public class NeuralNetModel implements WeightModel
     }
 
     /**
-     * Load a model from a JSON stream
+     * Load a model from a stream, in either the binary format or JSON
      *
-     * @param inputStream Any input stream for JSON
+     * @param inputStream Any input stream for a binary or JSON model
      * @throws IOException
      */
     @Override
     public void load(InputStream inputStream) throws IOException
     {
-        JsonNode rootNode = OBJECT_MAPPER.readTree(inputStream);
-        JsonNode doScaling = rootNode.get("ScaleOutput");
-        this.scaleOutput = doScaling.asBoolean();
-        JsonNode subtree = rootNode.get("Layers");
-        Iterator<JsonNode> children = subtree.iterator();
-        List<Layer> list = new ArrayList<Layer>();
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+        bufferedInputStream.mark(4);
+        byte[] magic = new byte[4];
+        int n = 0;
+        while (n < magic.length)
+        {
+            int read = bufferedInputStream.read(magic, n, magic.length - n);
+            if (read < 0)
+            {
+                break;
+            }
+            n += read;
+        }
+        bufferedInputStream.reset();
 
-        for (; children.hasNext(); )
+        if (n == magic.length && BinaryModelFormat.isBinary(ByteBuffer.wrap(magic)))
         {
-            JsonNode child = children.next();
-            Map<String, Object> params = OBJECT_MAPPER.treeToValue(child, Map.class);
-            list.add(Layers.toLayer(params));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1 << 16];
+            for (int read = bufferedInputStream.read(chunk); read >= 0; read = bufferedInputStream.read(chunk))
+            {
+                bytes.write(chunk, 0, read);
+            }
+            bufferedInputStream.close();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            scaleOutput = BinaryModelFormat.readHeader(buffer);
+            layers = BinaryModelFormat.readLayers(buffer);
+            return;
         }
-        layers = list.toArray(new Layer[list.size()]);
-        inputStream.close();
+        loadJSON(bufferedInputStream);
     }
 
     /**
-     * Save a model to a JSON stream.  This only writes parameters necessary for prediction, not training
+     * Save a model to a stream in the binary format.  This only writes parameters necessary for prediction, not
+     * training
      *
-     * @param outputStream A JSON output stream
+     * @param outputStream An output stream
      * @throws IOException
      */
     @Override
     public void save(OutputStream outputStream) throws IOException
     {
-        ObjectNode rootNode = OBJECT_MAPPER.createObjectNode();
-        List<Map<String, Object>> layerArray = new ArrayList<Map<String, Object>>(layers.length);
-        for (int i = 0; i < layers.length; ++i)
+        save(outputStream, false);
+    }
+
+    /**
+     * Save a model to a file in the binary format, optionally with the weights in single precision, which halves the
+     * size of the file
+     *
+     * @param file A model file
+     * @param singlePrecision Write the weights as floats
+     * @throws IOException
+     */
+    public void save(File file, boolean singlePrecision) throws IOException
+    {
+        save(new FileOutputStream(file), singlePrecision);
+    }
+
+    /**
+     * Save a model to a stream in the binary format, optionally with the weights in single precision
+     *
+     * @param outputStream An output stream
+     * @param singlePrecision Write the weights as floats
+     * @throws IOException
+     */
+    public void save(OutputStream outputStream, boolean singlePrecision) throws IOException
+    {
+        flushUpdate();
+        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+        BinaryModelFormat.write(FusedLayer.unfuse(layers), scaleOutput, bufferedOutputStream,
+                singlePrecision ? BinaryModelFormat.TYPE_FLOAT : BinaryModelFormat.TYPE_DOUBLE);
+        bufferedOutputStream.close();
+    }
+
+    // Sparse Adagrad may still owe some of the weights their decay, so catch them up before they are written
+    private void flushUpdate()
+    {
+        if (updater instanceof AdagradUpdate)
         {
-            layerArray.add(Layers.toParams(layers[i]));
+            for (Layer layer : layers)
+            {
+                ((AdagradUpdate) updater).flush(layer);
+            }
         }
+    }
 
-        JsonNode subtree = OBJECT_MAPPER.valueToTree(layerArray);
-        rootNode.put("Layers", subtree);
-        rootNode.put("ScaleOutput", scaleOutput);
+    /**
+     * Load a model from a JSON stream.  This is streamed, so only one layer is in memory at a time besides the model
+     * itself
+     *
+     * @param inputStream Any input stream for JSON
+     * @throws IOException
+     */
+    public void loadJSON(InputStream inputStream) throws IOException
+    {
+        JsonParser parser = OBJECT_MAPPER.getFactory().createParser(inputStream);
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+        {
+            throw new IOException("Expected a JSON model");
+        }
+        List<Layer> list = new ArrayList<Layer>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("ScaleOutput".equals(field))
+            {
+                this.scaleOutput = parser.getBooleanValue();
+            }
+            else if ("Layers".equals(field) && token == JsonToken.START_ARRAY)
+            {
+                while (parser.nextToken() != JsonToken.END_ARRAY)
+                {
+                    list.add(Layers.readLayer(parser));
+                }
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+        layers = list.toArray(new Layer[list.size()]);
+        parser.close();
+        inputStream.close();
+    }
 
-        OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValue(outputStream, rootNode);
-        outputStream.close();
+    /**
+     * Export a model to a JSON file.  This is much slower and bigger than the binary format, but its human-readable
+     *
+     * @param file A JSON file
+     * @throws IOException
+     */
+    public void saveJSON(File file) throws IOException
+    {
+        saveJSON(new FileOutputStream(file));
+    }
 
+    /**
+     * Export a model to a JSON stream.  This only writes parameters necessary for prediction, not training.  Layers
+     * are streamed out one at a time, with the weights written directly from their arrays
+     *
+     * @param outputStream A JSON output stream
+     * @throws IOException
+     */
+    public void saveJSON(OutputStream outputStream) throws IOException
+    {
+        flushUpdate();
+        JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(outputStream);
+        generator.useDefaultPrettyPrinter();
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("Layers");
+        for (Layer layer : FusedLayer.unfuse(layers))
+        {
+            Layers.writeLayer(layer, generator);
+        }
+        generator.writeEndArray();
+        generator.writeBooleanField("ScaleOutput", scaleOutput);
+        generator.writeEndObject();
+        generator.close();
+        outputStream.close();
     }
 
     /**
@@ -345,6 +587,46 @@ public class NeuralNetModel implements WeightModel
         return z;
     }
 
+    /**
+     * Mini-batch forward prop
+     *
+     * @param x A batch of inputs, where x.dims[0] is the number of examples
+     * @return The (unscaled) output layer, with a leading batch dimension
+     */
+    public Tensor forwardBatch(Tensor x)
+    {
+        Tensor z = x;
+        for (int i = 0; i < layers.length; ++i)
+        {
+            z = layers[i].forwardBatch(z);
+        }
+        return z;
+    }
+
+    /**
+     * Mini-batch version of {@link #predict(FeatureVector)}
+     *
+     * @param x A batch of inputs, where x.dims[0] is the number of examples
+     * @return One prediction per example in the batch
+     */
+    public double[] predict(Tensor x)
+    {
+        final int batchSz = x.dims[0];
+        Tensor output = forwardBatch(x);
+        final int sz = output.size() / batchSz;
+        double[] predictions = new double[batchSz];
+        for (int b = 0, base = 0; b < batchSz; ++b, base += sz)
+        {
+            double mx = output.at(base);
+            for (int i = 1; i < sz; ++i)
+            {
+                mx = Math.max(output.at(base + i), mx);
+            }
+            predictions[b] = scaleOutput ? 2 * (mx - 0.5) : mx;
+        }
+        return predictions;
+    }
+
     /**
      * Give back the the output layer of the network, scaling if required
      *
@@ -381,12 +663,22 @@ public class NeuralNetModel implements WeightModel
     }
 
     /**
-     * Not doing this right now, so dont make us select the learning rate in SGDTk unless you desire abject failure.
-     * @return Nothing!
+     * Make a deep copy of this model, with its own parameters.  SGDTk uses this to try out learning rates on a copy,
+     * and it is also handy for starting several runs from exactly the same weights.  The update rule is shared.  Any
+     * state it keeps outside of the layers (e.g. {@link org.n3rd.ops.OptimizerState}) is looked up by the identity of
+     * the parameters, so the copy, which has parameters of its own, starts out with none, and only holds the
+     * parameters weakly, so it goes away with the copy
+     *
+     * @return A copy of the model
      */
     @Override
     public Model prototype()
     {
-        return null;
+        Layer[] copies = new Layer[layers.length];
+        for (int i = 0; i < layers.length; ++i)
+        {
+            copies[i] = layers[i].prototype();
+        }
+        return new NeuralNetModel(copies, scaleOutput, updater);
     }
 }
@@ -1,7 +1,11 @@
 package org.n3rd;
 
 import org.n3rd.layers.*;
+import org.n3rd.ops.AdaDeltaUpdate;
 import org.n3rd.ops.AdagradUpdate;
+import org.n3rd.ops.AdamUpdate;
+import org.n3rd.ops.RMSPropUpdate;
+import org.n3rd.ops.SGDWithMomentumUpdate;
 import org.n3rd.ops.Update;
 import org.n3rd.util.*;
 import org.sgdtk.Model;
@@ -12,9 +16,10 @@ import java.util.*;
 /**
  * Factory for neural net models.
  *
- * Right now this doesnt work as you probably expect, its just fulfilling the required interface since you cannot
- * currently build parallel models with it.  This is easy to fix, but we would want
- * to support then cloning (prototyping) a layer to do so...
+ * Right now this doesnt work as you probably expect, its just fulfilling the required interface.  Every model
+ * from newInstance() shares the same layers, so if you want independent copies, call
+ * {@link NeuralNetModel#prototype()} on the result.  To train in parallel, see {@link HogwildTrainer} and
+ * {@link SynchronousParallelTrainer}
  *
  * @author dpressel
  */
@@ -34,6 +39,10 @@ public class NeuralNetModelFactory implements ModelFactory
         layerFactories.put(ReLULayer.class.getSimpleName(), new ReLULayerFactory());
         layerFactories.put(TemporalConvolutionalLayer.class.getSimpleName(), new TemporalConvolutionalLayerFactory());
         layerFactories.put(SpatialConvolutionalLayer.class.getSimpleName(), new SpatialConvolutionalLayerFactory());
+        layerFactories.put(SpatialConvolutionalLayerFFT.class.getSimpleName(),
+                new SpatialConvolutionalLayerFactory("fft"));
+        layerFactories.put(SpatialConvolutionalLayerWinograd.class.getSimpleName(),
+                new SpatialConvolutionalLayerFactory("winograd"));
         layerFactories.put(MaxPoolingLayer.class.getSimpleName(), new MaxPoolingLayerFactory());
         layerFactories.put(FullyConnectedLayer.class.getSimpleName(), new FullyConnectedLayerFactory());
         layerFactories.put(DropoutLayer.class.getSimpleName(), new DropoutLayerFactory());
@@ -71,20 +80,57 @@ public class NeuralNetModelFactory implements ModelFactory
             LayerFactory layerFactory = layerFactories.get(layerConfig.get(TYPE_NAME));
             layers.add(layerFactory.newLayer(layerConfig));
         }
+        // "optimizer" picks any of the updates, otherwise "adagrad" picks between Adagrad and momentum
+        String optimizer = (String)config.get("optimizer");
+        if (optimizer != null && !"adagrad".equals(optimizer) && !"momentum".equals(optimizer))
+        {
+            setUpdate(newUpdate(optimizer, config));
+            return;
+        }
+
         Boolean adagradOrNull = (Boolean)config.get("adagrad");
         Double alphaOrNull = (Double)config.get("alpha");
 
-        boolean useAdagrad = adagradOrNull == null ? true: adagradOrNull;
+        boolean useAdagrad = optimizer == null ? (adagradOrNull == null ? true: adagradOrNull) :
+                "adagrad".equals(optimizer);
 
         if (useAdagrad)
         {
             double alpha = alphaOrNull == null ? 1.0 : alphaOrNull;
-            setUpdate(new AdagradUpdate(alpha));
+            // Sparse only visits weights with a gradient, which is faster when most gradients are zero
+            Boolean sparseOrNull = (Boolean)config.get("sparse");
+            setUpdate(new AdagradUpdate(alpha, sparseOrNull != null && sparseOrNull));
         }
         else
         {
             double alpha = alphaOrNull == null ? 0.0 : alphaOrNull;
+            setUpdate(new SGDWithMomentumUpdate(alpha));
+        }
+    }
+
+    private static double doubleParam(Map<String, Object> config, String name, double defaultValue)
+    {
+        Number value = (Number)config.get(name);
+        return value == null ? defaultValue : value.doubleValue();
+    }
+
+    // The updates that keep their state outside of the layers
+    private static Update newUpdate(String optimizer, Map<String, Object> config)
+    {
+        if ("adam".equals(optimizer) || "adamw".equals(optimizer))
+        {
+            return new AdamUpdate(doubleParam(config, "beta1", 0.9), doubleParam(config, "beta2", 0.999),
+                    doubleParam(config, "eps", 1e-8), "adamw".equals(optimizer));
+        }
+        if ("rmsprop".equals(optimizer))
+        {
+            return new RMSPropUpdate(doubleParam(config, "rho", 0.9), doubleParam(config, "eps", 1e-8));
+        }
+        if ("adadelta".equals(optimizer))
+        {
+            return new AdaDeltaUpdate(doubleParam(config, "rho", 0.95), doubleParam(config, "eps", 1e-6));
         }
+        throw new IllegalArgumentException("Unknown optimizer " + optimizer);
     }
 
     public NeuralNetModelFactory()
@@ -0,0 +1,250 @@
+package org.n3rd;
+
+import org.n3rd.layers.*;
+import org.sgdtk.DenseVectorN;
+import org.sgdtk.FeatureVector;
+import org.sgdtk.io.DatasetReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Post-training int8 quantization.
+ *
+ * This takes a trained model, and swaps each fully connected and convolutional layer (FullyConnectedLayer,
+ * SpatialConvolutionalLayer, TemporalConvolutionalLayer, and their Blas and Mixed versions) for an int8 version of it
+ * (see {@link QuantizedLayer}).  The weights quantize by themselves, but the inputs to each of those layers need a
+ * scale too, so we calibrate on a sample of real data first: the sample goes through the model, and we keep the
+ * largest input that each layer sees.  The weight scales are per channel, but each layer's input gets one scale for
+ * all of its channels (see {@link QuantizedLayer} for why).  The sample doesnt need to be big, a few hundred examples
+ * is usually plenty, but it should look like what will be scored.  Everything else in the model is copied as it is.
+ *
+ * Then we score the sample with both models, so you can see how much accuracy the quantization costs before using it
+ * <pre>
+ * reader.open(file);
+ * Quantizer.Report report = Quantizer.quantize(model, reader, 500);
+ * reader.close();
+ * System.out.println(report);
+ * report.getModel().save(quantizedFile);
+ * </pre>
+ *
+ * The quantized model only scores.  It is smaller than the original, since the weights are a byte each instead of
+ * eight, but the layers that arent quantized (e.g. the FFT and Winograd convolutions) are not any smaller
+ */
+public class Quantizer
+{
+    /**
+     * The quantized model, and how its accuracy on the calibration sample compares to the original
+     */
+    public static class Report
+    {
+        private final NeuralNetModel model;
+        private final int numQuantized;
+        private final int numExamples;
+        private final double accuracy;
+        private final double quantizedAccuracy;
+
+        Report(NeuralNetModel model, int numQuantized, int numExamples, double accuracy, double quantizedAccuracy)
+        {
+            this.model = model;
+            this.numQuantized = numQuantized;
+            this.numExamples = numExamples;
+            this.accuracy = accuracy;
+            this.quantizedAccuracy = quantizedAccuracy;
+        }
+
+        public NeuralNetModel getModel()
+        {
+            return model;
+        }
+
+        public int getNumQuantized()
+        {
+            return numQuantized;
+        }
+
+        public int getNumExamples()
+        {
+            return numExamples;
+        }
+
+        public double getAccuracy()
+        {
+            return accuracy;
+        }
+
+        public double getQuantizedAccuracy()
+        {
+            return quantizedAccuracy;
+        }
+
+        /**
+         * How much accuracy was gained, which is almost always negative, or zero
+         *
+         * @return The quantized accuracy less the original accuracy
+         */
+        public double getAccuracyDelta()
+        {
+            return quantizedAccuracy - accuracy;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Quantized %d layers, accuracy on %d examples %.4f -> %.4f (%+.4f)", numQuantized,
+                    numExamples, accuracy, quantizedAccuracy, getAccuracyDelta());
+        }
+    }
+
+    /**
+     * Quantize a model, calibrating on a sample read from a dataset
+     *
+     * @param model A trained model, which is left as it is
+     * @param reader An open reader
+     * @param sampleSz The most examples to read for the sample
+     * @return The quantized model, and how it did
+     * @throws IOException
+     */
+    public static Report quantize(NeuralNetModel model, DatasetReader reader, int sampleSz) throws IOException
+    {
+        List<FeatureVector> sample = new ArrayList<FeatureVector>(sampleSz);
+        FeatureVector fv;
+        while (sample.size() < sampleSz && (fv = reader.next()) != null)
+        {
+            sample.add(fv);
+        }
+        return quantize(model, sample);
+    }
+
+    /**
+     * Quantize a model, calibrating on a sample
+     *
+     * @param model A trained model, which is left as it is
+     * @param sample The examples to calibrate and evaluate on, with dense feature vectors
+     * @return The quantized model, and how it did
+     */
+    public static Report quantize(NeuralNetModel model, List<FeatureVector> sample)
+    {
+        if (sample.isEmpty())
+        {
+            throw new IllegalArgumentException("Need a sample to calibrate on");
+        }
+        NeuralNetModel replica = model.replicate();
+        replica.setIsTraining(false);
+        final Layer[] layers = replica.getLayers();
+
+        // The largest input to each layer
+        double[] maxInput = new double[layers.length];
+        for (FeatureVector example : sample)
+        {
+            Tensor z = toTensor(example);
+            for (int i = 0; i < layers.length; ++i)
+            {
+                final double[] zA = z.getArray().v;
+                for (int j = 0, sz = z.size(); j < sz; ++j)
+                {
+                    maxInput[i] = Math.max(maxInput[i], Math.abs(zA[j]));
+                }
+                z = layers[i].forward(z);
+            }
+        }
+
+        Layer[] quantized = new Layer[layers.length];
+        int numQuantized = 0;
+        for (int i = 0; i < layers.length; ++i)
+        {
+            QuantizedLayer layer = quantize(layers[i]);
+            if (layer == null)
+            {
+                quantized[i] = layers[i].prototype();
+            }
+            else
+            {
+                layer.calibrate(maxInput[i]);
+                quantized[i] = layer;
+                ++numQuantized;
+            }
+        }
+        NeuralNetModel quantizedModel = new NeuralNetModel(quantized, model.scaleOutput, model.getUpdate());
+        quantizedModel.setIsTraining(false);
+
+        return new Report(quantizedModel, numQuantized, sample.size(), accuracy(replica, sample),
+                accuracy(quantizedModel, sample));
+    }
+
+    /**
+     * Make the int8 version of a layer
+     *
+     * @param layer A trained layer
+     * @return The quantized layer, or null if there isnt a quantized version of this layer
+     */
+    public static QuantizedLayer quantize(Layer layer)
+    {
+        if (layer instanceof FullyConnectedLayer)
+        {
+            return new QuantizedFullyConnectedLayer((FullyConnectedLayer) layer);
+        }
+        if (layer instanceof FullyConnectedLayerBlas)
+        {
+            return new QuantizedFullyConnectedLayer((FullyConnectedLayerBlas) layer);
+        }
+        if (layer instanceof SpatialConvolutionalLayer)
+        {
+            return new QuantizedSpatialConvolutionalLayer((SpatialConvolutionalLayer) layer);
+        }
+        if (layer instanceof SpatialConvolutionalLayerBlas)
+        {
+            return new QuantizedSpatialConvolutionalLayer((SpatialConvolutionalLayerBlas) layer);
+        }
+        if (layer instanceof TemporalConvolutionalLayer)
+        {
+            return new QuantizedTemporalConvolutionalLayer((TemporalConvolutionalLayer) layer);
+        }
+        if (layer instanceof TemporalConvolutionalLayerBlas)
+        {
+            return new QuantizedTemporalConvolutionalLayer((TemporalConvolutionalLayerBlas) layer);
+        }
+        return null;
+    }
+
+    private static Tensor toTensor(FeatureVector fv)
+    {
+        DenseVectorN dvn = (DenseVectorN) fv.getX();
+        return new Tensor(dvn.getX(), dvn.getX().size());
+    }
+
+    // A single output is a binary decision on its sign, otherwise the best score's index is the label - 1
+    private static double accuracy(NeuralNetModel model, List<FeatureVector> sample)
+    {
+        int correct = 0;
+        for (FeatureVector fv : sample)
+        {
+            double[] scores = model.score(fv);
+            final double y = fv.getY();
+            if (scores.length == 1)
+            {
+                if ((scores[0] > 0) == (y > 0))
+                {
+                    ++correct;
+                }
+            }
+            else
+            {
+                int best = 0;
+                for (int i = 1; i < scores.length; ++i)
+                {
+                    if (scores[i] > scores[best])
+                    {
+                        best = i;
+                    }
+                }
+                if (best + 1 == (int) y)
+                {
+                    ++correct;
+                }
+            }
+        }
+        return correct / (double) sample.size();
+    }
+}
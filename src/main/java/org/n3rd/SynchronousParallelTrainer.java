@@ -0,0 +1,280 @@
+package org.n3rd;
+
+import org.n3rd.layers.DropoutLayer;
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.SparseGradients;
+import org.sgdtk.FeatureVector;
+import org.sgdtk.Loss;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Deterministic multi-core data-parallel trainer.
+ *
+ * Each mini-batch is split into contiguous shards, one per worker replica (see {@link NeuralNetModel#replicate()}).
+ * The workers run forward and backward prop on their shard at the same time, without touching the weights.  Once
+ * they are all done, the parameter and bias gradients are summed with a tree all-reduce: at each level, replica i
+ * adds in the gradients from replica i + stride, so the reduction takes log2(numThreads) steps, and the pairs at each
+ * step run in parallel.  The update is then applied once, from the summed gradients.
+ *
+ * Unlike {@link HogwildTrainer}, nothing here depends on how the threads get scheduled, since the shards and the
+ * order of the additions are fixed.  For a given starting model (see {@link NeuralNetModel#prototype()}), data,
+ * thread count and seed, you get the same weights every run.  Note that changing the number of threads changes the
+ * order of the floating point sums, so results are only comparable across runs with the same thread count.
+ */
+public class SynchronousParallelTrainer extends MiniBatchTrainer
+{
+    protected int numThreads;
+    protected Random random;
+
+    /**
+     * Constructor
+     *
+     * @param loss The loss function
+     * @param lambda Regularization parameter
+     * @param eta Learning rate
+     * @param numThreads Number of worker threads
+     * @param batchSz Number of examples per batch, which are split across the threads
+     */
+    public SynchronousParallelTrainer(Loss loss, double lambda, double eta, int numThreads, int batchSz)
+    {
+        super(loss, lambda, eta, batchSz);
+        this.numThreads = numThreads;
+        this.random = new Random();
+    }
+
+    /**
+     * Constructor for reproducible runs.  The seed is used to seed any dropout layers in the replicas other than the
+     * model itself, so seed the model's own with {@link DropoutLayer#setSeed(long)}
+     *
+     * @param loss The loss function
+     * @param lambda Regularization parameter
+     * @param eta Learning rate
+     * @param numThreads Number of worker threads
+     * @param batchSz Number of examples per batch, which are split across the threads
+     * @param seed Random seed
+     */
+    public SynchronousParallelTrainer(Loss loss, double lambda, double eta, int numThreads, int batchSz, long seed)
+    {
+        this(loss, lambda, eta, numThreads, batchSz);
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Do one pass over the training data.  The last batch may be smaller than batchSz
+     *
+     * @param model The model to train
+     * @param trainingExamples The training data
+     */
+    @Override
+    public void trainEpoch(NeuralNetModel model, List<FeatureVector> trainingExamples)
+    {
+        NeuralNetModel[] replicas = createReplicas(model);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try
+        {
+            for (int i = 0, sz = trainingExamples.size(); i < sz; i += batchSz)
+            {
+                trainBatch(replicas, executor, trainingExamples.subList(i, Math.min(i + batchSz, sz)));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Train a single batch.  Since this spins up the replicas and threads, prefer
+     * {@link #trainEpoch(NeuralNetModel, List)} which does that once for all the batches
+     *
+     * @param model The model to train
+     * @param batch The examples in this batch
+     */
+    @Override
+    public void trainBatch(NeuralNetModel model, List<FeatureVector> batch)
+    {
+        NeuralNetModel[] replicas = createReplicas(model);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try
+        {
+            trainBatch(replicas, executor, batch);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The first replica is the model itself, so that is where the gradients end up after the reduction.  The other
+     * replicas get dropout seeds of their own, so they don't all drop the same units, but the model's own dropout is
+     * left as it was set up
+     *
+     * @param model The model to train
+     * @return numThreads replicas sharing the model's parameters
+     */
+    protected NeuralNetModel[] createReplicas(NeuralNetModel model)
+    {
+        NeuralNetModel[] replicas = new NeuralNetModel[numThreads];
+        replicas[0] = model;
+        for (int i = 1; i < numThreads; ++i)
+        {
+            replicas[i] = model.replicate();
+            for (Layer layer : replicas[i].getLayers())
+            {
+                if (layer instanceof DropoutLayer)
+                {
+                    ((DropoutLayer) layer).setSeed(random.nextLong());
+                }
+            }
+        }
+        return replicas;
+    }
+
+    protected void trainBatch(NeuralNetModel[] replicas, ExecutorService executor, List<FeatureVector> batch)
+    {
+        final int n = batch.size();
+        final int numShards = Math.min(replicas.length, n);
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numShards);
+        for (int s = 0; s < numShards; ++s)
+        {
+            final NeuralNetModel replica = replicas[s];
+            final List<FeatureVector> shard = batch.subList(s * n / numShards, (s + 1) * n / numShards);
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    final int shardSz = shard.size();
+                    double[] y = new double[shardSz];
+                    for (int i = 0; i < shardSz; ++i)
+                    {
+                        y[i] = shard.get(i).getY();
+                    }
+                    double[] p = replica.predict(toBatch(shard));
+
+                    // Average over the whole batch, not the shard, so the sum is the batch gradient
+                    double[] dLoss = new double[shardSz];
+                    for (int i = 0; i < shardSz; ++i)
+                    {
+                        dLoss[i] = loss.dLoss(p[i], y[i]) / n;
+                    }
+                    replica.backwardBatch(dLoss, y);
+                    return null;
+                }
+            });
+        }
+        invokeAll(executor, tasks);
+
+        allReduce(replicas, numShards, executor);
+
+        NeuralNetModel model = replicas[0];
+        for (Layer layer : model.getLayers())
+        {
+            model.updateLayerWeights(layer, eta, lambda);
+        }
+    }
+
+    /**
+     * Sum the gradients of the first numReplicas replicas into replicas[0], in a tree.  The other replicas are left
+     * with zero gradients
+     *
+     * @param replicas The replicas
+     * @param numReplicas How many of the replicas have gradients
+     * @param executor The thread pool
+     */
+    protected void allReduce(NeuralNetModel[] replicas, int numReplicas, ExecutorService executor)
+    {
+        for (int stride = 1; stride < numReplicas; stride *= 2)
+        {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i + stride < numReplicas; i += 2 * stride)
+            {
+                final Layer[] to = replicas[i].getLayers();
+                final Layer[] from = replicas[i + stride].getLayers();
+                tasks.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        for (int k = 0; k < to.length; ++k)
+                        {
+                            accumulate(to[k], from[k]);
+                        }
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, tasks);
+        }
+    }
+
+    private static void accumulate(Layer to, Layer from)
+    {
+        Tensor toGradsW = to.getParamGrads();
+        if (toGradsW != null)
+        {
+            double[] dst = toGradsW.getArray().v;
+            double[] src = from.getParamGrads().getArray().v;
+            for (int i = 0, sz = toGradsW.size(); i < sz; ++i)
+            {
+                dst[i] += src[i];
+                src[i] = 0.;
+            }
+            // So a sparse update still sees every gradient that could be non-zero
+            if (to instanceof SparseGradients)
+            {
+                ((SparseGradients) to).mergeTouchedParams(from);
+            }
+            if (from instanceof SparseGradients)
+            {
+                ((SparseGradients) from).clearTouchedParams();
+            }
+        }
+        double[] toBiasGrads = to.getBiasGrads();
+        if (toBiasGrads != null)
+        {
+            double[] src = from.getBiasGrads();
+            for (int i = 0; i < toBiasGrads.length; ++i)
+            {
+                toBiasGrads[i] += src[i];
+                src[i] = 0.;
+            }
+        }
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks)
+    {
+        try
+        {
+            for (Future<Void> future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException intEx)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(intEx);
+        }
+        catch (ExecutionException execEx)
+        {
+            throw new RuntimeException(execEx.getCause());
+        }
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads)
+    {
+        this.numThreads = numThreads;
+    }
+}
@@ -2,12 +2,22 @@ package org.n3rd;
 
 import org.sgdtk.ArrayDouble;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Most basic implementation of a Tensor ever -- limited to exactly what is being used at the moment
  *
+ * Usually the data is on the heap in an ArrayDouble, but a Tensor can also wrap a DoubleBuffer, which may be direct
+ * or memory-mapped, to keep big weights out of the garbage-collected heap (see {@link #allocateDirect(int...)}).  An
+ * off-heap tensor can only be used through the accessors here ({@link #at(int)}, {@link #set(int, double)}, etc.).
+ * Its size is fixed, and {@link #getArray()} is not supported, so it only works with code that sticks to the
+ * accessors, i.e. FilterOps and the layers implementing OffHeapCapable.
+ *
  * @author dpressel
  */
 public class Tensor
@@ -25,12 +35,17 @@ public class Tensor
         }
         array = new ArrayDouble(length);
 
-        List<Double> values = (List<Double>)map.get("d");
+        List<?> values = (List<?>)map.get("d");
+        // This is how Jackson writes us out, through getArray()
+        if (values == null && map.containsKey("array"))
+        {
+            values = (List<?>)((Map<?, ?>)map.get("array")).get("v");
+        }
 
 
         for (int i = 0; i < length; ++i)
         {
-            array.set(i, values.get(i));
+            array.set(i, ((Number)values.get(i)).doubleValue());
         }
     }
 
@@ -79,6 +94,11 @@ public class Tensor
 
 
 
+    /**
+     * Copy a tensor.  The copy is always on the heap, so this is also how to bring an off-heap tensor back
+     *
+     * @param x The tensor to copy
+     */
     public Tensor(Tensor x)
     {
 
@@ -89,14 +109,72 @@ public class Tensor
             this.dims[i] = x.dims[i];
 
         }
-        array = new ArrayDouble(x.getArray());
+        if (x.buffer != null)
+        {
+            array = new ArrayDouble(x.size());
+            // A relative get on a duplicate, since the absolute bulk get is newer than Java 8
+            DoubleBuffer src = x.buffer.duplicate();
+            src.rewind();
+            src.get(array.v, 0, x.size());
+        }
+        else
+        {
+            array = new ArrayDouble(x.getArray());
+        }
+    }
+
+    /**
+     * Wrap a buffer without copying it.  The buffer may be direct, or a view of a memory-mapped file, in which case the
+     * tensor is read-only
+     *
+     * @param buffer The data, from its position to its limit
+     * @param dims The dims, which must agree with the data
+     */
+    public Tensor(DoubleBuffer buffer, int... dims)
+    {
+        this.dims = new int[dims.length];
+        int length = 1;
+        for (int i = 0; i < dims.length; ++i)
+        {
+            this.dims[i] = dims[i];
+            length *= dims[i];
+        }
+        if (length != buffer.remaining())
+        {
+            throw new IllegalArgumentException("Buffer has " + buffer.remaining() + " values, expected " + length);
+        }
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * Allocate a zeroed tensor in direct (off-heap) memory
+     *
+     * @param dims The dims
+     * @return The tensor
+     */
+    public static Tensor allocateDirect(int... dims)
+    {
+        int length = 1;
+        for (int dim : dims)
+        {
+            length *= dim;
+        }
+        DoubleBuffer buffer = ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        return new Tensor(buffer, dims);
     }
 
     private ArrayDouble array;
 
+    // Used instead of the array for an off-heap tensor
+    private DoubleBuffer buffer;
+
     public void reshape(int... dims) throws Exception
     {
-        this.dims = new int[dims.length];
+        // Reuse the dims if the rank hasnt changed, so reshaping in the forward pass doesnt allocate
+        if (this.dims.length != dims.length)
+        {
+            this.dims = new int[dims.length];
+        }
 
         int length = 1;
         for (int i = 0; i < dims.length; ++i)
@@ -111,9 +189,52 @@ public class Tensor
         }
     }
 
+    /**
+     * A view of this tensor under other dims, sharing its storage, e.g. to give the same weights to a layer that sees
+     * them as a matrix.  Changing the values in either one changes both.  Each has its own dims, so reshaping one
+     * doesnt affect the other, but neither should be resized
+     *
+     * @param dims The dims of the view, which must cover the same number of values
+     * @return The view
+     */
+    public Tensor view(int... dims)
+    {
+        int length = 1;
+        for (int dim : dims)
+        {
+            length *= dim;
+        }
+        if (length != size())
+        {
+            throw new IllegalArgumentException("View has " + length + " values, expected " + size());
+        }
+        if (buffer != null)
+        {
+            return new Tensor(buffer, dims);
+        }
+        return viewOf(array, Arrays.copyOf(dims, dims.length));
+    }
+
+    private Tensor()
+    {
+
+    }
+
+    // A tensor over the given storage, rather than a copy of it, for view()
+    private static Tensor viewOf(ArrayDouble array, int[] dims)
+    {
+        Tensor view = new Tensor();
+        view.array = array;
+        view.dims = dims;
+        return view;
+    }
+
     public void resize(int... dims)
     {
-        this.dims = new int[dims.length];
+        if (this.dims.length != dims.length)
+        {
+            this.dims = new int[dims.length];
+        }
 
         int length = 1;
         for (int i = 0; i < dims.length; ++i)
@@ -121,79 +242,245 @@ public class Tensor
             this.dims[i] = dims[i];
             length *= dims[i];
         }
-        array.resize(length);
+        resizeStorage(length);
+    }
 
+    // The fixed-rank resizes do the same as resize(int...), but without the varargs array, which escape analysis
+    // doesnt reliably remove, so the forward passes can resize without allocating
+
+    public void resize(int d0)
+    {
+        if (dims.length != 1)
+        {
+            dims = new int[1];
+        }
+        dims[0] = d0;
+        resizeStorage(d0);
+    }
+
+    public void resize(int d0, int d1)
+    {
+        if (dims.length != 2)
+        {
+            dims = new int[2];
+        }
+        dims[0] = d0;
+        dims[1] = d1;
+        resizeStorage(d0 * d1);
+    }
+
+    public void resize(int d0, int d1, int d2)
+    {
+        if (dims.length != 3)
+        {
+            dims = new int[3];
+        }
+        dims[0] = d0;
+        dims[1] = d1;
+        dims[2] = d2;
+        resizeStorage(d0 * d1 * d2);
+    }
+
+    private void resizeStorage(int length)
+    {
+        if (buffer != null)
+        {
+            if (length != size())
+            {
+                throw new UnsupportedOperationException("Off-heap tensors cannot change size");
+            }
+            return;
+        }
+        array.resize(length);
     }
 
     public void copyTo(Tensor tensor)
     {
         tensor.resize(dims);
-        ArrayDouble tA = tensor.getArray();
-        System.arraycopy(array.v, 0, tA.v, 0, array.size());
-
+        if (buffer == null && tensor.buffer == null)
+        {
+            ArrayDouble tA = tensor.getArray();
+            System.arraycopy(array.v, 0, tA.v, 0, array.size());
+            return;
+        }
+        for (int i = 0, sz = size(); i < sz; ++i)
+        {
+            tensor.set(i, at(i));
+        }
     }
 
     public int[] dims;
+
+    /**
+     * Get the heap storage
+     *
+     * @return The array
+     * @throws UnsupportedOperationException for an off-heap tensor
+     */
     public ArrayDouble getArray()
     {
+        if (buffer != null)
+        {
+            throw new UnsupportedOperationException("Off-heap tensor has no array, use the accessors or copy it");
+        }
         return array;
     }
 
+    /**
+     * Get the off-heap storage
+     *
+     * @return The buffer, or null if this tensor is on the heap
+     */
+    public DoubleBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Keep the values in the given storage from now on.  The storage may be shared with other tensors, as long as
+     * they are never in use at the same time.  Nothing is copied, and if the tensor later grows past the storage, it
+     * gets storage of its own again
+     *
+     * @param storage Storage at least as big as the tensor
+     */
+    public void share(double[] storage)
+    {
+        if (buffer != null)
+        {
+            throw new UnsupportedOperationException("Off-heap tensors cannot share storage");
+        }
+        if (storage.length < size())
+        {
+            throw new IllegalArgumentException("Storage too small, need " + size() + " but got " + storage.length);
+        }
+        array.v = storage;
+    }
+
+    public boolean isOffHeap()
+    {
+        return buffer != null;
+    }
+
     public int size()
     {
-        return array.size();
+        return buffer == null ? array.size() : buffer.capacity();
     }
     public void constant(double x)
     {
-        array.constant(x);
+        if (buffer == null)
+        {
+            array.constant(x);
+            return;
+        }
+        for (int i = 0, sz = size(); i < sz; ++i)
+        {
+            buffer.put(i, x);
+        }
     }
 
 
     public double get(int index)
     {
-        return array.get(index);
+        return buffer == null ? array.get(index) : buffer.get(index);
     }
 
-    // Same as get but NO bounds check
+    // Same as get but NO bounds check (except off-heap)
     public double at(int index)
     {
-        return array.v[index];
+        return buffer == null ? array.v[index] : buffer.get(index);
     }
 
     public void set(double[] x)
     {
-        array.set(x);
+        if (buffer == null)
+        {
+            array.set(x);
+            return;
+        }
+        for (int i = 0; i < x.length; ++i)
+        {
+            buffer.put(i, x[i]);
+        }
     }
 
     public void set(int index, double element)
     {
-        array.set(index, element);
+        if (buffer == null)
+        {
+            array.set(index, element);
+            return;
+        }
+        buffer.put(index, element);
     }
 
     public void scale(double scalar)
     {
-        array.scale(scalar);
+        if (buffer == null)
+        {
+            array.scale(scalar);
+            return;
+        }
+        for (int i = 0, sz = size(); i < sz; ++i)
+        {
+            buffer.put(i, buffer.get(i) * scalar);
+        }
     }
     public void add(double scalar)
     {
-        array.add(scalar);
+        if (buffer == null)
+        {
+            array.add(scalar);
+            return;
+        }
+        for (int i = 0, sz = size(); i < sz; ++i)
+        {
+            buffer.put(i, buffer.get(i) + scalar);
+        }
     }
 
     public double addi(int index, double scalar)
     {
-        return array.addi(index, scalar);
+        if (buffer == null)
+        {
+            return array.addi(index, scalar);
+        }
+        double x = buffer.get(index) + scalar;
+        buffer.put(index, x);
+        return x;
     }
     public double multi(int index, double scalar)
     {
-        return array.multi(index, scalar);
+        if (buffer == null)
+        {
+            return array.multi(index, scalar);
+        }
+        double x = buffer.get(index) * scalar;
+        buffer.put(index, x);
+        return x;
     }
     public void addn(double[] x)
     {
-       array.addn(x);
+        if (buffer == null)
+        {
+            array.addn(x);
+            return;
+        }
+        for (int i = 0; i < x.length; ++i)
+        {
+            addi(i, x[i]);
+        }
     }
     public void multn(double[] x)
     {
-        array.multn(x);
+        if (buffer == null)
+        {
+            array.multn(x);
+            return;
+        }
+        for (int i = 0; i < x.length; ++i)
+        {
+            multi(i, x[i]);
+        }
     }
 
 
@@ -209,7 +496,7 @@ public class Tensor
         // If either feature map is one, no need to copy, memory is the same
         if (dims[0] == 1 || dims[1] == 1)
         {
-            return new Tensor(array, newDims);
+            return buffer == null ? new Tensor(array, newDims) : new Tensor(buffer.duplicate(), newDims);
         }
         Tensor weightCopy = new Tensor(newDims);
         int sz = newDims[2] * newDims[3];
@@ -219,7 +506,7 @@ public class Tensor
             {
                 for (int k = 0; k < sz; ++k)
                 {
-                    weightCopy.array.v[(i * newDims[1] + j) * sz + k] = this.array.v[(j * dims[1] + i) * sz + k];
+                    weightCopy.array.v[(i * newDims[1] + j) * sz + k] = at((j * dims[1] + i) * sz + k);
                 }
             }
         }
@@ -2,11 +2,19 @@ package org.n3rd.layers;
 
 import org.n3rd.Tensor;
 
+import java.util.Arrays;
+
 /**
  * Provide a base layer general enough for most implementations
+ *
+ * The mini-batch methods here are a fallback that simply runs the single example path once per example.  Since
+ * layers keep per-example state around for their backward pass, the backward fallback replays forward on each
+ * example before running its backward.  Layers that can do better (e.g. a single GEMM over the batch) should override
+ * these.
+ *
  * @author dpressel
  */
-public abstract class AbstractLayer implements Layer
+public abstract class AbstractLayer implements Layer, ScoringOnly, Cloneable
 {
 
     protected double[] biasGrads;
@@ -17,6 +25,212 @@ public abstract class AbstractLayer implements Layer
     protected Tensor output;
     protected Tensor weightAccum;
 
+    // State for the mini-batch fallback
+    protected Tensor batchInput;
+    protected Tensor batchOutput;
+    protected Tensor batchGrads;
+    private Tensor example;
+    private Tensor exampleChainGrad;
+
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        final int batchSz = x.dims[0];
+        final int inputSz = x.size() / batchSz;
+        batchInput = x;
+
+        if (example == null)
+        {
+            example = new Tensor(1);
+            batchOutput = new Tensor(1);
+        }
+
+        for (int b = 0; b < batchSz; ++b)
+        {
+            Tensor out = forwardExample(b, inputSz);
+            final int outputSz = out.size();
+            if (b == 0)
+            {
+                batchOutput.resize(batchDims(batchSz, out.dims));
+            }
+            System.arraycopy(out.getArray().v, 0, batchOutput.getArray().v, b * outputSz, outputSz);
+        }
+        return batchOutput;
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        final int batchSz = batchInput.dims[0];
+        final int inputSz = batchInput.size() / batchSz;
+        final int chainGradSz = chainGrad.size() / batchSz;
+
+        if (exampleChainGrad == null)
+        {
+            exampleChainGrad = new Tensor(1);
+            batchGrads = new Tensor(1);
+        }
+
+        Tensor paramGrads = getParamGrads();
+        double[] biasGradParams = getBiasGrads();
+
+        // Some layers overwrite their gradients and some accumulate, so zero before each example and sum here
+        double[] paramGradsSum = paramGrads == null ? null : Arrays.copyOf(paramGrads.getArray().v, paramGrads.size());
+        double[] biasGradsSum = biasGradParams == null ? null : Arrays.copyOf(biasGradParams, biasGradParams.length);
+
+        exampleChainGrad.resize(exampleDims(chainGrad.dims));
+
+        for (int b = 0; b < batchSz; ++b)
+        {
+            forwardExample(b, inputSz);
+
+            System.arraycopy(chainGrad.getArray().v, b * chainGradSz, exampleChainGrad.getArray().v, 0, chainGradSz);
+            if (paramGradsSum != null)
+            {
+                paramGrads.constant(0.);
+            }
+            if (biasGradsSum != null)
+            {
+                Arrays.fill(biasGradParams, 0.);
+            }
+
+            Tensor g = backward(exampleChainGrad, y[b]);
+
+            if (paramGradsSum != null)
+            {
+                final double[] gw = paramGrads.getArray().v;
+                for (int i = 0; i < paramGradsSum.length; ++i)
+                {
+                    paramGradsSum[i] += gw[i];
+                }
+            }
+            if (biasGradsSum != null)
+            {
+                for (int i = 0; i < biasGradsSum.length; ++i)
+                {
+                    biasGradsSum[i] += biasGradParams[i];
+                }
+            }
+
+            final int gradSz = g.size();
+            if (b == 0)
+            {
+                batchGrads.resize(batchDims(batchSz, g.dims));
+            }
+            System.arraycopy(g.getArray().v, 0, batchGrads.getArray().v, b * gradSz, gradSz);
+        }
+
+        if (paramGradsSum != null)
+        {
+            System.arraycopy(paramGradsSum, 0, paramGrads.getArray().v, 0, paramGradsSum.length);
+        }
+        if (biasGradsSum != null)
+        {
+            System.arraycopy(biasGradsSum, 0, biasGradParams, 0, biasGradsSum.length);
+        }
+        return batchGrads;
+    }
+
+    /**
+     * Replicate by making a shallow copy (so the parameters are shared) and then giving the copy its own workspace
+     *
+     * @return A replica of this layer sharing its parameters
+     */
+    @Override
+    public Layer replicate()
+    {
+        try
+        {
+            AbstractLayer replica = (AbstractLayer) clone();
+            replica.newWorkspace();
+            return replica;
+        }
+        catch (CloneNotSupportedException cloneEx)
+        {
+            throw new RuntimeException(cloneEx);
+        }
+    }
+
+    /**
+     * Prototype by making a replica, and then giving it copies of the parameters
+     *
+     * @return A deep copy of this layer
+     */
+    @Override
+    public Layer prototype()
+    {
+        AbstractLayer copy = (AbstractLayer) replicate();
+        copy.weights = weights == null ? null : new Tensor(weights);
+        copy.weightAccum = weightAccum == null ? null : new Tensor(weightAccum);
+        copy.biases = biases == null ? null : Arrays.copyOf(biases, biases.length);
+        return copy;
+    }
+
+    /**
+     * Allocate fresh activations and gradients, following a shallow copy.  Layers that keep any other per-example
+     * state must override this (and call this version too)
+     */
+    protected void newWorkspace()
+    {
+        grads = grads == null ? null : new Tensor(grads);
+        output = output == null ? null : new Tensor(output);
+        gradsW = gradsW == null ? null : new Tensor(gradsW.dims);
+        biasGrads = biasGrads == null ? null : new double[biasGrads.length];
+        batchInput = batchOutput = batchGrads = null;
+        example = exampleChainGrad = null;
+    }
+
+    /**
+     * Drop the gradients and the mini-batch state.  Layers that keep any other state for back prop should override
+     * this (and call this version too)
+     */
+    @Override
+    public void releaseTrainingState()
+    {
+        grads = null;
+        gradsW = null;
+        biasGrads = null;
+        batchInput = batchOutput = batchGrads = null;
+        example = exampleChainGrad = null;
+    }
+
+    private Tensor forwardExample(int b, int inputSz)
+    {
+        example.resize(exampleDims(batchInput.dims));
+        System.arraycopy(batchInput.getArray().v, b * inputSz, example.getArray().v, 0, inputSz);
+        return forward(example);
+    }
+
+    /**
+     * Prepend a batch dimension to the dims of a single example
+     *
+     * @param batchSz The number of examples
+     * @param dims The dims of a single example
+     * @return The batch dims
+     */
+    public static int[] batchDims(int batchSz, int[] dims)
+    {
+        int[] newDims = new int[dims.length + 1];
+        newDims[0] = batchSz;
+        System.arraycopy(dims, 0, newDims, 1, dims.length);
+        return newDims;
+    }
+
+    /**
+     * Strip the leading batch dimension off
+     *
+     * @param dims The dims of a batch
+     * @return The dims of a single example
+     */
+    public static int[] exampleDims(int[] dims)
+    {
+        if (dims.length == 1)
+        {
+            return new int[] { 1 };
+        }
+        return Arrays.copyOfRange(dims, 1, dims.length);
+    }
+
     @Override
     public Tensor getParamGrads()
     {
@@ -0,0 +1,225 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Base for a convolutional layer that runs whichever of several equivalent implementations is fastest for the shape
+ * of its input.
+ *
+ * The first time the layer sees a new input shape, it asks the {@link ConvolutionAutotuner}, which times each
+ * implementation on that input (using throwaway copies of the parameters) and caches the winner.  After that, the
+ * choice is a lookup.  The implementations that actually get used are created as they are needed, and all share this
+ * layer's weights, biases and gradients, so the trainers and updates only ever see this layer.
+ *
+ * A subclass says what the implementations are and how to describe a shape.
+ *
+ * @author dpressel
+ */
+public abstract class AutotunedConvolutionalLayer extends AbstractLayer implements DiffersOnTraining
+{
+    private ConvolutionAutotuner autotuner = ConvolutionAutotuner.getInstance();
+    private boolean training = true;
+
+    // The implementations used so far, by name, and the one that ran the last forward
+    private Map<String, Layer> backends = new HashMap<String, Layer>();
+    private Layer current;
+    private String algorithm;
+
+    /**
+     * The names of the implementations, in the order they are tried
+     *
+     * @return The names
+     */
+    protected abstract String[] algorithms();
+
+    /**
+     * Describe the input and kernel shapes, for the autotuner's key
+     *
+     * @param inputSz The size of a single input
+     * @return The description
+     */
+    protected abstract String shape(int inputSz);
+
+    /**
+     * Create one of the implementations, either sharing the parameters or with its own copies
+     *
+     * @param algorithm The name of the implementation
+     * @param share If true, share this layer's weights, biases and gradients, otherwise copy them
+     * @return The layer
+     */
+    protected abstract Layer newBackend(String algorithm, boolean share);
+
+    /**
+     * Give an implementation this layer's parameters and gradients, or copies of them.  Its workspace is left alone
+     *
+     * @param layer The implementation
+     * @param share If true, share, otherwise copy
+     * @return The layer
+     */
+    protected Layer bind(AbstractLayer layer, boolean share)
+    {
+        layer.weights = share ? weights : new Tensor(weights);
+        layer.weightAccum = share ? weightAccum : new Tensor(weightAccum.dims);
+        layer.biases = share ? biases : Arrays.copyOf(biases, biases.length);
+        // No gradients once the layer only scores
+        layer.gradsW = share || gradsW == null ? gradsW : new Tensor(gradsW.dims);
+        layer.biasGrads = share || biasGrads == null ? biasGrads : new double[biasGrads.length];
+        return layer;
+    }
+
+    /**
+     * Use a different autotuner than the shared one
+     *
+     * @param autotuner The autotuner
+     */
+    public void setAutotuner(ConvolutionAutotuner autotuner)
+    {
+        this.autotuner = autotuner;
+    }
+
+    /**
+     * When scoring, only forward is timed, so the choice may differ from training
+     *
+     * @param training Whether we are training
+     */
+    @Override
+    public void setIsTraining(boolean training)
+    {
+        this.training = training;
+    }
+
+    /**
+     * The implementation that ran the last forward
+     *
+     * @return The name of the implementation, or null before the first forward
+     */
+    public String algorithm()
+    {
+        return algorithm;
+    }
+
+    private Layer select(Tensor x, int batchSz)
+    {
+        final int inputSz = batchSz > 0 ? x.size() / batchSz : x.size();
+        final String key = autotuner.key(shape(inputSz), batchSz, training);
+        String choice = autotuner.lookup(key);
+        if (choice == null)
+        {
+            Map<String, Layer> candidates = new LinkedHashMap<String, Layer>();
+            for (String name : algorithms())
+            {
+                candidates.put(name, newBackend(name, false));
+            }
+            // Some implementations reshape their input, so time them on a copy
+            choice = autotuner.tune(key, candidates, new Tensor(x), batchSz, training);
+        }
+
+        Layer backend = backends.get(choice);
+        if (backend == null)
+        {
+            backend = newBackend(choice, true);
+            backends.put(choice, backend);
+        }
+        algorithm = choice;
+        current = backend;
+        return backend;
+    }
+
+    @Override
+    public Tensor forward(Tensor x)
+    {
+        output = select(x, 0).forward(x);
+        return output;
+    }
+
+    @Override
+    public Tensor backward(Tensor chainGrad, double y)
+    {
+        grads = current.backward(chainGrad, y);
+        return grads;
+    }
+
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        batchOutput = select(x, x.dims[0]).forwardBatch(x);
+        return batchOutput;
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        batchGrads = current.backwardBatch(chainGrad, y);
+        return batchGrads;
+    }
+
+    /**
+     * Exists for reserialization purposes only!  Turns instantly into a Tensor when injected
+     *
+     * @param params
+     */
+    public void setParams(LinkedHashMap<String, Object> params)
+    {
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The gradient and accumulator buffers are allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        backends.clear();
+    }
+
+    public void setBiasParams(ArrayList<Double> biasParams)
+    {
+        int sz = biasParams.size();
+        double[] b = new double[sz];
+        for (int i = 0; i < sz; ++i)
+        {
+            b[i] = biasParams.get(i);
+        }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
+        backends.clear();
+    }
+
+    // Only the implementations tried so far are released, so do this once the layer has seen its input
+    @Override
+    public void releaseTrainingState()
+    {
+        super.releaseTrainingState();
+        for (Layer backend : backends.values())
+        {
+            if (backend instanceof ScoringOnly)
+            {
+                ((ScoringOnly) backend).releaseTrainingState();
+            }
+        }
+    }
+
+    // The implementations hold on to the parameters they were made with, so a copy has to make its own
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        backends = new HashMap<String, Layer>();
+        current = null;
+    }
+}
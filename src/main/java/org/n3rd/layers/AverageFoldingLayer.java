@@ -22,7 +22,9 @@ public class AverageFoldingLayer extends AbstractLayer
     private int k;
     public AverageFoldingLayer()
     {
-
+        k = 2;
+        output = new Tensor(1);
+        grads = new Tensor(1);
     }
     public AverageFoldingLayer(int featureMapSz, int embedSz)
     {
@@ -46,7 +48,10 @@ public class AverageFoldingLayer extends AbstractLayer
 
         output.resize(featureMapSz, outEmbeddingSz, numFrames);
         //output = new Tensor(featureMapSz, outEmbeddingSz, numFrames);
-        grads.resize(featureMapSz, embeddingSz, numFrames);
+        if (grads != null)
+        {
+            grads.resize(featureMapSz, embeddingSz, numFrames);
+        }
         double div = 1.0 / k;
         ArrayDouble oA = output.getArray();
 
@@ -125,4 +130,13 @@ public class AverageFoldingLayer extends AbstractLayer
         this.featureMapSz = featureMapSz;
     }
 
+    public int getK()
+    {
+        return k;
+    }
+
+    public void setK(Integer k)
+    {
+        this.k = k;
+    }
 }
@@ -0,0 +1,235 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pick the fastest of several equivalent convolution implementations for a given shape, by timing them, and remember
+ * the choice.
+ *
+ * Choices are keyed on a description of the input and kernel shapes from the layer, whether it is training (timing
+ * backward too) or just scoring, the batch size if it is running a whole batch, and the number of processors, since a
+ * multi-threaded BLAS does better with more of them.  They are kept in memory for the life of the process, and if a
+ * cache file is set, they are read from it and written back to it each time a new one is made, so that later runs can
+ * skip the timing.  The file is a plain properties file, so you can also edit it to force a choice.
+ *
+ * There is one shared instance (see {@link #getInstance()}), which the autotuned layers use unless given another.
+ *
+ * @author dpressel
+ */
+public class ConvolutionAutotuner
+{
+    private static final ConvolutionAutotuner INSTANCE = new ConvolutionAutotuner();
+
+    private final Map<String, String> choices = new ConcurrentHashMap<String, String>();
+    private File cacheFile;
+
+    // Each candidate is run this many times untimed, then this many times timed, and its best time is what counts
+    private int warmup = 2;
+    private int trials = 5;
+
+    /**
+     * The shared autotuner
+     *
+     * @return The autotuner
+     */
+    public static ConvolutionAutotuner getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Set how long to spend timing each candidate
+     *
+     * @param warmup The number of untimed runs
+     * @param trials The number of timed runs, of which the fastest is kept
+     */
+    public void setTrials(int warmup, int trials)
+    {
+        this.warmup = warmup;
+        this.trials = trials;
+    }
+
+    /**
+     * Keep the choices in a file.  Any choices already in the file are loaded, and new ones are written back to it
+     *
+     * @param file The cache file, which need not exist yet, or null to stop saving
+     * @throws IOException If the file exists and cannot be read
+     */
+    public synchronized void setCacheFile(File file) throws IOException
+    {
+        this.cacheFile = file;
+        if (file == null || !file.exists())
+        {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream inputStream = new FileInputStream(file))
+        {
+            properties.load(inputStream);
+        }
+        for (String key : properties.stringPropertyNames())
+        {
+            choices.put(key, properties.getProperty(key));
+        }
+    }
+
+    /**
+     * Build the key for a choice
+     *
+     * @param shape The input and kernel shapes, from the layer
+     * @param batchSz The batch size, or 0 for the single example path
+     * @param training Whether backward is run too
+     * @return The key
+     */
+    public String key(String shape, int batchSz, boolean training)
+    {
+        StringBuilder sb = new StringBuilder(shape);
+        if (batchSz > 0)
+        {
+            sb.append(",batch=").append(batchSz);
+        }
+        sb.append(training ? ",train" : ",score");
+        sb.append(",threads=").append(Runtime.getRuntime().availableProcessors());
+        return sb.toString();
+    }
+
+    /**
+     * Get the choice for a key, if it has been made
+     *
+     * @param key The key
+     * @return The name of the fastest implementation, or null
+     */
+    public String lookup(String key)
+    {
+        return choices.get(key);
+    }
+
+    /**
+     * Record a choice, without timing anything
+     *
+     * @param key The key
+     * @param choice The name of the implementation to use
+     */
+    public synchronized void put(String key, String choice)
+    {
+        choices.put(key, choice);
+        save();
+    }
+
+    /**
+     * Get all of the choices made so far
+     *
+     * @return A copy of the choices, sorted by key
+     */
+    public Map<String, String> getChoices()
+    {
+        return new TreeMap<String, String>(choices);
+    }
+
+    /**
+     * Forget all of the choices.  The cache file, if there is one, is left alone until the next choice is made
+     */
+    public void clear()
+    {
+        choices.clear();
+    }
+
+    /**
+     * Time each candidate on an input, and record the fastest.  Only one tuning runs at a time, so that they dont
+     * compete for the processors, and if another thread has already made this choice, it is used as is
+     *
+     * @param key The key, see {@link #key(String, int, boolean)}
+     * @param candidates The candidates by name.  They are run forward (and backward) several times, so they should be
+     *                   throwaway copies rather than layers in use
+     * @param x An input, or a batch of them if batchSz is non-zero
+     * @param batchSz The batch size, or 0 to time the single example path
+     * @param training If true, time forward and backward, otherwise just forward
+     * @return The name of the fastest candidate
+     */
+    public synchronized String tune(String key, Map<String, Layer> candidates, Tensor x, int batchSz,
+                                    boolean training)
+    {
+        String best = choices.get(key);
+        if (best != null)
+        {
+            return best;
+        }
+
+        long bestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, Layer> candidate : candidates.entrySet())
+        {
+            long elapsed = time(candidate.getValue(), x, batchSz, training);
+            if (elapsed < bestTime)
+            {
+                bestTime = elapsed;
+                best = candidate.getKey();
+            }
+        }
+        choices.put(key, best);
+        save();
+        return best;
+    }
+
+    private long time(Layer layer, Tensor x, int batchSz, boolean training)
+    {
+        // The deltas are all zeros, since the values dont matter, only the shape
+        Tensor chainGrad = null;
+        double[] y = new double[batchSz];
+        long best = Long.MAX_VALUE;
+        for (int i = 0, sz = warmup + trials; i < sz; ++i)
+        {
+            long t0 = System.nanoTime();
+            Tensor output = batchSz > 0 ? layer.forwardBatch(x) : layer.forward(x);
+            if (training)
+            {
+                if (chainGrad == null)
+                {
+                    chainGrad = new Tensor(output.dims);
+                }
+                if (batchSz > 0)
+                {
+                    layer.backwardBatch(chainGrad, y);
+                }
+                else
+                {
+                    layer.backward(chainGrad, 0.);
+                }
+            }
+            long elapsed = System.nanoTime() - t0;
+            if (i >= warmup)
+            {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    private void save()
+    {
+        if (cacheFile == null)
+        {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.putAll(choices);
+        try (OutputStream outputStream = new FileOutputStream(cacheFile))
+        {
+            properties.store(outputStream, "n3rd convolution autotuning");
+        }
+        catch (IOException ioEx)
+        {
+            throw new RuntimeException(ioEx);
+        }
+    }
+}
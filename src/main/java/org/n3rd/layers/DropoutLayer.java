@@ -3,6 +3,7 @@ package org.n3rd.layers;
 import org.n3rd.Tensor;
 
 import java.util.BitSet;
+import java.util.Random;
 
 /**
  * Created by dpressel on 10/26/15.
@@ -14,13 +15,14 @@ public class DropoutLayer extends AbstractLayer implements DiffersOnTraining
     double probDrop;
 
     BitSet bits = new BitSet(1024);
+    Random random = new Random();
 
     protected Tensor grads;
     protected Tensor output;
 
     boolean bernoulli()
     {
-        return Math.random() < probDrop;
+        return random.nextDouble() < probDrop;
     }
     public DropoutLayer()
     {
@@ -34,6 +36,16 @@ public class DropoutLayer extends AbstractLayer implements DiffersOnTraining
         grads = new Tensor(1);
     }
 
+    /**
+     * Seed the random dropout mask, for reproducible runs
+     *
+     * @param seed The seed
+     */
+    public void setSeed(long seed)
+    {
+        random.setSeed(seed);
+    }
+
     @Override
     public void setIsTraining(boolean training)
     {
@@ -107,4 +119,35 @@ public class DropoutLayer extends AbstractLayer implements DiffersOnTraining
 
     }
 
+    // Dropout is pointwise, and the mask already covers the whole input, so a batch is just a bigger input
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        return forward(x);
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        return backward(chainGrad, 0.);
+    }
+
+    @Override
+    public void releaseTrainingState()
+    {
+        super.releaseTrainingState();
+        grads = null;
+    }
+
+    // This layer has its own activations and its own mask
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        grads = grads == null ? null : new Tensor(grads);
+        output = output == null ? null : new Tensor(output);
+        bits = new BitSet(bits.size());
+        random = new Random();
+    }
+
 }
@@ -14,13 +14,19 @@ import java.util.LinkedHashMap;
  *
  * @author dpressel
  */
-public class FullyConnectedLayer extends AbstractLayer
+public class FullyConnectedLayer extends AbstractLayer implements OffHeapCapable, SparseGradients
 {
 
     protected Tensor z;
     private int outputLength;
     private int inputLength;
 
+    // The input columns that were non-zero in back prop since the gradients were last cleared, so only their weight
+    // gradients can be non-zero.  Until the first clear, we don't know
+    private int[] touchedColumns;
+    private boolean[] isTouched;
+    private int numTouchedColumns = -1;
+
     /**
      * This method exists for deserialization from the model
      *
@@ -28,17 +34,41 @@ public class FullyConnectedLayer extends AbstractLayer
      */
     public void setParams(LinkedHashMap<String, Object> params)
     {
-        this.weights = new Tensor(params);
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The layer sizes follow from the weight dims, and the rest of the
+     * layer is allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        outputLength = weights.dims[0];
+        inputLength = weights.dims[1];
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        grads = new Tensor(inputLength);
+        output = new Tensor(outputLength);
     }
 
     public void setBiasParams(ArrayList<Double> biasParams)
     {
         int sz = biasParams.size();
-        biases = new double[sz];
+        double[] b = new double[sz];
         for (int i = 0; i < sz; ++i)
         {
-            biases[i] = biasParams.get(i);
+            b[i] = biasParams.get(i);
         }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
     }
 
     /**
@@ -139,6 +169,7 @@ public class FullyConnectedLayer extends AbstractLayer
 
         ArrayDouble gwA = gradsW.getArray();
         ArrayDouble gA = grads.getArray();
+        touch(z.getArray().v, 0, howLong);
         for (int i = 0, ibase = 0; i < outputLength; ++i, ibase += inputLength)
         {
             
@@ -164,6 +195,78 @@ public class FullyConnectedLayer extends AbstractLayer
 
     }
 
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        batchInput = x;
+        final int batchSz = x.dims[0];
+        final int xL = x.size() / batchSz;
+        final int zL = Math.min(inputLength, xL);
+        if (batchOutput == null)
+        {
+            batchOutput = new Tensor(1);
+        }
+        batchOutput.resize(batchSz, outputLength);
+
+        final double[] xA = x.getArray().v;
+        final Tensor w = weights;
+        final double[] oA = batchOutput.getArray().v;
+
+        for (int b = 0; b < batchSz; ++b)
+        {
+            final int xbase = b * xL;
+            final int obase = b * outputLength;
+            for (int i = 0, ibase = 0; i < outputLength; ++i, ibase += inputLength)
+            {
+                double acc = 0.;
+                for (int j = 0; j < zL; ++j)
+                {
+                    acc += w.at(ibase + j) * xA[xbase + j];
+                }
+                oA[obase + i] = acc + biases[i];
+            }
+        }
+        return batchOutput;
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        final int batchSz = batchInput.dims[0];
+        final int xL = batchInput.size() / batchSz;
+        final int howLong = Math.min(inputLength, xL);
+        if (batchGrads == null)
+        {
+            batchGrads = new Tensor(1);
+        }
+        batchGrads.resize(batchSz, xL);
+        batchGrads.constant(0.);
+
+        final double[] xA = batchInput.getArray().v;
+        final Tensor w = weights;
+        final double[] cgA = chainGrad.getArray().v;
+        final double[] gwA = gradsW.getArray().v;
+        final double[] gA = batchGrads.getArray().v;
+
+        for (int b = 0; b < batchSz; ++b)
+        {
+            final int xbase = b * xL;
+            final int cgbase = b * outputLength;
+            touch(xA, xbase, howLong);
+            for (int i = 0, ibase = 0; i < outputLength; ++i, ibase += inputLength)
+            {
+                final double cgi = cgA[cgbase + i];
+                for (int j = 0; j < howLong; ++j)
+                {
+                    gwA[ibase + j] += cgi * xA[xbase + j];
+                    gA[xbase + j] += cgi * w.at(ibase + j);
+                }
+                biasGrads[i] += cgi;
+            }
+        }
+        return batchGrads;
+    }
+
     // dx on a fully connected layer is simply the parameters by the parent gradient
     void gradCheckX(Tensor outputLayerGradArray)
     {
@@ -259,4 +362,98 @@ public class FullyConnectedLayer extends AbstractLayer
     {
         this.inputLength = inputLength;
     }
+
+    // Note which input columns are non-zero, and so which columns of weight gradients they add to
+    private void touch(double[] x, int x0, int n)
+    {
+        if (numTouchedColumns < 0)
+        {
+            return;
+        }
+        for (int j = 0; j < n; ++j)
+        {
+            if (x[x0 + j] != 0. && !isTouched[j])
+            {
+                isTouched[j] = true;
+                touchedColumns[numTouchedColumns++] = j;
+            }
+        }
+    }
+
+    @Override
+    public int numTouchedParams()
+    {
+        return numTouchedColumns < 0 ? -1 : numTouchedColumns * outputLength;
+    }
+
+    @Override
+    public void touchedParams(int[] indices)
+    {
+        for (int i = 0, ibase = 0, k = 0; i < outputLength; ++i, ibase += inputLength)
+        {
+            for (int c = 0; c < numTouchedColumns; ++c)
+            {
+                indices[k++] = ibase + touchedColumns[c];
+            }
+        }
+    }
+
+    @Override
+    public void clearTouchedParams()
+    {
+        if (isTouched == null || isTouched.length != inputLength)
+        {
+            isTouched = new boolean[inputLength];
+            touchedColumns = new int[inputLength];
+        }
+        for (int c = 0; c < numTouchedColumns; ++c)
+        {
+            isTouched[touchedColumns[c]] = false;
+        }
+        numTouchedColumns = 0;
+    }
+
+    @Override
+    public void mergeTouchedParams(Layer other)
+    {
+        if (numTouchedColumns < 0)
+        {
+            return;
+        }
+        if (!(other instanceof FullyConnectedLayer) || ((FullyConnectedLayer) other).numTouchedColumns < 0)
+        {
+            numTouchedColumns = -1;
+            return;
+        }
+        FullyConnectedLayer from = (FullyConnectedLayer) other;
+        for (int c = 0; c < from.numTouchedColumns; ++c)
+        {
+            final int j = from.touchedColumns[c];
+            if (!isTouched[j])
+            {
+                isTouched[j] = true;
+                touchedColumns[numTouchedColumns++] = j;
+            }
+        }
+    }
+
+    @Override
+    public void releaseTrainingState()
+    {
+        super.releaseTrainingState();
+        touchedColumns = null;
+        isTouched = null;
+        numTouchedColumns = -1;
+    }
+
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        z = null;
+        touchedColumns = null;
+        isTouched = null;
+        numTouchedColumns = -1;
+    }
+
 }
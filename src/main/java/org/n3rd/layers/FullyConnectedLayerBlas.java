@@ -1,9 +1,9 @@
 
 package org.n3rd.layers;
 
-import org.jblas.NativeBlas;
 import org.n3rd.Tensor;
 import org.n3rd.layers.AbstractLayer;
+import org.n3rd.ops.Blas;
 import org.sgdtk.ArrayDouble;
 
 import java.util.ArrayList;
@@ -31,17 +31,41 @@ public class FullyConnectedLayerBlas extends AbstractLayer
      */
     public void setParams(LinkedHashMap<String, Object> params)
     {
-        this.weights = new Tensor(params);
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The layer sizes follow from the weight dims, and the rest of the
+     * layer is allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        outputLength = weights.dims[0];
+        inputLength = weights.dims[1];
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        grads = new Tensor(inputLength);
+        output = new Tensor(outputLength);
     }
 
     public void setBiasParams(ArrayList<Double> biasParams)
     {
         int sz = biasParams.size();
-        biases = new double[sz];
+        double[] b = new double[sz];
         for (int i = 0; i < sz; ++i)
         {
-            biases[i] = biasParams.get(i);
+            b[i] = biasParams.get(i);
         }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
     }
 
     /**
@@ -105,8 +129,9 @@ public class FullyConnectedLayerBlas extends AbstractLayer
         final ArrayDouble wA = weights.getArray();
         ArrayDouble oA = output.getArray();
 
-        output.constant(0.);
-        NativeBlas.dgemv('N', outputLength, inputLength, 1.0, wA.v, 0, outputLength, zA.v, 0, 1, 1.0, oA.v, 0, 1);
+        System.arraycopy(biases, 0, oA.v, 0, outputLength);
+        Blas.getInstance().dgemv('N', outputLength, inputLength, 1.0, wA.v, 0, outputLength, zA.v, 0, 1,
+                1.0, oA.v, 0, 1);
         return output;
 
     }
@@ -128,8 +153,9 @@ public class FullyConnectedLayerBlas extends AbstractLayer
         ArrayDouble zA = z.getArray();
         grads.constant(0.);
 
-        NativeBlas.dgemv('T', outputLength, inputLength, 1.0, wA.v, 0, outputLength, cgA.v, 0, 1, 1.0, gA.v, 0, 1);
-        NativeBlas.dger(outputLength, inputLength, 1.0, cgA.v, 0, 1, zA.v, 0, 1, gwA.v, 0, outputLength);
+        Blas.getInstance().dgemv('T', outputLength, inputLength, 1.0, wA.v, 0, outputLength, cgA.v, 0, 1,
+                1.0, gA.v, 0, 1);
+        Blas.getInstance().dger(outputLength, inputLength, 1.0, cgA.v, 0, 1, zA.v, 0, 1, gwA.v, 0, outputLength);
 
         for (int i = 0; i < outputLength; ++i)
         {
@@ -139,6 +165,70 @@ public class FullyConnectedLayerBlas extends AbstractLayer
 
     }
 
+    /**
+     * Forward prop over a whole batch, as a single GEMM.  Since the examples are each contiguous, the batch is
+     * already an inputLength x batchSz column-major matrix, and the output comes out as batchSz x outputLength
+     *
+     * @param x A batch of inputs
+     * @return The outputs
+     */
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        this.z = x;
+        final int batchSz = x.dims[0];
+        final int xL = x.size() / batchSz;
+        if (batchOutput == null)
+        {
+            batchOutput = new Tensor(1);
+        }
+        batchOutput.resize(batchSz, outputLength);
+        final double[] oA = batchOutput.getArray().v;
+        for (int b = 0; b < batchSz; ++b)
+        {
+            System.arraycopy(biases, 0, oA, b * outputLength, outputLength);
+        }
+        Blas.getInstance().dgemm('N', 'N', outputLength, batchSz, inputLength, 1.0, weights.getArray().v, 0,
+                outputLength, x.getArray().v, 0, xL, 1.0, oA, 0, outputLength);
+        return batchOutput;
+    }
+
+    /**
+     * Back prop over a whole batch.  The input deltas are one GEMM, and the weight gradients, summed over the
+     * batch, are another
+     *
+     * @param chainGrad layers above's deltas, batchSz x outputLength
+     * @param y Labels
+     * @return The deltas for this layer
+     */
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        final int batchSz = z.dims[0];
+        final int xL = z.size() / batchSz;
+        if (batchGrads == null)
+        {
+            batchGrads = new Tensor(1);
+        }
+        batchGrads.resize(batchSz, xL);
+        batchGrads.constant(0.);
+        final double[] cgA = chainGrad.getArray().v;
+
+        Blas.getInstance().dgemm('T', 'N', inputLength, batchSz, outputLength, 1.0, weights.getArray().v, 0,
+                outputLength, cgA, 0, outputLength, 0.0, batchGrads.getArray().v, 0, xL);
+        Blas.getInstance().dgemm('N', 'T', outputLength, inputLength, batchSz, 1.0, cgA, 0, outputLength,
+                z.getArray().v, 0, xL, 1.0, gradsW.getArray().v, 0, outputLength);
+
+        for (int b = 0, base = 0; b < batchSz; ++b, base += outputLength)
+        {
+            for (int i = 0; i < outputLength; ++i)
+            {
+                biasGrads[i] += cgA[base + i];
+            }
+        }
+        return batchGrads;
+    }
+
     public int getOutputLength()
     {
         return outputLength;
@@ -158,4 +248,12 @@ public class FullyConnectedLayerBlas extends AbstractLayer
     {
         this.inputLength = inputLength;
     }
+
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        z = null;
+    }
+
 }
@@ -0,0 +1,226 @@
+package org.n3rd.layers;
+
+import org.n3rd.FloatTensor;
+import org.n3rd.Tensor;
+import org.n3rd.ops.Blas;
+
+/**
+ * Mixed-precision fully connected layer
+ *
+ * This is a drop-in for FullyConnectedLayerBlas that does its matrix products with sgemv/sgemm.  Only the products
+ * are in single precision.  The weights are still kept in double precision, since that is what the updates and the
+ * model files work on, and they are narrowed into a float copy, which is what the forward and backward passes
+ * actually read.  So this layer holds more weights in memory than FullyConnectedLayerBlas, not fewer: the float copy
+ * is on top of the doubles.  What it saves is memory traffic in the products.  The float copy is refreshed on
+ * the first forward after a backward, since that is when an update may have happened.  If you change the weights
+ * some other way, call {@link #weightsChanged()}.
+ *
+ * The activations are in double precision too: the input is narrowed on the way in, the output is widened on the way
+ * out, and the layers on either side see double-precision Tensors.  The weight gradients are an outer product of two
+ * small vectors, so they are accumulated straight into the double-precision gradients.  To make a model smaller on
+ * disk, save it in single precision instead (see {@link org.n3rd.NeuralNetModel#save(java.io.File, boolean)}).
+ *
+ * @author dpressel
+ */
+public class FullyConnectedLayerMixed extends FullyConnectedLayerBlas
+{
+    private FloatTensor weightsF;
+    private FloatTensor zF;
+    private FloatTensor outputF;
+    private FloatTensor chainGradF;
+    private FloatTensor gradsF;
+    private boolean dirty = true;
+
+    /**
+     * Empty constructor (for reincarnating models)
+     */
+    public FullyConnectedLayerMixed()
+    {
+    }
+
+    /**
+     * Constructor, with given outputLength and input length
+     * @param outputLength Output length
+     * @param inputLength Input length
+     */
+    public FullyConnectedLayerMixed(int outputLength, int inputLength)
+    {
+        super(outputLength, inputLength);
+    }
+
+    /**
+     * Let the layer know the weights have changed outside of training, so its single-precision copy is stale
+     */
+    public void weightsChanged()
+    {
+        dirty = true;
+    }
+
+    @Override
+    public void setParams(Tensor params)
+    {
+        super.setParams(params);
+        dirty = true;
+    }
+
+    private void refreshWeights()
+    {
+        if (weightsF == null)
+        {
+            weightsF = new FloatTensor(1);
+            zF = new FloatTensor(1);
+            outputF = new FloatTensor(1);
+            chainGradF = new FloatTensor(1);
+            gradsF = new FloatTensor(1);
+            dirty = true;
+        }
+        if (dirty)
+        {
+            weightsF.copyFrom(weights);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Forward prop
+     * @param x
+     * @return
+     */
+    @Override
+    public Tensor forward(Tensor x)
+    {
+        refreshWeights();
+        this.z = x;
+        final int outputLength = getOutputLength();
+        final int inputLength = getInputLength();
+        zF.copyFrom(x);
+        outputF.resize(outputLength);
+
+        Blas.getInstance().sgemv('N', outputLength, inputLength, 1.0f, weightsF.getArray(), 0, outputLength,
+                zF.getArray(), 0, 1, 0.0f, outputF.getArray(), 0, 1);
+
+        final double[] oA = output.getArray().v;
+        final float[] oF = outputF.getArray();
+        for (int i = 0; i < outputLength; ++i)
+        {
+            oA[i] = oF[i] + biases[i];
+        }
+        return output;
+    }
+
+    /**
+     * Do backprop
+     * @param chainGrad layers above's deltas
+     * @param y Label
+     * @return The deltas for this layer
+     */
+    @Override
+    public Tensor backward(Tensor chainGrad, double y)
+    {
+        final int outputLength = getOutputLength();
+        final int inputLength = getInputLength();
+        chainGradF.copyFrom(chainGrad);
+        gradsF.resize(inputLength);
+
+        Blas.getInstance().sgemv('T', outputLength, inputLength, 1.0f, weightsF.getArray(), 0, outputLength,
+                chainGradF.getArray(), 0, 1, 0.0f, gradsF.getArray(), 0, 1);
+        gradsF.copyTo(grads);
+
+        Blas.getInstance().dger(outputLength, inputLength, 1.0, chainGrad.getArray().v, 0, 1, z.getArray().v, 0, 1,
+                gradsW.getArray().v, 0, outputLength);
+
+        for (int i = 0; i < outputLength; ++i)
+        {
+            biasGrads[i] = chainGrad.at(i);
+        }
+        dirty = true;
+        return grads;
+    }
+
+    /**
+     * Forward prop over a whole batch, as a single sgemm
+     *
+     * @param x A batch of inputs
+     * @return The outputs
+     */
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        refreshWeights();
+        this.z = x;
+        final int outputLength = getOutputLength();
+        final int inputLength = getInputLength();
+        final int batchSz = x.dims[0];
+        final int xL = x.size() / batchSz;
+        if (batchOutput == null)
+        {
+            batchOutput = new Tensor(1);
+        }
+        zF.copyFrom(x);
+        outputF.resize(batchSz, outputLength);
+        batchOutput.resize(batchSz, outputLength);
+
+        Blas.getInstance().sgemm('N', 'N', outputLength, batchSz, inputLength, 1.0f, weightsF.getArray(), 0,
+                outputLength, zF.getArray(), 0, xL, 0.0f, outputF.getArray(), 0, outputLength);
+
+        final double[] oA = batchOutput.getArray().v;
+        final float[] oF = outputF.getArray();
+        for (int b = 0, base = 0; b < batchSz; ++b, base += outputLength)
+        {
+            for (int i = 0; i < outputLength; ++i)
+            {
+                oA[base + i] = oF[base + i] + biases[i];
+            }
+        }
+        return batchOutput;
+    }
+
+    /**
+     * Back prop over a whole batch.  The input deltas are an sgemm, and the weight gradients, summed over the batch,
+     * are a dgemm
+     *
+     * @param chainGrad layers above's deltas, batchSz x outputLength
+     * @param y Labels
+     * @return The deltas for this layer
+     */
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        final int outputLength = getOutputLength();
+        final int inputLength = getInputLength();
+        final int batchSz = z.dims[0];
+        final int xL = z.size() / batchSz;
+        if (batchGrads == null)
+        {
+            batchGrads = new Tensor(1);
+        }
+        chainGradF.copyFrom(chainGrad);
+        gradsF.resize(batchSz, xL);
+        gradsF.constant(0.f);
+
+        Blas.getInstance().sgemm('T', 'N', inputLength, batchSz, outputLength, 1.0f, weightsF.getArray(), 0,
+                outputLength, chainGradF.getArray(), 0, outputLength, 0.0f, gradsF.getArray(), 0, xL);
+        gradsF.copyTo(batchGrads);
+
+        final double[] cgA = chainGrad.getArray().v;
+        Blas.getInstance().dgemm('N', 'T', outputLength, inputLength, batchSz, 1.0, cgA, 0, outputLength,
+                z.getArray().v, 0, xL, 1.0, gradsW.getArray().v, 0, outputLength);
+
+        for (int b = 0, base = 0; b < batchSz; ++b, base += outputLength)
+        {
+            for (int i = 0; i < outputLength; ++i)
+            {
+                biasGrads[i] += cgA[base + i];
+            }
+        }
+        dirty = true;
+        return batchGrads;
+    }
+
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        weightsF = zF = outputF = chainGradF = gradsF = null;
+    }
+}
@@ -0,0 +1,450 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A layer with parameters (fully connected or convolutional), fused with the pointwise activation that follows it,
+ * and optionally a max pooling layer before or after the activation.
+ *
+ * Unfused, the activation layer reads the whole output of the layer below it and writes a copy with the
+ * activation applied, which is another full buffer in and out of memory for every example.  Layers with
+ * parameters compute their gradients from their input, never their output, so here the activation just overwrites
+ * the output in place, and the backward pass gets the activation's derivative from that same buffer.  When the
+ * pooling comes first, as in conv, pool, tanh, the activation only touches the pooled values.
+ *
+ * The parts are the original layers (or replicas of them), so training a fused layer trains them.  A fused layer is
+ * only a way of running a model, and is never saved as one: saving a fused model writes the parts back out as the
+ * layers they came from (see {@link #unfuse(Layer[])}), so it loads as the unfused model.  Likewise, the weights
+ * are the wrapped layer's, so it says which of them were touched (see {@link SparseGradients}), if it knows
+ *
+ * @author dpressel
+ */
+public class FusedLayer implements Layer, ScoringOnly, SparseGradients
+{
+    /**
+     * The pointwise activations we can apply in place.  Each one computes exactly what its layer does, and gets
+     * its derivative from its own output
+     */
+    public enum Activation
+    {
+        TANH
+        {
+            @Override
+            void forward(double[] z, int sz)
+            {
+                for (int i = 0; i < sz; ++i)
+                {
+                    z[i] = Math.tanh(z[i]);
+                }
+            }
+
+            @Override
+            void backward(double[] chainGrad, double[] out, double[] grads, int sz)
+            {
+                for (int i = 0; i < sz; ++i)
+                {
+                    final double oi = out[i];
+                    grads[i] = chainGrad[i] * (1. - oi * oi);
+                }
+            }
+        },
+        RELU
+        {
+            @Override
+            void forward(double[] z, int sz)
+            {
+                for (int i = 0; i < sz; ++i)
+                {
+                    z[i] = Math.max(0, z[i]);
+                }
+            }
+
+            @Override
+            void backward(double[] chainGrad, double[] out, double[] grads, int sz)
+            {
+                for (int i = 0; i < sz; ++i)
+                {
+                    grads[i] = chainGrad[i] * (out[i] > 0. ? 1. : 0.);
+                }
+            }
+        },
+        SIGMOID
+        {
+            @Override
+            void forward(double[] z, int sz)
+            {
+                for (int i = 0; i < sz; ++i)
+                {
+                    z[i] = 1.0 / (1.0 + Math.exp(-z[i]));
+                }
+            }
+
+            @Override
+            void backward(double[] chainGrad, double[] out, double[] grads, int sz)
+            {
+                for (int i = 0; i < sz; ++i)
+                {
+                    final double oi = out[i];
+                    grads[i] = chainGrad[i] * (1 - oi) * oi;
+                }
+            }
+        };
+
+        abstract void forward(double[] z, int sz);
+
+        abstract void backward(double[] chainGrad, double[] out, double[] grads, int sz);
+
+        /**
+         * Make the layer that computes this activation on its own
+         *
+         * @return A new activation layer
+         */
+        public Layer newLayer()
+        {
+            switch (this)
+            {
+                case TANH:
+                    return new TanhLayer();
+                case RELU:
+                    return new ReLULayer();
+                default:
+                    return new SigmoidLayer();
+            }
+        }
+
+        /**
+         * Get the activation a layer computes
+         *
+         * @param layer A layer
+         * @return Its activation, or null if it isn't one we can fuse
+         */
+        public static Activation of(Layer layer)
+        {
+            if (layer instanceof TanhLayer)
+            {
+                return TANH;
+            }
+            if (layer instanceof ReLULayer)
+            {
+                return RELU;
+            }
+            if (layer instanceof SigmoidLayer)
+            {
+                return SIGMOID;
+            }
+            return null;
+        }
+    }
+
+    private final Layer layer;
+    private final Activation activation;
+    private final MaxPoolingLayer pooling;
+    private final boolean poolFirst;
+
+    // The tensor holding the activations, which is where their derivative comes from on the way back
+    private Tensor activated;
+    private Tensor grads = new Tensor(1);
+
+    /**
+     * Fuse a layer with an activation
+     *
+     * @param layer A layer with parameters
+     * @param activation The activation applied to its output
+     */
+    public FusedLayer(Layer layer, Activation activation)
+    {
+        this(layer, activation, null, false);
+    }
+
+    /**
+     * Fuse a layer with an activation and a max pooling layer
+     *
+     * @param layer A layer with parameters
+     * @param activation The activation
+     * @param pooling Max pooling, or null for none
+     * @param poolFirst Does the pooling come before the activation?
+     */
+    public FusedLayer(Layer layer, Activation activation, MaxPoolingLayer pooling, boolean poolFirst)
+    {
+        this.layer = layer;
+        this.activation = activation;
+        this.pooling = pooling;
+        this.poolFirst = poolFirst;
+    }
+
+    /**
+     * Fuse every layer with parameters that is followed by a pointwise activation (and possibly a max pooling layer
+     * on either side of it).  Anything else is passed through as it is.  The result uses the given layers, so it
+     * trains the same weights, but it shouldn't be run alongside the unfused layers, since the fused ones write their
+     * activations into the outputs of the layers they wrap
+     *
+     * @param layers The layers of a model
+     * @return The fused layers
+     */
+    public static Layer[] fuse(Layer[] layers)
+    {
+        List<Layer> fused = new ArrayList<Layer>(layers.length);
+        for (int i = 0; i < layers.length; )
+        {
+            final Layer layer = layers[i];
+            final Layer next = i + 1 < layers.length ? layers[i + 1] : null;
+            final Layer after = i + 2 < layers.length ? layers[i + 2] : null;
+            // Quantized layers keep their weights to themselves, but are fused all the same
+            if ((layer.getParams() == null && !(layer instanceof QuantizedLayer)) || next == null)
+            {
+                fused.add(layer);
+                ++i;
+            }
+            else if (Activation.of(next) != null)
+            {
+                // The pooling can come after the activation too
+                if (after instanceof MaxPoolingLayer)
+                {
+                    fused.add(new FusedLayer(layer, Activation.of(next), (MaxPoolingLayer) after, false));
+                    i += 3;
+                }
+                else
+                {
+                    fused.add(new FusedLayer(layer, Activation.of(next)));
+                    i += 2;
+                }
+            }
+            else if (next instanceof MaxPoolingLayer && after != null && Activation.of(after) != null)
+            {
+                fused.add(new FusedLayer(layer, Activation.of(after), (MaxPoolingLayer) next, true));
+                i += 3;
+            }
+            else
+            {
+                fused.add(layer);
+                ++i;
+            }
+        }
+        return fused.toArray(new Layer[fused.size()]);
+    }
+
+    /**
+     * Split every fused layer back into the layers it was made from.  The layers with parameters and the pooling are
+     * the same ones, and the activations are new layers.  Anything else is passed through as it is
+     *
+     * @param layers The layers of a model, which may be fused
+     * @return The unfused layers
+     */
+    public static Layer[] unfuse(Layer[] layers)
+    {
+        List<Layer> unfused = new ArrayList<Layer>(layers.length);
+        for (Layer layer : layers)
+        {
+            if (!(layer instanceof FusedLayer))
+            {
+                unfused.add(layer);
+                continue;
+            }
+            FusedLayer fusedLayer = (FusedLayer) layer;
+            unfused.add(fusedLayer.layer);
+            if (fusedLayer.pooling != null && fusedLayer.poolFirst)
+            {
+                unfused.add(fusedLayer.pooling);
+            }
+            unfused.add(fusedLayer.activation.newLayer());
+            if (fusedLayer.pooling != null && !fusedLayer.poolFirst)
+            {
+                unfused.add(fusedLayer.pooling);
+            }
+        }
+        return unfused.toArray(new Layer[unfused.size()]);
+    }
+
+    @Override
+    public Tensor forward(Tensor x)
+    {
+        Tensor z = layer.forward(x);
+        if (pooling != null && poolFirst)
+        {
+            z = pooling.forward(z);
+        }
+        activation.forward(z.getArray().v, z.size());
+        activated = z;
+        if (pooling != null && !poolFirst)
+        {
+            z = pooling.forward(z);
+        }
+        return z;
+    }
+
+    @Override
+    public Tensor backward(Tensor chainGrad, double y)
+    {
+        if (pooling != null && !poolFirst)
+        {
+            chainGrad = pooling.backward(chainGrad, y);
+        }
+        Tensor g = activationBackward(chainGrad);
+        if (pooling != null && poolFirst)
+        {
+            g = pooling.backward(g, y);
+        }
+        return layer.backward(g, y);
+    }
+
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        Tensor z = layer.forwardBatch(x);
+        if (pooling != null && poolFirst)
+        {
+            z = pooling.forwardBatch(z);
+        }
+        activation.forward(z.getArray().v, z.size());
+        activated = z;
+        if (pooling != null && !poolFirst)
+        {
+            z = pooling.forwardBatch(z);
+        }
+        return z;
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        if (pooling != null && !poolFirst)
+        {
+            chainGrad = pooling.backwardBatch(chainGrad, y);
+        }
+        Tensor g = activationBackward(chainGrad);
+        if (pooling != null && poolFirst)
+        {
+            g = pooling.backwardBatch(g, y);
+        }
+        return layer.backwardBatch(g, y);
+    }
+
+    private Tensor activationBackward(Tensor chainGrad)
+    {
+        grads.resize(chainGrad.dims);
+        activation.backward(chainGrad.getArray().v, activated.getArray().v, grads.getArray().v, chainGrad.size());
+        return grads;
+    }
+
+    @Override
+    public Layer replicate()
+    {
+        return new FusedLayer(layer.replicate(), activation,
+                pooling == null ? null : (MaxPoolingLayer) pooling.replicate(), poolFirst);
+    }
+
+    @Override
+    public Layer prototype()
+    {
+        return new FusedLayer(layer.prototype(), activation,
+                pooling == null ? null : (MaxPoolingLayer) pooling.prototype(), poolFirst);
+    }
+
+    @Override
+    public void releaseTrainingState()
+    {
+        if (layer instanceof ScoringOnly)
+        {
+            ((ScoringOnly) layer).releaseTrainingState();
+        }
+        if (pooling != null)
+        {
+            pooling.releaseTrainingState();
+        }
+        grads = null;
+    }
+
+    public Layer getLayer()
+    {
+        return layer;
+    }
+
+    public Activation getActivation()
+    {
+        return activation;
+    }
+
+    public MaxPoolingLayer getPooling()
+    {
+        return pooling;
+    }
+
+    public boolean isPoolFirst()
+    {
+        return poolFirst;
+    }
+
+    @Override
+    public Tensor getParamGrads()
+    {
+        return layer.getParamGrads();
+    }
+
+    @Override
+    public Tensor getParams()
+    {
+        return layer.getParams();
+    }
+
+    @Override
+    public Tensor getOutput()
+    {
+        return grads;
+    }
+
+    @Override
+    public double[] getBiasGrads()
+    {
+        return layer.getBiasGrads();
+    }
+
+    @Override
+    public double[] getBiasParams()
+    {
+        return layer.getBiasParams();
+    }
+
+    @Override
+    public Tensor getWeightAccum()
+    {
+        return layer.getWeightAccum();
+    }
+
+    @Override
+    public int numTouchedParams()
+    {
+        return layer instanceof SparseGradients ? ((SparseGradients) layer).numTouchedParams() : -1;
+    }
+
+    @Override
+    public void touchedParams(int[] indices)
+    {
+        if (layer instanceof SparseGradients)
+        {
+            ((SparseGradients) layer).touchedParams(indices);
+        }
+    }
+
+    @Override
+    public void clearTouchedParams()
+    {
+        if (layer instanceof SparseGradients)
+        {
+            ((SparseGradients) layer).clearTouchedParams();
+        }
+    }
+
+    @Override
+    public void mergeTouchedParams(Layer other)
+    {
+        if (layer instanceof SparseGradients)
+        {
+            // The gradients came from the layer the other one wraps
+            ((SparseGradients) layer).mergeTouchedParams(
+                    other instanceof FusedLayer ? ((FusedLayer) other).layer : other);
+        }
+    }
+}
@@ -1,12 +1,8 @@
 package org.n3rd.layers;
 
 import org.n3rd.Tensor;
+import org.n3rd.ops.Parallel;
 import org.sgdtk.ArrayDouble;
-import org.sgdtk.Offset;
-
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
 
 /**
  * K-max pooling, a generalization of max-pooling over time, where we take the top K values
@@ -15,8 +11,11 @@ import java.util.List;
  * in Kalchbrenner & Blunsom for their CNN sentence classification.  When K is 1, it simply becomes max-pooling over
  * time.
  * <p>
- * The current implementation just uses builtin Java data structures, and isnt likely to be particularly optimal
- * and can likely be simplified quite a bit.
+ * Each row is pooled without sorting or allocating anything: the K-th largest value is found by quickselect on a
+ * scratch copy of the row, and a single pass over the row then keeps everything above it, plus as many values equal
+ * to it as are needed, earliest first.  So the output stays in the order of the input, and ties go to the earlier
+ * frame.  The rows are independent, so they are split across the {@link Parallel} pool when there are enough of them,
+ * and otherwise pooled right here, so nothing is allocated per forward once the scratch array has grown.
  *
  * @author dpressel
  */
@@ -85,72 +84,174 @@ public class KMaxPoolingLayer extends AbstractLayer
         this.featureMapSz = featureMapSz;
     }
 
-    public static final class MaxValueComparator implements Comparator<Offset>
+    // Scratch space for selection, one per thread since the rows may be split across the pool
+    private static final ThreadLocal<double[]> SCRATCH = new ThreadLocal<double[]>()
     {
         @Override
-        public int compare(Offset o1, Offset o2)
+        protected double[] initialValue()
         {
-            //return o1.index;
-            return Double.compare(o2.value, o1.value);
+            return new double[0];
         }
-    }
+    };
 
-    public static final class MinIndexComparator implements Comparator<Offset>
+    private static double[] scratch(int size)
     {
-        @Override
-        public int compare(Offset o1, Offset o2)
+        double[] values = SCRATCH.get();
+        if (values.length < size)
         {
-            //return o1.index;
-            return Integer.compare(o1.index, o2.index);
+            values = new double[size];
+            SCRATCH.set(values);
         }
+        return values;
     }
 
-    @Override
-    public Tensor forward(Tensor z)
+    /**
+     * Find the r-th largest of the first n values by quickselect.  The values are reordered
+     *
+     * @param values The values
+     * @param n How many of them to look at
+     * @param r The rank, where 0 is the largest
+     * @return The r-th largest value
+     */
+    static double select(double[] values, int n, int r)
     {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi)
+        {
+            // Median of three, which keeps already sorted rows from going quadratic
+            final int mid = (lo + hi) >>> 1;
+            if (values[mid] > values[lo])
+            {
+                swap(values, mid, lo);
+            }
+            if (values[hi] > values[lo])
+            {
+                swap(values, hi, lo);
+            }
+            if (values[hi] > values[mid])
+            {
+                swap(values, hi, mid);
+            }
+            final double pivot = values[mid];
 
+            // Descending, so everything bigger than the pivot ends up on the left
+            int i = lo;
+            int j = hi;
+            while (i <= j)
+            {
+                while (values[i] > pivot)
+                {
+                    ++i;
+                }
+                while (values[j] < pivot)
+                {
+                    --j;
+                }
+                if (i <= j)
+                {
+                    swap(values, i++, j--);
+                }
+            }
+            if (r <= j)
+            {
+                hi = j;
+            }
+            else if (r >= i)
+            {
+                lo = i;
+            }
+            else
+            {
+                return values[r];
+            }
+        }
+        return values[r];
+    }
 
-        numFrames = z.size() / embeddingSz / featureMapSz;
-        grads.resize(featureMapSz, embeddingSz, numFrames);
-        //grads = new Tensor(featureMapSz, embeddingSz, numFrames);
-        int sz = output.size();
+    private static void swap(double[] values, int i, int j)
+    {
+        final double t = values[i];
+        values[i] = values[j];
+        values[j] = t;
+    }
 
-        ArrayDouble oA = output.getArray();
-        final ArrayDouble zA = z.getArray();
-        for (int i = 0; i < sz; ++i)
+    // Pool the rows [from, to), where a row is one embedding of one feature map
+    private void pool(double[] zA, double[] oA, int from, int to)
+    {
+        final int kk = Math.min(k, numFrames);
+        final double[] values = scratch(numFrames);
+        for (int row = from; row < to; ++row)
         {
-            oA.set(i, 0);
-            origin[i] = -100;
-        }
+            final int ibase = row * numFrames;
+            final int obase = row * k;
 
-        for (int l = 0, lbase = 0; l < featureMapSz; ++l, lbase += embeddingSz)
-        {
-            for (int j = 0; j < embeddingSz; ++j)
+            // We keep everything above the threshold, and the first few equal to it
+            System.arraycopy(zA, ibase, values, 0, numFrames);
+            final double threshold = kk == numFrames ? Double.NEGATIVE_INFINITY : select(values, numFrames, kk - 1);
+            int equal = kk;
+            if (kk < numFrames)
             {
-                List<Offset> offsets = new ArrayList<Offset>(numFrames);
-
-                final int ibase = (lbase + j) * numFrames;
-                final int obase = (lbase + j) * k;
-
                 for (int i = 0; i < numFrames; ++i)
                 {
-                    int inAddr = ibase + i;
-                    offsets.add(new Offset(inAddr, zA.at(inAddr)));
-
+                    if (zA[ibase + i] > threshold)
+                    {
+                        --equal;
+                    }
                 }
-                offsets.sort(new MaxValueComparator());
-                List<Offset> offsetList = offsets.subList(0, Math.min(k, offsets.size()));
-                offsetList.sort(new MinIndexComparator());
-                sz = offsetList.size();
-                for (int i = 0; i < sz; ++i)
+            }
+
+            int o = obase;
+            for (int i = 0; i < numFrames && o < obase + kk; ++i)
+            {
+                final double v = zA[ibase + i];
+                if (kk == numFrames || v > threshold || (v == threshold && equal-- > 0))
                 {
-                    int outAddr = obase + i;
-                    origin[outAddr] = offsetList.get(i).index;
-                    oA.set(outAddr, offsetList.get(i).value);
+                    origin[o] = ibase + i;
+                    oA[o++] = v;
                 }
             }
+            for (; o < obase + k; ++o)
+            {
+                origin[o] = -100;
+                oA[o] = 0.;
+            }
+        }
+    }
 
+    @Override
+    public Tensor forward(Tensor z)
+    {
+        // A layer loaded from a model only has its sizes until now
+        if (output == null)
+        {
+            output = new Tensor(featureMapSz, embeddingSz, k);
+            origin = new int[output.size()];
+            grads = new Tensor(1);
         }
+
+        numFrames = z.size() / embeddingSz / featureMapSz;
+        if (grads != null)
+        {
+            grads.resize(featureMapSz, embeddingSz, numFrames);
+        }
+
+        final double[] oA = output.getArray().v;
+        final double[] zA = z.getArray().v;
+        final int rows = featureMapSz * embeddingSz;
+        if (!Parallel.willSplit(rows, numFrames))
+        {
+            pool(zA, oA, 0, rows);
+            return output;
+        }
+        Parallel.forRows(rows, numFrames, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                pool(zA, oA, from, to);
+            }
+        });
         return output;
     }
 
@@ -184,4 +285,11 @@ public class KMaxPoolingLayer extends AbstractLayer
         return grads;
     }
 
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        origin = origin == null ? null : new int[origin.length];
+    }
+
 }
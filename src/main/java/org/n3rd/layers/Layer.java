@@ -30,7 +30,44 @@ public interface Layer
      * @return
      */
     Tensor backward(Tensor chainGrad, double y);
+
+    /**
+     * Mini-batch forward prop.  The leading dimension of x is the number of examples in the batch, and each example
+     * is laid out contiguously, exactly as it would be for a call to {@link #forward(Tensor)}.  All examples in a
+     * batch must have the same shape.
+     *
+     * @param x previous layer inputs or actual inputs, with x.dims[0] the batch size
+     * @return this layer's outputs, with the same leading batch dimension
+     */
+    Tensor forwardBatch(Tensor x);
+
+    /**
+     * Mini-batch back prop.  Parameter gradients are summed over every example in the batch, so a single update
+     * can be applied afterwards
+     *
+     * @param chainGrad Deltas from the layer above, with a leading batch dimension
+     * @param y labels, one per example in the batch
+     * @return The deltas for this layer, with a leading batch dimension
+     */
+    Tensor backwardBatch(Tensor chainGrad, double[] y);
     
+    /**
+     * Create a replica of this layer for use on another thread.  The replica shares this layer's parameters (weights,
+     * biases and weight accumulators), but has its own activations and gradients, so that several threads can
+     * each run forward and backward prop on their own replica while updating a single set of weights
+     *
+     * @return A replica of this layer sharing its parameters
+     */
+    Layer replicate();
+
+    /**
+     * Create a deep copy of this layer, with its own parameters as well as its own activations and gradients.
+     * Training the copy has no effect on this layer
+     *
+     * @return A copy of this layer
+     */
+    Layer prototype();
+
     Tensor getParamGrads();
     Tensor getParams();
     Tensor getOutput();
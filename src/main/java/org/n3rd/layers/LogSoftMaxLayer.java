@@ -2,7 +2,6 @@ package org.n3rd.layers;
 
 import org.n3rd.Tensor;
 import org.sgdtk.ArrayDouble;
-import org.sgdtk.CollectionsManip;
 
 /**
  * LogSoftMaxLayerFactory returns outputs in log soft max space
@@ -23,9 +22,13 @@ public class LogSoftMaxLayer extends AbstractLayer
     {
         int sz = z.size();
         output.resize(sz);
-        grads.resize(sz);
+        if (grads != null)
+        {
+            grads.resize(sz);
+        }
         ArrayDouble oA = output.getArray();
-        double logsum = CollectionsManip.logSum(z.getArray().v);
+        // Only over the input itself, since the array behind it may be bigger
+        double logsum = logSum(z.getArray().v, 0, sz);
 
         for (int i = 0; i < sz; ++i)
         {
@@ -53,4 +56,66 @@ public class LogSoftMaxLayer extends AbstractLayer
         return grads;
     }
 
+    private static double logSum(double[] z, int base, int sz)
+    {
+        double mx = z[base];
+        for (int i = 1; i < sz; ++i)
+        {
+            mx = Math.max(mx, z[base + i]);
+        }
+        double sum = 0.;
+        for (int i = 0; i < sz; ++i)
+        {
+            sum += Math.exp(z[base + i] - mx);
+        }
+        return mx + Math.log(sum);
+    }
+
+    // Each row in the batch is its own distribution
+    @Override
+    public Tensor forwardBatch(Tensor z)
+    {
+        final int batchSz = z.dims[0];
+        final int sz = z.size() / batchSz;
+        output.resize(batchSz, sz);
+        if (grads != null)
+        {
+            grads.resize(batchSz, sz);
+        }
+        final double[] zA = z.getArray().v;
+        final double[] oA = output.getArray().v;
+
+        for (int b = 0, base = 0; b < batchSz; ++b, base += sz)
+        {
+            final double logsum = logSum(zA, base, sz);
+            for (int i = 0; i < sz; ++i)
+            {
+                oA[base + i] = zA[base + i] - logsum;
+            }
+        }
+        return output;
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        final int batchSz = output.dims[0];
+        final int sz = output.dims[1];
+        final double[] oA = output.getArray().v;
+        final double[] gA = grads.getArray().v;
+
+        for (int b = 0, base = 0; b < batchSz; ++b, base += sz)
+        {
+            // One loss delta per example
+            final double sum = chainGrad.at(b);
+            final int yidx = (int)(y[b] - 1);
+            for (int i = 0; i < sz; ++i)
+            {
+                double indicator = yidx == i ? 1.0: 0.0;
+                gA[base + i] = (indicator - Math.exp(oA[base + i]))*sum;
+            }
+        }
+        return grads;
+    }
+
 }
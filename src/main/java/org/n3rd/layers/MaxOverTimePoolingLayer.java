@@ -56,10 +56,19 @@ public class MaxOverTimePoolingLayer extends AbstractLayer
     @Override
     public Tensor forward(Tensor z)
     {
-
+        // A layer loaded from a model only has its sizes until now
+        if (output == null)
+        {
+            output = new Tensor(featureMapSz);
+            origin = new int[output.size()];
+            grads = new Tensor(1);
+        }
 
         numFrames = z.size() / featureMapSz;
-        grads.resize(featureMapSz, 1, numFrames);
+        if (grads != null)
+        {
+            grads.resize(featureMapSz, 1, numFrames);
+        }
         int sz = output.size();
 
         ArrayDouble oA = output.getArray();
@@ -115,4 +124,11 @@ public class MaxOverTimePoolingLayer extends AbstractLayer
         return grads;
     }
 
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        origin = origin == null ? null : new int[origin.length];
+    }
+
 }
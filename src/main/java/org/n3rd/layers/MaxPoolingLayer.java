@@ -21,6 +21,14 @@ public class MaxPoolingLayer extends AbstractLayer
 
     int dh;
     int dw;
+    /**
+     * Empty constructor (for reincarnating models)
+     */
+    public MaxPoolingLayer()
+    {
+
+    }
+
     public MaxPoolingLayer(int dh, int dw, int... inputDims)
     {
 
@@ -29,10 +37,14 @@ public class MaxPoolingLayer extends AbstractLayer
         {
             this.inputDims[i] = inputDims[i];
         }
-        this.grads = new Tensor(inputDims);
-
         this.dh = dh;
         this.dw = dw;
+        allocate();
+    }
+
+    private void allocate()
+    {
+        this.grads = new Tensor(inputDims);
 
         this.output = new Tensor(inputDims[0],
                 (int)Math.ceil(inputDims[1] / (double)dh),
@@ -43,7 +55,11 @@ public class MaxPoolingLayer extends AbstractLayer
     @Override
     public Tensor forward(Tensor z)
     {
-
+        // A layer loaded from a model only has its sizes until now
+        if (output == null)
+        {
+            allocate();
+        }
 
         ArrayDouble oA = output.getArray();
 
@@ -152,4 +168,30 @@ public class MaxPoolingLayer extends AbstractLayer
         }
     }
 
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        origin = origin == null ? null : new int[origin.length];
+    }
+
+    public int getDh()
+    {
+        return dh;
+    }
+
+    public void setDh(Integer dh)
+    {
+        this.dh = dh;
+    }
+
+    public int getDw()
+    {
+        return dw;
+    }
+
+    public void setDw(Integer dw)
+    {
+        this.dw = dw;
+    }
 }
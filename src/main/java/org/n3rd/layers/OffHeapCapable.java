@@ -0,0 +1,11 @@
+package org.n3rd.layers;
+
+/**
+ * Marker for a layer that only touches its weights through the Tensor accessors (and FilterOps), so its weights may
+ * be off-heap, e.g. mapped straight from a model file.
+ *
+ * The blas-backed layers are not, since blas needs the weights in an array
+ */
+public interface OffHeapCapable
+{
+}
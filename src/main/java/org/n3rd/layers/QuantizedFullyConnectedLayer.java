@@ -0,0 +1,116 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+/**
+ * An int8 fully connected layer, with a weight scale for each output (see {@link QuantizedLayer}).  The weights are
+ * kept a row per output, whichever layer they came from
+ *
+ * @author dpressel
+ */
+public class QuantizedFullyConnectedLayer extends QuantizedLayer
+{
+    private int outputLength;
+    private int inputLength;
+
+    /**
+     * Empty constructor (for reincarnating models)
+     */
+    public QuantizedFullyConnectedLayer()
+    {
+
+    }
+
+    /**
+     * Quantize a trained layer
+     *
+     * @param layer The layer, with its weights a row per output
+     */
+    public QuantizedFullyConnectedLayer(FullyConnectedLayer layer)
+    {
+        this.outputLength = layer.getOutputLength();
+        this.inputLength = layer.getInputLength();
+        final Tensor w = layer.getParams();
+        double[] rows = new double[outputLength * inputLength];
+        for (int i = 0; i < rows.length; ++i)
+        {
+            rows[i] = w.at(i);
+        }
+        init(rows, layer.getBiasParams());
+    }
+
+    /**
+     * Quantize a trained layer
+     *
+     * @param layer The layer, with its weights a column per output
+     */
+    public QuantizedFullyConnectedLayer(FullyConnectedLayerBlas layer)
+    {
+        this.outputLength = layer.getOutputLength();
+        this.inputLength = layer.getInputLength();
+        final double[] w = layer.getParams().getArray().v;
+        double[] rows = new double[outputLength * inputLength];
+        for (int i = 0, ibase = 0; i < outputLength; ++i, ibase += inputLength)
+        {
+            for (int j = 0; j < inputLength; ++j)
+            {
+                rows[ibase + j] = w[j * outputLength + i];
+            }
+        }
+        init(rows, layer.getBiasParams());
+    }
+
+    private void init(double[] rows, double[] biases)
+    {
+        quantizeWeights(rows, outputLength);
+        this.biases = biases.clone();
+        output = new Tensor(outputLength);
+    }
+
+    @Override
+    public Tensor forward(Tensor x)
+    {
+        // A layer loaded from a model only has its sizes until now
+        if (output == null)
+        {
+            output = new Tensor(outputLength);
+        }
+        if (x.size() != inputLength)
+        {
+            throw new IllegalArgumentException("Expected an input of length " + inputLength + ", got " + x.size());
+        }
+        final byte[] q = quantizeInput(x);
+        final byte[] w = quantizedWeights;
+        final double[] oA = output.getArray().v;
+        for (int i = 0, ibase = 0; i < outputLength; ++i, ibase += inputLength)
+        {
+            int acc = 0;
+            for (int j = 0; j < inputLength; ++j)
+            {
+                acc += w[ibase + j] * q[j];
+            }
+            oA[i] = biases[i] + acc * scales[i] * inputScale;
+        }
+        return output;
+    }
+
+    public int getOutputLength()
+    {
+        return outputLength;
+    }
+
+    public void setOutputLength(Integer outputLength)
+    {
+        this.outputLength = outputLength;
+    }
+
+    public int getInputLength()
+    {
+        return inputLength;
+    }
+
+    public void setInputLength(Integer inputLength)
+    {
+        this.inputLength = inputLength;
+    }
+}
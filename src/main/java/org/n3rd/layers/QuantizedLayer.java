@@ -0,0 +1,187 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+import java.util.ArrayList;
+
+/**
+ * Base for the int8 versions of the fully connected and convolutional layers, made from a trained layer by
+ * {@link org.n3rd.Quantizer}.
+ *
+ * The weights for each output (or each feature map) are scaled to fit in [-127, 127] with a scale of their own, so a
+ * channel with small weights doesnt lose all of its precision to one with big weights.  The input is scaled the same
+ * way, but with a single scale for the whole input, calibrated on a sample of real inputs.  The dot products are then
+ * summed up in ints, and only the sum is scaled back, by the weight scale times the input scale, before adding the
+ * bias.
+ *
+ * The input scale is per tensor, not per channel, on purpose.  A dot product runs across the input channels, so with
+ * a scale for each of them, every product would need scaling before it could be summed, and the sum would no longer
+ * be a plain int dot product.  Since the weight scale is per output, it factors out of the sum either way
+ *
+ * The weights are an eighth of the size of the doubles they came from.  These layers only score: there are no
+ * gradients, and no parameters to train, so back prop throws
+ *
+ * @author dpressel
+ */
+public abstract class QuantizedLayer extends AbstractLayer
+{
+    public static final int QMAX = 127;
+
+    protected byte[] quantizedWeights;
+    protected double[] scales;
+    protected double inputScale = 1.;
+
+    // The quantized input
+    protected byte[] qx = new byte[0];
+
+    /**
+     * Quantize the weights, a channel at a time
+     *
+     * @param weights The weights, with each channel's weights contiguous
+     * @param numChannels The number of channels
+     */
+    protected void quantizeWeights(double[] weights, int numChannels)
+    {
+        final int channelSz = weights.length / numChannels;
+        if (channelSz > Integer.MAX_VALUE / (QMAX * QMAX))
+        {
+            throw new IllegalArgumentException("Too many weights per channel to sum in an int: " + channelSz);
+        }
+        quantizedWeights = new byte[weights.length];
+        scales = new double[numChannels];
+        for (int c = 0, base = 0; c < numChannels; ++c, base += channelSz)
+        {
+            double mx = 0.;
+            for (int i = 0; i < channelSz; ++i)
+            {
+                mx = Math.max(mx, Math.abs(weights[base + i]));
+            }
+            scales[c] = mx > 0. ? mx / QMAX : 1.;
+            quantize(weights, base, channelSz, 1. / scales[c], quantizedWeights, base);
+        }
+    }
+
+    /**
+     * Set the input scale from the largest input seen during calibration
+     *
+     * @param maxInput The largest absolute value of any input
+     */
+    public void calibrate(double maxInput)
+    {
+        inputScale = maxInput > 0. ? maxInput / QMAX : 1.;
+    }
+
+    /**
+     * Quantize some values, rounding to the nearest step, and clipping to [-127, 127]
+     */
+    static void quantize(double[] x, int x0, int sz, double invScale, byte[] q, int q0)
+    {
+        for (int i = 0; i < sz; ++i)
+        {
+            final long v = Math.round(x[x0 + i] * invScale);
+            q[q0 + i] = (byte) Math.max(-QMAX, Math.min(QMAX, v));
+        }
+    }
+
+    /**
+     * Quantize the input into our workspace
+     *
+     * @param z The input
+     * @return The quantized input, which may be longer than the input
+     */
+    protected byte[] quantizeInput(Tensor z)
+    {
+        final int sz = z.size();
+        if (qx.length < sz)
+        {
+            qx = new byte[sz];
+        }
+        quantize(z.getArray().v, 0, sz, 1. / inputScale, qx, 0);
+        return qx;
+    }
+
+    @Override
+    public Tensor backward(Tensor chainGrad, double y)
+    {
+        throw new UnsupportedOperationException("Quantized layers only score");
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        throw new UnsupportedOperationException("Quantized layers only score");
+    }
+
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        qx = new byte[qx.length];
+    }
+
+    public byte[] getQuantizedWeights()
+    {
+        return quantizedWeights;
+    }
+
+    public void setQuantizedWeights(byte[] quantizedWeights)
+    {
+        this.quantizedWeights = quantizedWeights;
+    }
+
+    // From JSON
+    public void setQuantizedWeights(ArrayList<Integer> quantizedWeights)
+    {
+        byte[] q = new byte[quantizedWeights.size()];
+        for (int i = 0; i < q.length; ++i)
+        {
+            q[i] = quantizedWeights.get(i).byteValue();
+        }
+        setQuantizedWeights(q);
+    }
+
+    public double[] getScales()
+    {
+        return scales;
+    }
+
+    public void setScales(double[] scales)
+    {
+        this.scales = scales;
+    }
+
+    public void setScales(ArrayList<Double> scales)
+    {
+        double[] s = new double[scales.size()];
+        for (int i = 0; i < s.length; ++i)
+        {
+            s[i] = scales.get(i);
+        }
+        setScales(s);
+    }
+
+    public double getInputScale()
+    {
+        return inputScale;
+    }
+
+    public void setInputScale(Double inputScale)
+    {
+        this.inputScale = inputScale;
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+    }
+
+    public void setBiasParams(ArrayList<Double> biasParams)
+    {
+        double[] b = new double[biasParams.size()];
+        for (int i = 0; i < b.length; ++i)
+        {
+            b[i] = biasParams.get(i);
+        }
+        setBiasParams(b);
+    }
+}
@@ -0,0 +1,271 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+/**
+ * An int8 2D convolution (really a cross-correlation, like the others), with a weight scale for each kernel (see
+ * {@link QuantizedLayer}).  This covers both the dense layer, and the unrolled one with its strides, padding and
+ * dilation.  The weights are kept a kernel at a time, kL x kH x kW
+ *
+ * @author dpressel
+ */
+public class QuantizedSpatialConvolutionalLayer extends QuantizedLayer
+{
+    private int nK;
+    private int kL;
+    private int kH;
+    private int kW;
+    private int iH;
+    private int iW;
+    private int strideH = 1;
+    private int strideW = 1;
+    private int padH;
+    private int padW;
+    private int dilationH = 1;
+    private int dilationW = 1;
+
+    /**
+     * Empty constructor (for reincarnating models)
+     */
+    public QuantizedSpatialConvolutionalLayer()
+    {
+
+    }
+
+    /**
+     * Quantize a trained layer
+     *
+     * @param layer The layer, with weights nK x kL x kH x kW
+     */
+    public QuantizedSpatialConvolutionalLayer(SpatialConvolutionalLayer layer)
+    {
+        final Tensor w = layer.getParams();
+        final int[] inputDims = layer.getInputDims();
+        this.nK = w.dims[0];
+        this.kL = w.dims[1];
+        this.kH = w.dims[2];
+        this.kW = w.dims[3];
+        this.iH = inputDims[inputDims.length - 2];
+        this.iW = inputDims[inputDims.length - 1];
+        double[] kernels = new double[w.size()];
+        for (int i = 0; i < kernels.length; ++i)
+        {
+            kernels[i] = w.at(i);
+        }
+        init(kernels, layer.getBiasParams());
+    }
+
+    /**
+     * Quantize a trained layer
+     *
+     * @param layer The layer, with weights (kL x kH x kW) x nK, so each kernel is already contiguous
+     */
+    public QuantizedSpatialConvolutionalLayer(SpatialConvolutionalLayerBlas layer)
+    {
+        this.nK = layer.getParams().dims[1];
+        this.kL = layer.getKL();
+        this.kH = layer.getKH();
+        this.kW = layer.getKW();
+        this.iH = layer.getIH();
+        this.iW = layer.getIW();
+        this.strideH = layer.getStrideH();
+        this.strideW = layer.getStrideW();
+        this.padH = layer.getPadH();
+        this.padW = layer.getPadW();
+        this.dilationH = layer.getDilationH();
+        this.dilationW = layer.getDilationW();
+        init(layer.getParams().getArray().v.clone(), layer.getBiasParams());
+    }
+
+    private void init(double[] kernels, double[] biases)
+    {
+        quantizeWeights(kernels, nK);
+        this.biases = biases.clone();
+        output = new Tensor(nK, outputHeight(), outputWidth());
+    }
+
+    private int outputHeight()
+    {
+        return (iH + 2 * padH - dilationH * (kH - 1) - 1) / strideH + 1;
+    }
+
+    private int outputWidth()
+    {
+        return (iW + 2 * padW - dilationW * (kW - 1) - 1) / strideW + 1;
+    }
+
+    @Override
+    public Tensor forward(Tensor x)
+    {
+        // A layer loaded from a model only has its geometry until now
+        if (output == null)
+        {
+            output = new Tensor(nK, outputHeight(), outputWidth());
+        }
+        final byte[] q = quantizeInput(x);
+        final byte[] w = quantizedWeights;
+        final int oH = output.dims[1];
+        final int oW = output.dims[2];
+        final int kSz = kL * kH * kW;
+        final double[] oA = output.getArray().v;
+
+        for (int k = 0; k < nK; ++k)
+        {
+            final int kbase = k * kSz;
+            final double scale = scales[k] * inputScale;
+            for (int i = 0; i < oH; ++i)
+            {
+                final int y0 = i * strideH - padH;
+                for (int j = 0; j < oW; ++j)
+                {
+                    final int x0 = j * strideW - padW;
+                    int acc = 0;
+                    for (int l = 0; l < kL; ++l)
+                    {
+                        for (int m = 0; m < kH; ++m)
+                        {
+                            final int y = y0 + m * dilationH;
+                            // Anything outside of the input is padding, which is zero, and adds nothing
+                            if (y < 0 || y >= iH)
+                            {
+                                continue;
+                            }
+                            final int xbase = (l * iH + y) * iW;
+                            final int wbase = kbase + (l * kH + m) * kW;
+                            for (int n = 0; n < kW; ++n)
+                            {
+                                final int xx = x0 + n * dilationW;
+                                if (xx >= 0 && xx < iW)
+                                {
+                                    acc += w[wbase + n] * q[xbase + xx];
+                                }
+                            }
+                        }
+                    }
+                    oA[(k * oH + i) * oW + j] = biases[k] + acc * scale;
+                }
+            }
+        }
+        return output;
+    }
+
+    public int getNK()
+    {
+        return nK;
+    }
+
+    public void setNK(Integer nK)
+    {
+        this.nK = nK;
+    }
+
+    public int getKL()
+    {
+        return kL;
+    }
+
+    public void setKL(Integer kL)
+    {
+        this.kL = kL;
+    }
+
+    public int getKH()
+    {
+        return kH;
+    }
+
+    public void setKH(Integer kH)
+    {
+        this.kH = kH;
+    }
+
+    public int getKW()
+    {
+        return kW;
+    }
+
+    public void setKW(Integer kW)
+    {
+        this.kW = kW;
+    }
+
+    public int getIH()
+    {
+        return iH;
+    }
+
+    public void setIH(Integer iH)
+    {
+        this.iH = iH;
+    }
+
+    public int getIW()
+    {
+        return iW;
+    }
+
+    public void setIW(Integer iW)
+    {
+        this.iW = iW;
+    }
+
+    public int getStrideH()
+    {
+        return strideH;
+    }
+
+    public void setStrideH(Integer strideH)
+    {
+        this.strideH = strideH;
+    }
+
+    public int getStrideW()
+    {
+        return strideW;
+    }
+
+    public void setStrideW(Integer strideW)
+    {
+        this.strideW = strideW;
+    }
+
+    public int getPadH()
+    {
+        return padH;
+    }
+
+    public void setPadH(Integer padH)
+    {
+        this.padH = padH;
+    }
+
+    public int getPadW()
+    {
+        return padW;
+    }
+
+    public void setPadW(Integer padW)
+    {
+        this.padW = padW;
+    }
+
+    public int getDilationH()
+    {
+        return dilationH;
+    }
+
+    public void setDilationH(Integer dilationH)
+    {
+        this.dilationH = dilationH;
+    }
+
+    public int getDilationW()
+    {
+        return dilationW;
+    }
+
+    public void setDilationW(Integer dilationW)
+    {
+        this.dilationW = dilationW;
+    }
+}
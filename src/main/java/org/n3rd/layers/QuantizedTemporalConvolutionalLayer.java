@@ -0,0 +1,149 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+/**
+ * An int8 temporal convolution (a cross-correlation, like the others), with a weight scale for each kernel (see
+ * {@link QuantizedLayer}).  This covers both the layer that filters each embedding row on its own, and the unrolled
+ * one, which is the same thing with an embedding size of 1.  The weights are kept a kernel at a time,
+ * kL x embeddingSz x kW, and the output is nK x embeddingSz x (numFrames - kW + 1)
+ *
+ * @author dpressel
+ */
+public class QuantizedTemporalConvolutionalLayer extends QuantizedLayer
+{
+    private int nK;
+    private int kL;
+    private int kW;
+    private int embeddingSz = 1;
+
+    /**
+     * Empty constructor (for reincarnating models)
+     */
+    public QuantizedTemporalConvolutionalLayer()
+    {
+
+    }
+
+    /**
+     * Quantize a trained layer
+     *
+     * @param layer The layer, with weights nK x kL x embeddingSz x kW
+     */
+    public QuantizedTemporalConvolutionalLayer(TemporalConvolutionalLayer layer)
+    {
+        final Tensor w = layer.getParams();
+        this.nK = w.dims[0];
+        this.kL = w.dims[1];
+        this.embeddingSz = w.dims[2];
+        this.kW = w.dims[3];
+        double[] kernels = new double[w.size()];
+        for (int i = 0; i < kernels.length; ++i)
+        {
+            kernels[i] = w.at(i);
+        }
+        init(kernels, layer.getBiasParams());
+    }
+
+    /**
+     * Quantize a trained layer
+     *
+     * @param layer The layer, with weights (kL x kW) x nK, so each kernel is already contiguous
+     */
+    public QuantizedTemporalConvolutionalLayer(TemporalConvolutionalLayerBlas layer)
+    {
+        this.nK = layer.getParams().dims[1];
+        this.kL = layer.getKL();
+        this.kW = layer.getKW();
+        init(layer.getParams().getArray().v.clone(), layer.getBiasParams());
+    }
+
+    private void init(double[] kernels, double[] biases)
+    {
+        quantizeWeights(kernels, nK);
+        this.biases = biases.clone();
+        output = new Tensor(1);
+    }
+
+    @Override
+    public Tensor forward(Tensor x)
+    {
+        // A layer loaded from a model only has its sizes until now
+        if (output == null)
+        {
+            output = new Tensor(1);
+        }
+        final int numFrames = x.size() / embeddingSz / kL;
+        final int oT = numFrames - kW + 1;
+        output.resize(nK, embeddingSz, oT);
+
+        final byte[] q = quantizeInput(x);
+        final byte[] w = quantizedWeights;
+        final int kSz = kL * embeddingSz * kW;
+        final double[] oA = output.getArray().v;
+
+        for (int k = 0; k < nK; ++k)
+        {
+            final double scale = scales[k] * inputScale;
+            for (int e = 0; e < embeddingSz; ++e)
+            {
+                final int obase = (k * embeddingSz + e) * oT;
+                for (int t = 0; t < oT; ++t)
+                {
+                    int acc = 0;
+                    for (int l = 0; l < kL; ++l)
+                    {
+                        final int xbase = (l * embeddingSz + e) * numFrames + t;
+                        final int wbase = k * kSz + (l * embeddingSz + e) * kW;
+                        for (int n = 0; n < kW; ++n)
+                        {
+                            acc += w[wbase + n] * q[xbase + n];
+                        }
+                    }
+                    oA[obase + t] = biases[k] + acc * scale;
+                }
+            }
+        }
+        return output;
+    }
+
+    public int getNK()
+    {
+        return nK;
+    }
+
+    public void setNK(Integer nK)
+    {
+        this.nK = nK;
+    }
+
+    public int getKL()
+    {
+        return kL;
+    }
+
+    public void setKL(Integer kL)
+    {
+        this.kL = kL;
+    }
+
+    public int getKW()
+    {
+        return kW;
+    }
+
+    public void setKW(Integer kW)
+    {
+        this.kW = kW;
+    }
+
+    public int getEmbeddingSz()
+    {
+        return embeddingSz;
+    }
+
+    public void setEmbeddingSz(Integer embeddingSz)
+    {
+        this.embeddingSz = embeddingSz;
+    }
+}
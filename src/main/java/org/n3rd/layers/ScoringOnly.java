@@ -0,0 +1,16 @@
+package org.n3rd.layers;
+
+/**
+ * A layer that can give up the state it only keeps for back prop, once it will never be trained again.  The gradient
+ * buffers are the size of the weights (or the input), so a layer that only scores is a lot smaller without them.
+ *
+ * See {@link org.n3rd.CompiledModel}
+ */
+public interface ScoringOnly
+{
+    /**
+     * Free the gradients, and anything else only used by back prop.  Forward prop still works, and back prop no
+     * longer does
+     */
+    void releaseTrainingState();
+}
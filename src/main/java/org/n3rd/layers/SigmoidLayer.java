@@ -27,7 +27,10 @@ public class SigmoidLayer extends AbstractLayer
     {
         final int sz = z.size();
         output.resize(sz);
-        grads.resize(sz);
+        if (grads != null)
+        {
+            grads.resize(sz);
+        }
         ArrayDouble oA = output.getArray();
 
         for (int i = 0; i < sz; ++i)
@@ -52,4 +55,23 @@ public class SigmoidLayer extends AbstractLayer
         return grads;
     }
 
+    @Override
+    public Tensor forwardBatch(Tensor z)
+    {
+        // Pointwise, so the whole batch goes through in one pass
+        forward(z);
+        output.resize(z.dims);
+        if (grads != null)
+        {
+            grads.resize(z.dims);
+        }
+        return output;
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        return backward(chainGrad, 0.);
+    }
+
 }
@@ -0,0 +1,39 @@
+package org.n3rd.layers;
+
+/**
+ * A layer that keeps track of which of its weight gradients can be non-zero, so that a sparse update (see
+ * {@link org.n3rd.ops.AdagradUpdate}) only has to visit those, rather than look at every gradient to find them.  For
+ * a fully connected layer over a sparse input, that is only the columns for the non-zero inputs.
+ *
+ * The layer only knows about the gradients from its own back prop.  If they are changed some other way, anything
+ * adding to them has to merge in where they came from, or the layer has to be told it doesn't know any more.
+ */
+public interface SparseGradients
+{
+    /**
+     * How many of the weight gradients may be non-zero since they were last cleared
+     *
+     * @return The number of them, or -1 if the layer doesn't know, and all of them have to be looked at
+     */
+    int numTouchedParams();
+
+    /**
+     * Which of the weight gradients may be non-zero, each once and in no particular order.  Everything else is zero
+     *
+     * @param indices Where to put them, which must have room for {@link #numTouchedParams()} of them
+     */
+    void touchedParams(int[] indices);
+
+    /**
+     * Forget which weight gradients were touched, once the update has used them, and zeroed the gradients
+     */
+    void clearTouchedParams();
+
+    /**
+     * Add another layer's touched weights to these, once its gradients have been added to these
+     *
+     * @param other The layer the gradients came from, or null if they came from somewhere else, in which case this
+     *              layer no longer knows which of its gradients are non-zero
+     */
+    void mergeTouchedParams(Layer other);
+}
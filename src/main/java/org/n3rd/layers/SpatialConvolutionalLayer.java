@@ -16,24 +16,44 @@ import java.util.LinkedHashMap;
  *
  * @author dpressel
  */
-public class SpatialConvolutionalLayer extends AbstractLayer
+public class SpatialConvolutionalLayer extends AbstractLayer implements OffHeapCapable
 {
     // Cube represents multiple feature maps for this layer
     Tensor input;
+    int[] inputDims;
 
     public void setParams(LinkedHashMap<String, Object> params)
     {
-        this.weights = new Tensor(params);
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The gradient and accumulator buffers are allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
     }
 
     public void setBiasParams(ArrayList<Double> biasParams)
     {
         int sz = biasParams.size();
-        biases = new double[sz];
+        double[] b = new double[sz];
         for (int i = 0; i < sz; ++i)
         {
-            biases[i] = biasParams.get(i);
+            b[i] = biasParams.get(i);
         }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
     }
 
     public SpatialConvolutionalLayer()
@@ -47,6 +67,9 @@ public class SpatialConvolutionalLayer extends AbstractLayer
         final int iH = inputDims[1];
         final int iW = inputDims[2];
 
+        this.inputDims = new int[inputDims.length];
+        System.arraycopy(inputDims, 0, this.inputDims, 0, inputDims.length);
+
         // For now, let this just be a pointer to input
         input = new Tensor(inputDims);
 
@@ -82,8 +105,16 @@ public class SpatialConvolutionalLayer extends AbstractLayer
         //input = z;
         try
         {
+            // A layer loaded from a model only has its weights until now
+            if (output == null)
+            {
+                input = new Tensor(inputDims);
+                grads = new Tensor(inputDims);
+                output = new Tensor(weights.dims[0], inputDims[1] - weights.dims[2] + 1,
+                        inputDims[2] - weights.dims[3] + 1);
+            }
             z.copyTo(input);
-            input.reshape(grads.dims);
+            input.reshape(inputDims);
             FilterOps.corr2(input, weights, biases, output);
             return output;
         }
@@ -127,15 +158,16 @@ public class SpatialConvolutionalLayer extends AbstractLayer
 
             // This is correct, we know that the gradient of the weights is checking out
             FilterOps.corr2Weights(input, chainGrad, gradsW);
-/*
+
+            // Each bias is added to every pixel of its output feature map
+            final int oSz = oH * oW;
             for (int l = 0; l < nK; ++l)
             {
-                for (int i = 0, sz = chainGrad.size(); i < sz; ++i)
+                for (int i = 0; i < oSz; ++i)
                 {
-                    this.biasGrads[l] += chainGrad.at(i);
+                    this.biasGrads[l] += chainGrad.at(l * oSz + i);
                 }
             }
-*/
             //// GRADIENT CHECK
             ///gradCheck(chainGrad.getArray());
             ///gradCheckX(chainGrad.getArray());
@@ -245,4 +277,24 @@ public class SpatialConvolutionalLayer extends AbstractLayer
         }
     }
 
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        input = input == null ? null : new Tensor(input);
+    }
+
+    public int[] getInputDims()
+    {
+        return inputDims;
+    }
+
+    public void setInputDims(Integer[] inputDims)
+    {
+        this.inputDims = new int[inputDims.length];
+        for (int i = 0; i < inputDims.length; ++i)
+        {
+            this.inputDims[i] = inputDims[i];
+        }
+    }
 }
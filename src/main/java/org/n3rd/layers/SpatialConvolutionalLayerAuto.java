@@ -0,0 +1,128 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+import java.util.Arrays;
+
+/**
+ * Spatial convolution that picks whichever of {@link SpatialConvolutionalLayer}, {@link SpatialConvolutionalLayerBlas},
+ * {@link SpatialConvolutionalLayerFFT} and {@link SpatialConvolutionalLayerWinograd} is fastest for its shape (see
+ * {@link ConvolutionAutotuner}).
+ *
+ * The unrolled BLAS version usually wins, but for a single input feature map and few, small kernels, unrolling can
+ * cost more than it saves, for small square kernels Winograd can win, and for big kernels the FFT can win.  The input
+ * size is fixed, so the choice is only made once per layer shape.
+ *
+ * The weights are kept the way SpatialConvolutionalLayer keeps them, nK x kL x kH x kW, which in memory is the same
+ * as the (kL * kH * kW) x nK column-major matrix the BLAS version uses, so both can share them.
+ *
+ * @author dpressel
+ */
+public class SpatialConvolutionalLayerAuto extends AutotunedConvolutionalLayer
+{
+    public static final String DIRECT = "direct";
+    public static final String BLAS = "blas";
+    public static final String FFT = "fft";
+    public static final String WINOGRAD = "winograd";
+
+    private static final String[] ALGORITHMS = { DIRECT, BLAS, FFT, WINOGRAD };
+
+    int[] inputDims;
+
+    public SpatialConvolutionalLayerAuto()
+    {
+
+    }
+
+    public SpatialConvolutionalLayerAuto(int nK, int kH, int kW, int... inputDims)
+    {
+        final int kL = inputDims.length == 3 ? inputDims[0] : 1;
+        final int iH = inputDims.length == 3 ? inputDims[1] : inputDims[0];
+        final int iW = inputDims.length == 3 ? inputDims[2] : inputDims[1];
+        this.inputDims = new int[] { kL, iH, iW };
+
+        weights = new Tensor(nK, kL, kH, kW);
+        weightAccum = new Tensor(nK, kL, kH, kW);
+        gradsW = new Tensor(nK, kL, kH, kW);
+        biases = new double[nK];
+        biasGrads = new double[nK];
+
+        double stdv = 1. / Math.sqrt(iH * iW);
+        for (int i = 0, sz = weights.size(); i < sz; ++i)
+        {
+            weights.set(i, Math.random() * 2 * stdv - stdv);
+        }
+    }
+
+    @Override
+    protected String[] algorithms()
+    {
+        // Winograd only does square kernels
+        final boolean square = weights.dims[2] == weights.dims[3];
+        return Arrays.copyOf(ALGORITHMS, square ? ALGORITHMS.length : ALGORITHMS.length - 1);
+    }
+
+    @Override
+    protected String shape(int inputSz)
+    {
+        return "spatial,nK=" + weights.dims[0] + ",kL=" + inputDims[0] + ",kH=" + weights.dims[2] +
+                ",kW=" + weights.dims[3] + ",iH=" + inputDims[1] + ",iW=" + inputDims[2];
+    }
+
+    @Override
+    protected Layer newBackend(String algorithm, boolean share)
+    {
+        if (DIRECT.equals(algorithm))
+        {
+            // Its workspace is allocated on the first forward
+            SpatialConvolutionalLayer layer = new SpatialConvolutionalLayer();
+            layer.inputDims = Arrays.copyOf(inputDims, inputDims.length);
+            return bind(layer, share);
+        }
+        if (BLAS.equals(algorithm))
+        {
+            final int nK = weights.dims[0];
+            final int unrolledSz = weights.size() / nK;
+            SpatialConvolutionalLayerBlas layer = new SpatialConvolutionalLayerBlas();
+            layer.nK = nK;
+            layer.kL = inputDims[0];
+            layer.kH = weights.dims[2];
+            layer.kW = weights.dims[3];
+            layer.iH = inputDims[1];
+            layer.iW = inputDims[2];
+            layer.weights = (share ? weights : new Tensor(weights)).view(unrolledSz, nK);
+            layer.weightAccum = (share ? weightAccum : new Tensor(weightAccum.dims)).view(unrolledSz, nK);
+            layer.gradsW = (share ? gradsW : new Tensor(gradsW.dims)).view(unrolledSz, nK);
+            layer.biases = share ? biases : Arrays.copyOf(biases, biases.length);
+            layer.biasGrads = share ? biasGrads : new double[biasGrads.length];
+            return layer;
+        }
+        if (FFT.equals(algorithm))
+        {
+            SpatialConvolutionalLayerFFT layer = new SpatialConvolutionalLayerFFT();
+            layer.inputDims = Arrays.copyOf(inputDims, inputDims.length);
+            return bind(layer, share);
+        }
+        if (WINOGRAD.equals(algorithm))
+        {
+            SpatialConvolutionalLayerWinograd layer = new SpatialConvolutionalLayerWinograd();
+            layer.inputDims = Arrays.copyOf(inputDims, inputDims.length);
+            return bind(layer, share);
+        }
+        throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+    }
+
+    public int[] getInputDims()
+    {
+        return inputDims;
+    }
+
+    public void setInputDims(Integer[] inputDims)
+    {
+        this.inputDims = new int[inputDims.length];
+        for (int i = 0; i < inputDims.length; ++i)
+        {
+            this.inputDims[i] = inputDims[i];
+        }
+    }
+}
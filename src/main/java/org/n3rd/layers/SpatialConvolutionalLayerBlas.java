@@ -1,14 +1,27 @@
 package org.n3rd.layers;
 
-import org.jblas.NativeBlas;
 import org.n3rd.Tensor;
-import org.sgdtk.ArrayDouble;
+import org.n3rd.ops.Blas;
+import org.n3rd.ops.ConvolutionWorkspace;
+import org.n3rd.ops.Im2Col;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 
 
-public class SpatialConvolutionalLayerBlas implements Layer
+/**
+ * Spatial convolution as a matrix multiply.  The input is unrolled (see {@link Im2Col}) into a matrix with a row for
+ * each output pixel and a column for each kernel tap, and multiplied by the (kL * kH * kW) x nK weights.
+ *
+ * The convolution can have a stride, zero-padding and dilation in each direction, which all default to a plain
+ * "valid" convolution.  Padding is done while unrolling, so the input never has to be embedded in a bigger one.
+ *
+ * The unrolled matrices live in the thread's shared {@link ConvolutionWorkspace}, not in the layer.  The layer keeps
+ * a copy of its input and unrolls it again for back prop, which costs a little time, but keeps only one unrolled
+ * matrix per thread rather than one per layer.
+ */
+public class SpatialConvolutionalLayerBlas implements Layer, ScoringOnly, Cloneable
 {
 
     Tensor gradsW;
@@ -22,14 +35,30 @@ public class SpatialConvolutionalLayerBlas implements Layer
     int kW;
     int iH;
     int iW;
+    int strideH = 1;
+    int strideW = 1;
+    int padH = 0;
+    int padW = 0;
+    int dilationH = 1;
+    int dilationW = 1;
 
     Tensor weights;
 
-    // Input is Number of frames x frame width (num feature maps)
-    Tensor unwrappedInput;
-    Tensor unwrappedGradInput;
+    // The last input, which is unrolled again on the way back
+    Tensor input;
     Tensor output;
 
+    // Once the layer only scores, the input isnt kept
+    boolean released;
+
+    // Mini-batch workspace
+    Tensor batchInput;
+    Tensor batchProduct;
+    Tensor batchOutput;
+    Tensor batchGrads;
+
+    private Im2Col im2col;
+
     @Override
     public Tensor getWeightAccum()
     {
@@ -49,6 +78,26 @@ public class SpatialConvolutionalLayerBlas implements Layer
     }
 
     public SpatialConvolutionalLayerBlas(int nK, int kH, int kW, int... inputDims)
+    {
+        this(nK, kH, kW, 1, 1, 0, 0, 1, 1, inputDims);
+    }
+
+    /**
+     * A convolution with a stride, zero-padding and dilation
+     *
+     * @param nK The number of kernels
+     * @param kH The kernel height
+     * @param kW The kernel width
+     * @param strideH The distance between output rows, in input rows
+     * @param strideW The distance between output columns, in input columns
+     * @param padH The zeros added above and below
+     * @param padW The zeros added to the left and right
+     * @param dilationH The distance between kernel rows, in input rows
+     * @param dilationW The distance between kernel columns, in input columns
+     * @param inputDims The input dimensions, kL x iH x iW, or iH x iW for a single feature map
+     */
+    public SpatialConvolutionalLayerBlas(int nK, int kH, int kW, int strideH, int strideW, int padH, int padW,
+                                         int dilationH, int dilationW, int[] inputDims)
     {
 
         this.nK = nK;
@@ -57,15 +106,14 @@ public class SpatialConvolutionalLayerBlas implements Layer
         this.kW = kW;
         this.iH = inputDims.length == 3 ? inputDims[1]: inputDims[0];
         this.iW = inputDims.length == 3 ? inputDims[2]: inputDims[1];
+        this.strideH = strideH;
+        this.strideW = strideW;
+        this.padH = padH;
+        this.padW = padW;
+        this.dilationH = dilationH;
+        this.dilationW = dilationW;
         // For each kernel, randomly initialize all weights
-        output  = new Tensor( nK, iH - kH + 1, iW - kW + 1);
-        grads = new Tensor(kL, iH, iW);
-
-
-
-        // The unwrapped input is tap-unrolled with a width that is kH * kW * nK, and a height that is the number of lags
-        unwrappedInput = new Tensor(output.dims[1]*output.dims[2], kH * kW * kL);
-        unwrappedGradInput = new Tensor(unwrappedInput.dims);
+        newWorkspace();
         weights = new Tensor(kL * kH * kW, nK);
         weightAccum = new Tensor(kL * kH * kW, nK);
         gradsW = new Tensor(kL * kH * kW, nK);
@@ -78,164 +126,284 @@ public class SpatialConvolutionalLayerBlas implements Layer
         }
     }
 
+    /**
+     * The unrolling for this layer's geometry
+     *
+     * @return The unrolling
+     */
+    Im2Col geometry()
+    {
+        if (im2col == null)
+        {
+            im2col = new Im2Col(kL, iH, iW, kH, kW, strideH, strideW, padH, padW, dilationH, dilationW);
+        }
+        return im2col;
+    }
+
+    // The output size depends on the geometry, so the workspace is reallocated on the next forward
+    private void geometryChanged()
+    {
+        im2col = null;
+        output = null;
+    }
+
+    // Allocate the activations and gradients.  This is also done lazily, for a layer that has been loaded from a model
+    private void newWorkspace()
+    {
+        final Im2Col g = geometry();
+        output = new Tensor(nK, g.oH, g.oW);
+        grads = new Tensor(kL, iH, iW);
+        input = new Tensor(kL, iH, iW);
+    }
+
     public double rand()
     {
-        double stdv = 1. / Math.sqrt(grads.dims[1] * grads.dims[2]);
+        double stdv = 1. / Math.sqrt(iH * iW);
         //double stdv = 1. / Math.sqrt(grads.dims[1] * weights.dims[2] * weights.dims[3]);
         double stdv2 = stdv * 2;
         return Math.random() * stdv2 - stdv;
     }
 
-    private void unwrapInput(ArrayDouble x)
+    @Override
+    public Tensor forward(Tensor z)
     {
+        if (output == null)
+        {
+            newWorkspace();
+        }
+        final Im2Col g = geometry();
+        final int rows = g.rows();
+        final int cols = g.cols();
 
+        final double[] xA = z.getArray().v;
+        if (!released)
+        {
+            System.arraycopy(xA, 0, input.getArray().v, 0, input.size());
+        }
 
-        int z = 0;
-
-        final int oH = iH - kH + 1;
-        final int oW = iW - kW + 1;
+        final double[] uA = ConvolutionWorkspace.get().columns(rows * cols);
+        g.unwrap(xA, 0, uA, rows, 0);
 
-        for (int k = 0; k < kL; ++k)
+        final double[] oA = output.getArray().v;
+        for (int l = 0; l < nK; ++l)
         {
-
-            for (int m = 0; m < kH; ++m)
-            {
-                for (int n = 0; n < kW; ++n)
-                {
-                    // Cycle all taps at each kernel?
-                    for (int i = 0; i < oH; ++i)
-                    {
-                        for (int j = 0; j < oW; ++j)
-                        {
-                            // This is then image(k, i + m, j + n)
-                            int offset = (k * iH + i + m) * iW + j + n;
-                            unwrappedInput.set(z, x.at(offset));
-                            ++z;
-                        }
-                    }
-                }
-            }
+            Arrays.fill(oA, l * rows, (l + 1) * rows, biases[l]);
         }
 
+        Blas.getInstance().dgemm('N', 'N', rows, nK, cols, 1.0, uA, 0, rows, weights.getArray().v, 0, cols, 1., oA, 0,
+                rows);
+
+        return output;
+
     }
 
-    private void wrapGrad(Tensor unwrapped)
+    @Override
+    public Tensor backward(Tensor chainGrad, double y)
     {
 
-        final int oH = iH - kH + 1;
-        final int oW = iW - kW + 1;
+        try
+        {
+            final Im2Col g = geometry();
+            final int rows = g.rows();
+            final int cols = g.cols();
+            chainGrad.reshape(nK, 1, rows);
+            final double[] cgA = chainGrad.getArray().v;
+
+            // The weight gradients need the unrolled input, and once they are done, the same space holds the
+            // unrolled input gradients
+            final double[] uA = ConvolutionWorkspace.get().columns(rows * cols);
+            g.unwrap(input.getArray().v, 0, uA, rows, 0);
 
+            Blas.getInstance().dgemm('T', 'N', cols, nK, rows, 1.0, uA, 0, rows, cgA, 0, rows, 0, gradsW.getArray().v,
+                    0, cols);
 
-        // In the blas case, we need to write in column major, which means write down one lag, then move up to the next
-        int z = 0;
-        for (int k = 0; k < kL; ++k)
-        {
-            for (int m = 0; m < kH; ++m)
+            Blas.getInstance().dgemm('N', 'T', rows, cols, nK, 1.0, cgA, 0, rows, weights.getArray().v, 0, cols, 0, uA,
+                    0, rows);
+
+            for (int l = 0; l < nK; ++l)
             {
-                for (int n = 0; n < kW; ++n)
+                for (int p = 0; p < rows; ++p)
                 {
-                    for (int i = 0; i < oH; ++i)
-                    {
-                        for (int j = 0; j < oW; ++j)
-                        {
-                            int offset = (k * iH + i + m) * iW + j + n;
-                            grads.addi(offset, unwrapped.get(z));
-                            z++;
-                        }
-                    }
-
+                    this.biasGrads[l] += cgA[l * rows + p];
                 }
             }
-        }
-
 
+            grads.constant(0.);
+            g.wrap(uA, rows, 0, grads.getArray().v, 0);
 
+            return grads;
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
     }
 
+    /**
+     * Forward prop over a whole batch.  Every example is unrolled into one tall matrix so the whole batch is a single
+     * GEMM against the weights, then the result is put back in (batch, feature map, row, col) order
+     *
+     * @param x A batch of inputs, batchSz x kL x iH x iW
+     * @return The batch of outputs, batchSz x nK x oH x oW
+     */
     @Override
-    public Tensor forward(Tensor z)
+    public Tensor forwardBatch(Tensor x)
     {
+        final Im2Col g = geometry();
+        final int batchSz = x.dims[0];
+        final int oSz = g.rows();
+        final int rows = batchSz * oSz;
+        final int cols = g.cols();
+        final int inputSz = kL * iH * iW;
+
+        if (batchOutput == null)
+        {
+            batchInput = new Tensor(1);
+            batchProduct = new Tensor(1);
+            batchOutput = new Tensor(1);
+            batchGrads = new Tensor(1);
+        }
+        batchInput.resize(batchSz, kL, iH, iW);
+        batchProduct.resize(rows, nK);
+        batchOutput.resize(batchSz, nK, g.oH, g.oW);
 
-        grads.constant(0.);
-
-        ArrayDouble input = z.getArray();
+        final double[] xA = batchInput.getArray().v;
+        System.arraycopy(x.getArray().v, 0, xA, 0, batchSz * inputSz);
 
-        unwrapInput(input);
+        final double[] uA = ConvolutionWorkspace.get().columns(rows * cols);
+        for (int b = 0; b < batchSz; ++b)
+        {
+            g.unwrap(xA, b * inputSz, uA, rows, b * oSz);
+        }
 
+        final double[] pA = batchProduct.getArray().v;
+        Blas.getInstance().dgemm('N', 'N', rows, nK, cols, 1.0, uA, 0, rows, weights.getArray().v, 0, cols, 0., pA, 0,
+                rows);
 
-        final int oH = iH - kH + 1;
-        final int oW = iW - kW + 1;
-        for (int l = 0; l < nK; ++l)
+        final double[] oA = batchOutput.getArray().v;
+        for (int b = 0; b < batchSz; ++b)
         {
-            for (int i = 0; i < oH; ++i)
+            for (int l = 0; l < nK; ++l)
             {
-                for (int j = 0; j < oW; ++j)
+                final int obase = (b * nK + l) * oSz;
+                final int pbase = l * rows + b * oSz;
+                final double bias = biases[l];
+                for (int p = 0; p < oSz; ++p)
                 {
-                    output.set((l * oH + i) * oW + j, biases[l]);
+                    oA[obase + p] = pA[pbase + p] + bias;
                 }
             }
         }
-
-        NativeBlas.dgemm('N', 'N', unwrappedInput.dims[0], weights.dims[1], unwrappedInput.dims[1], 1.0,
-                unwrappedInput.getArray().v, 0, unwrappedInput.dims[0],
-                weights.getArray().v, 0, weights.dims[0], 1., output.getArray().v, 0, unwrappedInput.dims[0]);
-
-        return output;
-
+        return batchOutput;
     }
 
+    /**
+     * Back prop over a whole batch.  The weight gradient GEMM runs over the full height of the unrolled batch, so
+     * it sums the gradients over every example for free
+     *
+     * @param chainGrad Deltas from above, batchSz x nK x oH x oW
+     * @param y Labels
+     * @return The deltas for this layer, batchSz x kL x iH x iW
+     */
     @Override
-    public Tensor backward(Tensor chainGrad, double y)
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
     {
-
-        try
+        final Im2Col g = geometry();
+        final int batchSz = batchOutput.dims[0];
+        final int oSz = g.rows();
+        final int rows = batchSz * oSz;
+        final int cols = g.cols();
+        final int inputSz = kL * iH * iW;
+
+        // Reorder the deltas to match the GEMM output, and sum up the bias deltas on the way
+        final double[] cgA = chainGrad.getArray().v;
+        final double[] pA = batchProduct.getArray().v;
+        for (int b = 0; b < batchSz; ++b)
         {
-
-            final int oH = iH - kH + 1;
-            final int oW = iW - kW + 1;
-            int[] outputDims = new int[]{nK, 1, oH * oW};
-            chainGrad.reshape(outputDims);
-
-            int m = outputDims[2];
-            int k = nK;
-            int n = weights.dims[0];
-
-            //unwrappedGradInput.constant(0.);
-            NativeBlas.dgemm('N', 'T', m, n, k, 1.0, chainGrad.getArray().v, 0, m,
-                    weights.getArray().v, 0, n, 0, unwrappedGradInput.getArray().v, 0, m);
-
-            m = unwrappedInput.dims[1];
-            k = unwrappedInput.dims[0];
-            n = nK;
-
-            ///gradsW.constant(0.);
-            NativeBlas.dgemm('T', 'N', m, n, k, 1.0, unwrappedInput.getArray().v, 0, k,
-                    chainGrad.getArray().v, 0, k, 0, gradsW.getArray().v, 0, m);
-
-            // We need to update gradsW, which are (kL * embeddingSize) * kW x (nK * embeddingSize);
-
-
             for (int l = 0; l < nK; ++l)
             {
-                for (int i = 0; i < oH; ++i)
+                final int cgbase = (b * nK + l) * oSz;
+                final int pbase = l * rows + b * oSz;
+                double acc = 0.;
+                for (int p = 0; p < oSz; ++p)
                 {
-                    for (int j = 0; j < oW; ++j)
-                    {
-                        this.biasGrads[l] += chainGrad.get( (l * oH + i) * oW + j);
-                    }
+                    final double cg = cgA[cgbase + p];
+                    pA[pbase + p] = cg;
+                    acc += cg;
                 }
-
+                biasGrads[l] += acc;
             }
+        }
 
+        final double[] xA = batchInput.getArray().v;
+        final double[] uA = ConvolutionWorkspace.get().columns(rows * cols);
+        for (int b = 0; b < batchSz; ++b)
+        {
+            g.unwrap(xA, b * inputSz, uA, rows, b * oSz);
+        }
 
-            wrapGrad(unwrappedGradInput);
+        Blas.getInstance().dgemm('T', 'N', cols, nK, rows, 1.0, uA, 0, rows, pA, 0, rows, 1.0, gradsW.getArray().v, 0,
+                cols);
+        Blas.getInstance().dgemm('N', 'T', rows, cols, nK, 1.0, pA, 0, rows, weights.getArray().v, 0, cols, 0., uA, 0,
+                rows);
 
-            return grads;
+        batchGrads.resize(batchSz, kL, iH, iW);
+        batchGrads.constant(0.);
+        final double[] gA = batchGrads.getArray().v;
+        for (int b = 0; b < batchSz; ++b)
+        {
+            g.wrap(uA, rows, b * oSz, gA, b * inputSz);
         }
-        catch (Exception ex)
+        return batchGrads;
+    }
+
+    @Override
+    public void releaseTrainingState()
+    {
+        released = true;
+        input = null;
+        grads = null;
+        gradsW = null;
+        biasGrads = null;
+        batchInput = batchProduct = null;
+        batchOutput = batchGrads = null;
+    }
+
+    /**
+     * Shallow copy, sharing weights, biases and accumulators, with a fresh workspace
+     *
+     * @return A replica of this layer sharing its parameters
+     */
+    @Override
+    public Layer replicate()
+    {
+        SpatialConvolutionalLayerBlas replica;
+        try
         {
-            throw new RuntimeException(ex);
+            replica = (SpatialConvolutionalLayerBlas) clone();
+        }
+        catch (CloneNotSupportedException cloneEx)
+        {
+            throw new RuntimeException(cloneEx);
         }
+        replica.output = output == null ? null : new Tensor(output.dims);
+        replica.grads = grads == null ? null : new Tensor(grads.dims);
+        replica.gradsW = gradsW == null ? null : new Tensor(gradsW.dims);
+        replica.biasGrads = biasGrads == null ? null : new double[biasGrads.length];
+        replica.input = input == null ? null : new Tensor(input.dims);
+        replica.batchInput = replica.batchProduct = null;
+        replica.batchOutput = replica.batchGrads = null;
+        return replica;
+    }
+
+    @Override
+    public Layer prototype()
+    {
+        SpatialConvolutionalLayerBlas copy = (SpatialConvolutionalLayerBlas) replicate();
+        copy.weights = weights == null ? null : new Tensor(weights);
+        copy.weightAccum = weightAccum == null ? null : new Tensor(weightAccum);
+        copy.biases = biases == null ? null : Arrays.copyOf(biases, biases.length);
+        return copy;
     }
 
     @Override
@@ -257,17 +425,37 @@ public class SpatialConvolutionalLayerBlas implements Layer
      */
     public void setParams(LinkedHashMap<String, Object> params)
     {
-        this.weights = new Tensor(params);
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The gradient and accumulator buffers are allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        nK = weights.dims[1];
     }
 
     public void setBiasParams(ArrayList<Double> biasParams)
     {
         int sz = biasParams.size();
-        biases = new double[sz];
+        double[] b = new double[sz];
         for (int i = 0; i < sz; ++i)
         {
-            biases[i] = biasParams.get(i);
+            b[i] = biasParams.get(i);
         }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
     }
 
     @Override
@@ -282,4 +470,124 @@ public class SpatialConvolutionalLayerBlas implements Layer
         return biases;
     }
 
+    public int getKL()
+    {
+        return kL;
+    }
+
+    public void setKL(Integer kL)
+    {
+        this.kL = kL;
+        geometryChanged();
+    }
+
+    public int getKH()
+    {
+        return kH;
+    }
+
+    public void setKH(Integer kH)
+    {
+        this.kH = kH;
+        geometryChanged();
+    }
+
+    public int getKW()
+    {
+        return kW;
+    }
+
+    public void setKW(Integer kW)
+    {
+        this.kW = kW;
+        geometryChanged();
+    }
+
+    public int getIH()
+    {
+        return iH;
+    }
+
+    public void setIH(Integer iH)
+    {
+        this.iH = iH;
+        geometryChanged();
+    }
+
+    public int getIW()
+    {
+        return iW;
+    }
+
+    public void setIW(Integer iW)
+    {
+        this.iW = iW;
+        geometryChanged();
+    }
+
+    public int getStrideH()
+    {
+        return strideH;
+    }
+
+    public void setStrideH(Integer strideH)
+    {
+        this.strideH = strideH;
+        geometryChanged();
+    }
+
+    public int getStrideW()
+    {
+        return strideW;
+    }
+
+    public void setStrideW(Integer strideW)
+    {
+        this.strideW = strideW;
+        geometryChanged();
+    }
+
+    public int getPadH()
+    {
+        return padH;
+    }
+
+    public void setPadH(Integer padH)
+    {
+        this.padH = padH;
+        geometryChanged();
+    }
+
+    public int getPadW()
+    {
+        return padW;
+    }
+
+    public void setPadW(Integer padW)
+    {
+        this.padW = padW;
+        geometryChanged();
+    }
+
+    public int getDilationH()
+    {
+        return dilationH;
+    }
+
+    public void setDilationH(Integer dilationH)
+    {
+        this.dilationH = dilationH;
+        geometryChanged();
+    }
+
+    public int getDilationW()
+    {
+        return dilationW;
+    }
+
+    public void setDilationW(Integer dilationW)
+    {
+        this.dilationW = dilationW;
+        geometryChanged();
+    }
 }
@@ -0,0 +1,208 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+import org.n3rd.ops.FFTOps;
+import org.n3rd.ops.FilterOps;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * "Spatial" or "2D" convolution, done in the frequency domain
+ *
+ * This gives the same results as {@link SpatialConvolutionalLayer}, but each input feature map and each kernel is
+ * transformed once with a 2D FFT, and the filtering is a sum of products of spectra.  The backward pass reuses the
+ * spectra of the input and the kernels from the forward pass, so it only has to transform the chain gradient.  The
+ * cost hardly depends on the kernel size, so this wins over the direct and unrolled versions for big kernels.
+ *
+ * The kernel spectra are kept until a backward, after which the weights are expected to be updated.  If you change
+ * the weights some other way, call {@link #weightsChanged()}.
+ *
+ * @author dpressel
+ */
+public class SpatialConvolutionalLayerFFT extends AbstractLayer
+{
+    // Cube represents multiple feature maps for this layer
+    Tensor input;
+    int[] inputDims;
+
+    FFTOps fft = new FFTOps();
+
+    // The weights dont change between the examples of a batch, so the kernel spectra are kept for all of them
+    private boolean inBatch;
+
+    public SpatialConvolutionalLayerFFT()
+    {
+
+    }
+
+    public SpatialConvolutionalLayerFFT(int nK, int kH, int kW, int... inputDims)
+    {
+        final int kL = inputDims.length == 3 ? inputDims[0] : 1;
+        final int iH = inputDims.length == 3 ? inputDims[1] : inputDims[0];
+        final int iW = inputDims.length == 3 ? inputDims[2] : inputDims[1];
+        this.inputDims = new int[] { kL, iH, iW };
+
+        weights = new Tensor(nK, kL, kH, kW);
+        weightAccum = new Tensor(nK, kL, kH, kW);
+        gradsW = new Tensor(nK, kL, kH, kW);
+        biases = new double[nK];
+        biasGrads = new double[nK];
+
+        for (int i = 0, sz = weights.size(); i < sz; ++i)
+        {
+            weights.set(i, rand());
+        }
+    }
+
+    public double rand()
+    {
+        double stdv = 1. / Math.sqrt(inputDims[1] * inputDims[2]);
+        double stdv2 = stdv * 2;
+        return Math.random() * stdv2 - stdv;
+    }
+
+    @Override
+    public Tensor forward(Tensor z)
+    {
+        try
+        {
+            // A layer loaded from a model only has its weights until now
+            if (output == null)
+            {
+                input = new Tensor(inputDims);
+                grads = new Tensor(inputDims);
+                output = new Tensor(weights.dims[0], inputDims[1] - weights.dims[2] + 1,
+                        inputDims[2] - weights.dims[3] + 1);
+            }
+            z.copyTo(input);
+            input.reshape(inputDims);
+            FilterOps.fftfilt2(fft, input, weights, biases, true, output);
+            return output;
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public Tensor backward(Tensor chainGrad, double y)
+    {
+        try
+        {
+            final int nK = weights.dims[0];
+            final int oH = output.dims[1];
+            final int oW = output.dims[2];
+            chainGrad.reshape(nK, oH, oW);
+
+            fft.filter2Backward(chainGrad, grads.getArray().v, gradsW.getArray().v);
+
+            // Each bias is added to every pixel of its output feature map
+            final int oSz = oH * oW;
+            for (int l = 0; l < nK; ++l)
+            {
+                for (int i = 0; i < oSz; ++i)
+                {
+                    this.biasGrads[l] += chainGrad.at(l * oSz + i);
+                }
+            }
+
+            if (!inBatch)
+            {
+                fft.kernelsChanged();
+            }
+            return grads;
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        inBatch = true;
+        try
+        {
+            return super.backwardBatch(chainGrad, y);
+        }
+        finally
+        {
+            inBatch = false;
+            fft.kernelsChanged();
+        }
+    }
+
+    /**
+     * Exists for reserialization purposes only!  Turns instantly into a Tensor when injected
+     *
+     * @param params
+     */
+    public void setParams(LinkedHashMap<String, Object> params)
+    {
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The gradient and accumulator buffers are allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        fft.kernelsChanged();
+    }
+
+    /**
+     * Let the layer know the weights have changed outside of training, so its cached kernel spectra are stale
+     */
+    public void weightsChanged()
+    {
+        fft.kernelsChanged();
+    }
+
+    public void setBiasParams(ArrayList<Double> biasParams)
+    {
+        int sz = biasParams.size();
+        double[] b = new double[sz];
+        for (int i = 0; i < sz; ++i)
+        {
+            b[i] = biasParams.get(i);
+        }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
+    }
+
+    // The FFT scratch space and spectra are per-layer too
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        input = input == null ? null : new Tensor(input);
+        fft = new FFTOps();
+    }
+
+    public int[] getInputDims()
+    {
+        return inputDims;
+    }
+
+    public void setInputDims(Integer[] inputDims)
+    {
+        this.inputDims = new int[inputDims.length];
+        for (int i = 0; i < inputDims.length; ++i)
+        {
+            this.inputDims[i] = inputDims[i];
+        }
+    }
+}
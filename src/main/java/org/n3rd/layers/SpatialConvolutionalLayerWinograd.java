@@ -0,0 +1,241 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+import org.n3rd.ops.WinogradOps;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * "Spatial" or "2D" convolution with small square kernels, done with Winograd's minimal filtering
+ *
+ * This gives the same results as {@link SpatialConvolutionalLayer}, but for 3x3 kernels, it takes 36 multiplies for
+ * each 4x4 tile of output instead of 144 (see {@link WinogradOps}), and there is no unrolled input like the BLAS
+ * version needs.  It works for any square kernel with a stride of 1, but it's meant for 3x3 and 5x5, since the
+ * savings shrink as the kernels grow, and the FFT version is better for big ones.
+ *
+ * The tile is the width of the output each transform produces.  By default it's 4 for 3x3 kernels and 2 for 5x5.
+ * Bigger tiles save more, but they lose precision.
+ *
+ * The kernel transforms are kept until a backward, after which the weights are expected to be updated.  If you change
+ * the weights some other way, call {@link #weightsChanged()}.
+ *
+ * @author dpressel
+ */
+public class SpatialConvolutionalLayerWinograd extends AbstractLayer
+{
+    // Cube represents multiple feature maps for this layer
+    Tensor input;
+    int[] inputDims;
+
+    // The width of an output tile, or 0 for the default for the kernel size
+    int tile;
+
+    WinogradOps winograd;
+
+    // The weights dont change between the examples of a batch, so the kernel transforms are kept for all of them
+    private boolean inBatch;
+
+    public SpatialConvolutionalLayerWinograd()
+    {
+
+    }
+
+    public SpatialConvolutionalLayerWinograd(int nK, int kH, int kW, int... inputDims)
+    {
+        if (kH != kW)
+        {
+            throw new IllegalArgumentException("Winograd convolution needs square kernels, got " + kH + "x" + kW);
+        }
+        final int kL = inputDims.length == 3 ? inputDims[0] : 1;
+        final int iH = inputDims.length == 3 ? inputDims[1] : inputDims[0];
+        final int iW = inputDims.length == 3 ? inputDims[2] : inputDims[1];
+        this.inputDims = new int[] { kL, iH, iW };
+
+        weights = new Tensor(nK, kL, kH, kW);
+        weightAccum = new Tensor(nK, kL, kH, kW);
+        gradsW = new Tensor(nK, kL, kH, kW);
+        biases = new double[nK];
+        biasGrads = new double[nK];
+
+        for (int i = 0, sz = weights.size(); i < sz; ++i)
+        {
+            weights.set(i, rand());
+        }
+    }
+
+    public double rand()
+    {
+        double stdv = 1. / Math.sqrt(inputDims[1] * inputDims[2]);
+        double stdv2 = stdv * 2;
+        return Math.random() * stdv2 - stdv;
+    }
+
+    @Override
+    public Tensor forward(Tensor z)
+    {
+        try
+        {
+            // A layer loaded from a model only has its weights until now
+            if (output == null)
+            {
+                input = new Tensor(inputDims);
+                grads = new Tensor(inputDims);
+                output = new Tensor(weights.dims[0], inputDims[1] - weights.dims[2] + 1,
+                        inputDims[2] - weights.dims[3] + 1);
+            }
+            if (winograd == null)
+            {
+                final int r = weights.dims[2];
+                winograd = new WinogradOps(tile > 0 ? tile : WinogradOps.defaultTile(r), r);
+            }
+            z.copyTo(input);
+            input.reshape(inputDims);
+            winograd.corr2(input, weights, biases, output);
+            return output;
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public Tensor backward(Tensor chainGrad, double y)
+    {
+        try
+        {
+            final int nK = weights.dims[0];
+            final int oH = output.dims[1];
+            final int oW = output.dims[2];
+            chainGrad.reshape(nK, oH, oW);
+
+            winograd.corr2Backward(chainGrad, grads, gradsW);
+
+            // Each bias is added to every pixel of its output feature map
+            final int oSz = oH * oW;
+            for (int l = 0; l < nK; ++l)
+            {
+                for (int i = 0; i < oSz; ++i)
+                {
+                    this.biasGrads[l] += chainGrad.at(l * oSz + i);
+                }
+            }
+
+            if (!inBatch)
+            {
+                winograd.kernelsChanged();
+            }
+            return grads;
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        inBatch = true;
+        try
+        {
+            return super.backwardBatch(chainGrad, y);
+        }
+        finally
+        {
+            inBatch = false;
+            weightsChanged();
+        }
+    }
+
+    /**
+     * Exists for reserialization purposes only!  Turns instantly into a Tensor when injected
+     *
+     * @param params
+     */
+    public void setParams(LinkedHashMap<String, Object> params)
+    {
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The gradient and accumulator buffers are allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        weightsChanged();
+    }
+
+    /**
+     * Let the layer know the weights have changed outside of training, so its cached kernel transforms are stale
+     */
+    public void weightsChanged()
+    {
+        if (winograd != null)
+        {
+            winograd.kernelsChanged();
+        }
+    }
+
+    public void setBiasParams(ArrayList<Double> biasParams)
+    {
+        int sz = biasParams.size();
+        double[] b = new double[sz];
+        for (int i = 0; i < sz; ++i)
+        {
+            b[i] = biasParams.get(i);
+        }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
+    }
+
+    // The transforms and scratch space are per-layer too
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        input = input == null ? null : new Tensor(input);
+        winograd = null;
+    }
+
+    public int[] getInputDims()
+    {
+        return inputDims;
+    }
+
+    public void setInputDims(Integer[] inputDims)
+    {
+        this.inputDims = new int[inputDims.length];
+        for (int i = 0; i < inputDims.length; ++i)
+        {
+            this.inputDims[i] = inputDims[i];
+        }
+    }
+
+    public int getTile()
+    {
+        return tile;
+    }
+
+    /**
+     * Use a different tile size than the default for the kernel size
+     *
+     * @param tile The width of an output tile, or 0 for the default
+     */
+    public void setTile(Integer tile)
+    {
+        this.tile = tile;
+        winograd = null;
+    }
+}
@@ -23,7 +23,10 @@ public class TanhLayer extends AbstractLayer
 
         int sz = z.size();
         output.resize(sz);
-        grads.resize(sz);
+        if (grads != null)
+        {
+            grads.resize(sz);
+        }
 
         ArrayDouble oA = output.getArray();
         for (int i = 0; i < sz; ++i)
@@ -49,4 +52,23 @@ public class TanhLayer extends AbstractLayer
         return grads;
     }
 
+    @Override
+    public Tensor forwardBatch(Tensor z)
+    {
+        // Pointwise, so the whole batch goes through in one pass
+        forward(z);
+        output.resize(z.dims);
+        if (grads != null)
+        {
+            grads.resize(z.dims);
+        }
+        return output;
+    }
+
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        return backward(chainGrad, 0.);
+    }
+
 }
@@ -16,7 +16,7 @@ import java.util.LinkedHashMap;
  * we can do the Kalchbrenner/Blunsom thing as well. If you want to do the Torch approach, just pass and embeddingSz
  * of 1 and handle everything else outside
  */
-public class TemporalConvolutionalLayer extends AbstractLayer
+public class TemporalConvolutionalLayer extends AbstractLayer implements OffHeapCapable
 {
 
     // we have an output number of feature maps, an input width and an input number of feature maps
@@ -79,8 +79,17 @@ public class TemporalConvolutionalLayer extends AbstractLayer
         try
         {
 
-            input = new Tensor(z.getArray(), kL, embeddingSz, numFrames);
-            grads.resize(kL, embeddingSz, numFrames);
+            // Keep our own copy of the input for backprop, but reuse it rather than allocating every time
+            if (input == null)
+            {
+                input = new Tensor(kL, embeddingSz, numFrames);
+            }
+            input.resize(kL, embeddingSz, numFrames);
+            System.arraycopy(z.getArray().v, 0, input.getArray().v, 0, input.size());
+            if (grads != null)
+            {
+                grads.resize(kL, embeddingSz, numFrames);
+            }
             //grads = new Tensor(kL, embeddingSz, numFrames);
             output.resize(nK, embeddingSz, oT);
             //output = new Tensor(nK, embeddingSz, oT);
@@ -256,17 +265,48 @@ public class TemporalConvolutionalLayer extends AbstractLayer
      */
     public void setParams(LinkedHashMap<String, Object> params)
     {
-        this.weights = new Tensor(params);
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The gradient and accumulator buffers are allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        if (output == null)
+        {
+            output = new Tensor(1);
+            grads = new Tensor(1);
+        }
     }
 
     public void setBiasParams(ArrayList<Double> biasParams)
     {
         int sz = biasParams.size();
-        biases = new double[sz];
+        double[] b = new double[sz];
         for (int i = 0; i < sz; ++i)
         {
-            biases[i] = biasParams.get(i);
+            b[i] = biasParams.get(i);
         }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
+    }
+
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        input = null;
     }
 
 }
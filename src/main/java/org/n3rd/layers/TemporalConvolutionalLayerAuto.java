@@ -0,0 +1,97 @@
+package org.n3rd.layers;
+
+import org.n3rd.Tensor;
+
+import java.util.Arrays;
+
+/**
+ * Temporal convolution that picks, for each input length, whichever of {@link TemporalConvolutionalLayer},
+ * {@link TemporalConvolutionalLayerBlas} and {@link TemporalConvolutionalLayerFFT} is fastest.
+ *
+ * Which one wins depends on the number of frames as well as the kernels.  The unrolled BLAS version is usually best,
+ * but the FFT catches up for wide kernels over long inputs, and for very short inputs, the direct version avoids the
+ * cost of unrolling.  Since sentence lengths vary, the choice is made (see {@link ConvolutionAutotuner}) per length.
+ *
+ * Like TemporalConvolutionalLayerBlas, there is no embedding dimension, the input is kL x numFrames.  The weights are
+ * kept the way TemporalConvolutionalLayer keeps them, nK x kL x 1 x kW, which in memory is the same as the
+ * (kL * kW) x nK column-major matrix the BLAS version uses, so all three can share them.
+ *
+ * @author dpressel
+ */
+public class TemporalConvolutionalLayerAuto extends AutotunedConvolutionalLayer
+{
+    public static final String DIRECT = "direct";
+    public static final String BLAS = "blas";
+    public static final String FFT = "fft";
+
+    private static final String[] ALGORITHMS = { DIRECT, BLAS, FFT };
+
+    public TemporalConvolutionalLayerAuto()
+    {
+
+    }
+
+    public TemporalConvolutionalLayerAuto(int nK, int kL, int kW)
+    {
+        weights = new Tensor(nK, kL, 1, kW);
+        weightAccum = new Tensor(nK, kL, 1, kW);
+        gradsW = new Tensor(nK, kL, 1, kW);
+        biases = new double[nK];
+        biasGrads = new double[nK];
+
+        double stdv = 1.0 / Math.sqrt(kW * kL);
+        for (int i = 0, sz = weights.size(); i < sz; ++i)
+        {
+            weights.set(i, Math.random() * 2 * stdv - stdv);
+        }
+    }
+
+    @Override
+    protected String[] algorithms()
+    {
+        return Arrays.copyOf(ALGORITHMS, ALGORITHMS.length);
+    }
+
+    @Override
+    protected String shape(int inputSz)
+    {
+        final int kL = weights.dims[1];
+        return "temporal,nK=" + weights.dims[0] + ",kL=" + kL + ",kW=" + weights.dims[3] + ",frames=" + inputSz / kL;
+    }
+
+    @Override
+    protected Layer newBackend(String algorithm, boolean share)
+    {
+        final int nK = weights.dims[0];
+        final int kL = weights.dims[1];
+        final int kW = weights.dims[3];
+        if (DIRECT.equals(algorithm))
+        {
+            TemporalConvolutionalLayer layer = new TemporalConvolutionalLayer();
+            layer.output = new Tensor(1);
+            layer.grads = new Tensor(1);
+            return bind(layer, share);
+        }
+        if (FFT.equals(algorithm))
+        {
+            return bind(new TemporalConvolutionalLayerFFT(), share);
+        }
+        if (BLAS.equals(algorithm))
+        {
+            TemporalConvolutionalLayerBlas layer = new TemporalConvolutionalLayerBlas();
+            layer.nK = nK;
+            layer.kL = kL;
+            layer.kW = kW;
+            layer.weights = (share ? weights : new Tensor(weights)).view(kL * kW, nK);
+            layer.weightAccum = (share ? weightAccum : new Tensor(weightAccum.dims)).view(kL * kW, nK);
+            layer.gradsW = (share ? gradsW : new Tensor(gradsW.dims)).view(kL * kW, nK);
+            layer.biases = share ? biases : Arrays.copyOf(biases, biases.length);
+            layer.biasGrads = share ? biasGrads : new double[biasGrads.length];
+            layer.output = new Tensor(1);
+            layer.grads = new Tensor(1);
+            layer.input = new Tensor(1);
+            return layer;
+        }
+        throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+    }
+}
@@ -1,12 +1,14 @@
 package org.n3rd.layers;
 
-import org.jblas.NativeBlas;
 import org.n3rd.Tensor;
-import org.sgdtk.ArrayDouble;
+import org.n3rd.ops.Blas;
+import org.n3rd.ops.ConvolutionWorkspace;
+import org.n3rd.ops.Im2Col;
 import org.sgdtk.DenseVectorN;
 import org.sgdtk.VectorN;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 
 /**
@@ -30,8 +32,11 @@ import java.util.LinkedHashMap;
  * || ofm1e01 ofm2e01
  * || ofm1e02 ofm2e02
  * || ofm1e03 ofm2e03
+ * <p/>
+ * The unrolled input lives in the thread's shared {@link ConvolutionWorkspace}, and the layer keeps a copy of its
+ * input to unroll again for back prop.
  */
-public class TemporalConvolutionalLayerBlas implements Layer
+public class TemporalConvolutionalLayerBlas implements Layer, ScoringOnly, Cloneable
 {
 
     Tensor gradsW;
@@ -60,10 +65,21 @@ public class TemporalConvolutionalLayerBlas implements Layer
 
     Tensor weights;
 
-    // Input is Number of frames x frame width (num feature maps)
-    Tensor unwrappedInput;
+    // The last input, which is unrolled again on the way back
+    Tensor input;
     Tensor output;
 
+    // Once the layer only scores, the input isnt kept
+    boolean released;
+
+    // Mini-batch workspace
+    Tensor batchInput;
+    Tensor batchProduct;
+    Tensor batchOutput;
+    Tensor batchGrads;
+
+    private Im2Col im2col;
+
     public TemporalConvolutionalLayerBlas()
     {
     }
@@ -77,7 +93,7 @@ public class TemporalConvolutionalLayerBlas implements Layer
 
         output = new Tensor(1);
         grads = new Tensor(1);
-        unwrappedInput = new Tensor(1);
+        input = new Tensor(1);
         weights = new Tensor(kL * kW, nK);
         weightAccum = new Tensor(kL * kW, nK);
         gradsW = new Tensor(kL * kW, nK);
@@ -101,60 +117,18 @@ public class TemporalConvolutionalLayerBlas implements Layer
         return d;
     }
 
-    private void unwrapInput(ArrayDouble x)
-    {
-
-        final int oT = numFrames - kW + 1;
-        unwrappedInput.resize(oT, kW * kL);
-        int n = 0;
-
-
-        for (int k = 0; k < kL; ++k)
-        {
-
-            for (int m = 0; m < kW; ++m)
-            {
-                for (int i = 0; i < oT; ++i)
-                {
-
-                    int offset = k * numFrames + i + m;
-                    unwrappedInput.set(n, x.at(offset));
-                    ++n;
-                }
-            }
-        }
-
-    }
-
-    private void wrapGrad(Tensor unwrapped)
+    /**
+     * The unrolling for an input of numFrames frames
+     *
+     * @return The unrolling
+     */
+    Im2Col geometry()
     {
-
-        final int oT = unwrapped.dims[0];
-        final int iT = oT + kW - 1;
-        assert (iT == grads.dims[2]);
-        final int kL = grads.dims[0];
-        final int embedSz = grads.dims[1];
-        assert (embedSz == 1);
-        // grads = {oT, kW * kL}
-
-        // In the blas case, we need to write in column major, which means write down one lag, then move up to the next
-        int n = 0;
-        for (int k = 0; k < kL; ++k)
+        if (im2col == null || im2col.iW != numFrames || im2col.kL != kL || im2col.kW != kW)
         {
-            for (int m = 0; m < kW; ++m)
-            {
-                for (int i = 0; i < oT; ++i)
-                {
-                    int offset = k * iT + i + m;
-                    grads.addi(offset, unwrapped.get(n));
-                    n++;
-                }
-
-            }
+            im2col = new Im2Col(kL, 1, numFrames, 1, kW);
         }
-
-
-
+        return im2col;
     }
 
     @Override
@@ -162,29 +136,32 @@ public class TemporalConvolutionalLayerBlas implements Layer
     {
 
         numFrames = z.size() / kL;
-        grads.resize(kL, 1, numFrames);
-        grads.constant(0.);
-
-        final int oT = numFrames - kW + 1;
+        final Im2Col g = geometry();
+        final int oT = g.rows();
+        final int cols = g.cols();
 
         output.resize(nK, 1, oT);
+        final double[] xA = z.getArray().v;
+        if (!released)
+        {
+            if (input == null)
+            {
+                input = new Tensor(1);
+            }
+            input.resize(kL, 1, numFrames);
+            System.arraycopy(xA, 0, input.getArray().v, 0, input.size());
+        }
 
-        ArrayDouble input = z.getArray();
-
-        unwrapInput(input);
-
+        final double[] uA = ConvolutionWorkspace.get().columns(oT * cols);
+        g.unwrap(xA, 0, uA, oT, 0);
 
+        final double[] oA = output.getArray().v;
         for (int l = 0; l < nK; ++l)
         {
-            for (int i = 0; i < oT; ++i)
-            {
-                output.set(l * oT + i, biases[l]);
-            }
+            Arrays.fill(oA, l * oT, (l + 1) * oT, biases[l]);
         }
 
-        NativeBlas.dgemm('N', 'N', unwrappedInput.dims[0], weights.dims[1], unwrappedInput.dims[1], 1.0,
-                unwrappedInput.getArray().v, 0, unwrappedInput.dims[0],
-                weights.getArray().v, 0, weights.dims[0], 1., output.getArray().v, 0, oT);
+        Blas.getInstance().dgemm('N', 'N', oT, nK, cols, 1.0, uA, 0, oT, weights.getArray().v, 0, cols, 1., oA, 0, oT);
 
         return output;
 
@@ -196,47 +173,207 @@ public class TemporalConvolutionalLayerBlas implements Layer
 
         try
         {
+            final Im2Col g = geometry();
+            final int oT = g.rows();
+            final int cols = g.cols();
+            chainGrad.reshape(nK, 1, oT);
+            final double[] cgA = chainGrad.getArray().v;
 
-            final int oT = numFrames - kW + 1;
-            int[] outputDims = new int[]{nK, 1, oT};
-            chainGrad.reshape(outputDims);
+            // The weight gradients need the unrolled input, and once they are done, the same space holds the
+            // unrolled input gradients
+            final double[] uA = ConvolutionWorkspace.get().columns(oT * cols);
+            g.unwrap(input.getArray().v, 0, uA, oT, 0);
 
-            Tensor unwrappedGradInput = new Tensor(oT, kW * kL);
-            int m = oT;
-            int k = nK;
-            int n = weights.dims[0];
+            Blas.getInstance().dgemm('T', 'N', cols, nK, oT, 1.0, uA, 0, oT, cgA, 0, oT, 0, gradsW.getArray().v, 0,
+                    cols);
 
-            NativeBlas.dgemm('N', 'T', m, n, k, 1.0, chainGrad.getArray().v, 0, m,
-                    weights.getArray().v, 0, n, 0, unwrappedGradInput.getArray().v, 0, m);
+            Blas.getInstance().dgemm('N', 'T', oT, cols, nK, 1.0, cgA, 0, oT, weights.getArray().v, 0, cols, 0, uA, 0,
+                    oT);
 
-            m = unwrappedInput.dims[1];
-            k = unwrappedInput.dims[0];
-            n = nK;
+            for (int l = 0; l < nK; ++l)
+            {
+                for (int i = 0; i < oT; ++i)
+                {
+                    this.biasGrads[l] += cgA[l * oT + i];
+                }
+            }
 
-            NativeBlas.dgemm('T', 'N', m, n, k, 1.0, unwrappedInput.getArray().v, 0, k,
-                    chainGrad.getArray().v, 0, k, 0, gradsW.getArray().v, 0, m);
+            grads.resize(kL, 1, numFrames);
+            grads.constant(0.);
+            g.wrap(uA, oT, 0, grads.getArray().v, 0);
 
-            // We need to update gradsW, which are (kL * embeddingSize) * kW x (nK * embeddingSize);
+            return grads;
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Forward prop over a whole batch as a single GEMM.  All of the examples in the batch must have the same number
+     * of frames
+     *
+     * @param x A batch of inputs, batchSz x kL x numFrames
+     * @return The batch of outputs, batchSz x nK x 1 x oT
+     */
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        final int batchSz = x.dims[0];
+        numFrames = x.size() / batchSz / kL;
+        final Im2Col g = geometry();
+        final int oT = g.rows();
+        final int rows = batchSz * oT;
+        final int cols = g.cols();
+        final int inputSz = kL * numFrames;
+
+        if (batchOutput == null)
+        {
+            batchInput = new Tensor(1);
+            batchProduct = new Tensor(1);
+            batchOutput = new Tensor(1);
+            batchGrads = new Tensor(1);
+        }
+        batchInput.resize(batchSz, kL, 1, numFrames);
+        batchProduct.resize(rows, nK);
+        batchOutput.resize(batchSz, nK, 1, oT);
+
+        final double[] xA = batchInput.getArray().v;
+        System.arraycopy(x.getArray().v, 0, xA, 0, batchSz * inputSz);
 
+        final double[] uA = ConvolutionWorkspace.get().columns(rows * cols);
+        for (int b = 0; b < batchSz; ++b)
+        {
+            g.unwrap(xA, b * inputSz, uA, rows, b * oT);
+        }
 
+        final double[] pA = batchProduct.getArray().v;
+        Blas.getInstance().dgemm('N', 'N', rows, nK, cols, 1.0, uA, 0, rows, weights.getArray().v, 0, cols, 0., pA, 0,
+                rows);
+
+        final double[] oA = batchOutput.getArray().v;
+        for (int b = 0; b < batchSz; ++b)
+        {
             for (int l = 0; l < nK; ++l)
             {
+                final int obase = (b * nK + l) * oT;
+                final int pbase = l * rows + b * oT;
+                final double bias = biases[l];
                 for (int i = 0; i < oT; ++i)
                 {
-                    this.biasGrads[l] += chainGrad.get(l * oT + i);
+                    oA[obase + i] = pA[pbase + i] + bias;
                 }
+            }
+        }
+        return batchOutput;
+    }
 
+    /**
+     * Back prop over a whole batch.  The weight gradients are summed over the batch
+     *
+     * @param chainGrad Deltas from above, batchSz x nK x 1 x oT
+     * @param y Labels
+     * @return The deltas for this layer, batchSz x kL x 1 x numFrames
+     */
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        final Im2Col g = geometry();
+        final int batchSz = batchOutput.dims[0];
+        final int oT = g.rows();
+        final int rows = batchSz * oT;
+        final int cols = g.cols();
+        final int inputSz = kL * numFrames;
+
+        final double[] cgA = chainGrad.getArray().v;
+        final double[] pA = batchProduct.getArray().v;
+        for (int b = 0; b < batchSz; ++b)
+        {
+            for (int l = 0; l < nK; ++l)
+            {
+                final int cgbase = (b * nK + l) * oT;
+                final int pbase = l * rows + b * oT;
+                double acc = 0.;
+                for (int i = 0; i < oT; ++i)
+                {
+                    final double cg = cgA[cgbase + i];
+                    pA[pbase + i] = cg;
+                    acc += cg;
+                }
+                biasGrads[l] += acc;
             }
+        }
 
+        final double[] xA = batchInput.getArray().v;
+        final double[] uA = ConvolutionWorkspace.get().columns(rows * cols);
+        for (int b = 0; b < batchSz; ++b)
+        {
+            g.unwrap(xA, b * inputSz, uA, rows, b * oT);
+        }
 
-            wrapGrad(unwrappedGradInput);
+        Blas.getInstance().dgemm('T', 'N', cols, nK, rows, 1.0, uA, 0, rows, pA, 0, rows, 1.0, gradsW.getArray().v, 0,
+                cols);
+        Blas.getInstance().dgemm('N', 'T', rows, cols, nK, 1.0, pA, 0, rows, weights.getArray().v, 0, cols, 0., uA, 0,
+                rows);
 
-            return grads;
+        batchGrads.resize(batchSz, kL, 1, numFrames);
+        batchGrads.constant(0.);
+        final double[] gA = batchGrads.getArray().v;
+        for (int b = 0; b < batchSz; ++b)
+        {
+            g.wrap(uA, rows, b * oT, gA, b * inputSz);
         }
-        catch (Exception ex)
+        return batchGrads;
+    }
+
+    @Override
+    public void releaseTrainingState()
+    {
+        released = true;
+        input = null;
+        grads = null;
+        gradsW = null;
+        biasGrads = null;
+        batchInput = batchProduct = null;
+        batchOutput = batchGrads = null;
+    }
+
+    /**
+     * Shallow copy, sharing weights, biases and accumulators, with a fresh workspace
+     *
+     * @return A replica of this layer sharing its parameters
+     */
+    @Override
+    public Layer replicate()
+    {
+        TemporalConvolutionalLayerBlas replica;
+        try
         {
-            throw new RuntimeException(ex);
+            replica = (TemporalConvolutionalLayerBlas) clone();
+        }
+        catch (CloneNotSupportedException cloneEx)
+        {
+            throw new RuntimeException(cloneEx);
         }
+        replica.output = output == null ? null : new Tensor(output.dims);
+        replica.grads = grads == null ? null : new Tensor(grads.dims);
+        replica.gradsW = gradsW == null ? null : new Tensor(gradsW.dims);
+        replica.biasGrads = biasGrads == null ? null : new double[biasGrads.length];
+        replica.input = input == null ? null : new Tensor(1);
+        replica.batchInput = replica.batchProduct = null;
+        replica.batchOutput = replica.batchGrads = null;
+        return replica;
+    }
+
+    @Override
+    public Layer prototype()
+    {
+        TemporalConvolutionalLayerBlas copy = (TemporalConvolutionalLayerBlas) replicate();
+        copy.weights = weights == null ? null : new Tensor(weights);
+        copy.weightAccum = weightAccum == null ? null : new Tensor(weightAccum);
+        copy.biases = biases == null ? null : Arrays.copyOf(biases, biases.length);
+        return copy;
     }
 
     @Override
@@ -258,17 +395,43 @@ public class TemporalConvolutionalLayerBlas implements Layer
      */
     public void setParams(LinkedHashMap<String, Object> params)
     {
-        this.weights = new Tensor(params);
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The gradient and accumulator buffers are allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        nK = weights.dims[1];
+        if (output == null)
+        {
+            output = new Tensor(1);
+            grads = new Tensor(1);
+            input = new Tensor(1);
+        }
     }
 
     public void setBiasParams(ArrayList<Double> biasParams)
     {
         int sz = biasParams.size();
-        biases = new double[sz];
+        double[] b = new double[sz];
         for (int i = 0; i < sz; ++i)
         {
-            biases[i] = biasParams.get(i);
+            b[i] = biasParams.get(i);
         }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
     }
 
     @Override
@@ -283,4 +446,23 @@ public class TemporalConvolutionalLayerBlas implements Layer
         return biases;
     }
 
+    public int getKL()
+    {
+        return kL;
+    }
+
+    public void setKL(Integer kL)
+    {
+        this.kL = kL;
+    }
+
+    public int getKW()
+    {
+        return kW;
+    }
+
+    public void setKW(Integer kW)
+    {
+        this.kW = kW;
+    }
 }
@@ -77,11 +77,19 @@ public class TemporalConvolutionalLayerFFT extends AbstractLayer
         final int oT = numFrames - kW + 1;
         try
         {
-            input = new Tensor(z.getArray(), kL, embeddingSz, numFrames);
-            //grads.resize(kL, embeddingSz, numFrames);
-            grads = new Tensor(kL, embeddingSz, numFrames);
-            //output.resize(nK, embeddingSz, oT);
-            output = new Tensor(nK, embeddingSz, oT);
+            if (input == null)
+            {
+                input = new Tensor(kL, embeddingSz, numFrames);
+                grads = new Tensor(kL, embeddingSz, numFrames);
+                output = new Tensor(nK, embeddingSz, oT);
+            }
+            input.resize(kL, embeddingSz, numFrames);
+            System.arraycopy(z.getArray().v, 0, input.getArray().v, 0, input.size());
+            if (grads != null)
+            {
+                grads.resize(kL, embeddingSz, numFrames);
+            }
+            output.resize(nK, embeddingSz, oT);
             FilterOps.fftfilt(fft, input, weights, biases, true, output);
             return output;
         }
@@ -145,17 +153,55 @@ public class TemporalConvolutionalLayerFFT extends AbstractLayer
      */
     public void setParams(LinkedHashMap<String, Object> params)
     {
-        this.weights = new Tensor(params);
+        setParams(new Tensor(params));
+    }
+
+    /**
+     * Set the weights, e.g. when loading a model.  The gradient and accumulator buffers are allocated to match
+     *
+     * @param params The weights, which are used directly, not copied
+     */
+    public void setParams(Tensor params)
+    {
+        this.weights = params;
+        weightAccum = new Tensor(weights.dims);
+        gradsW = new Tensor(weights.dims);
+        fft.kernelsChanged();
+    }
+
+    /**
+     * Let the layer know the weights have changed outside of training, so its cached kernel spectra are stale.  After
+     * a backward, they are recomputed anyway
+     */
+    public void weightsChanged()
+    {
+        fft.kernelsChanged();
     }
 
     public void setBiasParams(ArrayList<Double> biasParams)
     {
         int sz = biasParams.size();
-        biases = new double[sz];
+        double[] b = new double[sz];
         for (int i = 0; i < sz; ++i)
         {
-            biases[i] = biasParams.get(i);
+            b[i] = biasParams.get(i);
         }
+        setBiasParams(b);
+    }
+
+    public void setBiasParams(double[] biasParams)
+    {
+        biases = biasParams;
+        biasGrads = new double[biases.length];
+    }
+
+    // The FFT scratch space is per-layer too
+    @Override
+    protected void newWorkspace()
+    {
+        super.newWorkspace();
+        input = null;
+        fft = new FFTOps();
     }
 
 }
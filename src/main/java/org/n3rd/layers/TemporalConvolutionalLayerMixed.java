@@ -0,0 +1,260 @@
+package org.n3rd.layers;
+
+import org.n3rd.FloatTensor;
+import org.n3rd.Tensor;
+import org.n3rd.ops.Blas;
+
+/**
+ * Mixed-precision version of TemporalConvolutionalLayerBlas
+ *
+ * The input is unrolled into a float matrix, and both the forward product and the two backward products run as
+ * sgemm.  The unrolled input is kW times bigger than the input itself, so this is where most of the memory traffic
+ * is, and halving it is the whole point.  Narrowing happens for free while unrolling, and the outputs are widened as
+ * the bias is added.
+ *
+ * As in FullyConnectedLayerMixed, the weights are kept in double precision for the updates and the model files, and
+ * narrowed into a float copy (on top of the doubles) on the first forward after a backward.  The activations on either
+ * side are still double precision.  If you change the weights some other way, call
+ * {@link #weightsChanged()}.
+ */
+public class TemporalConvolutionalLayerMixed extends TemporalConvolutionalLayerBlas
+{
+    private FloatTensor weightsF;
+    private FloatTensor unwrappedInputF;
+    private FloatTensor unwrappedGradInputF;
+    private FloatTensor productF;
+    private FloatTensor gradsWF;
+    private boolean dirty = true;
+
+    public TemporalConvolutionalLayerMixed()
+    {
+    }
+
+    public TemporalConvolutionalLayerMixed(int nK, int kL, int kW)
+    {
+        super(nK, kL, kW);
+    }
+
+    /**
+     * Let the layer know the weights have changed outside of training, so its single-precision copy is stale
+     */
+    public void weightsChanged()
+    {
+        dirty = true;
+    }
+
+    @Override
+    public void setParams(Tensor params)
+    {
+        super.setParams(params);
+        dirty = true;
+    }
+
+    private void refreshWeights()
+    {
+        if (weightsF == null)
+        {
+            weightsF = new FloatTensor(1);
+            unwrappedInputF = new FloatTensor(1);
+            unwrappedGradInputF = new FloatTensor(1);
+            productF = new FloatTensor(1);
+            gradsWF = new FloatTensor(1);
+            dirty = true;
+        }
+        if (dirty)
+        {
+            weightsF.copyFrom(weights);
+            dirty = false;
+        }
+    }
+
+    // Unroll a batch of inputs, column-major with a row per output frame of each example, narrowing as we go
+    private void unwrapInput(double[] xA, int batchSz)
+    {
+        final int oT = numFrames - kW + 1;
+        final int inputSz = kL * numFrames;
+        unwrappedInputF.resize(batchSz * oT, kL * kW);
+        final float[] uA = unwrappedInputF.getArray();
+        int u = 0;
+        for (int k = 0; k < kL; ++k)
+        {
+            for (int m = 0; m < kW; ++m)
+            {
+                for (int b = 0; b < batchSz; ++b)
+                {
+                    final int offset = b * inputSz + k * numFrames + m;
+                    for (int i = 0; i < oT; ++i)
+                    {
+                        uA[u++] = (float) xA[offset + i];
+                    }
+                }
+            }
+        }
+    }
+
+    // Add the unrolled deltas back into the (zeroed) input deltas
+    private void wrapGrad(double[] gA, int batchSz)
+    {
+        final int oT = numFrames - kW + 1;
+        final int inputSz = kL * numFrames;
+        final float[] ugA = unwrappedGradInputF.getArray();
+        int u = 0;
+        for (int k = 0; k < kL; ++k)
+        {
+            for (int m = 0; m < kW; ++m)
+            {
+                for (int b = 0; b < batchSz; ++b)
+                {
+                    final int offset = b * inputSz + k * numFrames + m;
+                    for (int i = 0; i < oT; ++i)
+                    {
+                        gA[offset + i] += ugA[u++];
+                    }
+                }
+            }
+        }
+    }
+
+    // Run the forward product, and write it out as batchSz x nK x oT, adding the biases
+    private void forwardProduct(double[] oA, int batchSz)
+    {
+        final int oT = numFrames - kW + 1;
+        final int rows = batchSz * oT;
+        final int cols = kL * kW;
+        productF.resize(rows, nK);
+        final float[] pA = productF.getArray();
+        Blas.getInstance().sgemm('N', 'N', rows, nK, cols, 1.0f, unwrappedInputF.getArray(), 0, rows,
+                weightsF.getArray(), 0, cols, 0.f, pA, 0, rows);
+
+        for (int b = 0; b < batchSz; ++b)
+        {
+            for (int l = 0; l < nK; ++l)
+            {
+                final int obase = (b * nK + l) * oT;
+                final int pbase = l * rows + b * oT;
+                final double bias = biases[l];
+                for (int i = 0; i < oT; ++i)
+                {
+                    oA[obase + i] = pA[pbase + i] + bias;
+                }
+            }
+        }
+    }
+
+    // Reorder and narrow the deltas to match the forward product, run the two backward products, and add the weight
+    // gradients into gradsW
+    private void backwardProduct(double[] cgA, int batchSz)
+    {
+        final int oT = numFrames - kW + 1;
+        final int rows = batchSz * oT;
+        final int cols = kL * kW;
+        final float[] pA = productF.getArray();
+        for (int b = 0; b < batchSz; ++b)
+        {
+            for (int l = 0; l < nK; ++l)
+            {
+                final int cgbase = (b * nK + l) * oT;
+                final int pbase = l * rows + b * oT;
+                double acc = 0.;
+                for (int i = 0; i < oT; ++i)
+                {
+                    final double cg = cgA[cgbase + i];
+                    pA[pbase + i] = (float) cg;
+                    acc += cg;
+                }
+                biasGrads[l] += acc;
+            }
+        }
+
+        unwrappedGradInputF.resize(rows, cols);
+        gradsWF.resize(cols, nK);
+        Blas.getInstance().sgemm('N', 'T', rows, cols, nK, 1.0f, pA, 0, rows, weightsF.getArray(), 0, cols, 0.f,
+                unwrappedGradInputF.getArray(), 0, rows);
+        Blas.getInstance().sgemm('T', 'N', cols, nK, rows, 1.0f, unwrappedInputF.getArray(), 0, rows, pA, 0, rows, 0.f,
+                gradsWF.getArray(), 0, cols);
+
+        final double[] gwA = gradsW.getArray().v;
+        final float[] gwF = gradsWF.getArray();
+        for (int i = 0, sz = gradsW.size(); i < sz; ++i)
+        {
+            gwA[i] += gwF[i];
+        }
+        dirty = true;
+    }
+
+    @Override
+    public Tensor forward(Tensor z)
+    {
+        refreshWeights();
+        numFrames = z.size() / kL;
+        final int oT = numFrames - kW + 1;
+        output.resize(nK, 1, oT);
+        unwrapInput(z.getArray().v, 1);
+        forwardProduct(output.getArray().v, 1);
+        return output;
+    }
+
+    @Override
+    public Tensor backward(Tensor chainGrad, double y)
+    {
+        // The single example path overwrites the weight gradients rather than accumulating
+        gradsW.constant(0.);
+        backwardProduct(chainGrad.getArray().v, 1);
+        grads.resize(kL, 1, numFrames);
+        grads.constant(0.);
+        wrapGrad(grads.getArray().v, 1);
+        return grads;
+    }
+
+    /**
+     * Forward prop over a whole batch as a single sgemm.  All of the examples in the batch must have the same number
+     * of frames
+     *
+     * @param x A batch of inputs, batchSz x kL x numFrames
+     * @return The batch of outputs, batchSz x nK x 1 x oT
+     */
+    @Override
+    public Tensor forwardBatch(Tensor x)
+    {
+        refreshWeights();
+        final int batchSz = x.dims[0];
+        numFrames = x.size() / batchSz / kL;
+        final int oT = numFrames - kW + 1;
+        if (batchOutput == null)
+        {
+            batchOutput = new Tensor(1);
+            batchGrads = new Tensor(1);
+        }
+        batchOutput.resize(batchSz, nK, 1, oT);
+        unwrapInput(x.getArray().v, batchSz);
+        forwardProduct(batchOutput.getArray().v, batchSz);
+        return batchOutput;
+    }
+
+    /**
+     * Back prop over a whole batch.  The weight gradients are summed over the batch
+     *
+     * @param chainGrad Deltas from above, batchSz x nK x 1 x oT
+     * @param y Labels
+     * @return The deltas for this layer, batchSz x kL x 1 x numFrames
+     */
+    @Override
+    public Tensor backwardBatch(Tensor chainGrad, double[] y)
+    {
+        final int batchSz = batchOutput.dims[0];
+        backwardProduct(chainGrad.getArray().v, batchSz);
+        batchGrads.resize(batchSz, kL, 1, numFrames);
+        batchGrads.constant(0.);
+        wrapGrad(batchGrads.getArray().v, batchSz);
+        return batchGrads;
+    }
+
+    @Override
+    public Layer replicate()
+    {
+        TemporalConvolutionalLayerMixed replica = (TemporalConvolutionalLayerMixed) super.replicate();
+        replica.weightsF = replica.unwrappedInputF = replica.unwrappedGradInputF = null;
+        replica.productF = replica.gradsWF = null;
+        return replica;
+    }
+}
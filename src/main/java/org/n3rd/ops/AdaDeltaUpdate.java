@@ -0,0 +1,58 @@
+package org.n3rd.ops;
+
+/**
+ * AdaDelta (Zeiler), which scales each step by the ratio of the RMS of recent steps to the RMS of recent gradients,
+ * so it has no real learning rate.  The eta passed in just scales the step, so use 1 for the method as published
+ *
+ * @author dpressel
+ */
+public class AdaDeltaUpdate extends StatefulUpdate
+{
+    private final double rho;
+    private final double eps;
+
+    public AdaDeltaUpdate()
+    {
+        this(0.95, 1e-6);
+    }
+
+    /**
+     * @param rho The decay of the squared gradient and squared step averages
+     * @param eps Added to both averages, for stability
+     */
+    public AdaDeltaUpdate(double rho, double eps)
+    {
+        this(rho, eps, new OptimizerState());
+    }
+
+    public AdaDeltaUpdate(double rho, double eps, OptimizerState state)
+    {
+        super(state);
+        this.rho = rho;
+        this.eps = eps;
+    }
+
+    @Override
+    protected int numSlots()
+    {
+        return 2;
+    }
+
+    @Override
+    protected void update(OptimizerState.Entry entry, double[] w, double[] g, int n, double eta, double lambda)
+    {
+        final double[] gg = entry.slot(0);
+        final double[] dd = entry.slot(1);
+        final double decay = 1 - eta * lambda;
+        for (int i = 0; i < n; ++i)
+        {
+            final double gi = g[i];
+            final double ggi = rho * gg[i] + (1 - rho) * gi * gi;
+            final double delta = -Math.sqrt(dd[i] + eps) / Math.sqrt(ggi + eps) * gi;
+            gg[i] = ggi;
+            dd[i] = rho * dd[i] + (1 - rho) * delta * delta;
+            w[i] = w[i] * decay + eta * delta;
+            g[i] = 0.;
+        }
+    }
+}
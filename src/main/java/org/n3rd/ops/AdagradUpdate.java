@@ -2,8 +2,26 @@ package org.n3rd.ops;
 
 import org.n3rd.Tensor;
 import org.n3rd.layers.Layer;
+import org.n3rd.layers.SparseGradients;
+
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
+ * Adagrad, with weight decay.
+ *
+ * The update reads each weight, its gradient and its squared gradient sum once, and does the decay, the accumulation
+ * and the step in a single pass.  As always, a weight with no gradient this step is left alone, so it isn't decayed
+ * either.
+ *
+ * Sparse mode is for layers where most of the gradient is zero (e.g. a fully connected layer over a sparse input).
+ * For a layer that knows which of its gradients it touched (see {@link SparseGradients}), only those weights are
+ * visited, and for any other layer, the ones with a non-zero gradient.  Unlike dense mode, every weight is decayed on
+ * every step, both the weight decay and alpha on the squared gradients, but lazily: the decay a weight misses is kept
+ * track of by {@link LazyDecay}, and caught up the next time it is visited.  {@link #flush(Layer)} catches up all of
+ * them, which {@link org.n3rd.NeuralNetModel} does before saving.  Call it yourself before scoring with a model still
+ * being trained in sparse mode.
+ *
  * Created by dpressel on 4/7/16.
  */
 public class AdagradUpdate implements Update
@@ -12,41 +30,199 @@ public class AdagradUpdate implements Update
 
     private static final double EPS = 1e-8;
 
+    private final boolean sparse;
+
+    // The lazy decays for each parameter tensor in sparse mode.  Replicas share their parameter tensors, so that's
+    // the key, and not the layer.  Tensor doesn't override equals(), so this is by identity, and held weakly, so the
+    // decays for a model that is thrown away go with it
+    private final Map<Tensor, LazyDecay[]> decays = new WeakHashMap<Tensor, LazyDecay[]>();
+
+    // Where the touched indices go, per thread, since Hogwild replicas run their updates at the same time
+    private static final ThreadLocal<int[]> TOUCHED = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[0];
+        }
+    };
+
     public AdagradUpdate(double alpha)
+    {
+        this(alpha, false);
+    }
+
+    /**
+     * @param alpha How much of the squared gradient sum to keep each step
+     * @param sparse Only visit the weights with a non-zero gradient?
+     */
+    public AdagradUpdate(double alpha, boolean sparse)
     {
         this.alpha = alpha;
+        this.sparse = sparse;
+    }
+
+    public boolean isSparse()
+    {
+        return sparse;
     }
+
     @Override
     public void run(Layer layer, double eta, double lambda)
     {
         Tensor gg = layer.getWeightAccum();
         Tensor weights = layer.getParams();
-        int wSz = weights.size();
-
         Tensor weightGrads = layer.getParamGrads();
+        final double decay = 1 - eta * lambda;
+
+        if (weights.isOffHeap() || gg.isOffHeap() || weightGrads.isOffHeap())
+        {
+            runAccessors(weights, gg, weightGrads, eta, decay);
+            return;
+        }
+
+        final double[] w = weights.getArray().v;
+        final double[] g = weightGrads.getArray().v;
+        final double[] a = gg.getArray().v;
+        final int wSz = weights.size();
+
+        if (sparse)
+        {
+            runSparse(layer, decaysFor(weights), w, g, a, wSz, eta, decay);
+            return;
+        }
 
         for (int i = 0; i < wSz; ++i)
         {
-            if (weightGrads.get(i) == 0.0)
+            final double gwi = g[i];
+            if (gwi == 0.)
             {
                 continue;
             }
+            final double ggi = alpha * a[i] + gwi * gwi;
+            a[i] = ggi;
+            w[i] = w[i] * decay - eta * gwi / Math.sqrt(ggi + EPS);
+            g[i] = 0.;
+        }
+    }
 
+    private void runSparse(Layer layer, LazyDecay[] lazy, double[] w, double[] g, double[] a, int wSz, double eta,
+                           double decay)
+    {
+        final LazyDecay weightDecay = lazy[0];
+        final LazyDecay accumDecay = lazy[1];
+        weightDecay.step(decay);
+        if (accumDecay != null)
+        {
+            accumDecay.step(alpha);
+        }
 
-            double gwi = weightGrads.get(i);
-            double ggi = gg.get(i);
-            gg.set(i, alpha * ggi + gwi*gwi);
-            ggi = gg.get(i);
+        final SparseGradients sparseGradients = layer instanceof SparseGradients ? (SparseGradients) layer : null;
+        final int numTouched = sparseGradients == null ? -1 : sparseGradients.numTouchedParams();
+        if (numTouched < 0)
+        {
+            for (int i = 0; i < wSz; ++i)
+            {
+                if (g[i] != 0.)
+                {
+                    visit(weightDecay, accumDecay, w, g, a, i, eta);
+                }
+            }
+        }
+        else
+        {
+            int[] touched = TOUCHED.get();
+            if (touched.length < numTouched)
+            {
+                touched = new int[numTouched];
+                TOUCHED.set(touched);
+            }
+            sparseGradients.touchedParams(touched);
+            for (int k = 0; k < numTouched; ++k)
+            {
+                visit(weightDecay, accumDecay, w, g, a, touched[k], eta);
+            }
+        }
+        if (sparseGradients != null)
+        {
+            sparseGradients.clearTouchedParams();
+        }
+    }
 
-            double etaThis = eta / Math.sqrt(ggi + EPS);
-            double delta = -etaThis * gwi;
+    // Catch a weight up on its decay, and take its step
+    private void visit(LazyDecay weightDecay, LazyDecay accumDecay, double[] w, double[] g, double[] a, int i,
+                       double eta)
+    {
+        final double gwi = g[i];
+        final double ggi = (accumDecay == null ? a[i] : a[i] * accumDecay.catchUp(i)) + gwi * gwi;
+        a[i] = ggi;
+        w[i] = w[i] * weightDecay.catchUp(i) - eta * gwi / Math.sqrt(ggi + EPS);
+        g[i] = 0.;
+    }
 
-            //double delta = -eta * gwi;
-            double wi = weights.get(i) * (1 - eta * lambda);
-            wi += delta;
-            weights.set(i, wi);
+    // Tensors that aren't on the heap have no array, so go through the accessors (always dense)
+    private void runAccessors(Tensor weights, Tensor gg, Tensor weightGrads, double eta, double decay)
+    {
+        for (int i = 0, wSz = weights.size(); i < wSz; ++i)
+        {
+            final double gwi = weightGrads.get(i);
+            if (gwi == 0.)
+            {
+                continue;
+            }
+            final double ggi = alpha * gg.get(i) + gwi * gwi;
+            gg.set(i, ggi);
+            weights.set(i, weights.get(i) * decay - eta * gwi / Math.sqrt(ggi + EPS));
             weightGrads.set(i, 0);
+        }
+    }
+
+    private LazyDecay[] decaysFor(Tensor weights)
+    {
+        synchronized (decays)
+        {
+            LazyDecay[] lazy = decays.get(weights);
+            if (lazy == null || lazy[0].size() != weights.size())
+            {
+                // There is nothing to catch up on the squared gradients when we keep all of them
+                lazy = new LazyDecay[] { new LazyDecay(weights.size()),
+                        alpha == 1.0 ? null : new LazyDecay(weights.size()) };
+                decays.put(weights, lazy);
+            }
+            return lazy;
+        }
+    }
 
+    /**
+     * Apply all of the decay the layer's weights have missed in sparse mode, so they are where they would be if they
+     * had been decayed on every step.  This does nothing in dense mode
+     *
+     * @param layer The layer
+     */
+    public void flush(Layer layer)
+    {
+        Tensor weights = layer.getParams();
+        if (!sparse || weights == null)
+        {
+            return;
+        }
+        LazyDecay[] lazy;
+        synchronized (decays)
+        {
+            lazy = decays.get(weights);
+        }
+        if (lazy == null)
+        {
+            return;
+        }
+        Tensor gg = layer.getWeightAccum();
+        for (int i = 0, wSz = weights.size(); i < wSz; ++i)
+        {
+            weights.set(i, weights.get(i) * lazy[0].catchUp(i));
+            if (lazy[1] != null)
+            {
+                gg.set(i, gg.get(i) * lazy[1].catchUp(i));
+            }
         }
     }
 
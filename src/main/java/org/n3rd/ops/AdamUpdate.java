@@ -0,0 +1,72 @@
+package org.n3rd.ops;
+
+/**
+ * Adam (Kingma and Ba), with bias-corrected estimates of the mean and uncentered variance of the gradients.
+ *
+ * By default, the regularization is L2, added to the gradient before the moments, as in the paper.  With decoupled
+ * weight decay (see {@link AdamWUpdate}), the weights are decayed directly instead, like the other updates here do,
+ * so the decay isn't scaled down for weights with large gradients.
+ *
+ * @author dpressel
+ */
+public class AdamUpdate extends StatefulUpdate
+{
+    private final double beta1;
+    private final double beta2;
+    private final double eps;
+    private final boolean decoupled;
+
+    public AdamUpdate()
+    {
+        this(0.9, 0.999, 1e-8, false);
+    }
+
+    /**
+     * @param beta1 The decay of the gradient mean
+     * @param beta2 The decay of the squared gradient mean
+     * @param eps Added to the root of the squared gradient mean, for stability
+     * @param decoupled Decay the weights directly, rather than adding L2 to the gradients?
+     */
+    public AdamUpdate(double beta1, double beta2, double eps, boolean decoupled)
+    {
+        this(beta1, beta2, eps, decoupled, new OptimizerState());
+    }
+
+    public AdamUpdate(double beta1, double beta2, double eps, boolean decoupled, OptimizerState state)
+    {
+        super(state);
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.eps = eps;
+        this.decoupled = decoupled;
+    }
+
+    @Override
+    protected int numSlots()
+    {
+        return 2;
+    }
+
+    @Override
+    protected void update(OptimizerState.Entry entry, double[] w, double[] g, int n, double eta, double lambda)
+    {
+        final double[] m = entry.slot(0);
+        final double[] v = entry.slot(1);
+        final long t = entry.getSteps();
+        // Fold the bias corrections into the step size
+        final double etaT = eta * Math.sqrt(1 - Math.pow(beta2, t)) / (1 - Math.pow(beta1, t));
+        final double epsT = eps * Math.sqrt(1 - Math.pow(beta2, t));
+        final double l2 = decoupled ? 0. : lambda;
+        final double decay = decoupled ? 1 - eta * lambda : 1.;
+        for (int i = 0; i < n; ++i)
+        {
+            final double gi = g[i] + l2 * w[i];
+            final double mi = beta1 * m[i] + (1 - beta1) * gi;
+            final double vi = beta2 * v[i] + (1 - beta2) * gi * gi;
+            m[i] = mi;
+            v[i] = vi;
+            w[i] = w[i] * decay - etaT * mi / (Math.sqrt(vi) + epsT);
+            g[i] = 0.;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.n3rd.ops;
+
+/**
+ * Adam with decoupled weight decay (Loshchilov and Hutter)
+ *
+ * @author dpressel
+ */
+public class AdamWUpdate extends AdamUpdate
+{
+    public AdamWUpdate()
+    {
+        this(0.9, 0.999, 1e-8);
+    }
+
+    public AdamWUpdate(double beta1, double beta2, double eps)
+    {
+        super(beta1, beta2, eps, true);
+    }
+}
@@ -0,0 +1,38 @@
+package org.n3rd.ops;
+
+import org.n3rd.layers.Layer;
+
+/**
+ * An {@link Update} that also updates the biases.  Updates that aren't get plain SGD for their biases, which is what
+ * {@link #sgd(Layer, double)} does
+ *
+ * @author dpressel
+ */
+public interface BiasUpdate
+{
+    /**
+     * Update the layer's biases from its bias gradients, and zero the gradients.  The biases are not regularized
+     *
+     * @param layer The layer
+     * @param eta The learning rate
+     */
+    void runBias(Layer layer, double eta);
+
+    /**
+     * Plain SGD on the biases
+     *
+     * @param layer The layer
+     * @param eta The learning rate
+     */
+    static void sgd(Layer layer, double eta)
+    {
+        double[] biasGrads = layer.getBiasGrads();
+        double[] biasParams = layer.getBiasParams();
+        for (int i = 0; i < biasParams.length; ++i)
+        {
+            // Dont bother to regularize
+            biasParams[i] -= biasGrads[i] * eta;
+            biasGrads[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.n3rd.ops;
+
+/**
+ * The handful of BLAS routines the layers use, with the same column-major conventions and arguments as jblas's
+ * NativeBlas, so an implementation can be swapped in without touching the callers.
+ *
+ * There are two implementations, {@link JBlas}, which calls the native library through jblas, and {@link JavaBlas},
+ * which is pure Java.  The layers use the shared instance from {@link #getInstance()}, which is picked by the
+ * n3rd.blas system property ("jblas" or "java").  If the property isn't given, it's jblas, unless its native library
+ * won't load, in which case it's Java.  Call {@link #setInstance(Blas)} to change it at runtime.
+ *
+ * @author dpressel
+ */
+public abstract class Blas
+{
+    public static final String PROPERTY = "n3rd.blas";
+    public static final String JBLAS = "jblas";
+    public static final String JAVA = "java";
+
+    private static volatile Blas instance;
+
+    /**
+     * Get the shared instance, picking one the first time
+     *
+     * @return The BLAS the layers use
+     */
+    public static Blas getInstance()
+    {
+        Blas blas = instance;
+        if (blas == null)
+        {
+            synchronized (Blas.class)
+            {
+                if (instance == null)
+                {
+                    instance = choose(System.getProperty(PROPERTY));
+                }
+                blas = instance;
+            }
+        }
+        return blas;
+    }
+
+    /**
+     * Change the shared instance
+     *
+     * @param blas The BLAS the layers should use
+     */
+    public static void setInstance(Blas blas)
+    {
+        instance = blas;
+    }
+
+    /**
+     * Create an implementation by name
+     *
+     * @param name "jblas" or "java"
+     * @return The implementation
+     */
+    public static Blas forName(String name)
+    {
+        if (JBLAS.equals(name))
+        {
+            return new JBlas();
+        }
+        if (JAVA.equals(name))
+        {
+            return new JavaBlas();
+        }
+        throw new IllegalArgumentException("Unknown BLAS " + name);
+    }
+
+    private static Blas choose(String name)
+    {
+        if (name != null)
+        {
+            return forName(name);
+        }
+        try
+        {
+            return new JBlas();
+        }
+        catch (LinkageError error)
+        {
+            System.err.println("Native BLAS is unavailable, using the Java one: " + error.getMessage());
+            return new JavaBlas();
+        }
+    }
+
+    /**
+     * c = alpha * op(a) * op(b) + beta * c, where op(a) is m x k, op(b) is k x n, and c is m x n
+     */
+    public abstract void dgemm(char transA, char transB, int m, int n, int k, double alpha, double[] a, int aIdx,
+                               int lda, double[] b, int bIdx, int ldb, double beta, double[] c, int cIdx, int ldc);
+
+    /**
+     * y = alpha * op(a) * x + beta * y, where a is m x n
+     */
+    public abstract void dgemv(char trans, int m, int n, double alpha, double[] a, int aIdx, int lda, double[] x,
+                               int xIdx, int incx, double beta, double[] y, int yIdx, int incy);
+
+    /**
+     * a = alpha * x * y^T + a, where a is m x n
+     */
+    public abstract void dger(int m, int n, double alpha, double[] x, int xIdx, int incx, double[] y, int yIdx,
+                              int incy, double[] a, int aIdx, int lda);
+
+    /**
+     * Single-precision {@link #dgemm}
+     */
+    public abstract void sgemm(char transA, char transB, int m, int n, int k, float alpha, float[] a, int aIdx,
+                               int lda, float[] b, int bIdx, int ldb, float beta, float[] c, int cIdx, int ldc);
+
+    /**
+     * Single-precision {@link #dgemv}
+     */
+    public abstract void sgemv(char trans, int m, int n, float alpha, float[] a, int aIdx, int lda, float[] x,
+                               int xIdx, int incx, float beta, float[] y, int yIdx, int incy);
+}
@@ -0,0 +1,63 @@
+package org.n3rd.ops;
+
+/**
+ * The scratch space the BLAS convolutions unroll into, shared by every layer on a thread.
+ *
+ * An unrolled input is kH * kW times bigger than the input itself, and used to be kept by every layer from forward
+ * until backward, which is most of the memory of a deep convolutional net.  Instead, each layer keeps just a copy of
+ * its input, and unrolls it into this buffer right before each product that needs it, so there is only ever one
+ * unrolled matrix per thread, sized to the biggest layer.  It grows as needed and is never shrunk.
+ *
+ * It is thread-local, so replicas of a network running on different threads (e.g. with HogwildTrainer) don't step
+ * on each other.  Anything in it is only good until the next call to {@link #columns(int)} on the same thread.
+ *
+ * @author dpressel
+ */
+public class ConvolutionWorkspace
+{
+    private static final ThreadLocal<ConvolutionWorkspace> WORKSPACE = new ThreadLocal<ConvolutionWorkspace>()
+    {
+        @Override
+        protected ConvolutionWorkspace initialValue()
+        {
+            return new ConvolutionWorkspace();
+        }
+    };
+
+    private double[] columns = new double[0];
+
+    /**
+     * Get this thread's workspace
+     *
+     * @return The workspace
+     */
+    public static ConvolutionWorkspace get()
+    {
+        return WORKSPACE.get();
+    }
+
+    /**
+     * Get a buffer for an unrolled matrix.  Its contents are whatever the last user left in it
+     *
+     * @param size The number of elements needed
+     * @return A buffer of at least that many elements
+     */
+    public double[] columns(int size)
+    {
+        if (columns.length < size)
+        {
+            columns = new double[size];
+        }
+        return columns;
+    }
+
+    /**
+     * How big the workspace has grown
+     *
+     * @return The number of elements in the buffer
+     */
+    public int capacity()
+    {
+        return columns.length;
+    }
+}
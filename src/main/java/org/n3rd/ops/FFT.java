@@ -0,0 +1,607 @@
+package org.n3rd.ops;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A self-contained FFT, replacing com.sun.media.sound.FFT, which is internal to the JDK and isnt accessible on newer
+ * ones without opening up java.desktop.
+ *
+ * It works on any size, not just powers of 2.  The size is factored into radix 4, 2, 3 and 5 passes (any other prime
+ * factor gets a plain DFT pass, which is slow for big primes, so use {@link #goodSize(int)} to pick a size), and the
+ * passes are done Stockham style, ping-ponging between the data and a scratch array, so there is no bit reversal.  The
+ * twiddle factors are computed once, when it is created, and laid out in the order each pass reads them.
+ *
+ * The complex transform works in place on interleaved real and imaginary parts, just like the one it replaces:
+ * <pre>
+ *     X[k] = sum_t x[t] exp(sign * 2 pi i k t / n)
+ * </pre>
+ * so a sign of -1 is the forward transform and +1 the inverse, and neither is normalized, so a round trip multiplies
+ * by n.
+ *
+ * For real signals there are also {@link #realForward(double[], double[])}, which gives the non-redundant half of
+ * the spectrum, and {@link #realInverse(double[], double[])}, which goes back.  For even sizes, these pack the signal
+ * into a complex one of half the size, so they cost about half of a complex transform.
+ *
+ * This holds scratch space, so each thread needs its own.
+ *
+ * @author dpressel
+ */
+public class FFT
+{
+    private final int n;
+    private final int sign;
+
+    // The radix of each pass
+    private final int[] factors;
+
+    // cos and sin of 2 pi k / n, for k = 0 .. n - 1
+    private final double[] cos;
+    private final double[] sin;
+
+    // The twiddles for each pass, for each sign
+    private final double[][] forward;
+    private final double[][] inverse;
+
+    private final double[] scratch;
+
+    // Inputs to a general radix pass
+    private final double[] vr;
+    private final double[] vi;
+
+    // Half-size complex transform for the real transforms of an even size, or full size work for an odd size
+    private FFT half;
+    private double[] packed;
+
+    /**
+     * Create a forward transform of a size
+     *
+     * @param n The size, in complex values
+     */
+    public FFT(int n)
+    {
+        this(n, -1);
+    }
+
+    /**
+     * Create a transform of a size
+     *
+     * @param n The size, in complex values
+     * @param sign The sign of the exponent for {@link #transform(double[])}, -1 for forward, 1 for inverse
+     */
+    public FFT(int n, int sign)
+    {
+        if (n < 1)
+        {
+            throw new IllegalArgumentException("FFT size must be positive, was " + n);
+        }
+        this.n = n;
+        this.sign = sign < 0 ? -1 : 1;
+        this.factors = factor(n);
+
+        cos = new double[n];
+        sin = new double[n];
+        for (int k = 0; k < n; ++k)
+        {
+            final double angle = 2. * Math.PI * k / n;
+            cos[k] = Math.cos(angle);
+            sin[k] = Math.sin(angle);
+        }
+
+        forward = new double[factors.length][];
+        inverse = new double[factors.length][];
+        int ns = 1;
+        for (int p = 0; p < factors.length; ++p)
+        {
+            final int radix = factors[p];
+            final int stride = n / (ns * radix);
+            forward[p] = new double[2 * ns * (radix - 1)];
+            inverse[p] = new double[2 * ns * (radix - 1)];
+            for (int k = 0, t = 0; k < ns; ++k)
+            {
+                for (int r = 1; r < radix; ++r, t += 2)
+                {
+                    final int w = r * k * stride;
+                    forward[p][t] = inverse[p][t] = cos[w];
+                    forward[p][t + 1] = -sin[w];
+                    inverse[p][t + 1] = sin[w];
+                }
+            }
+            ns *= radix;
+        }
+
+        scratch = new double[2 * n];
+        int maxRadix = 0;
+        for (int radix : factors)
+        {
+            maxRadix = Math.max(maxRadix, radix);
+        }
+        vr = new double[maxRadix];
+        vi = new double[maxRadix];
+    }
+
+    /**
+     * The smallest even size that is at least n, and has no prime factors other than 2, 3 and 5, so it transforms
+     * quickly.  These are much closer together than powers of 2, so there is less padding
+     *
+     * @param n The minimum size
+     * @return The size
+     */
+    public static int goodSize(int n)
+    {
+        int best = Integer.MAX_VALUE;
+        for (long p5 = 2; p5 < best; p5 *= 5)
+        {
+            for (long p35 = p5; p35 < best; p35 *= 3)
+            {
+                long size = p35;
+                while (size < n)
+                {
+                    size *= 2;
+                }
+                if (size < best)
+                {
+                    best = (int) size;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static int[] factor(int n)
+    {
+        List<Integer> factors = new ArrayList<Integer>();
+        while (n % 4 == 0)
+        {
+            factors.add(4);
+            n /= 4;
+        }
+        for (int p = 2; n > 1; ++p)
+        {
+            while (n % p == 0)
+            {
+                factors.add(p);
+                n /= p;
+            }
+        }
+        int[] f = new int[factors.size()];
+        for (int i = 0; i < f.length; ++i)
+        {
+            f[i] = factors.get(i);
+        }
+        return f;
+    }
+
+    /**
+     * The size of the transform
+     *
+     * @return The number of complex values
+     */
+    public int size()
+    {
+        return n;
+    }
+
+    /**
+     * Transform in place, with the sign given when this was created
+     *
+     * @param data The first n complex values, interleaved real and imaginary parts
+     */
+    public void transform(double[] data)
+    {
+        transform(data, sign);
+    }
+
+    /**
+     * Transform in place
+     *
+     * @param data The first n complex values, interleaved real and imaginary parts
+     * @param sign The sign of the exponent, -1 for forward, 1 for inverse
+     */
+    public void transform(double[] data, int sign)
+    {
+        final double s = sign < 0 ? -1. : 1.;
+        final double[][] twiddles = sign < 0 ? forward : inverse;
+        double[] src = data;
+        double[] dst = scratch;
+        int ns = 1;
+        for (int p = 0; p < factors.length; ++p)
+        {
+            final int radix = factors[p];
+            final int m = n / radix;
+            final double[] tw = twiddles[p];
+            switch (radix)
+            {
+                case 2:
+                    pass2(src, dst, m, ns, tw);
+                    break;
+                case 3:
+                    pass3(src, dst, m, ns, tw, s);
+                    break;
+                case 4:
+                    pass4(src, dst, m, ns, tw, s);
+                    break;
+                case 5:
+                    pass5(src, dst, m, ns, tw, s);
+                    break;
+                default:
+                    pass(src, dst, radix, m, ns, tw, s);
+            }
+            double[] t = src;
+            src = dst;
+            dst = t;
+            ns *= radix;
+        }
+        if (src != data)
+        {
+            System.arraycopy(src, 0, data, 0, 2 * n);
+        }
+    }
+
+    // Each pass does m butterflies.  Butterfly j = j0 + k reads src[j + r * m], twiddles input r by
+    // exp(s * 2 pi i * r * k / (ns * radix)), takes the DFT over r and writes the results ns apart, from
+    // j0 * radix + k.  The twiddles for k are together in the pass's table, for r = 1 .. radix - 1
+
+    private static void pass2(double[] src, double[] dst, int m, int ns, double[] tw)
+    {
+        for (int j0 = 0; j0 < m; j0 += ns)
+        {
+            for (int k = 0; k < ns; ++k)
+            {
+                final int j = 2 * (j0 + k);
+                final int t = 2 * k;
+                final double wr = tw[t];
+                final double wi = tw[t + 1];
+                final double ar = src[j];
+                final double ai = src[j + 1];
+                final double xr = src[j + 2 * m];
+                final double xi = src[j + 2 * m + 1];
+                final double br = xr * wr - xi * wi;
+                final double bi = xr * wi + xi * wr;
+                final int d = 2 * (j0 * 2 + k);
+                dst[d] = ar + br;
+                dst[d + 1] = ai + bi;
+                dst[d + 2 * ns] = ar - br;
+                dst[d + 2 * ns + 1] = ai - bi;
+            }
+        }
+    }
+
+    private static void pass3(double[] src, double[] dst, int m, int ns, double[] tw, double s)
+    {
+        final double h = s * Math.sqrt(3.) / 2.;
+        for (int j0 = 0; j0 < m; j0 += ns)
+        {
+            for (int k = 0; k < ns; ++k)
+            {
+                final int j = 2 * (j0 + k);
+                final int t = 4 * k;
+                final double ar = src[j];
+                final double ai = src[j + 1];
+                double xr = src[j + 2 * m];
+                double xi = src[j + 2 * m + 1];
+                final double br = xr * tw[t] - xi * tw[t + 1];
+                final double bi = xr * tw[t + 1] + xi * tw[t];
+                xr = src[j + 4 * m];
+                xi = src[j + 4 * m + 1];
+                final double cr = xr * tw[t + 2] - xi * tw[t + 3];
+                final double ci = xr * tw[t + 3] + xi * tw[t + 2];
+
+                final double tr = ar - 0.5 * (br + cr);
+                final double ti = ai - 0.5 * (bi + ci);
+                final double ur = -h * (bi - ci);
+                final double ui = h * (br - cr);
+                final int d = 2 * (j0 * 3 + k);
+                dst[d] = ar + br + cr;
+                dst[d + 1] = ai + bi + ci;
+                dst[d + 2 * ns] = tr + ur;
+                dst[d + 2 * ns + 1] = ti + ui;
+                dst[d + 4 * ns] = tr - ur;
+                dst[d + 4 * ns + 1] = ti - ui;
+            }
+        }
+    }
+
+    private static void pass4(double[] src, double[] dst, int m, int ns, double[] tw, double s)
+    {
+        for (int j0 = 0; j0 < m; j0 += ns)
+        {
+            for (int k = 0; k < ns; ++k)
+            {
+                final int j = 2 * (j0 + k);
+                final int t = 6 * k;
+                final double ar = src[j];
+                final double ai = src[j + 1];
+                double xr = src[j + 2 * m];
+                double xi = src[j + 2 * m + 1];
+                final double br = xr * tw[t] - xi * tw[t + 1];
+                final double bi = xr * tw[t + 1] + xi * tw[t];
+                xr = src[j + 4 * m];
+                xi = src[j + 4 * m + 1];
+                final double cr = xr * tw[t + 2] - xi * tw[t + 3];
+                final double ci = xr * tw[t + 3] + xi * tw[t + 2];
+                xr = src[j + 6 * m];
+                xi = src[j + 6 * m + 1];
+                final double dr = xr * tw[t + 4] - xi * tw[t + 5];
+                final double di = xr * tw[t + 5] + xi * tw[t + 4];
+
+                // The fourth root of unity is s * i
+                final double pr = ar + cr;
+                final double pi = ai + ci;
+                final double qr = ar - cr;
+                final double qi = ai - ci;
+                final double er = br + dr;
+                final double ei = bi + di;
+                final double fr = -s * (bi - di);
+                final double fi = s * (br - dr);
+                final int d = 2 * (j0 * 4 + k);
+                dst[d] = pr + er;
+                dst[d + 1] = pi + ei;
+                dst[d + 2 * ns] = qr + fr;
+                dst[d + 2 * ns + 1] = qi + fi;
+                dst[d + 4 * ns] = pr - er;
+                dst[d + 4 * ns + 1] = pi - ei;
+                dst[d + 6 * ns] = qr - fr;
+                dst[d + 6 * ns + 1] = qi - fi;
+            }
+        }
+    }
+
+    private static void pass5(double[] src, double[] dst, int m, int ns, double[] tw, double s)
+    {
+        final double c1 = Math.cos(2. * Math.PI / 5.);
+        final double c2 = Math.cos(4. * Math.PI / 5.);
+        final double s1 = s * Math.sin(2. * Math.PI / 5.);
+        final double s2 = s * Math.sin(4. * Math.PI / 5.);
+        for (int j0 = 0; j0 < m; j0 += ns)
+        {
+            for (int k = 0; k < ns; ++k)
+            {
+                final int j = 2 * (j0 + k);
+                final int t = 8 * k;
+                final double ar = src[j];
+                final double ai = src[j + 1];
+                double xr = src[j + 2 * m];
+                double xi = src[j + 2 * m + 1];
+                final double br = xr * tw[t] - xi * tw[t + 1];
+                final double bi = xr * tw[t + 1] + xi * tw[t];
+                xr = src[j + 4 * m];
+                xi = src[j + 4 * m + 1];
+                final double cr = xr * tw[t + 2] - xi * tw[t + 3];
+                final double ci = xr * tw[t + 3] + xi * tw[t + 2];
+                xr = src[j + 6 * m];
+                xi = src[j + 6 * m + 1];
+                final double dr = xr * tw[t + 4] - xi * tw[t + 5];
+                final double di = xr * tw[t + 5] + xi * tw[t + 4];
+                xr = src[j + 8 * m];
+                xi = src[j + 8 * m + 1];
+                final double er = xr * tw[t + 6] - xi * tw[t + 7];
+                final double ei = xr * tw[t + 7] + xi * tw[t + 6];
+
+                // Outputs 1 and 4, and 2 and 3, differ only in the sign of an imaginary part
+                final double t1r = br + er;
+                final double t1i = bi + ei;
+                final double t2r = cr + dr;
+                final double t2i = ci + di;
+                final double t3r = br - er;
+                final double t3i = bi - ei;
+                final double t4r = cr - dr;
+                final double t4i = ci - di;
+                final double p1r = ar + c1 * t1r + c2 * t2r;
+                final double p1i = ai + c1 * t1i + c2 * t2i;
+                final double p2r = ar + c2 * t1r + c1 * t2r;
+                final double p2i = ai + c2 * t1i + c1 * t2i;
+                final double u1r = -(s1 * t3i + s2 * t4i);
+                final double u1i = s1 * t3r + s2 * t4r;
+                final double u2r = -(s2 * t3i - s1 * t4i);
+                final double u2i = s2 * t3r - s1 * t4r;
+                final int d = 2 * (j0 * 5 + k);
+                dst[d] = ar + t1r + t2r;
+                dst[d + 1] = ai + t1i + t2i;
+                dst[d + 2 * ns] = p1r + u1r;
+                dst[d + 2 * ns + 1] = p1i + u1i;
+                dst[d + 4 * ns] = p2r + u2r;
+                dst[d + 4 * ns + 1] = p2i + u2i;
+                dst[d + 6 * ns] = p2r - u2r;
+                dst[d + 6 * ns + 1] = p2i - u2i;
+                dst[d + 8 * ns] = p1r - u1r;
+                dst[d + 8 * ns + 1] = p1i - u1i;
+            }
+        }
+    }
+
+    // Any other radix, as a plain DFT over the inputs
+    private void pass(double[] src, double[] dst, int radix, int m, int ns, double[] tw, double s)
+    {
+        final int dftStride = n / radix;
+        for (int j0 = 0; j0 < m; j0 += ns)
+        {
+            for (int k = 0; k < ns; ++k)
+            {
+                final int j = 2 * (j0 + k);
+                final int t = 2 * (radix - 1) * k;
+                vr[0] = src[j];
+                vi[0] = src[j + 1];
+                for (int r = 1; r < radix; ++r)
+                {
+                    final double xr = src[j + 2 * r * m];
+                    final double xi = src[j + 2 * r * m + 1];
+                    final double wr = tw[t + 2 * (r - 1)];
+                    final double wi = tw[t + 2 * (r - 1) + 1];
+                    vr[r] = xr * wr - xi * wi;
+                    vi[r] = xr * wi + xi * wr;
+                }
+                final int d = 2 * (j0 * radix + k);
+                for (int q = 0; q < radix; ++q)
+                {
+                    double yr = 0.;
+                    double yi = 0.;
+                    for (int r = 0; r < radix; ++r)
+                    {
+                        final int w = (r * q % radix) * dftStride;
+                        yr += vr[r] * cos[w] - vi[r] * s * sin[w];
+                        yi += vr[r] * s * sin[w] + vi[r] * cos[w];
+                    }
+                    dst[d + 2 * q * ns] = yr;
+                    dst[d + 2 * q * ns + 1] = yi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forward transform a real signal.  Its spectrum is conjugate symmetric, so only the first n / 2 + 1 values are
+     * given
+     *
+     * @param x The signal, n real values
+     * @param spectrum The first n / 2 + 1 complex values of the spectrum, interleaved real and imaginary parts
+     */
+    public void realForward(double[] x, double[] spectrum)
+    {
+        realForward(x, 0, spectrum, 0);
+    }
+
+    /**
+     * Forward transform a real signal that is part of a bigger array, into part of another
+     *
+     * @param x The signal, n real values from x0
+     * @param x0 The offset of the signal
+     * @param spectrum The first n / 2 + 1 complex values of the spectrum, interleaved real and imaginary parts, from s0
+     * @param s0 The offset of the spectrum
+     */
+    public void realForward(double[] x, int x0, double[] spectrum, int s0)
+    {
+        final int bins = n / 2 + 1;
+        if ((n & 1) == 1)
+        {
+            double[] z = packed();
+            for (int t = 0; t < n; ++t)
+            {
+                z[2 * t] = x[x0 + t];
+                z[2 * t + 1] = 0.;
+            }
+            transform(z, -1);
+            System.arraycopy(z, 0, spectrum, s0, 2 * bins);
+            return;
+        }
+
+        // Even samples in the real part, odd in the imaginary, then separate their spectra by symmetry and combine
+        // them, E[k] + exp(-2 pi i k / n) O[k]
+        final int m = n / 2;
+        double[] z = packed();
+        System.arraycopy(x, x0, z, 0, n);
+        half().transform(z, -1);
+        for (int k = 0; k <= m / 2; ++k)
+        {
+            final int a = k == m ? 0 : k;
+            final int b = m - k == m ? 0 : m - k;
+            final double zr = z[2 * a];
+            final double zi = z[2 * a + 1];
+            final double cr = z[2 * b];
+            final double ci = -z[2 * b + 1];
+            // Do bins k and m - k together, since they read the same two values
+            setBin(spectrum, s0, k, zr, zi, cr, ci);
+            if (k != m - k)
+            {
+                setBin(spectrum, s0, m - k, cr, -ci, zr, -zi);
+            }
+        }
+    }
+
+    // Bin k of a real signal's spectrum, from Z[k] and conj(Z[m - k]) of its packed transform
+    private void setBin(double[] spectrum, int s0, int k, double zr, double zi, double cr, double ci)
+    {
+        final double er = 0.5 * (zr + cr);
+        final double ei = 0.5 * (zi + ci);
+        // (Z - conj) / 2i
+        final double or = 0.5 * (zi - ci);
+        final double oi = -0.5 * (zr - cr);
+        final double wr = cos[k];
+        final double wi = -sin[k];
+        spectrum[s0 + 2 * k] = er + or * wr - oi * wi;
+        spectrum[s0 + 2 * k + 1] = ei + or * wi + oi * wr;
+    }
+
+    /**
+     * Inverse transform the half spectrum of a real signal, as given by {@link #realForward(double[], double[])}.
+     * Like the complex transform, this isnt normalized, so the signal comes back multiplied by n
+     *
+     * @param spectrum The first n / 2 + 1 complex values of the spectrum, interleaved real and imaginary parts
+     * @param x The n real values of the signal
+     */
+    public void realInverse(double[] spectrum, double[] x)
+    {
+        realInverse(spectrum, 0, x, 0);
+    }
+
+    /**
+     * Inverse transform the half spectrum of a real signal that is part of a bigger array, into part of another
+     *
+     * @param spectrum The first n / 2 + 1 complex values of the spectrum, interleaved real and imaginary parts, from s0
+     * @param s0 The offset of the spectrum
+     * @param x The n real values of the signal, from x0
+     * @param x0 The offset of the signal
+     */
+    public void realInverse(double[] spectrum, int s0, double[] x, int x0)
+    {
+        final int bins = n / 2 + 1;
+        if ((n & 1) == 1)
+        {
+            double[] z = packed();
+            System.arraycopy(spectrum, s0, z, 0, 2 * bins);
+            for (int k = bins; k < n; ++k)
+            {
+                z[2 * k] = spectrum[s0 + 2 * (n - k)];
+                z[2 * k + 1] = -spectrum[s0 + 2 * (n - k) + 1];
+            }
+            transform(z, 1);
+            for (int t = 0; t < n; ++t)
+            {
+                x[x0 + t] = z[2 * t];
+            }
+            return;
+        }
+
+        // Undo the separation: Z[k] = E[k] + i O[k], with E[k] = X[k] + conj(X[m - k]) and
+        // O[k] = (X[k] - conj(X[m - k])) exp(2 pi i k / n), which leaves the result scaled by n after the inverse
+        final int m = n / 2;
+        double[] z = packed();
+        for (int k = 0; k < m; ++k)
+        {
+            final double xr = spectrum[s0 + 2 * k];
+            final double xi = spectrum[s0 + 2 * k + 1];
+            final double cr = spectrum[s0 + 2 * (m - k)];
+            final double ci = -spectrum[s0 + 2 * (m - k) + 1];
+            final double er = xr + cr;
+            final double ei = xi + ci;
+            final double dr = xr - cr;
+            final double di = xi - ci;
+            final double wr = cos[k];
+            final double wi = sin[k];
+            final double or = dr * wr - di * wi;
+            final double oi = dr * wi + di * wr;
+            z[2 * k] = er - oi;
+            z[2 * k + 1] = ei + or;
+        }
+        half().transform(z, 1);
+        System.arraycopy(z, 0, x, x0, n);
+    }
+
+    private FFT half()
+    {
+        if (half == null)
+        {
+            half = new FFT(n / 2);
+        }
+        return half;
+    }
+
+    private double[] packed()
+    {
+        if (packed == null)
+        {
+            packed = new double[2 * n];
+        }
+        return packed;
+    }
+}
@@ -1,37 +1,547 @@
 package org.n3rd.ops;
 
-import com.sun.media.sound.FFT;
+import org.n3rd.Tensor;
 import org.sgdtk.ArrayDouble;
 
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 /**
- * Convolution and Cross-correlation methods using FFTs.
- * As in the case of Unsafe, the sun media libraries have been ported to
- * open JDKs, so using their APIs should not be an issue here.
+ * Convolution and Cross-correlation methods using FFTs, done by our own {@link FFT}.
  *
- * @author dpressel  
+ * For filtering many signals by many kernels, as a convolutional layer does, use
+ * {@link #filter(Tensor, Tensor, boolean, double[])}, which transforms each input and each kernel only once, instead
+ * of once per pair.  The signals are all real, so it uses real transforms, and only keeps the non-redundant half of
+ * each spectrum.  The kernel spectra are kept until it is given a different kernel Tensor, so if you change the values
+ * of the same one (other than through training, which transforms a different Tensor on the way back), call
+ * {@link #kernelsChanged()}.
+ *
+ * Only the valid part of the output is needed, so a transform as long as the signal is enough, and its size is picked
+ * from sizes with small prime factors (see {@link FFT#goodSize(int)}) rather than powers of 2, so there is much less
+ * padding.  A long signal can also be filtered in blocks, each a little longer than the kernel, by overlap-save or
+ * overlap-add (see {@link Mode}), which does less work when the kernel is much shorter than the signal.  By default,
+ * it works out which block size is cheapest.
+ *
+ * {@link #filter2(Tensor, Tensor, boolean, double[])} does the same for 2D, for spatial convolution, with a real
+ * transform of each row and then a complex transform of each column.  The spectra it makes are also enough for the
+ * backward pass, {@link #filter2Backward(Tensor, double[], double[])}, which only has to transform the chain gradient.
+ *
+ * This holds scratch space, so each thread needs its own.
+ *
+ * @author dpressel
  *
  */
 public class FFTOps
 {
+    /**
+     * How {@link #filter(Tensor, Tensor, boolean, double[])} splits up a long signal
+     */
+    public enum Mode
+    {
+        /**
+         * Overlap-save, with whichever block size is estimated to be cheapest, which may be the whole signal
+         */
+        AUTO,
+        /**
+         * Transform the whole signal at once
+         */
+        WHOLE,
+        /**
+         * Transform overlapping blocks of the input, and keep the part of each output that doesnt wrap around
+         */
+        OVERLAP_SAVE,
+        /**
+         * Transform separate pieces of the input, and add up the overlapping outputs
+         */
+        OVERLAP_ADD
+    }
 
     double[] xwide;
     double[] ywide;
 
     Map<Integer, FFT> ffts;
-    Map<Integer, FFT> iffts;
+
+    // Below this, the work per block that isnt in the transforms outweighs the savings from smaller transforms
+    static final int MIN_BLOCK_SIZE = 64;
+
+    Mode mode = Mode.AUTO;
+    int blockSize;
+
+    // Half spectra, n / 2 + 1 complex values per row, of the inputs and of the kernels, and of the sums that become
+    // a row of output
+    double[] signal;
+    double[][] inputSpectra;
+    double[][] kernelSpectra;
+    double[] sums;
+
+    // What the kernel spectra were made from
+    Tensor spectraKernels;
+    boolean spectraCorr;
+    int spectraSize;
+
+    // The same for 2D, where each spectrum is rows x (cols / 2 + 1) complex values.  The image spectra and their
+    // dims are kept from filter2 for filter2Backward
+    double[] plane;
+    double[] column;
+    double[] sums2;
+    double[][] imageSpectra;
+    double[][] kernelSpectra2;
+    double[][] chainSpectra;
+    int[] imageDims;
+    Tensor spectraKernels2;
+    boolean spectraCorr2;
+    int spectraRows;
+    int spectraCols;
 
     public FFTOps()
     {
         xwide = null;
         ywide = null;
         ffts = new HashMap<Integer, FFT>();
-        iffts = new HashMap<Integer, FFT>();
 
     }
 
+    private FFT getFFT(int n)
+    {
+        FFT fft = ffts.get(n);
+        if (fft == null)
+        {
+            fft = new FFT(n);
+            ffts.put(n, fft);
+        }
+        return fft;
+    }
+
+    /**
+     * Change how long signals are split up
+     *
+     * @param mode The mode
+     * @param blockSize For overlap-save or overlap-add, the transform size to use for each block, or 0 to pick the
+     *                  cheapest.  It is rounded up to a good size, and to at least twice the kernel width
+     */
+    public void setMode(Mode mode, int blockSize)
+    {
+        this.mode = mode;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Forget the kernel spectra, because the kernels have changed in place
+     */
+    public void kernelsChanged()
+    {
+        spectraKernels = null;
+        spectraKernels2 = null;
+    }
+
+    /**
+     * Filter each row of the input with the matching row of each kernel, summing over the input feature maps.  This
+     * is the frequency domain version of FilterOps.corr1 (or conv1), without the biases.
+     *
+     * @param data The input, kL x embedSz x iT
+     * @param kernels The kernels, nK x kL x embedSz x kW
+     * @param corr If true, cross-correlate, otherwise convolve
+     * @param z The output, nK x embedSz x (iT - kW + 1), which is overwritten
+     */
+    public void filter(Tensor data, Tensor kernels, boolean corr, double[] z)
+    {
+        final int iT = data.dims[2];
+        final int embedSz = data.dims[1];
+        final int nK = kernels.dims[0];
+        final int kL = kernels.dims[1];
+        final int kW = kernels.dims[3];
+        final int oT = iT - kW + 1;
+        final boolean overlapAdd = mode == Mode.OVERLAP_ADD;
+        final int n = transformSize(iT, kW, overlapAdd);
+        final int bins = n / 2 + 1;
+        final FFT fft = getFFT(n);
+
+        if (signal == null || signal.length < n)
+        {
+            signal = new double[n];
+        }
+        if (sums == null || sums.length < 2 * bins)
+        {
+            sums = new double[2 * bins];
+        }
+        inputSpectra = allocate(inputSpectra, kL * embedSz, bins);
+
+        if (kernels != spectraKernels || corr != spectraCorr || n != spectraSize)
+        {
+            final int rows = nK * kL * embedSz;
+            kernelSpectra = allocate(kernelSpectra, rows, bins);
+            for (int r = 0; r < rows; ++r)
+            {
+                // Reversing the kernels makes the correlation a convolution
+                load(kernels, r * kW, kW, !corr, n);
+                fft.realForward(signal, kernelSpectra[r]);
+            }
+            spectraKernels = kernels;
+            spectraCorr = corr;
+            spectraSize = n;
+        }
+
+        // Each block gives step outputs (overlap-save), or takes step inputs (overlap-add)
+        final int step = n - kW + 1;
+        final int rows = nK * embedSz;
+        if (!overlapAdd)
+        {
+            for (int t0 = 0; t0 < oT; t0 += step)
+            {
+                inputSpectra(fft, data, kL * embedSz, iT, t0, Math.min(n, iT - t0), n);
+                final int count = Math.min(step, oT - t0);
+                for (int r = 0; r < rows; ++r)
+                {
+                    sumProducts(fft, r, embedSz, kL, bins);
+                    final int zr = r * oT + t0;
+                    for (int i = 0; i < count; ++i)
+                    {
+                        z[zr + i] = signal[i] / n;
+                    }
+                }
+            }
+            return;
+        }
+
+        Arrays.fill(z, 0, rows * oT, 0.);
+        for (int t0 = 0; t0 < iT; t0 += step)
+        {
+            final int length = Math.min(step, iT - t0);
+            inputSpectra(fft, data, kL * embedSz, iT, t0, length, n);
+            // This piece touches the outputs whose windows overlap it, which start up to kW - 1 before it
+            final int start = Math.max(1 - kW, -t0);
+            final int end = Math.min(length, oT - t0);
+            for (int r = 0; r < rows; ++r)
+            {
+                sumProducts(fft, r, embedSz, kL, bins);
+                final int zr = r * oT + t0;
+                for (int i = start; i < end; ++i)
+                {
+                    z[zr + i] += signal[i < 0 ? i + n : i] / n;
+                }
+            }
+        }
+    }
+
+    // The transform size for each block.  Overlap-save needs at least the signal length to do it in one block, since
+    // only the valid outputs are kept, and overlap-add needs room for the full output of a piece.  Otherwise, estimate
+    // the cost of each good size as the number of blocks times n log n
+    int transformSize(int iT, int kW, boolean overlapAdd)
+    {
+        final int whole = FFT.goodSize(overlapAdd ? iT + kW - 1 : iT);
+        if (mode == Mode.WHOLE)
+        {
+            return whole;
+        }
+        if (blockSize > 0)
+        {
+            return Math.min(whole, FFT.goodSize(Math.max(blockSize, 2 * kW)));
+        }
+
+        final int oT = iT - kW + 1;
+        int best = whole;
+        double bestCost = blocks(whole, iT, kW, oT, overlapAdd) * whole * Math.log(whole);
+        for (int n = FFT.goodSize(Math.max(2 * kW, MIN_BLOCK_SIZE)); n < whole; n = FFT.goodSize(n + 1))
+        {
+            final double cost = blocks(n, iT, kW, oT, overlapAdd) * n * Math.log(n);
+            if (cost < bestCost)
+            {
+                best = n;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private static int blocks(int n, int iT, int kW, int oT, boolean overlapAdd)
+    {
+        final int step = n - kW + 1;
+        return ((overlapAdd ? iT : oT) + step - 1) / step;
+    }
+
+    private static double[][] allocate(double[][] spectra, int rows, int bins)
+    {
+        if (spectra == null || spectra.length < rows || spectra[0].length < 2 * bins)
+        {
+            spectra = new double[rows][2 * bins];
+        }
+        return spectra;
+    }
+
+    // Transform a block of each row of the input, from t0, length long
+    private void inputSpectra(FFT fft, Tensor data, int rows, int iT, int t0, int length, int n)
+    {
+        for (int r = 0; r < rows; ++r)
+        {
+            load(data, r * iT + t0, length, false, n);
+            fft.realForward(signal, inputSpectra[r]);
+        }
+    }
+
+    // Copy values into the signal, zero padded to n
+    private void load(Tensor x, int x0, int length, boolean reverse, int n)
+    {
+        for (int i = 0; i < length; ++i)
+        {
+            signal[i] = x.at(reverse ? x0 + length - 1 - i : x0 + i);
+        }
+        Arrays.fill(signal, length, n, 0.);
+    }
+
+    // Sum, over the input feature maps, the products of the input spectra and the conjugate kernel spectra for one row
+    // of output, k * embedSz + j, and transform it back into the signal, multiplied by n
+    private void sumProducts(FFT fft, int row, int embedSz, int kL, int bins)
+    {
+        final int k = row / embedSz;
+        final int j = row % embedSz;
+        Arrays.fill(sums, 0, 2 * bins, 0.);
+        for (int l = 0; l < kL; ++l)
+        {
+            final double[] x = inputSpectra[l * embedSz + j];
+            final double[] y = kernelSpectra[(k * kL + l) * embedSz + j];
+            for (int b = 0; b < 2 * bins; b += 2)
+            {
+                final double xr = x[b];
+                final double xi = x[b + 1];
+                final double yr = y[b];
+                final double yi = y[b + 1];
+                sums[b] += xr * yr + xi * yi;
+                sums[b + 1] += xi * yr - xr * yi;
+            }
+        }
+        fft.realInverse(sums, signal);
+    }
+
+    /**
+     * Filter each input feature map with each kernel in 2D, summing over the input feature maps.  This is the frequency
+     * domain version of FilterOps.corr2 (or conv2), without the biases.  The input spectra are kept for
+     * {@link #filter2Backward(Tensor, double[], double[])}, and the kernel spectra as for
+     * {@link #filter(Tensor, Tensor, boolean, double[])}
+     *
+     * @param data The input, kL x iH x iW
+     * @param kernels The kernels, nK x kL x kH x kW
+     * @param corr If true, cross-correlate, otherwise convolve
+     * @param z The output, nK x (iH - kH + 1) x (iW - kW + 1), which is overwritten
+     */
+    public void filter2(Tensor data, Tensor kernels, boolean corr, double[] z)
+    {
+        final int kL = data.dims[0];
+        final int iH = data.dims[1];
+        final int iW = data.dims[2];
+        final int nK = kernels.dims[0];
+        final int kH = kernels.dims[2];
+        final int kW = kernels.dims[3];
+        final int oH = iH - kH + 1;
+        final int oW = iW - kW + 1;
+
+        // As in 1D, only the valid part is kept, so a transform the size of the input doesnt wrap around into it.
+        // The full convolution and the weight gradients in the backward pass fit in the same size
+        final int rows = FFT.goodSize(iH);
+        final int cols = FFT.goodSize(iW);
+        final int bins = rows * (cols / 2 + 1);
+        allocate2(rows, cols);
+
+        imageSpectra = allocate(imageSpectra, kL, bins);
+        for (int l = 0; l < kL; ++l)
+        {
+            forward2(data, l * iH * iW, iH, iW, false, rows, cols, imageSpectra[l]);
+        }
+        imageDims = new int[] { kL, iH, iW };
+
+        if (kernels != spectraKernels2 || corr != spectraCorr2 || rows != spectraRows || cols != spectraCols)
+        {
+            kernelSpectra2 = allocate(kernelSpectra2, nK * kL, bins);
+            for (int r = 0; r < nK * kL; ++r)
+            {
+                // Reversing the kernels in both directions makes the correlation a convolution
+                forward2(kernels, r * kH * kW, kH, kW, !corr, rows, cols, kernelSpectra2[r]);
+            }
+            spectraKernels2 = kernels;
+            spectraCorr2 = corr;
+            spectraRows = rows;
+            spectraCols = cols;
+        }
+
+        final double area = rows * cols;
+        for (int k = 0; k < nK; ++k)
+        {
+            Arrays.fill(sums2, 0, 2 * bins, 0.);
+            for (int l = 0; l < kL; ++l)
+            {
+                multiplyAdd(imageSpectra[l], kernelSpectra2[k * kL + l], true, bins);
+            }
+            inverse2(rows, cols, oH);
+            for (int i = 0; i < oH; ++i)
+            {
+                for (int j = 0; j < oW; ++j)
+                {
+                    z[(k * oH + i) * oW + j] = plane[i * cols + j] / area;
+                }
+            }
+        }
+    }
+
+    /**
+     * The gradients of the last {@link #filter2(Tensor, Tensor, boolean, double[])}, which must have been a
+     * cross-correlation, with respect to its input and its kernels.  These are the frequency domain versions of the
+     * full convolution of the chain gradient with the kernels, and of FilterOps.corr2Weights.  Both reuse the spectra
+     * of the input and the kernels from the forward pass, so the kernels must not have changed since
+     *
+     * @param chainGrad The gradient of the output, nK x oH x oW
+     * @param grads The gradient of the input, kL x iH x iW, which is overwritten, or null to skip it
+     * @param weightGrads The gradient of the kernels, nK x kL x kH x kW, which is overwritten, or null to skip it
+     */
+    public void filter2Backward(Tensor chainGrad, double[] grads, double[] weightGrads)
+    {
+        if (imageDims == null || spectraKernels2 == null || !spectraCorr2)
+        {
+            throw new IllegalStateException("No cross-correlation to take the gradient of, call filter2 first");
+        }
+        final int kL = imageDims[0];
+        final int iH = imageDims[1];
+        final int iW = imageDims[2];
+        final int nK = spectraKernels2.dims[0];
+        final int kH = spectraKernels2.dims[2];
+        final int kW = spectraKernels2.dims[3];
+        final int oH = iH - kH + 1;
+        final int oW = iW - kW + 1;
+        final int rows = spectraRows;
+        final int cols = spectraCols;
+        final int bins = rows * (cols / 2 + 1);
+        final double area = rows * cols;
+
+        chainSpectra = allocate(chainSpectra, nK, bins);
+        for (int k = 0; k < nK; ++k)
+        {
+            forward2(chainGrad, k * oH * oW, oH, oW, false, rows, cols, chainSpectra[k]);
+        }
+
+        if (grads != null)
+        {
+            for (int l = 0; l < kL; ++l)
+            {
+                Arrays.fill(sums2, 0, 2 * bins, 0.);
+                for (int k = 0; k < nK; ++k)
+                {
+                    multiplyAdd(chainSpectra[k], kernelSpectra2[k * kL + l], false, bins);
+                }
+                inverse2(rows, cols, iH);
+                for (int i = 0; i < iH; ++i)
+                {
+                    for (int j = 0; j < iW; ++j)
+                    {
+                        grads[(l * iH + i) * iW + j] = plane[i * cols + j] / area;
+                    }
+                }
+            }
+        }
+
+        if (weightGrads != null)
+        {
+            for (int k = 0; k < nK; ++k)
+            {
+                for (int l = 0; l < kL; ++l)
+                {
+                    Arrays.fill(sums2, 0, 2 * bins, 0.);
+                    multiplyAdd(imageSpectra[l], chainSpectra[k], true, bins);
+                    inverse2(rows, cols, kH);
+                    final int w0 = (k * kL + l) * kH;
+                    for (int i = 0; i < kH; ++i)
+                    {
+                        for (int j = 0; j < kW; ++j)
+                        {
+                            weightGrads[(w0 + i) * kW + j] = plane[i * cols + j] / area;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void allocate2(int rows, int cols)
+    {
+        final int sz = rows * (cols / 2 + 1) * 2;
+        if (plane == null || plane.length < rows * cols)
+        {
+            plane = new double[rows * cols];
+        }
+        if (column == null || column.length < 2 * rows)
+        {
+            column = new double[2 * rows];
+        }
+        if (sums2 == null || sums2.length < sz)
+        {
+            sums2 = new double[sz];
+        }
+    }
+
+    // Add the products of two spectra, or of one and the conjugate of the other, to the 2D sums
+    private void multiplyAdd(double[] x, double[] y, boolean conjugate, int bins)
+    {
+        final double sign = conjugate ? -1. : 1.;
+        for (int b = 0; b < 2 * bins; b += 2)
+        {
+            final double xr = x[b];
+            final double xi = x[b + 1];
+            final double yr = y[b];
+            final double yi = sign * y[b + 1];
+            sums2[b] += xr * yr - xi * yi;
+            sums2[b + 1] += xr * yi + xi * yr;
+        }
+    }
+
+    // Transform an h x w real image, from x0, zero padded to rows x cols, into its half spectrum: a real transform of
+    // each row, and then a complex transform of each column of those
+    private void forward2(Tensor x, int x0, int h, int w, boolean reverse, int rows, int cols, double[] spectrum)
+    {
+        final FFT rowFFT = getFFT(cols);
+        final int rowSz = (cols / 2 + 1) * 2;
+        for (int r = 0; r < h; ++r)
+        {
+            for (int c = 0; c < w; ++c)
+            {
+                plane[c] = x.at(reverse ? x0 + h * w - 1 - (r * w + c) : x0 + r * w + c);
+            }
+            Arrays.fill(plane, w, cols, 0.);
+            rowFFT.realForward(plane, 0, spectrum, r * rowSz);
+        }
+        // The padding rows transform to zeros
+        Arrays.fill(spectrum, h * rowSz, rows * rowSz, 0.);
+        columns(spectrum, rows, rowSz, -1);
+    }
+
+    // Inverse transform the 2D sums into the plane, rows x cols, but only the first h rows, multiplied by rows * cols
+    private void inverse2(int rows, int cols, int h)
+    {
+        final FFT rowFFT = getFFT(cols);
+        final int rowSz = (cols / 2 + 1) * 2;
+        columns(sums2, rows, rowSz, 1);
+        for (int r = 0; r < h; ++r)
+        {
+            rowFFT.realInverse(sums2, r * rowSz, plane, r * cols);
+        }
+    }
+
+    // Transform each column of a half spectrum in place
+    private void columns(double[] spectrum, int rows, int rowSz, int sign)
+    {
+        final FFT colFFT = getFFT(rows);
+        for (int b = 0; b < rowSz; b += 2)
+        {
+            for (int r = 0, i = b; r < rows; ++r, i += rowSz)
+            {
+                column[2 * r] = spectrum[i];
+                column[2 * r + 1] = spectrum[i + 1];
+            }
+            colFFT.transform(column, sign);
+            for (int r = 0, i = b; r < rows; ++r, i += rowSz)
+            {
+                spectrum[i] = column[2 * r];
+                spectrum[i + 1] = column[2 * r + 1];
+            }
+        }
+    }
+
     public void filter(double[] x, int x0, int xLength, double[] y, int y0, int yLength, double[] z, boolean corr)
     {
 
@@ -51,19 +561,7 @@ public class FFTOps
             Arrays.fill(ywide, 0);
         }
 
-        FFT fft = ffts.get(wide);
-        FFT ifft = iffts.get(wide);
-        if (fft == null)
-        {
-            fft = new FFT(wide, -1);
-            ffts.put(wide, fft);
-        }
-
-        if (ifft == null)
-        {
-            ifft = new FFT(wide, 1);
-            iffts.put(wide, ifft);
-        }
+        FFT fft = getFFT(wide);
 
         for (int i = 0, j = 0; i < xLength; ++i, j += 2)
         {
@@ -87,8 +585,8 @@ public class FFTOps
             }
         }
 
-        fft.transform(xwide);
-        fft.transform(ywide);
+        fft.transform(xwide, -1);
+        fft.transform(ywide, -1);
 
         for (int i = 0; i < doubleWide; i+= 2)
         {
@@ -99,7 +597,7 @@ public class FFTOps
             xwide[i+1] = xwr*ywide[i+1] + xwi*ywide[i];
         }
 
-        ifft.transform(xwide);
+        fft.transform(xwide, 1);
 
         for (int i = 0, j = 0; i < narrow; ++i, j += 2)
         {
@@ -3,17 +3,75 @@ package org.n3rd.ops;
 import org.n3rd.Tensor;
 import org.sgdtk.ArrayDouble;
 
+import java.util.Arrays;
+
 /**
  * Basically, a bunch of cross-correlation and convolution implementations
  *
+ * The direct versions are blocked over kernels and output columns, and split their output rows across threads (see
+ * {@link Parallel}).  Their kernels may be off-heap, and are read where they are, since each kernel value is only
+ * loaded once per block of output columns.  The accumulators are kept per thread, and a loop too small to split runs
+ * on the calling thread without making a task for it, so filtering allocates nothing once the threads have warmed
+ * up.  The FFT version needs the kernels on the heap
+ *
  * @author dpressel
  */
 public class FilterOps
 {
+    // Output columns per block, so the accumulators for a block of kernels and the input rows feeding them stay in L1
+    static final int COL_BLOCK = 512;
+
+    // Kernels done together, so each input value that is loaded is used for this many outputs
+    static final int KERNEL_BLOCK = 4;
+
+    // The accumulators for a block of kernels, per thread, grown as needed
+    private static final ThreadLocal<double[][]> ACCUMULATORS = new ThreadLocal<double[][]>()
+    {
+        @Override
+        protected double[][] initialValue()
+        {
+            return new double[KERNEL_BLOCK][0];
+        }
+    };
+
+    private static double[][] accumulators(int size)
+    {
+        double[][] acc = ACCUMULATORS.get();
+        if (acc[0].length < size)
+        {
+            for (int b = 0; b < KERNEL_BLOCK; ++b)
+            {
+                acc[b] = new double[size];
+            }
+        }
+        return acc;
+    }
+
     // Here we are applying the chain gradient from backprop (ygrad) as a cross-corr filter on the
     // input layer.  This (of course) yields a weight gradient surface, which better be the same size as
     // the weights themselves
-    public static void corr2Weights(Tensor x, Tensor ygrad, Tensor weightGrads)
+    public static void corr2Weights(final Tensor x, final Tensor ygrad, final Tensor weightGrads)
+    {
+        // Each row of each kernel's weight gradient is independent, so they can be split up
+        final int rows = ygrad.dims[0] * x.dims[0] * weightGrads.dims[2];
+        final long workPerRow = (long) weightGrads.dims[3] * ygrad.dims[1] * ygrad.dims[2];
+        if (!Parallel.willSplit(rows, workPerRow))
+        {
+            corr2WeightsRows(x, ygrad, weightGrads, 0, rows);
+            return;
+        }
+        Parallel.forRows(rows, workPerRow, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                corr2WeightsRows(x, ygrad, weightGrads, from, to);
+            }
+        });
+    }
+
+    // The weight gradient rows [from, to), where a row is one row of one kernel for one input feature map
+    private static void corr2WeightsRows(Tensor x, Tensor ygrad, Tensor weightGrads, int from, int to)
     {
         // x is then the input, and ygrad is the output, which is usually going to be smaller
         // x.dims[0] is #feature maps in the input
@@ -42,50 +100,62 @@ public class FilterOps
 
         final ArrayDouble xA = x.getArray();
         final ArrayDouble gyA = ygrad.getArray();
-        ArrayDouble gwA = weightGrads.getArray();
+        final ArrayDouble gwA = weightGrads.getArray();
 
-        // For each feature map
-        for (int k = 0; k < nFeatureMapsInput; ++k)
+        for (int row = from; row < to; ++row)
         {
-            // The weight gradient is the size of the kernel itself, which is a cube of size input depth x kh x kw
-            //int okbase = k * kRows;
+            // The output feature map, input feature map and kernel row
+            final int l = row / (nFeatureMapsInput * kRows);
+            final int k = (row / kRows) % nFeatureMapsInput;
+            final int i = row % kRows;
 
-            for (int l = 0; l < nFeatureMapsOutput; ++l)
+            // For each input col
+            for (int j = 0; j < kCols; ++j)
             {
 
-                // For each input row
-                for (int i = 0; i < kRows; ++i)
-                {
-                    //int kbase = (okbase + i) * kCols;
-                    // For each input col
-                    for (int j = 0; j < kCols; ++j)
-                    {
-
-                        int wAddr = ((l * nFeatureMapsInput + k) * kRows + i) * kCols + j;
+                int wAddr = ((l * nFeatureMapsInput + k) * kRows + i) * kCols + j;
 
-                        // For input depth
-                        double acc = 0;
+                // For input depth
+                double acc = 0;
 
-                        // corr2!!
-                        for (int m = 0; m < yRows; ++m)
-                        {
-                            for (int n = 0; n < yCols; ++n)
-                            {
-                                int xAddr = (k * xRows + i + m) * xCols + j + n;
-                                //final int kh = m;//ygrad.h - m - 1;
-                                //final int kw = n;//ygrad.w - n - 1;
-                                int yAddr = (l * yRows + m) * yCols + n;
-                                acc += xA.at(xAddr) * gyA.at(yAddr);
-                            }
-                        }
-                        gwA.set(wAddr, acc);
+                // corr2!!
+                for (int m = 0; m < yRows; ++m)
+                {
+                    for (int n = 0; n < yCols; ++n)
+                    {
+                        int xAddr = (k * xRows + i + m) * xCols + j + n;
+                        int yAddr = (l * yRows + m) * yCols + n;
+                        acc += xA.at(xAddr) * gyA.at(yAddr);
                     }
                 }
+                gwA.set(wAddr, acc);
             }
         }
     }
 
-    public static Tensor corr1Weights(Tensor x, Tensor ygrad, Tensor weightGrads)
+    public static Tensor corr1Weights(final Tensor x, final Tensor ygrad, final Tensor weightGrads)
+    {
+        // Each embedding row of each kernel's weight gradient is independent, so they can be split up
+        final int rows = ygrad.dims[0] * x.dims[0] * x.dims[1];
+        final long workPerRow = (long) weightGrads.dims[3] * ygrad.dims[2];
+        if (!Parallel.willSplit(rows, workPerRow))
+        {
+            corr1WeightsRows(x, ygrad, weightGrads, 0, rows);
+            return weightGrads;
+        }
+        Parallel.forRows(rows, workPerRow, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                corr1WeightsRows(x, ygrad, weightGrads, from, to);
+            }
+        });
+        return weightGrads;
+    }
+
+    // The weight gradient rows [from, to), where a row is one embedding row of one kernel for one input feature map
+    private static void corr1WeightsRows(Tensor x, Tensor ygrad, Tensor weightGrads, int from, int to)
     {
         // x is then the input, and ygrad is the output, which is usually going to be smaller
         // x.dims[0] is #feature maps in the input
@@ -110,130 +180,172 @@ public class FilterOps
 
         final ArrayDouble xA = x.getArray();
         final ArrayDouble gyA = ygrad.getArray();
-        ArrayDouble gwA = weightGrads.getArray();
+        final ArrayDouble gwA = weightGrads.getArray();
 
-        // For each feature map
-        for (int k = 0; k < nFeatureMapsInput; ++k)
+        for (int row = from; row < to; ++row)
         {
-            // The weight gradient is the size of the kernel itself, which is a cube of size input depth x kh x kw
-            for (int l = 0; l < nFeatureMapsOutput; ++l)
+            // The output feature map, input feature map and embedding row
+            final int l = row / (nFeatureMapsInput * embeddingSz);
+            final int k = (row / embeddingSz) % nFeatureMapsInput;
+            final int j = row % embeddingSz;
+
+            // For each input row
+            for (int i = 0; i < kRows; ++i)
             {
-                // For each input col, embeddingSz is also kCols essentially
-                for (int j = 0; j < embeddingSz; ++j)
-                {
-                    // For each input row
-                    for (int i = 0; i < kRows; ++i)
-                    {
 
-                        int wAddr = ((l * nFeatureMapsInput + k) * embeddingSz + j) * kRows + i;
-                        // For input depth
-                        double acc = 0;
+                int wAddr = ((l * nFeatureMapsInput + k) * embeddingSz + j) * kRows + i;
+                // For input depth
+                double acc = 0;
 
-                        // corr2!!
-                        for (int m = 0; m < yRows; ++m)
-                        {
+                // corr2!!
+                for (int m = 0; m < yRows; ++m)
+                {
 
-                            int xAddr = (k * embeddingSz + j) * xRows + i + m;
-                            int yAddr = (l * embeddingSz + j) * yRows + m;
-                            acc += xA.at(xAddr) * gyA.at(yAddr);
-                        }
-                        gwA.set(wAddr, acc);
-                    }
+                    int xAddr = (k * embeddingSz + j) * xRows + i + m;
+                    int yAddr = (l * embeddingSz + j) * yRows + m;
+                    acc += xA.at(xAddr) * gyA.at(yAddr);
                 }
+                gwA.set(wAddr, acc);
             }
         }
-        return weightGrads;
     }
 
+    /**
+     * Filter in the frequency domain.  This gives the same result as corr1 (or conv1), but each input row and each
+     * kernel row is transformed once, rather than once per pair, and the kernel transforms are kept in the FFTOps
+     * between calls with the same kernels
+     *
+     * @param fft The FFT workspace, which also caches the kernel spectra
+     * @param data The input, kL x embedSz x iT
+     * @param kernels The kernels, nK x kL x embedSz x kW
+     * @param biases The biases, one per kernel, or null
+     * @param corr If true, cross-correlate, otherwise convolve
+     * @param output The output, nK x embedSz x (iT - kW + 1)
+     */
     public static void fftfilt(FFTOps fft, Tensor data, Tensor kernels, double[] biases, boolean corr, Tensor output)
     {
         final int iT = data.dims[2];
         final int embedSz = data.dims[1];
         final int nK = kernels.dims[0];
-        final int kL = kernels.dims[1];
         final int kW = kernels.dims[3];
         final int oT = iT - kW + 1;
         //Tensor output = new Tensor(nK, embedSz, oT);
         ArrayDouble oA = output.getArray();
-        final ArrayDouble dA = data.getArray();
-        final ArrayDouble kA = kernels.getArray();
-        oA.constant(0.);
-        double[] z = new double[oT];
+        fft.filter(data, kernels, corr, oA.v);
 
+        if (biases == null)
+        {
+            return;
+        }
         for (int k = 0; k < nK; ++k)
         {
-            final double bias = biases == null ? 0.0 : biases[k];
-
-            for (int j = 0, dOff = 0; j < embedSz; ++j, dOff += iT)
+            final double bias = biases[k];
+            for (int i = k * embedSz * oT, sz = i + embedSz * oT; i < sz; ++i)
             {
-                for (int l = 0; l < kL; ++l)
-                {
-                    int dataAddr0 = (l * embedSz + j) * iT;
-                    int kernAddr0 = ((k * kL + l) * embedSz + j) * kW;
-                    int outAddr0 = (k * embedSz + j) * oT;
-
-                    fft.filter(dA.v, dataAddr0, iT, kA.v, kernAddr0, kW, z, corr);
-                    for (int i = 0; i < oT; ++i)
-                    {
-                        oA.addi(outAddr0 + i, z[i] + bias);
-                    }
-                }
+                oA.addi(i, bias);
             }
         }
-
     }
 
-    public static void corr1(Tensor data, Tensor kernels, double[] biases, Tensor output)
+    /**
+     * Filter in 2D in the frequency domain.  This gives the same result as corr2 (or conv2), and as with fftfilt, each
+     * input feature map and each kernel is transformed once, and the kernel transforms are kept between calls
+     *
+     * @param fft The FFT workspace, which also caches the kernel spectra, and keeps the input spectra for
+     *            {@link FFTOps#filter2Backward(Tensor, double[], double[])}
+     * @param data The input, kL x iH x iW
+     * @param kernels The kernels, nK x kL x kH x kW
+     * @param biases The biases, one per kernel, or null
+     * @param corr If true, cross-correlate, otherwise convolve
+     * @param output The output, nK x (iH - kH + 1) x (iW - kW + 1)
+     */
+    public static void fftfilt2(FFTOps fft, Tensor data, Tensor kernels, double[] biases, boolean corr, Tensor output)
     {
-        final int iT = data.dims[2];
-        final int embedSz = data.dims[1];
         final int nK = kernels.dims[0];
-        final int kL = kernels.dims[1];
-        final int kW = kernels.dims[3];
-        final int oT = iT - kW + 1;
-        //Tensor output = new Tensor(nK, embedSz, oT);
-        final ArrayDouble dA = data.getArray();
-        final ArrayDouble kA = kernels.getArray();
-
+        final int oSz = (data.dims[1] - kernels.dims[2] + 1) * (data.dims[2] - kernels.dims[3] + 1);
         ArrayDouble oA = output.getArray();
+        fft.filter2(data, kernels, corr, oA.v);
 
-        for (int k = 0, kbase = 0; k < nK; ++k, kbase += embedSz)
+        if (biases == null)
         {
-            final double bias = biases == null ? 0.0 : biases[k];
-
-            for (int j = 0; j < embedSz; ++j)
+            return;
+        }
+        for (int k = 0; k < nK; ++k)
+        {
+            final double bias = biases[k];
+            for (int i = k * oSz, sz = i + oSz; i < sz; ++i)
             {
-                final int outAddr0 = (kbase + j) * oT;
-
-                for (int i = 0; i < oT; ++i)
-                {
-                    oA.set(outAddr0 + i, bias);
-                }
-
-                for (int l = 0, lbase = 0; l < kL; ++l, lbase += embedSz)
-                {
-                    final int dataAddr0 = (lbase + j) * iT;
-                    final int kernAddr0 = ((k * kL + l) * embedSz + j) * kW;
-
-                    for (int i = 0; i < oT; ++i)
-                    {
-                        final int outAddr = outAddr0 + i;
-                        for (int m = 0; m < kW; ++m)
-                        {
-                            final int dataAddr = dataAddr0 + i + m;
-                            final int kernAddr = kernAddr0 + m;
-                            oA.addi(outAddr, dA.at(dataAddr) * kA.at(kernAddr));
-                        }
-                    }
-                }
+                oA.addi(i, bias);
             }
         }
+    }
 
+    // acc[b][j] += w[w0 + b * wStride] * x[x0 + j], for each of the kn kernels in a block.  Each accumulator is its own
+    // array and the loop is over contiguous memory, so the JIT can vectorize it.  The kernels are read through the
+    // Tensor, so they can stay off-heap, and that is outside of the loop
+    private static void accumulate(double[][] acc, int kn, Tensor w, int w0, int wStride, double[] x, int x0, int jn)
+    {
+        if (kn == KERNEL_BLOCK)
+        {
+            final double w1 = w.at(w0);
+            final double w2 = w.at(w0 + wStride);
+            final double w3 = w.at(w0 + 2 * wStride);
+            final double w4 = w.at(w0 + 3 * wStride);
+            final double[] a1 = acc[0];
+            final double[] a2 = acc[1];
+            final double[] a3 = acc[2];
+            final double[] a4 = acc[3];
+            for (int j = 0; j < jn; ++j)
+            {
+                final double xj = x[x0 + j];
+                a1[j] += w1 * xj;
+                a2[j] += w2 * xj;
+                a3[j] += w3 * xj;
+                a4[j] += w4 * xj;
+            }
+            return;
+        }
+        for (int b = 0; b < kn; ++b)
+        {
+            final double wb = w.at(w0 + b * wStride);
+            final double[] ab = acc[b];
+            for (int j = 0; j < jn; ++j)
+            {
+                ab[j] += wb * x[x0 + j];
+            }
+        }
     }
 
+    /**
+     * Cross-correlate or convolve each embedding row of each input feature map with the same row of each kernel,
+     * summing over the input feature maps.  Each piece of work is a block of kernels for one embedding row, done in
+     * blocks of output columns, and the kernel values and addresses are worked out outside the inner loop
+     */
+    private static void filter1(final Tensor data, final Tensor kernels, final double[] biases, final Tensor output,
+                                final boolean conv)
+    {
+        final int kW = kernels.dims[3];
+        final int kBlocks = (kernels.dims[0] + KERNEL_BLOCK - 1) / KERNEL_BLOCK;
+        final int rows = kBlocks * data.dims[1];
+        final long workPerRow = (long) KERNEL_BLOCK * kernels.dims[1] * (data.dims[2] - kW + 1) * kW;
+        if (!Parallel.willSplit(rows, workPerRow))
+        {
+            filter1Rows(data, kernels, biases, output, conv, 0, rows);
+            return;
+        }
+        Parallel.forRows(rows, workPerRow, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                filter1Rows(data, kernels, biases, output, conv, from, to);
+            }
+        });
+    }
 
-    //Tensor output = new Tensor(nK, embedSz, oT);
-    public static void conv1(Tensor data, Tensor kernels, double[] biases, Tensor output)
+    // The rows [from, to) of filter1, where a row is a block of kernels for one embedding row
+    private static void filter1Rows(Tensor data, Tensor kernels, double[] biases, Tensor output, boolean conv, int from,
+                                    int to)
     {
         final int iT = data.dims[2];
         final int embedSz = data.dims[1];
@@ -242,97 +354,72 @@ public class FilterOps
         // Note that this is still the 3rd argument.  Now the fourth arg is not used
         final int kW = kernels.dims[3];
         final int oT = iT - kW + 1;
+        //Tensor output = new Tensor(nK, embedSz, oT);
+        final double[] d = data.getArray().v;
+        final double[] o = output.getArray().v;
+        final int kSz = kL * embedSz * kW;
 
-        final ArrayDouble dA = data.getArray();
-        final ArrayDouble kA = kernels.getArray();
-        ArrayDouble oA = output.getArray();
-
-        for (int k = 0, kbase = 0; k < nK; ++k, kbase += embedSz)
+        final double[][] acc = accumulators(Math.min(COL_BLOCK, oT));
+        for (int row = from; row < to; ++row)
         {
-            final double bias = biases == null ? 0.0 : biases[k];
-
-            for (int j = 0; j < embedSz; ++j)
+            final int k0 = (row / embedSz) * KERNEL_BLOCK;
+            final int kn = Math.min(KERNEL_BLOCK, nK - k0);
+            final int j = row % embedSz;
+            for (int i0 = 0; i0 < oT; i0 += COL_BLOCK)
             {
-                final int outAddr0 = (kbase + j) * oT;
-
-                for (int i = 0; i < oT; ++i)
+                final int in = Math.min(COL_BLOCK, oT - i0);
+                for (int b = 0; b < kn; ++b)
                 {
-                    oA.set(outAddr0 + i, bias);
+                    Arrays.fill(acc[b], 0, in, biases == null ? 0.0 : biases[k0 + b]);
                 }
-
-                for (int l = 0, lbase = 0; l < kL; ++l, lbase += embedSz)
+                for (int l = 0; l < kL; ++l)
                 {
-
-                    final int dataAddr0 = (lbase + j) * iT;
-                    final int kernAddr0 = ((k * kL + l) * embedSz + j) * kW;
-
-                    for (int i = 0; i < oT; ++i)
+                    final int dataAddr0 = (l * embedSz + j) * iT + i0;
+                    final int kernAddr0 = k0 * kSz + (l * embedSz + j) * kW;
+                    for (int m = 0; m < kW; ++m)
                     {
-                        final int outAddr = outAddr0 + i;
-                        for (int m = 0; m < kW; ++m)
-                        {
-                            final int dataAddr = dataAddr0 + i + m;
-                            final int kernAddr = kernAddr0 + (kW - m - 1);
-                            oA.addi(outAddr, dA.at(dataAddr) * kA.at(kernAddr));
-
-                        }
+                        final int kernAddr = kernAddr0 + (conv ? kW - m - 1 : m);
+                        accumulate(acc, kn, kernels, kernAddr, kSz, d, dataAddr0 + m, in);
                     }
                 }
+                for (int b = 0; b < kn; ++b)
+                {
+                    System.arraycopy(acc[b], 0, o, ((k0 + b) * embedSz + j) * oT + i0, in);
+                }
             }
         }
-
     }
 
-    //Tensor output = new Tensor(nK, oH, oW);
-    public static void conv2(Tensor data, Tensor kernels, double[] biases, Tensor output)
+    /**
+     * Cross-correlate or convolve each input feature map with each kernel, summing over the input feature maps.  Each
+     * piece of work is a block of kernels for one output row, done in blocks of output columns, and the kernel values
+     * and addresses are worked out outside the inner loop
+     */
+    private static void filter2(final Tensor data, final Tensor kernels, final double[] biases, final Tensor output,
+                                final boolean conv)
     {
-        final int dH = data.dims[1];
-        final int dW = data.dims[2];
-        final int nK = kernels.dims[0];
-        final int kL = kernels.dims[1];
-        final int kH = kernels.dims[2];
-        final int kW = kernels.dims[3];
-        final int oH = dH - kH + 1;
-        final int oW = dW - kW + 1;
-        final ArrayDouble dA = data.getArray();
-        final ArrayDouble kA = kernels.getArray();
-        ArrayDouble oA = output.getArray();
-
-        for (int k = 0; k < nK; ++k)
+        final int kBlocks = (kernels.dims[0] + KERNEL_BLOCK - 1) / KERNEL_BLOCK;
+        final int rows = kBlocks * (data.dims[1] - kernels.dims[2] + 1);
+        final long workPerRow = (long) KERNEL_BLOCK * (data.dims[2] - kernels.dims[3] + 1) * kernels.dims[1] *
+                kernels.dims[2] * kernels.dims[3];
+        if (!Parallel.willSplit(rows, workPerRow))
         {
-            int kbase = k * kL;
-            int obase = k * oH;
-
-            final double bias = biases == null ? 0.0 : biases[k];
-            for (int i = 0; i < oH; ++i)
+            filter2Rows(data, kernels, biases, output, conv, 0, rows);
+            return;
+        }
+        Parallel.forRows(rows, workPerRow, new Parallel.Rows()
+        {
+            @Override
+            public void run(int from, int to)
             {
-                int ibase = (obase + i) * oW;
-                for (int j = 0; j < oW; ++j)
-                {
-                    int outAddr = ibase + j;
-                    double acc = 0.;
-                    for (int l = 0; l < kL; ++l)
-                    {
-                        for (int m = 0; m < kH; ++m)
-                        {
-                            for (int n = 0; n < kW; ++n)
-                            {
-                                int dataAddr = (l * dH + i + m) * dW + j + n;
-                                int mh = kH - m - 1;
-                                int nw = kW - n - 1;
-                                int kernAddr = ((kbase + l) * kH + mh) * kW + nw;
-                                acc += dA.at(dataAddr) * kA.at(kernAddr);
-                            }
-                        }
-                    }
-                    oA.set(outAddr, acc + bias);
-                }
+                filter2Rows(data, kernels, biases, output, conv, from, to);
             }
-        }
-
+        });
     }
 
-    public static void corr2(Tensor data, Tensor kernels, double[] biases, Tensor output)
+    // The rows [from, to) of filter2, where a row is a block of kernels for one output row
+    private static void filter2Rows(Tensor data, Tensor kernels, double[] biases, Tensor output, boolean conv, int from,
+                                    int to)
     {
         final int dH = data.dims[1];
         final int dW = data.dims[2];
@@ -343,183 +430,64 @@ public class FilterOps
         final int oH = dH - kH + 1;
         final int oW = dW - kW + 1;
         //Tensor output = new Tensor(nK, oH, oW);
+        final double[] d = data.getArray().v;
+        final double[] o = output.getArray().v;
+        final int kSz = kL * kH * kW;
 
-        final ArrayDouble dA = data.getArray();
-        final ArrayDouble kA = kernels.getArray();
-        ArrayDouble oA = output.getArray();
-
-        for (int k = 0; k < nK; ++k)
+        final double[][] acc = accumulators(Math.min(COL_BLOCK, oW));
+        for (int row = from; row < to; ++row)
         {
-            int kbase = k * kL;
-            int obase = k * oH;
-
-            final double bias = biases == null ? 0.0 : biases[k];
-            for (int i = 0; i < oH; ++i)
+            final int k0 = (row / oH) * KERNEL_BLOCK;
+            final int kn = Math.min(KERNEL_BLOCK, nK - k0);
+            final int i = row % oH;
+            for (int j0 = 0; j0 < oW; j0 += COL_BLOCK)
             {
-                int ibase = (obase + i) * oW;
-                for (int j = 0; j < oW; ++j)
+                final int jn = Math.min(COL_BLOCK, oW - j0);
+                for (int b = 0; b < kn; ++b)
                 {
-                    int outAddr = ibase + j;
-                    double acc = 0.;
-                    for (int l = 0; l < kL; ++l)
-                    {
-                        for (int m = 0; m < kH; ++m)
-                        {
-                            for (int n = 0; n < kW; ++n)
-                            {
-                                int dataAddr = (l * dH + i + m) * dW + j + n;
-                                int kernAddr = ((kbase + l) * kH + m) * kW + n;
-                                double d = dA.at(dataAddr) * kA.at(kernAddr);
-                                acc += d;
-
-                            }
-                        }
-                    }
-                    oA.set(outAddr, acc + bias);
-
+                    Arrays.fill(acc[b], 0, jn, biases == null ? 0.0 : biases[k0 + b]);
                 }
-            }
-        }
-
-    }
-}
-/*
-    // Here we do like Chellapilla et. al. and conv2 by collapsing
-    // The input matrix gets transformed row by row to be the full h*w of the kernel
-    // concatenated by each band at each lag.  So the height is the number of lags, which is the same as the output
-    // dimension
-    //
-    // X = [ Ctr1; Ctr2; Ctr3; .... NConvs ]
-    // Lets say the
-    // CtrX is then the kernel width * kernel height.
-    // K = [f1k1 . f1k2 . f1k3; f2k1 . f2k2 . f3k3; ... Num features ];
-    // Y = [fm1; fm2]
-    //
-    // Forward prop: Y = X * W
-    //
-    // Y = | Conv1 |
-    //     | Conv2 |
-    //     | Conv3 |
-    //
-    // Back prop: gradX = gradY * trans(W)
-    //
-    // Weight grad: gradW = trans(X) * gradY
-    // Correlation between Feature Map 1, ... N and each window in the kernel
-    // This shape looks exactly like the kernel matrix, where each column is a kernel and each row is an output feature map
-    //
-    //
-    public static Tensor conv2MM(Tensor data, Tensor kernels, boolean flip)
-    {
-        // kernels.dims[0] = kernel
-        // kernels.dims[1] = layer
-        // kernels.dims[2] = height
-        // kernels.dims[3] = width
-        final int nK = kernels.dims[0];
-        final int kL = kernels.dims[1];
-        final int kH = kernels.dims[2];
-        final int kW = kernels.dims[3];
-        final int dL = data.dims[0];
-        final int dH = data.dims[1];
-        final int dW = data.dims[2];
-        final int singleWidth = kH * kW;
-        final int cubeW = dL * singleWidth;
-        final int cubeH = (dH - kH + 1) * (cubeW - kW + 1);
-        Rectangle input = new Rectangle(cubeH, cubeW);
-        Rectangle filter = new Rectangle(kH * kW * kL, nK);
-        Tensor output = new Tensor(nK, data.dims[1] - kH + 1, data.dims[2] - kW + 1);
-
-        // To populate the input, we need a loop over the full kernel width
-        int n = 0;
-
-        for (int k = 0; k < dL; ++k)
-        {
-            for (int m = 0; m < kH; ++m)
-            {
-                for (int p = 0; p < kW; ++p)
+                for (int l = 0; l < kL; ++l)
                 {
-                    for (int h = 0; h < dH - kH + 1; ++h)
+                    for (int m = 0; m < kH; ++m)
                     {
-                        for (int w = 0; w < dW - kW + 1; ++w)
+                        final int dataAddr0 = (l * dH + i + m) * dW + j0;
+                        final int kernAddr0 = k0 * kSz + (l * kH + (conv ? kH - m - 1 : m)) * kW;
+                        for (int n = 0; n < kW; ++n)
                         {
-                            int inAddr = (k * dH + h + m) * dW + w + p;
-
-                            double d = data.d[inAddr];
-                            input.d[n] = d;
-                            ++n;
+                            final int kernAddr = kernAddr0 + (conv ? kW - n - 1 : n);
+                            accumulate(acc, kn, kernels, kernAddr, kSz, d, dataAddr0 + n, jn);
                         }
                     }
                 }
+                for (int b = 0; b < kn; ++b)
+                {
+                    System.arraycopy(acc[b], 0, o, ((k0 + b) * oH + i) * oW + j0, jn);
+                }
             }
         }
-
-        if (!flip)
-        {
-            unrollKernel2(kernels, filter);
-        } else
-        {
-            unrollFlipKernel2(kernels, filter);
-        }
-        NativeBlas.dgemm('N', 'N', input.h, filter.w, input.w, 1.0, input.d, 0, input.h, filter.d, 0, filter.h, 0, output.d, 0, input.h);
-        return output;
     }
 
-    private static void unrollKernel2(Tensor kernels, Rectangle filter)
+    public static void corr1(Tensor data, Tensor kernels, double[] biases, Tensor output)
     {
-        int n;
-        n = 0;
-        final int nK = kernels.dims[0];
-        final int kL = kernels.dims[1];
-        final int kH = kernels.dims[2];
-        final int kW = kernels.dims[3];
-        for (int k = 0; k < nK; ++k)
-        {
-            int kbase = k * kL;
-
-            for (int l = 0; l < kL; ++l)
-            {
-                int lbase = (kbase + l) * kH;
-                for (int a = 0; a < kH; ++a)
-                {
-                    int abase = (lbase + a) * kW;
-                    for (int b = 0; b < kW; ++b)
-                    {
-                        int idx = abase + b;
-                        filter.d[n] = kernels.d[idx];
-                        ++n;
-                    }
-                }
-            }
-        }
+        filter1(data, kernels, biases, output, false);
     }
 
-    private static void unrollFlipKernel2(Tensor kernels, Rectangle filter)
+
+    //Tensor output = new Tensor(nK, embedSz, oT);
+    public static void conv1(Tensor data, Tensor kernels, double[] biases, Tensor output)
     {
-        int n;
-        n = 0;
+        filter1(data, kernels, biases, output, true);
+    }
 
-        final int nK = kernels.dims[0];
-        final int kL = kernels.dims[1];
-        final int kH = kernels.dims[2];
-        final int kW = kernels.dims[3];
-        for (int k = 0; k < nK; ++k)
-        {
-            int kbase = k * kL;
+    //Tensor output = new Tensor(nK, oH, oW);
+    public static void conv2(Tensor data, Tensor kernels, double[] biases, Tensor output)
+    {
+        filter2(data, kernels, biases, output, true);
+    }
 
-            for (int l = 0; l < kL; ++l)
-            {
-                int lbase = (kbase + l) * kH;
-                for (int a = 0; a < kH; ++a)
-                {
-                    int abase = (lbase + kH - a - 1) * kW;
-                    for (int b = 0; b < kW; ++b)
-                    {
-                        int idx = abase + kW - b - 1;
-                        filter.d[n] = kernels.d[idx];
-                        ++n;
-                    }
-                }
-            }
-        }
+    public static void corr2(Tensor data, Tensor kernels, double[] biases, Tensor output)
+    {
+        filter2(data, kernels, biases, output, false);
     }
 }
-*/
\ No newline at end of file
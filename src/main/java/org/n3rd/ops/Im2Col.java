@@ -0,0 +1,210 @@
+package org.n3rd.ops;
+
+import java.util.Arrays;
+
+/**
+ * Unrolling ("im2col") of a kL x iH x iW input for convolution as a matrix multiply, and the reverse ("col2im") for
+ * its gradient, with a stride, zero-padding and dilation in each direction.
+ *
+ * The unrolled input has a row for each output position and a column for each kernel tap, (l, m, n), and is stored
+ * column-major, which is what the BLAS layers multiply against their (kL * kH * kW) x nK weights.  Each example's rows
+ * can start anywhere in a taller matrix, so a batch can be unrolled into one matrix, example after example.
+ *
+ * Padding is never stored: taps that fall outside the input are written as zeros when unrolling, and dropped when
+ * rolling back up, so padded convolutions don't need an embedded copy of the input.
+ *
+ * @author dpressel
+ */
+public class Im2Col
+{
+    public final int kL;
+    public final int iH;
+    public final int iW;
+    public final int kH;
+    public final int kW;
+    public final int strideH;
+    public final int strideW;
+    public final int padH;
+    public final int padW;
+    public final int dilationH;
+    public final int dilationW;
+    public final int oH;
+    public final int oW;
+
+    /**
+     * A "valid" convolution with a stride of 1
+     */
+    public Im2Col(int kL, int iH, int iW, int kH, int kW)
+    {
+        this(kL, iH, iW, kH, kW, 1, 1, 0, 0, 1, 1);
+    }
+
+    /**
+     * @param kL The number of input feature maps
+     * @param iH The input height
+     * @param iW The input width
+     * @param kH The kernel height
+     * @param kW The kernel width
+     * @param strideH The distance between output rows, in input rows
+     * @param strideW The distance between output columns, in input columns
+     * @param padH The zeros added above and below
+     * @param padW The zeros added to the left and right
+     * @param dilationH The distance between kernel rows, in input rows
+     * @param dilationW The distance between kernel columns, in input columns
+     */
+    public Im2Col(int kL, int iH, int iW, int kH, int kW, int strideH, int strideW, int padH, int padW,
+                  int dilationH, int dilationW)
+    {
+        if (strideH < 1 || strideW < 1 || dilationH < 1 || dilationW < 1 || padH < 0 || padW < 0)
+        {
+            throw new IllegalArgumentException("Strides and dilations must be positive, and padding can't be negative");
+        }
+        this.kL = kL;
+        this.iH = iH;
+        this.iW = iW;
+        this.kH = kH;
+        this.kW = kW;
+        this.strideH = strideH;
+        this.strideW = strideW;
+        this.padH = padH;
+        this.padW = padW;
+        this.dilationH = dilationH;
+        this.dilationW = dilationW;
+        this.oH = (iH + 2 * padH - dilationH * (kH - 1) - 1) / strideH + 1;
+        this.oW = (iW + 2 * padW - dilationW * (kW - 1) - 1) / strideW + 1;
+        if (iH + 2 * padH < dilationH * (kH - 1) + 1 || iW + 2 * padW < dilationW * (kW - 1) + 1)
+        {
+            throw new IllegalArgumentException("A " + kH + "x" + kW + " kernel doesn't fit in a " + iH + "x" + iW +
+                    " input");
+        }
+    }
+
+    /**
+     * Is this the same geometry as a plain "valid" convolution with a stride of 1?
+     */
+    public boolean isDense()
+    {
+        return strideH == 1 && strideW == 1 && padH == 0 && padW == 0 && dilationH == 1 && dilationW == 1;
+    }
+
+    /**
+     * The number of rows each example unrolls into, one for each output position
+     */
+    public int rows()
+    {
+        return oH * oW;
+    }
+
+    /**
+     * The number of columns, one for each kernel tap
+     */
+    public int cols()
+    {
+        return kL * kH * kW;
+    }
+
+    // The first output column whose tap n is inside the input
+    private int firstColumn(int n)
+    {
+        final int x0 = n * dilationW - padW;
+        return x0 >= 0 ? 0 : Math.min(oW, (-x0 + strideW - 1) / strideW);
+    }
+
+    // One past the last output column whose tap n is inside the input
+    private int lastColumn(int n)
+    {
+        final int x0 = n * dilationW - padW;
+        return x0 > iW - 1 ? 0 : Math.min(oW, (iW - 1 - x0) / strideW + 1);
+    }
+
+    /**
+     * Unroll one example
+     *
+     * @param x The input
+     * @param x0 Where the example starts in x
+     * @param u The unrolled matrix, column-major
+     * @param ld The number of rows in the unrolled matrix
+     * @param r0 The row this example starts at
+     */
+    public void unwrap(double[] x, int x0, double[] u, int ld, int r0)
+    {
+        int c = 0;
+        for (int l = 0; l < kL; ++l)
+        {
+            for (int m = 0; m < kH; ++m)
+            {
+                for (int n = 0; n < kW; ++n, ++c)
+                {
+                    final int jLo = firstColumn(n);
+                    final int jHi = Math.max(jLo, lastColumn(n));
+                    final int xOff = n * dilationW - padW;
+                    for (int i = 0; i < oH; ++i)
+                    {
+                        final int base = c * ld + r0 + i * oW;
+                        final int y = i * strideH - padH + m * dilationH;
+                        if (y < 0 || y >= iH)
+                        {
+                            Arrays.fill(u, base, base + oW, 0.);
+                            continue;
+                        }
+                        Arrays.fill(u, base, base + jLo, 0.);
+                        Arrays.fill(u, base + jHi, base + oW, 0.);
+                        final int xRow = x0 + (l * iH + y) * iW + xOff;
+                        if (strideW == 1)
+                        {
+                            System.arraycopy(x, xRow + jLo, u, base + jLo, jHi - jLo);
+                        }
+                        else
+                        {
+                            for (int j = jLo; j < jHi; ++j)
+                            {
+                                u[base + j] = x[xRow + j * strideW];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Roll one example's unrolled gradient back up, adding it to the input gradient.  Every input position gets the
+     * sum over all of the taps that read it, and the padding gets nothing
+     *
+     * @param u The unrolled gradient, column-major
+     * @param ld The number of rows in the unrolled gradient
+     * @param r0 The row this example starts at
+     * @param g The input gradient, which is added to
+     * @param g0 Where the example starts in g
+     */
+    public void wrap(double[] u, int ld, int r0, double[] g, int g0)
+    {
+        int c = 0;
+        for (int l = 0; l < kL; ++l)
+        {
+            for (int m = 0; m < kH; ++m)
+            {
+                for (int n = 0; n < kW; ++n, ++c)
+                {
+                    final int jLo = firstColumn(n);
+                    final int jHi = lastColumn(n);
+                    final int xOff = n * dilationW - padW;
+                    for (int i = 0; i < oH; ++i)
+                    {
+                        final int y = i * strideH - padH + m * dilationH;
+                        if (y < 0 || y >= iH)
+                        {
+                            continue;
+                        }
+                        final int base = c * ld + r0 + i * oW;
+                        final int gRow = g0 + (l * iH + y) * iW + xOff;
+                        for (int j = jLo; j < jHi; ++j)
+                        {
+                            g[gRow + j * strideW] += u[base + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.n3rd.ops;
+
+import org.jblas.NativeBlas;
+
+/**
+ * BLAS through jblas's native library.  This is the fastest for big matrices, but each call goes through JNI, and
+ * the library has to be there for the platform
+ *
+ * @author dpressel
+ */
+public class JBlas extends Blas
+{
+    /**
+     * Load the native library, which throws a LinkageError if it can't be
+     */
+    public JBlas()
+    {
+        double[] probe = { 1. };
+        NativeBlas.dgemv('N', 1, 1, 1., probe, 0, 1, probe, 0, 1, 0., new double[1], 0, 1);
+    }
+
+    @Override
+    public void dgemm(char transA, char transB, int m, int n, int k, double alpha, double[] a, int aIdx, int lda,
+                      double[] b, int bIdx, int ldb, double beta, double[] c, int cIdx, int ldc)
+    {
+        NativeBlas.dgemm(transA, transB, m, n, k, alpha, a, aIdx, lda, b, bIdx, ldb, beta, c, cIdx, ldc);
+    }
+
+    @Override
+    public void dgemv(char trans, int m, int n, double alpha, double[] a, int aIdx, int lda, double[] x, int xIdx,
+                      int incx, double beta, double[] y, int yIdx, int incy)
+    {
+        NativeBlas.dgemv(trans, m, n, alpha, a, aIdx, lda, x, xIdx, incx, beta, y, yIdx, incy);
+    }
+
+    @Override
+    public void dger(int m, int n, double alpha, double[] x, int xIdx, int incx, double[] y, int yIdx, int incy,
+                     double[] a, int aIdx, int lda)
+    {
+        NativeBlas.dger(m, n, alpha, x, xIdx, incx, y, yIdx, incy, a, aIdx, lda);
+    }
+
+    @Override
+    public void sgemm(char transA, char transB, int m, int n, int k, float alpha, float[] a, int aIdx, int lda,
+                      float[] b, int bIdx, int ldb, float beta, float[] c, int cIdx, int ldc)
+    {
+        NativeBlas.sgemm(transA, transB, m, n, k, alpha, a, aIdx, lda, b, bIdx, ldb, beta, c, cIdx, ldc);
+    }
+
+    @Override
+    public void sgemv(char trans, int m, int n, float alpha, float[] a, int aIdx, int lda, float[] x, int xIdx,
+                      int incx, float beta, float[] y, int yIdx, int incy)
+    {
+        NativeBlas.sgemv(trans, m, n, alpha, a, aIdx, lda, x, xIdx, incx, beta, y, yIdx, incy);
+    }
+}
@@ -0,0 +1,577 @@
+package org.n3rd.ops;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * BLAS in pure Java, so there is no native library to find and no JNI call per multiply, which is most of the cost
+ * for the small matrices of a single example.
+ *
+ * The gemms are cache-blocked.  A KC x MC block of alpha * op(a) is packed so each of its columns is contiguous, and
+ * each column of c is updated from 4 of its columns at a time, which is a loop over contiguous memory the JIT can
+ * vectorize, with a quarter of the loads and stores to c.  A big gemm is split into column (or, if c is tall and
+ * thin, row) panels of c, which are done in parallel on the same ForkJoinPool as everything else (see
+ * {@link Parallel}), so the blas and the direct convolutions don't fight over the cores with two sets of threads.  The
+ * gemvs and ger are unrolled by 4 columns the same way, and stay on the calling thread.
+ *
+ * @author dpressel
+ */
+public class JavaBlas extends Blas
+{
+    // Rows and inner dimension of a packed block of a, which is 256KB of doubles, to stay in L2
+    static final int MC = 256;
+    static final int KC = 128;
+
+    // A gemm with fewer multiply-adds than this isn't worth splitting up
+    static final long PARALLEL_THRESHOLD = 1L << 18;
+
+    private static final ThreadLocal<double[]> PACKED = new ThreadLocal<double[]>()
+    {
+        @Override
+        protected double[] initialValue()
+        {
+            return new double[MC * KC];
+        }
+    };
+
+    private static final ThreadLocal<float[]> PACKED_F = new ThreadLocal<float[]>()
+    {
+        @Override
+        protected float[] initialValue()
+        {
+            return new float[MC * KC];
+        }
+    };
+
+    private final int threads;
+
+    /**
+     * Split big gemms into a panel per processor
+     */
+    public JavaBlas()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads The most panels to split a gemm into, or 1 to do everything on the calling thread
+     */
+    public JavaBlas(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    public int threads()
+    {
+        return threads;
+    }
+
+    // How many panels to split a gemm into, or 1 to do it here
+    private int panels(int m, int n, int k)
+    {
+        if (threads == 1 || (long) m * n * k < PARALLEL_THRESHOLD || Parallel.getPool().getParallelism() < 2)
+        {
+            return 1;
+        }
+        return threads;
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks)
+    {
+        try
+        {
+            for (Future<Void> future : Parallel.getPool().invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException interruptedEx)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(interruptedEx);
+        }
+        catch (ExecutionException executionEx)
+        {
+            throw new RuntimeException(executionEx.getCause());
+        }
+    }
+
+    private static boolean isTrans(char trans)
+    {
+        return trans == 'T' || trans == 't' || trans == 'C' || trans == 'c';
+    }
+
+    @Override
+    public void dgemm(final char transA, final char transB, int m, int n, final int k, final double alpha,
+                      final double[] a, final int aIdx, final int lda, final double[] b, final int bIdx, final int ldb,
+                      final double beta, final double[] c, final int cIdx, final int ldc)
+    {
+        final int panels = panels(m, n, k);
+        if (panels == 1)
+        {
+            dgemmPanel(isTrans(transA), isTrans(transB), m, n, k, alpha, a, aIdx, lda, b, bIdx, ldb, beta, c, cIdx,
+                    ldc);
+            return;
+        }
+
+        // Split c into panels of columns, or rows if it has too few columns to go around
+        final boolean byRows = n < 4 * panels && m > n;
+        final int extent = byRows ? m : n;
+        final int step = (extent + panels - 1) / panels;
+        final boolean tA = isTrans(transA);
+        final boolean tB = isTrans(transB);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(panels);
+        for (int start = 0; start < extent; start += step)
+        {
+            final int p0 = start;
+            final int pSz = Math.min(step, extent - start);
+            final int pm = byRows ? pSz : m;
+            final int pn = byRows ? n : pSz;
+            final int pa = byRows ? aIdx + (tA ? p0 * lda : p0) : aIdx;
+            final int pb = byRows ? bIdx : bIdx + (tB ? p0 : p0 * ldb);
+            final int pc = byRows ? cIdx + p0 : cIdx + p0 * ldc;
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    dgemmPanel(tA, tB, pm, pn, k, alpha, a, pa, lda, b, pb, ldb, beta, c, pc, ldc);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    static void dgemmPanel(boolean tA, boolean tB, int m, int n, int k, double alpha, double[] a, int aIdx, int lda,
+                           double[] b, int bIdx, int ldb, double beta, double[] c, int cIdx, int ldc)
+    {
+        if (m == 0 || n == 0)
+        {
+            return;
+        }
+        if (beta != 1.)
+        {
+            for (int j = 0; j < n; ++j)
+            {
+                final int cj = cIdx + j * ldc;
+                for (int i = 0; i < m; ++i)
+                {
+                    c[cj + i] = beta == 0. ? 0. : beta * c[cj + i];
+                }
+            }
+        }
+        if (alpha == 0. || k == 0)
+        {
+            return;
+        }
+
+        final double[] packed = PACKED.get();
+        for (int p0 = 0; p0 < k; p0 += KC)
+        {
+            final int kc = Math.min(KC, k - p0);
+            for (int i0 = 0; i0 < m; i0 += MC)
+            {
+                final int mc = Math.min(MC, m - i0);
+
+                // packed[p * mc + i] = alpha * op(a)[i0 + i, p0 + p]
+                for (int p = 0; p < kc; ++p)
+                {
+                    final int pp = p * mc;
+                    if (tA)
+                    {
+                        final int ap = aIdx + p0 + p + i0 * lda;
+                        for (int i = 0; i < mc; ++i)
+                        {
+                            packed[pp + i] = alpha * a[ap + i * lda];
+                        }
+                    }
+                    else
+                    {
+                        final int ap = aIdx + (p0 + p) * lda + i0;
+                        for (int i = 0; i < mc; ++i)
+                        {
+                            packed[pp + i] = alpha * a[ap + i];
+                        }
+                    }
+                }
+
+                for (int j = 0; j < n; ++j)
+                {
+                    final int cj = cIdx + j * ldc + i0;
+                    // op(b)[p0 + p, j] is at bj + p * bp
+                    final int bj = tB ? bIdx + j + p0 * ldb : bIdx + j * ldb + p0;
+                    final int bp = tB ? ldb : 1;
+                    int p = 0;
+                    for (; p + 3 < kc; p += 4)
+                    {
+                        final double b0 = b[bj + p * bp];
+                        final double b1 = b[bj + (p + 1) * bp];
+                        final double b2 = b[bj + (p + 2) * bp];
+                        final double b3 = b[bj + (p + 3) * bp];
+                        final int a0 = p * mc;
+                        final int a1 = a0 + mc;
+                        final int a2 = a1 + mc;
+                        final int a3 = a2 + mc;
+                        for (int i = 0; i < mc; ++i)
+                        {
+                            c[cj + i] += b0 * packed[a0 + i] + b1 * packed[a1 + i] + b2 * packed[a2 + i] +
+                                    b3 * packed[a3 + i];
+                        }
+                    }
+                    for (; p < kc; ++p)
+                    {
+                        final double b0 = b[bj + p * bp];
+                        final int a0 = p * mc;
+                        for (int i = 0; i < mc; ++i)
+                        {
+                            c[cj + i] += b0 * packed[a0 + i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void dgemv(char trans, int m, int n, double alpha, double[] a, int aIdx, int lda, double[] x, int xIdx,
+                      int incx, double beta, double[] y, int yIdx, int incy)
+    {
+        final boolean t = isTrans(trans);
+        final int lenY = t ? n : m;
+        if (beta != 1.)
+        {
+            for (int i = 0; i < lenY; ++i)
+            {
+                final int yi = yIdx + i * incy;
+                y[yi] = beta == 0. ? 0. : beta * y[yi];
+            }
+        }
+        if (alpha == 0. || m == 0 || n == 0)
+        {
+            return;
+        }
+
+        if (!t)
+        {
+            // y += a[:, j] * alpha * x[j], 4 columns at a time
+            int j = 0;
+            if (incy == 1)
+            {
+                for (; j + 3 < n; j += 4)
+                {
+                    final double t0 = alpha * x[xIdx + j * incx];
+                    final double t1 = alpha * x[xIdx + (j + 1) * incx];
+                    final double t2 = alpha * x[xIdx + (j + 2) * incx];
+                    final double t3 = alpha * x[xIdx + (j + 3) * incx];
+                    final int a0 = aIdx + j * lda;
+                    final int a1 = a0 + lda;
+                    final int a2 = a1 + lda;
+                    final int a3 = a2 + lda;
+                    for (int i = 0; i < m; ++i)
+                    {
+                        y[yIdx + i] += t0 * a[a0 + i] + t1 * a[a1 + i] + t2 * a[a2 + i] + t3 * a[a3 + i];
+                    }
+                }
+            }
+            for (; j < n; ++j)
+            {
+                final double t0 = alpha * x[xIdx + j * incx];
+                final int a0 = aIdx + j * lda;
+                for (int i = 0; i < m; ++i)
+                {
+                    y[yIdx + i * incy] += t0 * a[a0 + i];
+                }
+            }
+            return;
+        }
+
+        // y[j] += alpha * a[:, j] . x, 4 columns at a time
+        int j = 0;
+        if (incx == 1)
+        {
+            for (; j + 3 < n; j += 4)
+            {
+                final int a0 = aIdx + j * lda;
+                final int a1 = a0 + lda;
+                final int a2 = a1 + lda;
+                final int a3 = a2 + lda;
+                double s0 = 0., s1 = 0., s2 = 0., s3 = 0.;
+                for (int i = 0; i < m; ++i)
+                {
+                    final double xi = x[xIdx + i];
+                    s0 += a[a0 + i] * xi;
+                    s1 += a[a1 + i] * xi;
+                    s2 += a[a2 + i] * xi;
+                    s3 += a[a3 + i] * xi;
+                }
+                y[yIdx + j * incy] += alpha * s0;
+                y[yIdx + (j + 1) * incy] += alpha * s1;
+                y[yIdx + (j + 2) * incy] += alpha * s2;
+                y[yIdx + (j + 3) * incy] += alpha * s3;
+            }
+        }
+        for (; j < n; ++j)
+        {
+            final int a0 = aIdx + j * lda;
+            double s0 = 0.;
+            for (int i = 0; i < m; ++i)
+            {
+                s0 += a[a0 + i] * x[xIdx + i * incx];
+            }
+            y[yIdx + j * incy] += alpha * s0;
+        }
+    }
+
+    @Override
+    public void dger(int m, int n, double alpha, double[] x, int xIdx, int incx, double[] y, int yIdx, int incy,
+                     double[] a, int aIdx, int lda)
+    {
+        if (alpha == 0.)
+        {
+            return;
+        }
+        for (int j = 0; j < n; ++j)
+        {
+            final double t = alpha * y[yIdx + j * incy];
+            if (t == 0.)
+            {
+                continue;
+            }
+            final int aj = aIdx + j * lda;
+            if (incx == 1)
+            {
+                for (int i = 0; i < m; ++i)
+                {
+                    a[aj + i] += t * x[xIdx + i];
+                }
+            }
+            else
+            {
+                for (int i = 0; i < m; ++i)
+                {
+                    a[aj + i] += t * x[xIdx + i * incx];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void sgemm(final char transA, final char transB, int m, int n, final int k, final float alpha,
+                      final float[] a, final int aIdx, final int lda, final float[] b, final int bIdx, final int ldb,
+                      final float beta, final float[] c, final int cIdx, final int ldc)
+    {
+        final int panels = panels(m, n, k);
+        if (panels == 1)
+        {
+            sgemmPanel(isTrans(transA), isTrans(transB), m, n, k, alpha, a, aIdx, lda, b, bIdx, ldb, beta, c, cIdx,
+                    ldc);
+            return;
+        }
+
+        final boolean byRows = n < 4 * panels && m > n;
+        final int extent = byRows ? m : n;
+        final int step = (extent + panels - 1) / panels;
+        final boolean tA = isTrans(transA);
+        final boolean tB = isTrans(transB);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(panels);
+        for (int start = 0; start < extent; start += step)
+        {
+            final int p0 = start;
+            final int pSz = Math.min(step, extent - start);
+            final int pm = byRows ? pSz : m;
+            final int pn = byRows ? n : pSz;
+            final int pa = byRows ? aIdx + (tA ? p0 * lda : p0) : aIdx;
+            final int pb = byRows ? bIdx : bIdx + (tB ? p0 : p0 * ldb);
+            final int pc = byRows ? cIdx + p0 : cIdx + p0 * ldc;
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    sgemmPanel(tA, tB, pm, pn, k, alpha, a, pa, lda, b, pb, ldb, beta, c, pc, ldc);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    static void sgemmPanel(boolean tA, boolean tB, int m, int n, int k, float alpha, float[] a, int aIdx, int lda,
+                           float[] b, int bIdx, int ldb, float beta, float[] c, int cIdx, int ldc)
+    {
+        if (m == 0 || n == 0)
+        {
+            return;
+        }
+        if (beta != 1.f)
+        {
+            for (int j = 0; j < n; ++j)
+            {
+                final int cj = cIdx + j * ldc;
+                for (int i = 0; i < m; ++i)
+                {
+                    c[cj + i] = beta == 0.f ? 0.f : beta * c[cj + i];
+                }
+            }
+        }
+        if (alpha == 0.f || k == 0)
+        {
+            return;
+        }
+
+        final float[] packed = PACKED_F.get();
+        for (int p0 = 0; p0 < k; p0 += KC)
+        {
+            final int kc = Math.min(KC, k - p0);
+            for (int i0 = 0; i0 < m; i0 += MC)
+            {
+                final int mc = Math.min(MC, m - i0);
+                for (int p = 0; p < kc; ++p)
+                {
+                    final int pp = p * mc;
+                    if (tA)
+                    {
+                        final int ap = aIdx + p0 + p + i0 * lda;
+                        for (int i = 0; i < mc; ++i)
+                        {
+                            packed[pp + i] = alpha * a[ap + i * lda];
+                        }
+                    }
+                    else
+                    {
+                        final int ap = aIdx + (p0 + p) * lda + i0;
+                        for (int i = 0; i < mc; ++i)
+                        {
+                            packed[pp + i] = alpha * a[ap + i];
+                        }
+                    }
+                }
+
+                for (int j = 0; j < n; ++j)
+                {
+                    final int cj = cIdx + j * ldc + i0;
+                    final int bj = tB ? bIdx + j + p0 * ldb : bIdx + j * ldb + p0;
+                    final int bp = tB ? ldb : 1;
+                    int p = 0;
+                    for (; p + 3 < kc; p += 4)
+                    {
+                        final float b0 = b[bj + p * bp];
+                        final float b1 = b[bj + (p + 1) * bp];
+                        final float b2 = b[bj + (p + 2) * bp];
+                        final float b3 = b[bj + (p + 3) * bp];
+                        final int a0 = p * mc;
+                        final int a1 = a0 + mc;
+                        final int a2 = a1 + mc;
+                        final int a3 = a2 + mc;
+                        for (int i = 0; i < mc; ++i)
+                        {
+                            c[cj + i] += b0 * packed[a0 + i] + b1 * packed[a1 + i] + b2 * packed[a2 + i] +
+                                    b3 * packed[a3 + i];
+                        }
+                    }
+                    for (; p < kc; ++p)
+                    {
+                        final float b0 = b[bj + p * bp];
+                        final int a0 = p * mc;
+                        for (int i = 0; i < mc; ++i)
+                        {
+                            c[cj + i] += b0 * packed[a0 + i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void sgemv(char trans, int m, int n, float alpha, float[] a, int aIdx, int lda, float[] x, int xIdx,
+                      int incx, float beta, float[] y, int yIdx, int incy)
+    {
+        final boolean t = isTrans(trans);
+        final int lenY = t ? n : m;
+        if (beta != 1.f)
+        {
+            for (int i = 0; i < lenY; ++i)
+            {
+                final int yi = yIdx + i * incy;
+                y[yi] = beta == 0.f ? 0.f : beta * y[yi];
+            }
+        }
+        if (alpha == 0.f || m == 0 || n == 0)
+        {
+            return;
+        }
+
+        if (!t)
+        {
+            int j = 0;
+            if (incy == 1)
+            {
+                for (; j + 3 < n; j += 4)
+                {
+                    final float t0 = alpha * x[xIdx + j * incx];
+                    final float t1 = alpha * x[xIdx + (j + 1) * incx];
+                    final float t2 = alpha * x[xIdx + (j + 2) * incx];
+                    final float t3 = alpha * x[xIdx + (j + 3) * incx];
+                    final int a0 = aIdx + j * lda;
+                    final int a1 = a0 + lda;
+                    final int a2 = a1 + lda;
+                    final int a3 = a2 + lda;
+                    for (int i = 0; i < m; ++i)
+                    {
+                        y[yIdx + i] += t0 * a[a0 + i] + t1 * a[a1 + i] + t2 * a[a2 + i] + t3 * a[a3 + i];
+                    }
+                }
+            }
+            for (; j < n; ++j)
+            {
+                final float t0 = alpha * x[xIdx + j * incx];
+                final int a0 = aIdx + j * lda;
+                for (int i = 0; i < m; ++i)
+                {
+                    y[yIdx + i * incy] += t0 * a[a0 + i];
+                }
+            }
+            return;
+        }
+
+        int j = 0;
+        if (incx == 1)
+        {
+            for (; j + 3 < n; j += 4)
+            {
+                final int a0 = aIdx + j * lda;
+                final int a1 = a0 + lda;
+                final int a2 = a1 + lda;
+                final int a3 = a2 + lda;
+                float s0 = 0.f, s1 = 0.f, s2 = 0.f, s3 = 0.f;
+                for (int i = 0; i < m; ++i)
+                {
+                    final float xi = x[xIdx + i];
+                    s0 += a[a0 + i] * xi;
+                    s1 += a[a1 + i] * xi;
+                    s2 += a[a2 + i] * xi;
+                    s3 += a[a3 + i] * xi;
+                }
+                y[yIdx + j * incy] += alpha * s0;
+                y[yIdx + (j + 1) * incy] += alpha * s1;
+                y[yIdx + (j + 2) * incy] += alpha * s2;
+                y[yIdx + (j + 3) * incy] += alpha * s3;
+            }
+        }
+        for (; j < n; ++j)
+        {
+            final int a0 = aIdx + j * lda;
+            float s0 = 0.f;
+            for (int i = 0; i < m; ++i)
+            {
+                s0 += a[a0 + i] * x[xIdx + i * incx];
+            }
+            y[yIdx + j * incy] += alpha * s0;
+        }
+    }
+}
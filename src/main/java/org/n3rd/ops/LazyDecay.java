@@ -0,0 +1,74 @@
+package org.n3rd.ops;
+
+/**
+ * A decay that is applied to every weight on every step (e.g. weight decay), but can be left until a weight is next
+ * visited.
+ *
+ * Every step multiplies all the weights by some factor, which can change from step to step (1 - eta * lambda changes
+ * with the learning rate).  Rather than doing that to every weight, we keep the running sum of the log of the
+ * factors, and a mark for each weight with the sum when it was last brought up to date.  A weight that is visited
+ * after sitting out a few steps is then scaled by the product of all of the factors it missed in one go, so it ends
+ * up exactly where it would have been had it been decayed every step.
+ *
+ * A factor that isn't positive (e.g. eta * lambda >= 1) zeroes every weight, which has no log.  Instead, it starts a
+ * new generation, and any weight last brought up to date in an earlier generation is zeroed when it is next visited.
+ *
+ * @author dpressel
+ */
+public class LazyDecay
+{
+    private double logScale;
+    private double[] marks;
+    private int generation;
+    private int[] generations;
+
+    /**
+     * @param size The number of weights
+     */
+    public LazyDecay(int size)
+    {
+        marks = new double[size];
+        generations = new int[size];
+    }
+
+    public int size()
+    {
+        return marks.length;
+    }
+
+    /**
+     * Move on to the next step
+     *
+     * @param factor What every weight is multiplied by this step.  If this isn't positive, the weights are zeroed
+     */
+    public void step(double factor)
+    {
+        if (factor <= 0.)
+        {
+            ++generation;
+            logScale = 0.;
+            return;
+        }
+        logScale += Math.log(factor);
+    }
+
+    /**
+     * Bring a weight up to date, including this step
+     *
+     * @param i The weight's index
+     * @return What the weight needs to be multiplied by
+     */
+    public double catchUp(int i)
+    {
+        if (generations[i] != generation)
+        {
+            // Zeroed since, and anything after that is still zero
+            generations[i] = generation;
+            marks[i] = logScale;
+            return 0.;
+        }
+        final double scale = Math.exp(logScale - marks[i]);
+        marks[i] = logScale;
+        return scale;
+    }
+}
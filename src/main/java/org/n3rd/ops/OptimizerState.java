@@ -0,0 +1,100 @@
+package org.n3rd.ops;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The state an optimizer keeps for each set of parameters, e.g. Adam's two moments and its step count.
+ *
+ * Layers only have room for one accumulator ({@link org.n3rd.layers.Layer#getWeightAccum()}), so optimizers that
+ * need more keep their state here instead.  Each set of parameters, a layer's weight Tensor or its bias array, gets
+ * as many slots as the optimizer asks for, each the same size as the parameters, and a step count.  State is looked
+ * up by the identity of the parameters, so replicas of a layer, which share their parameters, share their state too.
+ * The parameters are only held weakly, so the state for a layer that is thrown away (e.g. a
+ * {@link org.n3rd.NeuralNetModel#prototype()} copy that SGDTk tried a learning rate on) goes with it.
+ *
+ * The state isn't saved with the model, just like the layers' accumulators.
+ *
+ * @author dpressel
+ */
+public class OptimizerState
+{
+    /**
+     * Everything kept for one set of parameters
+     */
+    public static class Entry
+    {
+        private final double[][] slots;
+        private long steps;
+
+        Entry(int numSlots, int size)
+        {
+            slots = new double[numSlots][size];
+        }
+
+        /**
+         * Get a slot, which starts out as zeros
+         *
+         * @param slot Which one
+         * @return The slot, the same size as the parameters
+         */
+        public double[] slot(int slot)
+        {
+            return slots[slot];
+        }
+
+        /**
+         * Count another step
+         *
+         * @return The number of steps so far, including this one
+         */
+        public long step()
+        {
+            return ++steps;
+        }
+
+        public long getSteps()
+        {
+            return steps;
+        }
+    }
+
+    // Neither Tensor nor arrays override equals(), so this is keyed by identity, and the entries don't refer back to
+    // their parameters, so they don't keep them alive
+    private final Map<Object, Entry> entries = new WeakHashMap<Object, Entry>();
+
+    /**
+     * Get the state for a set of parameters, creating it the first time
+     *
+     * @param params The parameters, a Tensor or an array
+     * @param numSlots The number of slots the optimizer needs
+     * @param size The number of parameters
+     * @return The state
+     */
+    public synchronized Entry get(Object params, int numSlots, int size)
+    {
+        Entry entry = entries.get(params);
+        if (entry == null || entry.slots.length != numSlots || entry.slots[0].length != size)
+        {
+            entry = new Entry(numSlots, size);
+            entries.put(params, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Forget the state for every set of parameters, e.g. to start training over
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * @return The number of sets of parameters with state
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+}
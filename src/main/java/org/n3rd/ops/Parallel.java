@@ -0,0 +1,133 @@
+package org.n3rd.ops;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Split a loop over independent rows of output across a shared ForkJoinPool, which is the common pool unless you
+ * give it another.  {@link JavaBlas} runs its big gemms on the same pool.
+ *
+ * The rows are split in half until each piece has about {@link #getGrain()} multiply-adds of work, so a big example
+ * keeps every core busy, and anything with less work than that in total just runs on the calling thread.  Each row
+ * must only write its own outputs, so the pieces don't need to synchronize.
+ *
+ * @author dpressel
+ */
+public class Parallel
+{
+    /**
+     * The body of a loop, over rows [from, to)
+     */
+    public interface Rows
+    {
+        void run(int from, int to);
+    }
+
+    // About 64K multiply-adds, which takes long enough to be worth handing to another thread
+    private static volatile long grain = 1L << 16;
+
+    private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * How much work, in multiply-adds, each piece of a split loop should have
+     *
+     * @return The grain size
+     */
+    public static long getGrain()
+    {
+        return grain;
+    }
+
+    /**
+     * Change how much work each piece should have.  Long.MAX_VALUE keeps everything on the calling thread, which you
+     * may want if you are already running an example per core (e.g. with HogwildTrainer)
+     *
+     * @param grain The grain size in multiply-adds
+     */
+    public static void setGrain(long grain)
+    {
+        Parallel.grain = Math.max(1L, grain);
+    }
+
+    /**
+     * Use a different pool than the common one.  A pool with a parallelism of 1 keeps everything on the calling thread
+     *
+     * @param pool The pool
+     */
+    public static void setPool(ForkJoinPool pool)
+    {
+        Parallel.pool = pool;
+    }
+
+    public static ForkJoinPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Run the rows, in parallel if there is enough work
+     *
+     * @param rows The number of rows
+     * @param workPerRow About how many multiply-adds each row takes
+     * @param body The loop body
+     */
+    public static void forRows(int rows, long workPerRow, Rows body)
+    {
+        final ForkJoinPool p = pool;
+        final int rowsPerPiece = rowsPerPiece(rows, workPerRow);
+        if (rows <= rowsPerPiece || p.getParallelism() < 2)
+        {
+            body.run(0, rows);
+            return;
+        }
+        p.invoke(new Split(body, 0, rows, rowsPerPiece));
+    }
+
+    /**
+     * Would {@link #forRows} split these rows up, or just run them on the calling thread?  A loop on a hot path can
+     * check this first and run its rows itself, so it doesn't make a {@link Rows} it doesn't need
+     *
+     * @param rows The number of rows
+     * @param workPerRow About how many multiply-adds each row takes
+     * @return true if the rows would be run in parallel
+     */
+    public static boolean willSplit(int rows, long workPerRow)
+    {
+        return rows > rowsPerPiece(rows, workPerRow) && pool.getParallelism() >= 2;
+    }
+
+    private static int rowsPerPiece(int rows, long workPerRow)
+    {
+        return (int) Math.max(1L, Math.min(rows, grain / Math.max(1L, workPerRow)));
+    }
+
+    private static class Split extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Rows body;
+        private final int from;
+        private final int to;
+        private final int rowsPerPiece;
+
+        Split(Rows body, int from, int to, int rowsPerPiece)
+        {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.rowsPerPiece = rowsPerPiece;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= rowsPerPiece)
+            {
+                body.run(from, to);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new Split(body, from, mid, rowsPerPiece), new Split(body, mid, to, rowsPerPiece));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.n3rd.ops;
+
+/**
+ * RMSProp, which is Adagrad with a moving average of the squared gradients instead of their sum, so the step size
+ * doesn't shrink forever
+ *
+ * @author dpressel
+ */
+public class RMSPropUpdate extends StatefulUpdate
+{
+    private final double rho;
+    private final double eps;
+
+    public RMSPropUpdate()
+    {
+        this(0.9, 1e-8);
+    }
+
+    /**
+     * @param rho The decay of the squared gradient average
+     * @param eps Added to the squared gradient average, for stability
+     */
+    public RMSPropUpdate(double rho, double eps)
+    {
+        this(rho, eps, new OptimizerState());
+    }
+
+    public RMSPropUpdate(double rho, double eps, OptimizerState state)
+    {
+        super(state);
+        this.rho = rho;
+        this.eps = eps;
+    }
+
+    @Override
+    protected int numSlots()
+    {
+        return 1;
+    }
+
+    @Override
+    protected void update(OptimizerState.Entry entry, double[] w, double[] g, int n, double eta, double lambda)
+    {
+        final double[] v = entry.slot(0);
+        final double decay = 1 - eta * lambda;
+        for (int i = 0; i < n; ++i)
+        {
+            final double gi = g[i];
+            final double vi = rho * v[i] + (1 - rho) * gi * gi;
+            v[i] = vi;
+            w[i] = w[i] * decay - eta * gi / Math.sqrt(vi + eps);
+            g[i] = 0.;
+        }
+    }
+}
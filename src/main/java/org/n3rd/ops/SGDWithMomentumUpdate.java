@@ -4,6 +4,12 @@ import org.n3rd.Tensor;
 import org.n3rd.layers.Layer;
 
 /**
+ * SGD with momentum, and weight decay.
+ *
+ * The decay, the velocity and the step are done in a single pass over the raw arrays, so the JIT can vectorize it.
+ * There is no sparse mode, since a weight keeps moving with its velocity even when it has no gradient, so every
+ * weight has to be visited every step.
+ *
  * Created by dpressel on 4/7/16.
  */
 public class SGDWithMomentumUpdate implements Update
@@ -23,22 +29,30 @@ public class SGDWithMomentumUpdate implements Update
         int wSz = weights.size();
 
         Tensor weightGrads = layer.getParamGrads();
+        final double decay = 1 - eta * lambda;
 
-        for (int i = 0; i < wSz; ++i)
+        // Tensors that aren't on the heap have no array, so go through the accessors
+        if (weights.isOffHeap() || last.isOffHeap() || weightGrads.isOffHeap())
         {
-            double gwi = weightGrads.get(i);
-            double lasti = last.get(i);
-
-            double delta = -eta * gwi + alpha * lasti;
-            last.set(i, delta);
-
-            // weight decay
-            double wi = weights.get(i) * (1 - eta * lambda);
-            wi += delta;
-            weights.set(i, wi);
-            weightGrads.set(i, 0);
+            for (int i = 0; i < wSz; ++i)
+            {
+                double delta = -eta * weightGrads.get(i) + alpha * last.get(i);
+                last.set(i, delta);
+                weights.set(i, weights.get(i) * decay + delta);
+                weightGrads.set(i, 0);
+            }
+            return;
         }
 
-
+        final double[] w = weights.getArray().v;
+        final double[] g = weightGrads.getArray().v;
+        final double[] v = last.getArray().v;
+        for (int i = 0; i < wSz; ++i)
+        {
+            final double delta = -eta * g[i] + alpha * v[i];
+            v[i] = delta;
+            w[i] = w[i] * decay + delta;
+            g[i] = 0.;
+        }
     }
 }
@@ -0,0 +1,93 @@
+package org.n3rd.ops;
+
+import org.n3rd.Tensor;
+import org.n3rd.layers.Layer;
+
+/**
+ * Base for updates that keep their state in an {@link OptimizerState}, rather than in the layers, and update the
+ * biases the same way as the weights.
+ *
+ * Subclasses just implement {@link #update}, over the raw arrays of one set of parameters.  Weights that are off the
+ * heap are copied in and out around it.
+ *
+ * @author dpressel
+ */
+public abstract class StatefulUpdate implements Update, BiasUpdate
+{
+    protected final OptimizerState state;
+
+    protected StatefulUpdate()
+    {
+        this(new OptimizerState());
+    }
+
+    /**
+     * @param state Where to keep the state, which can be shared by several updates
+     */
+    protected StatefulUpdate(OptimizerState state)
+    {
+        this.state = state;
+    }
+
+    public OptimizerState getState()
+    {
+        return state;
+    }
+
+    /**
+     * The number of state slots needed per parameter
+     */
+    protected abstract int numSlots();
+
+    /**
+     * Update one set of parameters, and zero their gradients
+     *
+     * @param entry The state for these parameters, which has already counted this step
+     * @param w The parameters
+     * @param g The gradients
+     * @param n The number of parameters
+     * @param eta The learning rate
+     * @param lambda The regularization, which is 0 for biases
+     */
+    protected abstract void update(OptimizerState.Entry entry, double[] w, double[] g, int n, double eta,
+                                   double lambda);
+
+    @Override
+    public void run(Layer layer, double eta, double lambda)
+    {
+        Tensor weights = layer.getParams();
+        Tensor weightGrads = layer.getParamGrads();
+        final int n = weights.size();
+        OptimizerState.Entry entry = state.get(weights, numSlots(), n);
+        entry.step();
+        if (!weights.isOffHeap() && !weightGrads.isOffHeap())
+        {
+            update(entry, weights.getArray().v, weightGrads.getArray().v, n, eta, lambda);
+            return;
+        }
+
+        // Tensors that aren't on the heap have no array, so update a copy
+        double[] w = new double[n];
+        double[] g = new double[n];
+        for (int i = 0; i < n; ++i)
+        {
+            w[i] = weights.get(i);
+            g[i] = weightGrads.get(i);
+        }
+        update(entry, w, g, n, eta, lambda);
+        for (int i = 0; i < n; ++i)
+        {
+            weights.set(i, w[i]);
+            weightGrads.set(i, 0);
+        }
+    }
+
+    @Override
+    public void runBias(Layer layer, double eta)
+    {
+        double[] biases = layer.getBiasParams();
+        OptimizerState.Entry entry = state.get(biases, numSlots(), biases.length);
+        entry.step();
+        update(entry, biases, layer.getBiasGrads(), biases.length, eta, 0.);
+    }
+}
@@ -0,0 +1,65 @@
+package org.n3rd.ops;
+
+import org.n3rd.layers.Layer;
+
+/**
+ * Wrap an update so that only one thread at a time can update any given set of weights.
+ *
+ * Hogwild-style training lets every thread write the shared weights without any locking at all, which works well
+ * when the gradients are sparse, but for dense layers the threads can stomp on each other a lot.  This is the
+ * middle ground: a fixed pool of locks, with each parameter tensor mapped to one of them, so threads updating
+ * different layers never wait on each other.  Biases are locked the same way, if the update has its own rule for
+ * them.
+ */
+public class StripedLockUpdate implements Update, BiasUpdate
+{
+    private final Update update;
+    private final Object[] locks;
+
+    public StripedLockUpdate(Update update)
+    {
+        this(update, 64);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param update The update to run under lock
+     * @param numStripes The number of locks to use
+     */
+    public StripedLockUpdate(Update update, int numStripes)
+    {
+        this.update = update;
+        this.locks = new Object[numStripes];
+        for (int i = 0; i < numStripes; ++i)
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public void run(Layer layer, double eta, double lambda)
+    {
+        // Replicas share the parameter tensor, so it's what identifies the stripe, not the layer
+        final int stripe = (System.identityHashCode(layer.getParams()) & 0x7fffffff) % locks.length;
+        synchronized (locks[stripe])
+        {
+            update.run(layer, eta, lambda);
+        }
+    }
+
+    @Override
+    public void runBias(Layer layer, double eta)
+    {
+        if (!(update instanceof BiasUpdate))
+        {
+            BiasUpdate.sgd(layer, eta);
+            return;
+        }
+        final int stripe = (System.identityHashCode(layer.getBiasParams()) & 0x7fffffff) % locks.length;
+        synchronized (locks[stripe])
+        {
+            ((BiasUpdate) update).runBias(layer, eta);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package org.n3rd.ops;
+
+import org.n3rd.Tensor;
+
+import java.util.Arrays;
+
+/**
+ * Spatial cross-correlation with square kernels by Winograd's minimal filtering, F(m x m, r x r), which gets each
+ * m x m tile of output from an (m + r - 1) x (m + r - 1) tile of input with (m + r - 1)^2 multiplies per input and
+ * output feature map, rather than m^2 r^2.  For 3x3 kernels, F(4x4, 3x3) does 36 rather than 144, and F(2x2, 3x3)
+ * does 16 rather than 36.  See Lavin and Gray, Fast Algorithms for Convolutional Neural Networks.
+ *
+ * Each tile of input d and each kernel g is transformed, V = B^T d B and U = G g G^T, the transforms are multiplied
+ * element by element and summed over the input feature maps, and the sum M is transformed back, Y = A^T M A.  The
+ * matrices come from Toom-Cook interpolation at the points 0, 1, -1, 2, -2, ... and infinity, and are worked out when
+ * this is created.  Working in the transformed space, the products for each of the (m + r - 1)^2 elements are a small
+ * matrix multiply over the feature maps and tiles, and there is no unrolled input, just the input transforms, which
+ * are (m + r - 1)^2 / m^2 times the size of the input.
+ *
+ * The backward pass stays in the transformed space too.  Since the transforms are linear, the gradient with respect
+ * to the input of a tile is B [sum_k U (A dY A^T)] B^T, and with respect to a kernel, G^T [sum_tiles V (A dY A^T)] G,
+ * so it reuses the input and kernel transforms from the forward pass.
+ *
+ * The kernel transforms are kept until it is given a different kernel Tensor, so if you change the values of the same
+ * one, call {@link #kernelsChanged()}.  This holds scratch space, so each thread needs its own.
+ *
+ * @author dpressel
+ */
+public class WinogradOps
+{
+    private final int m;
+    private final int r;
+    private final int alpha;
+
+    // B^T, G and A^T, and their transposes for the backward pass, row-major
+    private final double[] bt;
+    private final double[] b;
+    private final double[] g;
+    private final double[] gt;
+    private final double[] at;
+    private final double[] a;
+
+    // Scratch for one tile, and for the middle of a transform
+    private final double[] tile;
+    private final double[] half;
+    private final double[] small;
+
+    // The input transforms, alpha^2 x kL x tiles, the kernel transforms, alpha^2 x nK x kL, and the products,
+    // alpha^2 x nK x tiles
+    double[] inputTransforms;
+    double[] kernelTransforms;
+    double[] products;
+    double[] chainTransforms;
+    int[] inputDims;
+
+    // What the kernel transforms were made from
+    Tensor transformedKernels;
+
+    /**
+     * Create the transforms for a tile size and kernel size
+     *
+     * @param m The width of an output tile
+     * @param r The width of a kernel
+     */
+    public WinogradOps(int m, int r)
+    {
+        if (m < 1 || r < 1)
+        {
+            throw new IllegalArgumentException("Tile and kernel sizes must be positive, were " + m + " and " + r);
+        }
+        this.m = m;
+        this.r = r;
+        this.alpha = m + r - 1;
+
+        // Evaluation at each point of a polynomial with coefficients x, and at infinity, of its leading coefficient
+        final double[] points = points(alpha - 1);
+        final double[] vandermonde = new double[alpha * alpha];
+        g = new double[alpha * r];
+        at = new double[m * alpha];
+        for (int i = 0; i < alpha - 1; ++i)
+        {
+            for (int j = 0; j < alpha; ++j)
+            {
+                vandermonde[i * alpha + j] = Math.pow(points[i], j);
+            }
+            for (int j = 0; j < r; ++j)
+            {
+                g[i * r + j] = Math.pow(points[i], j);
+            }
+            for (int j = 0; j < m; ++j)
+            {
+                at[j * alpha + i] = Math.pow(points[i], j);
+            }
+        }
+        vandermonde[alpha * alpha - 1] = 1.;
+        g[alpha * r - 1] = 1.;
+        at[m * alpha - 1] = 1.;
+
+        // The convolution of the kernel and output polynomials is interpolated from their products, and correlation
+        // is its transpose with respect to the output, so B^T is the transpose of the interpolation
+        b = invert(vandermonde, alpha);
+        bt = transpose(b, alpha, alpha);
+        gt = transpose(g, alpha, r);
+        a = transpose(at, m, alpha);
+
+        tile = new double[alpha * alpha];
+        half = new double[alpha * alpha];
+        small = new double[alpha * alpha];
+    }
+
+    /**
+     * The usual tile size for a kernel size: 4 for 3x3 kernels, and 2 for 5x5, so an input tile is 6x6.  Bigger tiles
+     * save more multiplies but lose precision, since the points get further apart
+     *
+     * @param r The width of a kernel
+     * @return The width of an output tile
+     */
+    public static int defaultTile(int r)
+    {
+        return Math.max(1, 7 - r);
+    }
+
+    public int getTile()
+    {
+        return m;
+    }
+
+    // 0, 1, -1, 2, -2, 1/2, -1/2, 3, -3, ...
+    private static double[] points(int n)
+    {
+        double[] points = new double[n];
+        double[] magnitudes = { 1., 2., 0.5, 3., 1. / 3., 4., 0.25 };
+        for (int i = 1; i < n; ++i)
+        {
+            double magnitude = magnitudes[(i - 1) / 2];
+            points[i] = (i & 1) == 1 ? magnitude : -magnitude;
+        }
+        return points;
+    }
+
+    // Gauss-Jordan with partial pivoting
+    private static double[] invert(double[] x, int n)
+    {
+        double[] w = Arrays.copyOf(x, n * n);
+        double[] inv = new double[n * n];
+        for (int i = 0; i < n; ++i)
+        {
+            inv[i * n + i] = 1.;
+        }
+        for (int c = 0; c < n; ++c)
+        {
+            int pivot = c;
+            for (int i = c + 1; i < n; ++i)
+            {
+                if (Math.abs(w[i * n + c]) > Math.abs(w[pivot * n + c]))
+                {
+                    pivot = i;
+                }
+            }
+            swapRows(w, n, c, pivot);
+            swapRows(inv, n, c, pivot);
+            final double d = w[c * n + c];
+            for (int j = 0; j < n; ++j)
+            {
+                w[c * n + j] /= d;
+                inv[c * n + j] /= d;
+            }
+            for (int i = 0; i < n; ++i)
+            {
+                final double f = w[i * n + c];
+                if (i == c || f == 0.)
+                {
+                    continue;
+                }
+                for (int j = 0; j < n; ++j)
+                {
+                    w[i * n + j] -= f * w[c * n + j];
+                    inv[i * n + j] -= f * inv[c * n + j];
+                }
+            }
+        }
+        return inv;
+    }
+
+    private static void swapRows(double[] x, int n, int i, int j)
+    {
+        for (int k = 0; k < n; ++k)
+        {
+            final double t = x[i * n + k];
+            x[i * n + k] = x[j * n + k];
+            x[j * n + k] = t;
+        }
+    }
+
+    private static double[] transpose(double[] x, int rows, int cols)
+    {
+        double[] t = new double[rows * cols];
+        for (int i = 0; i < rows; ++i)
+        {
+            for (int j = 0; j < cols; ++j)
+            {
+                t[j * rows + i] = x[i * cols + j];
+            }
+        }
+        return t;
+    }
+
+    // y = P x P^T, where P is rows x cols and x is cols x cols
+    private void sandwich(double[] p, int rows, int cols, double[] x, double[] y)
+    {
+        for (int i = 0; i < rows; ++i)
+        {
+            for (int j = 0; j < cols; ++j)
+            {
+                double acc = 0.;
+                for (int k = 0; k < cols; ++k)
+                {
+                    acc += p[i * cols + k] * x[k * cols + j];
+                }
+                half[i * cols + j] = acc;
+            }
+        }
+        for (int i = 0; i < rows; ++i)
+        {
+            for (int j = 0; j < rows; ++j)
+            {
+                double acc = 0.;
+                for (int k = 0; k < cols; ++k)
+                {
+                    acc += half[i * cols + k] * p[j * cols + k];
+                }
+                y[i * rows + j] = acc;
+            }
+        }
+    }
+
+    /**
+     * Forget the kernel transforms, because the kernels have changed in place
+     */
+    public void kernelsChanged()
+    {
+        transformedKernels = null;
+    }
+
+    private static double[] allocate(double[] x, int sz)
+    {
+        return x == null || x.length < sz ? new double[sz] : x;
+    }
+
+    /**
+     * Cross-correlate each input feature map with each kernel, summing over the input feature maps, like
+     * FilterOps.corr2.  The input transforms are kept for {@link #corr2Backward(Tensor, Tensor, Tensor)}
+     *
+     * @param data The input, kL x iH x iW
+     * @param kernels The kernels, nK x kL x r x r
+     * @param biases The biases, one per kernel, or null
+     * @param output The output, nK x (iH - r + 1) x (iW - r + 1), which is overwritten
+     */
+    public void corr2(Tensor data, Tensor kernels, double[] biases, Tensor output)
+    {
+        final int kL = data.dims[0];
+        final int iH = data.dims[1];
+        final int iW = data.dims[2];
+        final int nK = kernels.dims[0];
+        if (kernels.dims[2] != r || kernels.dims[3] != r)
+        {
+            throw new IllegalArgumentException("Kernels must be " + r + "x" + r);
+        }
+        final int oH = iH - r + 1;
+        final int oW = iW - r + 1;
+        final int tH = (oH + m - 1) / m;
+        final int tW = (oW + m - 1) / m;
+        final int tiles = tH * tW;
+        final int elements = alpha * alpha;
+        inputDims = new int[] { kL, iH, iW };
+
+        // Transform each tile of each input feature map
+        inputTransforms = allocate(inputTransforms, elements * kL * tiles);
+        for (int l = 0; l < kL; ++l)
+        {
+            for (int t = 0; t < tiles; ++t)
+            {
+                final int i0 = (t / tW) * m;
+                final int j0 = (t % tW) * m;
+                for (int i = 0; i < alpha; ++i)
+                {
+                    for (int j = 0; j < alpha; ++j)
+                    {
+                        final int y = i0 + i;
+                        final int x = j0 + j;
+                        tile[i * alpha + j] = y < iH && x < iW ? data.at((l * iH + y) * iW + x) : 0.;
+                    }
+                }
+                sandwich(bt, alpha, alpha, tile, small);
+                for (int e = 0; e < elements; ++e)
+                {
+                    inputTransforms[(e * kL + l) * tiles + t] = small[e];
+                }
+            }
+        }
+
+        if (kernels != transformedKernels)
+        {
+            kernelTransforms = allocate(kernelTransforms, elements * nK * kL);
+            for (int k = 0; k < nK; ++k)
+            {
+                for (int l = 0; l < kL; ++l)
+                {
+                    final int k0 = (k * kL + l) * r * r;
+                    for (int i = 0; i < r * r; ++i)
+                    {
+                        tile[i] = kernels.at(k0 + i);
+                    }
+                    sandwich(g, alpha, r, tile, small);
+                    for (int e = 0; e < elements; ++e)
+                    {
+                        kernelTransforms[(e * nK + k) * kL + l] = small[e];
+                    }
+                }
+            }
+            transformedKernels = kernels;
+        }
+
+        // For each element, products = kernel transforms (nK x kL) x input transforms (kL x tiles)
+        products = allocate(products, elements * nK * tiles);
+        multiply(kernelTransforms, false, inputTransforms, false, products, elements, nK, kL, tiles);
+
+        for (int k = 0; k < nK; ++k)
+        {
+            final double bias = biases == null ? 0. : biases[k];
+            for (int t = 0; t < tiles; ++t)
+            {
+                for (int e = 0; e < elements; ++e)
+                {
+                    tile[e] = products[(e * nK + k) * tiles + t];
+                }
+                sandwich(at, m, alpha, tile, small);
+                final int i0 = (t / tW) * m;
+                final int j0 = (t % tW) * m;
+                for (int i = 0; i < m && i0 + i < oH; ++i)
+                {
+                    for (int j = 0; j < m && j0 + j < oW; ++j)
+                    {
+                        output.set((k * oH + i0 + i) * oW + j0 + j, small[i * m + j] + bias);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The gradients of the last {@link #corr2(Tensor, Tensor, double[], Tensor)}, with respect to its input and its
+     * kernels, which must not have changed since
+     *
+     * @param chainGrad The gradient of the output, nK x oH x oW
+     * @param grads The gradient of the input, kL x iH x iW, which is overwritten, or null to skip it
+     * @param weightGrads The gradient of the kernels, nK x kL x r x r, which is overwritten, or null to skip it
+     */
+    public void corr2Backward(Tensor chainGrad, Tensor grads, Tensor weightGrads)
+    {
+        if (inputDims == null || transformedKernels == null)
+        {
+            throw new IllegalStateException("No cross-correlation to take the gradient of, call corr2 first");
+        }
+        final int kL = inputDims[0];
+        final int iH = inputDims[1];
+        final int iW = inputDims[2];
+        final int nK = transformedKernels.dims[0];
+        final int oH = iH - r + 1;
+        final int oW = iW - r + 1;
+        final int tH = (oH + m - 1) / m;
+        final int tW = (oW + m - 1) / m;
+        final int tiles = tH * tW;
+        final int elements = alpha * alpha;
+
+        // A dY A^T for each tile of each output feature map, where dY is zero past the edges
+        chainTransforms = allocate(chainTransforms, elements * nK * tiles);
+        for (int k = 0; k < nK; ++k)
+        {
+            for (int t = 0; t < tiles; ++t)
+            {
+                final int i0 = (t / tW) * m;
+                final int j0 = (t % tW) * m;
+                for (int i = 0; i < m; ++i)
+                {
+                    for (int j = 0; j < m; ++j)
+                    {
+                        final int y = i0 + i;
+                        final int x = j0 + j;
+                        tile[i * m + j] = y < oH && x < oW ? chainGrad.at((k * oH + y) * oW + x) : 0.;
+                    }
+                }
+                sandwich(a, alpha, m, tile, small);
+                for (int e = 0; e < elements; ++e)
+                {
+                    chainTransforms[(e * nK + k) * tiles + t] = small[e];
+                }
+            }
+        }
+
+        if (grads != null)
+        {
+            // For each element, kernel transforms^T (kL x nK) x chain transforms (nK x tiles), then B . B^T for each
+            // tile, and the overlapping tiles add up
+            products = allocate(products, elements * kL * tiles);
+            multiply(kernelTransforms, true, chainTransforms, false, products, elements, kL, nK, tiles);
+            grads.constant(0.);
+            for (int l = 0; l < kL; ++l)
+            {
+                for (int t = 0; t < tiles; ++t)
+                {
+                    for (int e = 0; e < elements; ++e)
+                    {
+                        tile[e] = products[(e * kL + l) * tiles + t];
+                    }
+                    sandwich(b, alpha, alpha, tile, small);
+                    final int i0 = (t / tW) * m;
+                    final int j0 = (t % tW) * m;
+                    for (int i = 0; i < alpha && i0 + i < iH; ++i)
+                    {
+                        for (int j = 0; j < alpha && j0 + j < iW; ++j)
+                        {
+                            grads.addi((l * iH + i0 + i) * iW + j0 + j, small[i * alpha + j]);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (weightGrads != null)
+        {
+            // For each element, chain transforms (nK x tiles) x input transforms^T (tiles x kL), then G^T . G
+            products = allocate(products, elements * nK * kL);
+            multiply(chainTransforms, false, inputTransforms, true, products, elements, nK, tiles, kL);
+            for (int k = 0; k < nK; ++k)
+            {
+                for (int l = 0; l < kL; ++l)
+                {
+                    for (int e = 0; e < elements; ++e)
+                    {
+                        tile[e] = products[(e * nK + k) * kL + l];
+                    }
+                    sandwich(gt, r, alpha, tile, small);
+                    final int w0 = (k * kL + l) * r * r;
+                    for (int i = 0; i < r * r; ++i)
+                    {
+                        weightGrads.set(w0 + i, small[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    // For each of the elements, z (rows x cols) = x (rows x inner, or its transpose) y (inner x cols, or its
+    // transpose).  Each is stored as a run of matrices, one per element
+    private static void multiply(double[] x, boolean transX, double[] y, boolean transY, double[] z, int elements,
+                                 int rows, int inner, int cols)
+    {
+        Arrays.fill(z, 0, elements * rows * cols, 0.);
+        for (int e = 0; e < elements; ++e)
+        {
+            final int x0 = e * rows * inner;
+            final int y0 = e * inner * cols;
+            final int z0 = e * rows * cols;
+            for (int i = 0; i < rows; ++i)
+            {
+                for (int k = 0; k < inner; ++k)
+                {
+                    final double xik = transX ? x[x0 + k * rows + i] : x[x0 + i * inner + k];
+                    if (xik == 0.)
+                    {
+                        continue;
+                    }
+                    if (transY)
+                    {
+                        for (int j = 0; j < cols; ++j)
+                        {
+                            z[z0 + i * cols + j] += xik * y[y0 + j * inner + k];
+                        }
+                    }
+                    else
+                    {
+                        for (int j = 0, yk = y0 + k * cols; j < cols; ++j)
+                        {
+                            z[z0 + i * cols + j] += xik * y[yk + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package org.n3rd.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.n3rd.Tensor;
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.OffHeapCapable;
+import org.n3rd.layers.QuantizedLayer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary model format.
+ *
+ * JSON is nice to look at, but it boxes every weight on the way in and out, which is painfully slow for big models.
+ * This format is a small header, followed by a descriptor for each layer, with the weights as raw little-endian
+ * blobs.  Everything is little-endian:
+ *
+ * <pre>
+ * int    magic ("N3RD")
+ * int    version
+ * int    flags (bit 0: scale output)
+ * int    number of layers
+ * for each layer:
+ *   string  layer class name
+ *   string  the rest of the layer's properties, as JSON (these are just a few sizes)
+ *   tensor  weights
+ *   array   biases
+ *
+ * string: int length, then that many UTF-8 bytes
+ * tensor: int type (0 = none, 1 = double, 2 = float, 3 = int8), and if present, int rank, rank ints of dims,
+ *         padding to 8 bytes, then the data
+ * array:  int type, and if present, int length, padding to 8 bytes, then the data
+ * </pre>
+ *
+ * The data is aligned to 8 bytes from the start of the file, so a mapped file can be read with a bulk get straight
+ * into the Tensor's backing array.  Layers are rebuilt the same way as for JSON (see {@link Layers#toLayer(Map)}), but
+ * the weights and biases are handed over as a Tensor and a double[] instead of boxed lists.
+ *
+ * A {@link QuantizedLayer} has no double weights, so its int8 weights go in the weights slot instead, a byte each, and
+ * are handed back as a byte[].  Their scales are small enough to go with the rest of the properties.
+ *
+ * For layers that are {@link OffHeapCapable}, the weights can instead be left where they are, with the Tensor wrapping
+ * the mapped file directly (see {@link #readLayers(ByteBuffer, boolean)}).  Then there is no copy at all, the weights
+ * stay out of the heap, and processes mapping the same file share one copy of it in the page cache.
+ */
+public class BinaryModelFormat
+{
+    public static final int MAGIC = 0x4452334E;
+    public static final int VERSION = 1;
+
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_DOUBLE = 1;
+    public static final int TYPE_FLOAT = 2;
+    public static final int TYPE_INT8 = 3;
+
+    static final int FLAG_SCALE_OUTPUT = 1;
+    static final int ALIGN = 8;
+    static final String PARAMS = "Params";
+    static final String BIAS_PARAMS = "BiasParams";
+    static final String QUANTIZED_WEIGHTS = "QuantizedWeights";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    static final TypeReference<Map<String, Object>> PARAMS_TYPE = new TypeReference<Map<String, Object>>()
+    {
+    };
+
+    /**
+     * Check if a buffer starts with our magic number, without moving it or changing its byte order
+     *
+     * @param buffer A buffer positioned at the start of the model
+     * @return true if this looks like a binary model
+     */
+    public static boolean isBinary(ByteBuffer buffer)
+    {
+        return buffer.remaining() >= 4
+                && buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Write a model
+     *
+     * @param layers The layers
+     * @param scaleOutput Whether the model scales its output
+     * @param outputStream Where to write it.  This is not closed
+     * @throws IOException
+     */
+    public static void write(Layer[] layers, boolean scaleOutput, OutputStream outputStream) throws IOException
+    {
+        write(layers, scaleOutput, outputStream, TYPE_DOUBLE);
+    }
+
+    /**
+     * Write a model, with the weights in either double or single precision.  Single precision halves the size of the
+     * file, and the weights are widened back to double precision when they are read
+     *
+     * @param layers The layers
+     * @param scaleOutput Whether the model scales its output
+     * @param outputStream Where to write it.  This is not closed
+     * @param type Either TYPE_DOUBLE or TYPE_FLOAT
+     * @throws IOException
+     */
+    public static void write(Layer[] layers, boolean scaleOutput, OutputStream outputStream, int type)
+            throws IOException
+    {
+        if (type != TYPE_DOUBLE && type != TYPE_FLOAT)
+        {
+            throw new IllegalArgumentException("Unknown data type " + type);
+        }
+        Writer writer = new Writer(Channels.newChannel(outputStream));
+        writer.putInt(MAGIC);
+        writer.putInt(VERSION);
+        writer.putInt(scaleOutput ? FLAG_SCALE_OUTPUT : 0);
+        writer.putInt(layers.length);
+        for (Layer layer : layers)
+        {
+            Map<String, Object> params = Layers.toParams(layer);
+            String name = (String) params.remove("Name");
+            params.remove(PARAMS);
+            params.remove(BIAS_PARAMS);
+            params.remove(QUANTIZED_WEIGHTS);
+            writer.putString(name);
+            writer.putString(OBJECT_MAPPER.writeValueAsString(params));
+
+            Tensor weights = layer.getParams();
+            if (layer instanceof QuantizedLayer)
+            {
+                byte[] quantizedWeights = ((QuantizedLayer) layer).getQuantizedWeights();
+                writer.putInt(TYPE_INT8);
+                writer.putInt(1);
+                writer.putInt(quantizedWeights.length);
+                writer.align();
+                writer.putBytes(quantizedWeights);
+            }
+            else if (weights == null)
+            {
+                writer.putInt(TYPE_NONE);
+            }
+            else
+            {
+                writer.putInt(type);
+                writer.putInt(weights.dims.length);
+                for (int dim : weights.dims)
+                {
+                    writer.putInt(dim);
+                }
+                writer.align();
+                // Off-heap weights have no array, so bring them back for writing
+                Tensor heapWeights = weights.isOffHeap() ? new Tensor(weights) : weights;
+                writer.putData(type, heapWeights.getArray().v, weights.size());
+            }
+
+            double[] biases = layer.getBiasParams();
+            if (biases == null)
+            {
+                writer.putInt(TYPE_NONE);
+            }
+            else
+            {
+                writer.putInt(type);
+                writer.putInt(biases.length);
+                writer.align();
+                writer.putData(type, biases, biases.length);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Read the header.  This must be called before {@link #readLayers(ByteBuffer)}
+     *
+     * @param buffer A buffer positioned at the start of the model, which is left positioned at the first layer
+     * @return Whether the model scales its output
+     * @throws IOException If this isnt a binary model, or is from a newer version
+     */
+    public static boolean readHeader(ByteBuffer buffer) throws IOException
+    {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try
+        {
+            if (buffer.getInt() != MAGIC)
+            {
+                throw new IOException("Not a binary model");
+            }
+            int version = buffer.getInt();
+            if (version > VERSION)
+            {
+                throw new IOException("Unsupported model version " + version);
+            }
+            return (buffer.getInt() & FLAG_SCALE_OUTPUT) != 0;
+        }
+        catch (BufferUnderflowException underflowEx)
+        {
+            throw new IOException("Truncated model", underflowEx);
+        }
+    }
+
+    /**
+     * Read the layers, following {@link #readHeader(ByteBuffer)}
+     *
+     * @param buffer The buffer, positioned at the first layer
+     * @return The layers
+     * @throws IOException
+     */
+    public static Layer[] readLayers(ByteBuffer buffer) throws IOException
+    {
+        return readLayers(buffer, false);
+    }
+
+    /**
+     * Read the layers, following {@link #readHeader(ByteBuffer)}, optionally leaving the weights in the buffer
+     *
+     * @param buffer The buffer, positioned at the first layer
+     * @param wrapWeights If true, double-precision weights for an {@link OffHeapCapable} layer are not copied, and
+     *                    the layer works directly off of the buffer.  The buffer must then outlive the layers, and if
+     *                    it is read-only, so are the weights
+     * @return The layers
+     * @throws IOException
+     */
+    public static Layer[] readLayers(ByteBuffer buffer, boolean wrapWeights) throws IOException
+    {
+        try
+        {
+            Layer[] layers = new Layer[buffer.getInt()];
+            for (int i = 0; i < layers.length; ++i)
+            {
+                String name = getString(buffer);
+                Map<String, Object> params = new LinkedHashMap<String, Object>();
+                params.put("Name", name);
+                params.putAll(OBJECT_MAPPER.<Map<String, Object>>readValue(getString(buffer), PARAMS_TYPE));
+
+                int type = buffer.getInt();
+                if (type != TYPE_NONE)
+                {
+                    int[] dims = new int[buffer.getInt()];
+                    for (int j = 0; j < dims.length; ++j)
+                    {
+                        dims[j] = buffer.getInt();
+                    }
+                    align(buffer);
+                    if (type == TYPE_INT8)
+                    {
+                        byte[] quantizedWeights = new byte[dims[0]];
+                        buffer.get(quantizedWeights);
+                        params.put(QUANTIZED_WEIGHTS, quantizedWeights);
+                    }
+                    else
+                    {
+                        Tensor weights;
+                        if (wrapWeights && type == TYPE_DOUBLE && isOffHeapCapable(name))
+                        {
+                            weights = wrapDoubles(buffer, dims);
+                        }
+                        else
+                        {
+                            weights = new Tensor(dims);
+                            getDoubles(buffer, type, weights.getArray().v, weights.size());
+                        }
+                        params.put(PARAMS, weights);
+                    }
+                }
+
+                type = buffer.getInt();
+                if (type != TYPE_NONE)
+                {
+                    double[] biases = new double[buffer.getInt()];
+                    align(buffer);
+                    getDoubles(buffer, type, biases, biases.length);
+                    params.put(BIAS_PARAMS, biases);
+                }
+                layers[i] = Layers.toLayer(params);
+            }
+            return layers;
+        }
+        catch (BufferUnderflowException underflowEx)
+        {
+            throw new IOException("Truncated model", underflowEx);
+        }
+    }
+
+    private static boolean isOffHeapCapable(String className) throws IOException
+    {
+        try
+        {
+            return OffHeapCapable.class.isAssignableFrom(Class.forName(className));
+        }
+        catch (ClassNotFoundException classEx)
+        {
+            throw new IOException(classEx);
+        }
+    }
+
+    // Wrap the next tensor's worth of doubles in the buffer, and skip past them
+    private static Tensor wrapDoubles(ByteBuffer buffer, int[] dims)
+    {
+        int sz = 1;
+        for (int dim : dims)
+        {
+            sz *= dim;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(buffer.position() + sz * 8);
+        Tensor tensor = new Tensor(view.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer(), dims);
+        buffer.position(buffer.position() + sz * 8);
+        return tensor;
+    }
+
+    private static String getString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void align(ByteBuffer buffer)
+    {
+        int pad = (ALIGN - buffer.position() % ALIGN) % ALIGN;
+        buffer.position(buffer.position() + pad);
+    }
+
+    private static void getDoubles(ByteBuffer buffer, int type, double[] v, int sz) throws IOException
+    {
+        if (type == TYPE_DOUBLE)
+        {
+            buffer.asDoubleBuffer().get(v, 0, sz);
+            buffer.position(buffer.position() + sz * 8);
+        }
+        else if (type == TYPE_FLOAT)
+        {
+            for (int i = 0; i < sz; ++i)
+            {
+                v[i] = buffer.getFloat();
+            }
+        }
+        else
+        {
+            throw new IOException("Unknown data type " + type);
+        }
+    }
+
+    // Buffered little-endian writer, keeping track of the position for alignment
+    private static class Writer
+    {
+        final WritableByteChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        long position;
+
+        Writer(WritableByteChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        void ensure(int n) throws IOException
+        {
+            if (buffer.remaining() < n)
+            {
+                flush();
+            }
+        }
+
+        void putInt(int x) throws IOException
+        {
+            ensure(4);
+            buffer.putInt(x);
+            position += 4;
+        }
+
+        void putString(String s) throws IOException
+        {
+            byte[] bytes = s.getBytes(UTF8);
+            putInt(bytes.length);
+            putBytes(bytes);
+        }
+
+        void putBytes(byte[] bytes) throws IOException
+        {
+            for (int i = 0; i < bytes.length; )
+            {
+                ensure(1);
+                int n = Math.min(bytes.length - i, buffer.remaining());
+                buffer.put(bytes, i, n);
+                i += n;
+                position += n;
+            }
+        }
+
+        void align() throws IOException
+        {
+            int pad = (int) ((ALIGN - position % ALIGN) % ALIGN);
+            ensure(pad);
+            for (int i = 0; i < pad; ++i)
+            {
+                buffer.put((byte) 0);
+            }
+            position += pad;
+        }
+
+        void putData(int type, double[] v, int sz) throws IOException
+        {
+            if (type == TYPE_FLOAT)
+            {
+                putFloats(v, sz);
+            }
+            else
+            {
+                putDoubles(v, sz);
+            }
+        }
+
+        void putFloats(double[] v, int sz) throws IOException
+        {
+            for (int i = 0; i < sz; ++i)
+            {
+                ensure(4);
+                buffer.putFloat((float) v[i]);
+            }
+            position += 4L * sz;
+        }
+
+        void putDoubles(double[] v, int sz) throws IOException
+        {
+            for (int i = 0; i < sz; )
+            {
+                ensure(8);
+                int n = Math.min(sz - i, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(v, i, n);
+                buffer.position(buffer.position() + n * 8);
+                i += n;
+                position += n * 8;
+            }
+        }
+
+        void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
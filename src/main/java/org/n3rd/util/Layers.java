@@ -1,11 +1,16 @@
 package org.n3rd.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.n3rd.Tensor;
 import org.n3rd.layers.Layer;
 
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.io.IOException;
+import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -31,8 +36,8 @@ public class Layers
         {
             // Invoke the default constructor for this class
             String className = (String) params.get("Name");
-            Class javaClass = Class.forName(className);
-            Constructor constructor = javaClass.getConstructor();
+            Class<?> javaClass = Class.forName(className);
+            Constructor<?> constructor = javaClass.getConstructor();
             Layer layer = (Layer)constructor.newInstance();
 
             for (String field : params.keySet())
@@ -49,8 +54,8 @@ public class Layers
                 }
 
                 String setMethod = "set" + field;
-                Method method = javaClass.getDeclaredMethod(setMethod, object.getClass());
-                method.invoke(layer, object);
+                Method method = findSetter(javaClass, setMethod, object);
+                method.invoke(layer, toSetterArg(object, method.getParameterTypes()[0]));
             }
 
 
@@ -86,6 +91,50 @@ public class Layers
         }
     }
 
+    // Find a setter exactly matching the value's class, or if its a list, a setter taking an array (e.g. Integer[]),
+    // since thats what lists come back as from JSON.  Setters may be declared on a superclass, e.g. for the
+    // mixed-precision layers
+    private static Method findSetter(Class<?> javaClass, String setMethod, Object object) throws NoSuchMethodException
+    {
+        NoSuchMethodException notFound = null;
+        for (Class<?> c = javaClass; c != null && c != Object.class; c = c.getSuperclass())
+        {
+            try
+            {
+                return c.getDeclaredMethod(setMethod, object.getClass());
+            }
+            catch (NoSuchMethodException noMethodEx)
+            {
+                if (notFound == null)
+                {
+                    notFound = noMethodEx;
+                }
+            }
+            if (object instanceof List)
+            {
+                for (Method method : c.getDeclaredMethods())
+                {
+                    Class<?>[] types = method.getParameterTypes();
+                    if (method.getName().equals(setMethod) && types.length == 1 && types[0].isArray())
+                    {
+                        return method;
+                    }
+                }
+            }
+        }
+        throw notFound;
+    }
+
+    private static Object toSetterArg(Object object, Class<?> type)
+    {
+        if (object instanceof List && type.isArray())
+        {
+            List<?> list = (List<?>) object;
+            return list.toArray((Object[]) Array.newInstance(type.getComponentType(), list.size()));
+        }
+        return object;
+    }
+
     public static Map<String, Object> toParams(Layer layer) throws IOException
     {
         try
@@ -120,4 +169,199 @@ public class Layers
         }
     }
 
+    /**
+     * Stream a layer out as a JSON object, writing the weights and biases straight from their arrays, so we never
+     * build a tree for the whole model
+     *
+     * @param layer The layer
+     * @param generator A generator with a codec, for the (small) properties that arent weights
+     * @throws IOException
+     */
+    public static void writeLayer(Layer layer, JsonGenerator generator) throws IOException
+    {
+        Map<String, Object> params = toParams(layer);
+        generator.writeStartObject();
+        generator.writeStringField("Name", (String) params.remove("Name"));
+        for (Map.Entry<String, Object> entry : params.entrySet())
+        {
+            Object value = entry.getValue();
+            generator.writeFieldName(entry.getKey());
+            if (value instanceof Tensor)
+            {
+                Tensor tensor = (Tensor) value;
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("dims");
+                for (int dim : tensor.dims)
+                {
+                    generator.writeNumber(dim);
+                }
+                generator.writeEndArray();
+                generator.writeArrayFieldStart("d");
+                for (int i = 0, sz = tensor.size(); i < sz; ++i)
+                {
+                    generator.writeNumber(tensor.at(i));
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            else if (value instanceof double[])
+            {
+                double[] v = (double[]) value;
+                writeDoubles(generator, v, v.length);
+            }
+            // Jackson would write these as base64, so write the numbers, which come back as a list like the rest
+            else if (value instanceof byte[])
+            {
+                byte[] v = (byte[]) value;
+                generator.writeStartArray();
+                for (int i = 0; i < v.length; ++i)
+                {
+                    generator.writeNumber(v[i]);
+                }
+                generator.writeEndArray();
+            }
+            else
+            {
+                generator.writeObject(value);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Read a layer written by {@link #writeLayer(Layer, JsonGenerator)}.  Weights are parsed straight into primitive
+     * arrays, and the rest of the properties go through {@link #toLayer(Map)}.  This also reads the layout that Jackson
+     * writes for a Tensor by itself
+     *
+     * @param parser A parser with a codec, positioned at the start of the layer's object
+     * @return The layer
+     * @throws IOException
+     */
+    public static Layer readLayer(JsonParser parser) throws IOException
+    {
+        expect(parser, JsonToken.START_OBJECT);
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("Params".equals(field) && token == JsonToken.START_OBJECT)
+            {
+                params.put(field, readTensor(parser));
+            }
+            else if ("BiasParams".equals(field) && token == JsonToken.START_ARRAY)
+            {
+                params.put(field, readDoubles(parser, null));
+            }
+            else
+            {
+                params.put(field, parser.readValueAs(Object.class));
+            }
+        }
+        return toLayer(params);
+    }
+
+    private static void writeDoubles(JsonGenerator generator, double[] v, int sz) throws IOException
+    {
+        generator.writeStartArray();
+        for (int i = 0; i < sz; ++i)
+        {
+            generator.writeNumber(v[i]);
+        }
+        generator.writeEndArray();
+    }
+
+    private static Tensor readTensor(JsonParser parser) throws IOException
+    {
+        int[] dims = null;
+        double[] v = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("dims".equals(field))
+            {
+                List<Integer> dimList = new ArrayList<Integer>();
+                while (parser.nextToken() != JsonToken.END_ARRAY)
+                {
+                    dimList.add(parser.getIntValue());
+                }
+                dims = new int[dimList.size()];
+                for (int i = 0; i < dims.length; ++i)
+                {
+                    dims[i] = dimList.get(i);
+                }
+            }
+            else if ("d".equals(field))
+            {
+                v = readDoubles(parser, dims);
+            }
+            else if ("array".equals(field))
+            {
+                // Jackson's own layout for a Tensor: "array": { "v": [...] }
+                while (parser.nextToken() == JsonToken.FIELD_NAME)
+                {
+                    String arrayField = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("v".equals(arrayField))
+                    {
+                        v = readDoubles(parser, dims);
+                    }
+                    else
+                    {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+        if (dims == null || v == null)
+        {
+            throw new IOException("Tensor needs both dims and data");
+        }
+        Tensor tensor = new Tensor(dims);
+        if (v.length < tensor.size())
+        {
+            throw new IOException("Tensor has " + v.length + " values, expected " + tensor.size());
+        }
+        System.arraycopy(v, 0, tensor.getArray().v, 0, tensor.size());
+        return tensor;
+    }
+
+    // Read an array of numbers.  If we already know the dims, the array is sized exactly, otherwise it grows as needed
+    private static double[] readDoubles(JsonParser parser, int[] dims) throws IOException
+    {
+        expect(parser, JsonToken.START_ARRAY);
+        int capacity = 16;
+        if (dims != null)
+        {
+            capacity = 1;
+            for (int dim : dims)
+            {
+                capacity *= dim;
+            }
+        }
+        double[] v = new double[capacity];
+        int sz = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY)
+        {
+            if (sz == v.length)
+            {
+                v = Arrays.copyOf(v, Math.max(16, v.length * 2));
+            }
+            v[sz++] = parser.getDoubleValue();
+        }
+        return sz == v.length ? v : Arrays.copyOf(v, sz);
+    }
+
+    private static void expect(JsonParser parser, JsonToken token) throws IOException
+    {
+        if (parser.getCurrentToken() != token)
+        {
+            throw new IOException("Expected " + token + " but got " + parser.getCurrentToken());
+        }
+    }
 }
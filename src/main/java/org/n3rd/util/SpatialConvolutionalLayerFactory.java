@@ -2,7 +2,10 @@ package org.n3rd.util;
 
 import org.n3rd.layers.Layer;
 import org.n3rd.layers.SpatialConvolutionalLayer;
+import org.n3rd.layers.SpatialConvolutionalLayerAuto;
 import org.n3rd.layers.SpatialConvolutionalLayerBlas;
+import org.n3rd.layers.SpatialConvolutionalLayerFFT;
+import org.n3rd.layers.SpatialConvolutionalLayerWinograd;
 
 import java.util.Map;
 
@@ -11,6 +14,23 @@ import java.util.Map;
  */
 public class SpatialConvolutionalLayerFactory implements LayerFactory
 {
+    private final String defaultAlgorithm;
+
+    public SpatialConvolutionalLayerFactory()
+    {
+        this(null);
+    }
+
+    /**
+     * Create a factory for a layer type that implies an algorithm, e.g. SpatialConvolutionalLayerFFT
+     *
+     * @param defaultAlgorithm The algorithm to use if the config doesnt give one
+     */
+    public SpatialConvolutionalLayerFactory(String defaultAlgorithm)
+    {
+        this.defaultAlgorithm = defaultAlgorithm;
+    }
+
     @Override
     public Layer newLayer(Map<String, Object> params)
     {
@@ -21,7 +41,64 @@ public class SpatialConvolutionalLayerFactory implements LayerFactory
         Integer h = (Integer)params.get("h");
         Integer w = (Integer)params.get("w");
         Integer nK = (Integer)params.get("nK");
-        
-        return new SpatialConvolutionalLayerBlas(nK, kH, kW, kL, h, w);
+
+        String algorithm = (String)params.get("algorithm");
+        if (algorithm == null)
+        {
+            algorithm = defaultAlgorithm;
+        }
+
+        if (hasGeometry(params) && algorithm != null && !"blas".equals(algorithm))
+        {
+            throw new IllegalArgumentException("Stride, padding and dilation are only supported by the blas algorithm");
+        }
+
+        // An algorithm of "auto" times the implementations and uses the fastest
+        if ("auto".equals(algorithm))
+        {
+            return new SpatialConvolutionalLayerAuto(nK, kH, kW, kL, h, w);
+        }
+        if ("fft".equals(algorithm))
+        {
+            return new SpatialConvolutionalLayerFFT(nK, kH, kW, kL, h, w);
+        }
+        if ("winograd".equals(algorithm))
+        {
+            SpatialConvolutionalLayerWinograd layer = new SpatialConvolutionalLayerWinograd(nK, kH, kW, kL, h, w);
+            Integer tile = (Integer)params.get("tile");
+            if (tile != null)
+            {
+                layer.setTile(tile);
+            }
+            return layer;
+        }
+        int strideH = intParam(params, "strideH", intParam(params, "stride", 1));
+        int strideW = intParam(params, "strideW", intParam(params, "stride", 1));
+        int padH = intParam(params, "padH", intParam(params, "pad", 0));
+        int padW = intParam(params, "padW", intParam(params, "pad", 0));
+        int dilationH = intParam(params, "dilationH", intParam(params, "dilation", 1));
+        int dilationW = intParam(params, "dilationW", intParam(params, "dilation", 1));
+        return new SpatialConvolutionalLayerBlas(nK, kH, kW, strideH, strideW, padH, padW, dilationH, dilationW,
+                new int[] { kL, h, w });
+    }
+
+    private static int intParam(Map<String, Object> params, String name, int defaultValue)
+    {
+        Integer value = (Integer)params.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    // Only the BLAS layer can do strides, padding or dilation
+    private static boolean hasGeometry(Map<String, Object> params)
+    {
+        for (String name : new String[] { "stride", "strideH", "strideW", "pad", "padH", "padW",
+                "dilation", "dilationH", "dilationW" })
+        {
+            if (params.containsKey(name))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -2,6 +2,7 @@ package org.n3rd.util;
 
 import org.n3rd.layers.Layer;
 import org.n3rd.layers.TemporalConvolutionalLayer;
+import org.n3rd.layers.TemporalConvolutionalLayerAuto;
 import org.n3rd.layers.TemporalConvolutionalLayerBlas;
 
 import java.util.Map;
@@ -19,8 +20,15 @@ public class TemporalConvolutionalLayerFactory implements LayerFactory
         Integer kW = (Integer)params.get("kW");
         Integer embedSz = (Integer)params.get("embedSz");
 
+        // An algorithm of "auto" times the implementations and uses the fastest for each input length
+        String algorithm = (String)params.get("algorithm");
+
         if (embedSz == null || embedSz <= 1)
         {
+            if ("auto".equals(algorithm))
+            {
+                return new TemporalConvolutionalLayerAuto(nK, kL, kW);
+            }
             return new TemporalConvolutionalLayerBlas(nK, kL, kW);
         }
         return new TemporalConvolutionalLayer(nK, kL, kW, embedSz);
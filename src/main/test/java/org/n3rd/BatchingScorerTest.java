@@ -0,0 +1,125 @@
+package org.n3rd;
+
+import org.junit.Test;
+import org.n3rd.layers.*;
+import org.sgdtk.DenseVectorN;
+import org.sgdtk.FeatureVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class BatchingScorerTest
+{
+    static final int NUM_EXAMPLES = 100;
+
+    @Test
+    public void testBatchesMatchSingleScores() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(new Layer[] {
+                new FullyConnectedLayer(6, 5),
+                new TanhLayer(),
+                new FullyConnectedLayer(3, 6),
+                new LogSoftMaxLayer() }, false);
+
+        Random random = new Random(1234);
+        double[][] inputs = new double[NUM_EXAMPLES][5];
+        double[][] expected = new double[NUM_EXAMPLES][];
+        for (int i = 0; i < NUM_EXAMPLES; ++i)
+        {
+            for (int j = 0; j < inputs[i].length; ++j)
+            {
+                inputs[i][j] = random.nextDouble() - 0.5;
+            }
+            expected[i] = model.score(new FeatureVector(0, new DenseVectorN(inputs[i])));
+        }
+
+        // Wait long enough that the batches fill up
+        BatchingScorer scorer = new BatchingScorer(model, 8, 100000);
+        List<Future<double[]>> futures = new ArrayList<Future<double[]>>(NUM_EXAMPLES);
+        for (int i = 0; i < NUM_EXAMPLES; ++i)
+        {
+            futures.add(scorer.submit(inputs[i]));
+        }
+        for (int i = 0; i < NUM_EXAMPLES; ++i)
+        {
+            double[] actual = futures.get(i).get();
+            assertEquals(expected[i].length, actual.length);
+            for (int j = 0; j < actual.length; ++j)
+            {
+                assertEquals(expected[i][j], actual[j], 1e-12);
+            }
+        }
+
+        // And the blocking version
+        assertEquals(3, scorer.score(new double[] { 1, 2, 3, 4, 5 }).length);
+
+        BatchingScorer.Metrics metrics = scorer.getMetrics();
+        assertEquals(NUM_EXAMPLES + 1, metrics.getNumRequests());
+        long[] histogram = metrics.getBatchSizeHistogram();
+        long total = 0;
+        for (int i = 0; i < histogram.length; ++i)
+        {
+            total += i * histogram[i];
+        }
+        assertEquals(NUM_EXAMPLES + 1, total);
+        assertTrue(metrics.getMeanBatchFill() > 0.5);
+        assertTrue(metrics.getP99Micros() >= metrics.getP50Micros());
+        scorer.shutdown();
+    }
+
+    // Anything submitted while shutting down either gets scored or cancelled, it is never left hanging
+    @Test
+    public void testShutdownWhileSubmitting() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(new Layer[] {
+                new FullyConnectedLayer(3, 5),
+                new LogSoftMaxLayer() }, false);
+        final BatchingScorer scorer = new BatchingScorer(model, 8, 100, 2);
+        final List<List<Future<double[]>>> submitted = new ArrayList<List<Future<double[]>>>();
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t)
+        {
+            final List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+            submitted.add(futures);
+            Thread submitter = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while (true)
+                        {
+                            futures.add(scorer.submit(new double[] { 1, 2, 3, 4, 5 }));
+                        }
+                    }
+                    catch (IllegalStateException stateEx)
+                    {
+                        // Shut down
+                    }
+                }
+            });
+            submitters.add(submitter);
+            submitter.start();
+        }
+        Thread.sleep(50);
+        scorer.shutdown();
+        for (Thread submitter : submitters)
+        {
+            submitter.join();
+        }
+        for (List<Future<double[]>> futures : submitted)
+        {
+            assertTrue(futures.size() > 0);
+            for (Future<double[]> future : futures)
+            {
+                assertTrue(future.isDone());
+            }
+        }
+    }
+}
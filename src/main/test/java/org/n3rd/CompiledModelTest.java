@@ -0,0 +1,95 @@
+package org.n3rd;
+
+import org.junit.Test;
+import org.n3rd.layers.*;
+import org.sgdtk.DenseVectorN;
+import org.sgdtk.FeatureVector;
+
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+// A compiled model has to score exactly like the model it came from, even though its activations share an arena
+public class CompiledModelTest
+{
+    static final double EPS = 1e-12;
+
+    Random random = new Random(1234);
+
+    double[] randomInput(int sz)
+    {
+        double[] x = new double[sz];
+        for (int i = 0; i < sz; ++i)
+        {
+            x[i] = random.nextDouble() - 0.5;
+        }
+        return x;
+    }
+
+    void checkScores(NeuralNetModel model, CompiledModel compiled, int inputSz)
+    {
+        double[] x = randomInput(inputSz);
+        double[] expected = model.score(new FeatureVector(0, new DenseVectorN(x)));
+        double[] actual = new double[expected.length];
+        assertEquals(expected.length, compiled.score(x, actual));
+        for (int i = 0; i < expected.length; ++i)
+        {
+            assertEquals(expected[i], actual[i], EPS);
+        }
+    }
+
+    @Test
+    public void testSpatial() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(new Layer[] {
+                new SpatialConvolutionalLayerBlas(4, 3, 3, 1, 12, 12),
+                new MaxPoolingLayer(2, 2, 4, 10, 10),
+                new TanhLayer(),
+                new SpatialConvolutionalLayer(3, 2, 2, 4, 5, 5),
+                new ReLULayer(),
+                new FullyConnectedLayerBlas(6, 3 * 4 * 4),
+                new DropoutLayer(0.5),
+                new FullyConnectedLayer(3, 6),
+                new LogSoftMaxLayer() }, false);
+        model.setIsTraining(false);
+
+        CompiledModel compiled = new CompiledModel(model, 1, 12, 12);
+        for (int i = 0; i < 10; ++i)
+        {
+            checkScores(model, compiled, 144);
+        }
+
+        // The two biggest activations, the input and the first convolution, rather than all nine
+        assertEquals(144 + 400, compiled.getArenaSize());
+        for (Layer layer : compiled.getLayers())
+        {
+            assertEquals(null, layer.getParamGrads());
+        }
+        // The original model can still train
+        assertTrue(model.getLayers()[0].getParamGrads() != null);
+    }
+
+    @Test
+    public void testTemporal() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(new Layer[] {
+                new TemporalConvolutionalLayerBlas(4, 2, 3),
+                new ReLULayer(),
+                new KMaxPoolingLayer(3, 4, 1),
+                new TemporalConvolutionalLayer(2, 4, 2, 1),
+                new TanhLayer(),
+                new FullyConnectedLayer(1, 2 * 2),
+                new SigmoidLayer() }, true);
+
+        CompiledModel compiled = new CompiledModel(model, 2 * 10);
+        for (int i = 0; i < 5; ++i)
+        {
+            checkScores(model, compiled, 2 * 10);
+        }
+        // Longer inputs outgrow the arena, which has to still work, and so do shorter ones after that
+        checkScores(model, compiled, 2 * 25);
+        checkScores(model, compiled, 2 * 7);
+        checkScores(model, compiled, 2 * 10);
+    }
+}
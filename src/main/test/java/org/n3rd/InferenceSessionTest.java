@@ -0,0 +1,170 @@
+package org.n3rd;
+
+import org.junit.Test;
+import org.n3rd.layers.*;
+import org.sgdtk.DenseVectorN;
+import org.sgdtk.FeatureVector;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class InferenceSessionTest
+{
+    static final int NUM_THREADS = 4;
+    static final int NUM_EXAMPLES = 200;
+
+    NeuralNetModel createModel()
+    {
+        NeuralNetModel model = new NeuralNetModel(new Layer[] {
+                new TemporalConvolutionalLayer(4, 2, 3),
+                new ReLULayer(),
+                new FullyConnectedLayer(6, 4 * 8),
+                new DropoutLayer(0.5),
+                new TanhLayer(),
+                new FullyConnectedLayer(3, 6),
+                new LogSoftMaxLayer() }, false);
+        model.setIsTraining(false);
+        return model;
+    }
+
+    @Test
+    public void testConcurrentScoring() throws Exception
+    {
+        final NeuralNetModel model = createModel();
+        Random random = new Random(1234);
+        final double[][] inputs = new double[NUM_EXAMPLES][2 * 10];
+        final double[][] expected = new double[NUM_EXAMPLES][];
+        for (int i = 0; i < NUM_EXAMPLES; ++i)
+        {
+            for (int j = 0; j < inputs[i].length; ++j)
+            {
+                inputs[i][j] = random.nextDouble() - 0.5;
+            }
+            expected[i] = model.score(new FeatureVector(0, new DenseVectorN(inputs[i])));
+        }
+
+        final InferenceSession session = new InferenceSession(model);
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        List<Future<double[][]>> futures = new ArrayList<Future<double[][]>>();
+        for (int t = 0; t < NUM_THREADS; ++t)
+        {
+            futures.add(executor.submit(new Callable<double[][]>()
+            {
+                @Override
+                public double[][] call() throws Exception
+                {
+                    double[][] actual = new double[NUM_EXAMPLES][3];
+                    // Go over the data a few times so the threads overlap
+                    for (int pass = 0; pass < 5; ++pass)
+                    {
+                        for (int i = 0; i < NUM_EXAMPLES; ++i)
+                        {
+                            assertEquals(3, session.score(inputs[i], actual[i]));
+                        }
+                    }
+                    return actual;
+                }
+            }));
+        }
+        for (Future<double[][]> future : futures)
+        {
+            double[][] actual = future.get();
+            for (int i = 0; i < NUM_EXAMPLES; ++i)
+            {
+                for (int j = 0; j < 3; ++j)
+                {
+                    assertEquals(expected[i][j], actual[i][j], 1e-12);
+                }
+            }
+        }
+        executor.shutdown();
+    }
+
+    // Bytes allocated on this thread by 1000 calls to score, once its warmed up
+    static long allocated(Runnable score)
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 20000; ++i)
+        {
+            score.run();
+        }
+        final long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; ++i)
+        {
+            score.run();
+        }
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+
+    void checkNoAllocation(NeuralNetModel model, int... inputDims)
+    {
+        int inputSz = 1;
+        for (int dim : inputDims)
+        {
+            inputSz *= dim;
+        }
+        final double[] x = new double[inputSz];
+        Random random = new Random(1234);
+        for (int i = 0; i < inputSz; ++i)
+        {
+            x[i] = random.nextDouble() - 0.5;
+        }
+        final double[] scores = new double[8];
+        final InferenceSession session = new InferenceSession(model);
+        assertEquals(0, allocated(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                session.score(x, scores);
+            }
+        }));
+        final CompiledModel compiled = new CompiledModel(model, inputDims);
+        assertEquals(0, allocated(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                compiled.score(x, scores);
+            }
+        }));
+    }
+
+    // The session promises that once its buffers have grown, scoring doesnt touch the heap
+    @Test
+    public void testScoringDoesntAllocate() throws Exception
+    {
+        if (!((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported())
+        {
+            return;
+        }
+        NeuralNetModel spatial = new NeuralNetModel(new Layer[] {
+                new SpatialConvolutionalLayerBlas(4, 3, 3, 1, 12, 12),
+                new MaxPoolingLayer(2, 2, 4, 10, 10),
+                new TanhLayer(),
+                new SpatialConvolutionalLayer(3, 2, 2, 4, 5, 5),
+                new ReLULayer(),
+                new FullyConnectedLayerBlas(6, 3 * 4 * 4),
+                new FullyConnectedLayer(3, 6),
+                new LogSoftMaxLayer() }, false);
+        checkNoAllocation(spatial, 1, 12, 12);
+
+        checkNoAllocation(createModel(), 2 * 10);
+
+        NeuralNetModel kmax = new NeuralNetModel(new Layer[] {
+                new TemporalConvolutionalLayerBlas(4, 2, 3),
+                new ReLULayer(),
+                new KMaxPoolingLayer(3, 4, 1),
+                new TemporalConvolutionalLayer(2, 4, 2, 1),
+                new MaxOverTimePoolingLayer(2),
+                new FullyConnectedLayer(1, 2),
+                new SigmoidLayer() }, true);
+        checkNoAllocation(kmax, 2 * 10);
+    }
+}
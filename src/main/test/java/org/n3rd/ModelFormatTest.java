@@ -0,0 +1,229 @@
+package org.n3rd;
+
+import org.junit.Test;
+import org.n3rd.layers.*;
+import org.n3rd.ops.AdagradUpdate;
+import org.n3rd.util.BinaryModelFormat;
+import org.n3rd.util.Layers;
+import org.sgdtk.DenseVectorN;
+import org.sgdtk.FeatureVector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class ModelFormatTest
+{
+    static final int NUM_EXAMPLES = 20;
+
+    NeuralNetModel createTemporalModel()
+    {
+        return new NeuralNetModel(new Layer[] {
+                new TemporalConvolutionalLayer(4, 2, 3),
+                new ReLULayer(),
+                new FullyConnectedLayer(6, 4 * 8),
+                new TanhLayer(),
+                new FullyConnectedLayerBlas(3, 6),
+                new LogSoftMaxLayer() }, false);
+    }
+
+    NeuralNetModel createSpatialModel()
+    {
+        return new NeuralNetModel(new Layer[] {
+                new SpatialConvolutionalLayer(2, 3, 3, 1, 6, 6),
+                new MaxPoolingLayer(2, 2, 2, 4, 4),
+                new FullyConnectedLayer(3, 2 * 2 * 2),
+                new SigmoidLayer() }, true);
+    }
+
+    double[][] createInputs(int sz)
+    {
+        Random random = new Random(1234);
+        double[][] inputs = new double[NUM_EXAMPLES][sz];
+        for (int i = 0; i < NUM_EXAMPLES; ++i)
+        {
+            for (int j = 0; j < sz; ++j)
+            {
+                inputs[i][j] = random.nextDouble() - 0.5;
+            }
+        }
+        return inputs;
+    }
+
+    void assertSameScores(NeuralNetModel expected, NeuralNetModel actual, double[][] inputs)
+    {
+        assertEquals(expected.getLayers().length, actual.getLayers().length);
+        for (double[] x : inputs)
+        {
+            double[] e = expected.score(new FeatureVector(0, new DenseVectorN(x)));
+            double[] a = actual.score(new FeatureVector(0, new DenseVectorN(x)));
+            assertEquals(e.length, a.length);
+            for (int j = 0; j < e.length; ++j)
+            {
+                assertEquals(e[j], a[j], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryFile() throws Exception
+    {
+        NeuralNetModel model = createTemporalModel();
+        File file = File.createTempFile("n3rd", ".model");
+        file.deleteOnExit();
+        model.save(file);
+
+        NeuralNetModel loaded = new NeuralNetModel();
+        loaded.load(file);
+        assertSameScores(model, loaded, createInputs(2 * 10));
+        file.delete();
+    }
+
+    @Test
+    public void testMappedWeights() throws Exception
+    {
+        NeuralNetModel model = createSpatialModel();
+        File file = File.createTempFile("n3rd", ".model");
+        file.deleteOnExit();
+        model.save(file);
+
+        NeuralNetModel loaded = new NeuralNetModel();
+        loaded.load(file, true);
+        assertTrue(loaded.getLayers()[0].getParams().isOffHeap());
+        assertTrue(loaded.getLayers()[2].getParams().isOffHeap());
+        assertSameScores(model, loaded, createInputs(6 * 6));
+
+        // And it can be written back out
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        loaded.save(outputStream);
+        NeuralNetModel reloaded = new NeuralNetModel();
+        reloaded.load(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertSameScores(model, reloaded, createInputs(6 * 6));
+        file.delete();
+    }
+
+    @Test
+    public void testBinaryStream() throws Exception
+    {
+        NeuralNetModel model = createSpatialModel();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        model.save(outputStream);
+
+        NeuralNetModel loaded = new NeuralNetModel();
+        loaded.load(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertSameScores(model, loaded, createInputs(6 * 6));
+
+        // Checking for the magic number leaves the caller's buffer as it was
+        ByteBuffer buffer = ByteBuffer.wrap(outputStream.toByteArray());
+        assertTrue(BinaryModelFormat.isBinary(buffer));
+        assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testSinglePrecision() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(new Layer[] {
+                new TemporalConvolutionalLayerMixed(4, 2, 3),
+                new ReLULayer(),
+                new FullyConnectedLayerMixed(3, 4 * 8),
+                new LogSoftMaxLayer() }, false);
+        ByteArrayOutputStream doubles = new ByteArrayOutputStream();
+        model.save(doubles);
+        ByteArrayOutputStream floats = new ByteArrayOutputStream();
+        model.save(floats, true);
+        assertTrue(floats.size() < doubles.size());
+
+        NeuralNetModel loaded = new NeuralNetModel();
+        loaded.load(new ByteArrayInputStream(floats.toByteArray()));
+        assertTrue(loaded.getLayers()[0] instanceof TemporalConvolutionalLayerMixed);
+        double[][] inputs = createInputs(2 * 10);
+        for (double[] x : inputs)
+        {
+            double[] e = model.score(new FeatureVector(0, new DenseVectorN(x)));
+            double[] a = loaded.score(new FeatureVector(0, new DenseVectorN(x)));
+            for (int j = 0; j < e.length; ++j)
+            {
+                assertEquals(e[j], a[j], 1e-5);
+            }
+        }
+    }
+
+    @Test
+    public void testJSONStillLoads() throws Exception
+    {
+        NeuralNetModel model = createTemporalModel();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        model.saveJSON(outputStream);
+
+        NeuralNetModel loaded = new NeuralNetModel();
+        loaded.load(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertSameScores(model, loaded, createInputs(2 * 10));
+    }
+
+    @Test
+    public void testJSONStreamsSpatialModel() throws Exception
+    {
+        NeuralNetModel model = createSpatialModel();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        model.saveJSON(outputStream);
+
+        NeuralNetModel loaded = new NeuralNetModel();
+        loaded.loadJSON(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertSameScores(model, loaded, createInputs(6 * 6));
+    }
+
+    @Test
+    public void testSparseUpdateFlushedOnSave() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(new Layer[] {
+                new FullyConnectedLayer(2, 3),
+                new SigmoidLayer() }, true, new AdagradUpdate(1.0, true));
+        for (double x0 : new double[] { 0.5, 0. })
+        {
+            // The second time, the first column is zero, so its weights are only decayed once they are caught up
+            FeatureVector fv = new FeatureVector(1., new DenseVectorN(new double[] { x0, -0.5, 0.25 }));
+            model.predict(fv);
+            model.updateWeights(fv.getX(), 0.1, 0.1, 0.3, 1.);
+        }
+        final double w00 = model.getLayers()[0].getParams().get(0);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        model.save(outputStream);
+        assertEquals(w00 * (1 - 0.1 * 0.1), model.getLayers()[0].getParams().get(0), 1e-12);
+
+        NeuralNetModel loaded = new NeuralNetModel();
+        loaded.load(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertEquals(w00 * (1 - 0.1 * 0.1), loaded.getLayers()[0].getParams().get(0), 1e-12);
+    }
+
+    @Test
+    public void testJSONTreeLayoutStillLoads() throws Exception
+    {
+        // This is how models used to be written, by handing the whole tree to Jackson
+        NeuralNetModel model = createTemporalModel();
+        List<Map<String, Object>> layerArray = new ArrayList<Map<String, Object>>();
+        for (Layer layer : model.getLayers())
+        {
+            layerArray.add(Layers.toParams(layer));
+        }
+        Map<String, Object> root = new LinkedHashMap<String, Object>();
+        root.put("Layers", layerArray);
+        root.put("ScaleOutput", false);
+        byte[] json = NeuralNetModel.OBJECT_MAPPER.writeValueAsBytes(root);
+
+        NeuralNetModel loaded = new NeuralNetModel();
+        loaded.load(new ByteArrayInputStream(json));
+        assertSameScores(model, loaded, createInputs(2 * 10));
+    }
+}
@@ -0,0 +1,105 @@
+package org.n3rd;
+
+import org.junit.Test;
+import org.n3rd.layers.*;
+import org.n3rd.ops.AdagradUpdate;
+
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class OffHeapTensorTest
+{
+    Random random = new Random(1234);
+
+    Tensor randomTensor(int... dims)
+    {
+        Tensor t = new Tensor(dims);
+        for (int i = 0, sz = t.size(); i < sz; ++i)
+        {
+            t.set(i, random.nextDouble() - 0.5);
+        }
+        return t;
+    }
+
+    Tensor toDirect(Tensor x)
+    {
+        Tensor direct = Tensor.allocateDirect(x.dims);
+        x.copyTo(direct);
+        return direct;
+    }
+
+    void assertSame(Tensor expected, Tensor actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i)
+        {
+            assertEquals(expected.at(i), actual.at(i), 1e-12);
+        }
+    }
+
+    @Test
+    public void testAccessors() throws Exception
+    {
+        Tensor heap = randomTensor(2, 3);
+        Tensor direct = toDirect(heap);
+        assertTrue(direct.isOffHeap());
+        assertSame(heap, direct);
+
+        heap.scale(2.);
+        direct.scale(2.);
+        heap.addi(4, 1.);
+        direct.addi(4, 1.);
+        assertSame(heap, direct);
+
+        // Copies come back on the heap
+        Tensor copy = new Tensor(direct);
+        assertTrue(!copy.isOffHeap());
+        assertSame(heap, copy);
+    }
+
+    void checkLayer(AbstractLayer heapLayer, AbstractLayer directLayer, Tensor x, Tensor chainGrad)
+    {
+        assertSame(heapLayer.forward(x), directLayer.forward(x));
+        assertSame(heapLayer.backward(chainGrad, 0), directLayer.backward(chainGrad, 0));
+        assertSame(heapLayer.getParamGrads(), directLayer.getParamGrads());
+
+        // Updates go through the accessors too
+        new AdagradUpdate(1.0).run(heapLayer, 0.1, 1e-4);
+        new AdagradUpdate(1.0).run(directLayer, 0.1, 1e-4);
+        assertTrue(directLayer.getParams().isOffHeap());
+        assertSame(heapLayer.getParams(), directLayer.getParams());
+        assertSame(heapLayer.forward(x), directLayer.forward(x));
+    }
+
+    @Test
+    public void testFullyConnected() throws Exception
+    {
+        FullyConnectedLayer heapLayer = new FullyConnectedLayer(3, 5);
+        FullyConnectedLayer directLayer = (FullyConnectedLayer) heapLayer.prototype();
+        directLayer.setParams(toDirect(heapLayer.getParams()));
+        checkLayer(heapLayer, directLayer, randomTensor(5), randomTensor(3));
+
+        Tensor batch = randomTensor(4, 5);
+        assertSame(heapLayer.forwardBatch(batch), directLayer.forwardBatch(batch));
+    }
+
+    @Test
+    public void testSpatialConvolution() throws Exception
+    {
+        SpatialConvolutionalLayer heapLayer = new SpatialConvolutionalLayer(2, 2, 2, 3, 4, 4);
+        SpatialConvolutionalLayer directLayer = (SpatialConvolutionalLayer) heapLayer.prototype();
+        directLayer.setParams(toDirect(heapLayer.getParams()));
+        checkLayer(heapLayer, directLayer, randomTensor(3, 4, 4), randomTensor(2, 3, 3));
+    }
+
+    @Test
+    public void testTemporalConvolution() throws Exception
+    {
+        TemporalConvolutionalLayer heapLayer = new TemporalConvolutionalLayer(3, 2, 3);
+        TemporalConvolutionalLayer directLayer = (TemporalConvolutionalLayer) heapLayer.prototype();
+        directLayer.setParams(toDirect(heapLayer.getParams()));
+        checkLayer(heapLayer, directLayer, randomTensor(2, 1, 7), randomTensor(3, 1, 5));
+    }
+}
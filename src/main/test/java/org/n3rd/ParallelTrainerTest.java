@@ -0,0 +1,206 @@
+package org.n3rd;
+
+import org.junit.Test;
+import org.n3rd.layers.DropoutLayer;
+import org.n3rd.layers.FullyConnectedLayer;
+import org.n3rd.layers.Layer;
+import org.n3rd.layers.TanhLayer;
+import org.n3rd.ops.SGDWithMomentumUpdate;
+import org.sgdtk.DenseVectorN;
+import org.sgdtk.FeatureVector;
+import org.sgdtk.Loss;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotSame;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
+
+public class ParallelTrainerTest
+{
+    static final Loss SQUARE_LOSS = new Loss()
+    {
+        @Override
+        public double loss(double p, double y)
+        {
+            double d = p - y;
+            return 0.5 * d * d;
+        }
+
+        @Override
+        public double dLoss(double p, double y)
+        {
+            return p - y;
+        }
+    };
+
+    NeuralNetModel createModel()
+    {
+        return new NeuralNetModel(new Layer[] {
+                new FullyConnectedLayer(8, 4),
+                new TanhLayer(),
+                new FullyConnectedLayer(1, 8),
+                new TanhLayer() }, false, new SGDWithMomentumUpdate(0.));
+    }
+
+    // y = sign(x0 - x1) with a little margin
+    List<FeatureVector> createData(int n)
+    {
+        Random random = new Random(1234);
+        List<FeatureVector> data = new ArrayList<FeatureVector>(n);
+        for (int i = 0; i < n; ++i)
+        {
+            double[] x = new double[4];
+            for (int j = 0; j < x.length; ++j)
+            {
+                x[j] = random.nextDouble() * 2 - 1;
+            }
+            data.add(new FeatureVector(x[0] > x[1] ? 0.8 : -0.8, new DenseVectorN(x)));
+        }
+        return data;
+    }
+
+    double totalLoss(NeuralNetModel model, List<FeatureVector> data)
+    {
+        double total = 0.;
+        for (FeatureVector fv : data)
+        {
+            total += SQUARE_LOSS.loss(model.predict(fv), fv.getY());
+        }
+        return total / data.size();
+    }
+
+    @Test
+    public void testReplicaSharesParams() throws Exception
+    {
+        NeuralNetModel model = createModel();
+        NeuralNetModel replica = model.replicate();
+        for (int i = 0; i < model.getLayers().length; ++i)
+        {
+            Layer layer = model.getLayers()[i];
+            Layer replicaLayer = replica.getLayers()[i];
+            assertSame(layer.getParams(), replicaLayer.getParams());
+            assertSame(layer.getBiasParams(), replicaLayer.getBiasParams());
+            assertSame(layer.getWeightAccum(), replicaLayer.getWeightAccum());
+            if (layer.getParamGrads() != null)
+            {
+                assertNotSame(layer.getParamGrads(), replicaLayer.getParamGrads());
+            }
+        }
+
+        FeatureVector fv = createData(1).get(0);
+        assertEquals(model.predict(fv), replica.predict(fv), 1e-12);
+    }
+
+    @Test
+    public void testHogwild() throws Exception
+    {
+        NeuralNetModel model = createModel();
+        List<FeatureVector> data = createData(400);
+        double before = totalLoss(model, data);
+
+        HogwildTrainer trainer = new HogwildTrainer(SQUARE_LOSS, 1e-6, 0.05, 4);
+        for (int i = 0; i < 10; ++i)
+        {
+            trainer.trainEpoch(model, data);
+        }
+        double after = totalLoss(model, data);
+        assertTrue(after < before / 2);
+
+        trainer.setStriped(true);
+        trainer.setBatchSz(4);
+        trainer.trainEpoch(model, data);
+        assertTrue(totalLoss(model, data) < before / 2);
+    }
+
+    static void assertSameWeights(NeuralNetModel expected, NeuralNetModel actual, double eps)
+    {
+        for (int i = 0; i < expected.getLayers().length; ++i)
+        {
+            Tensor w = expected.getLayers()[i].getParams();
+            for (int j = 0; w != null && j < w.size(); ++j)
+            {
+                assertEquals(w.get(j), actual.getLayers()[i].getParams().get(j), eps);
+            }
+            double[] b = expected.getLayers()[i].getBiasParams();
+            for (int j = 0; b != null && j < b.length; ++j)
+            {
+                assertEquals(b[j], actual.getLayers()[i].getBiasParams()[j], eps);
+            }
+        }
+    }
+
+    @Test
+    public void testPrototype() throws Exception
+    {
+        NeuralNetModel model = createModel();
+        NeuralNetModel copy = (NeuralNetModel) model.prototype();
+        assertSameWeights(model, copy, 0.);
+        assertNotSame(model.getLayers()[0].getParams(), copy.getLayers()[0].getParams());
+
+        // Training the copy leaves the original alone
+        NeuralNetModel before = (NeuralNetModel) model.prototype();
+        new MiniBatchTrainer(SQUARE_LOSS, 1e-6, 0.05, 4).trainEpoch(copy, createData(20));
+        assertSameWeights(before, model, 0.);
+    }
+
+    @Test
+    public void testSynchronousIsReproducible() throws Exception
+    {
+        NeuralNetModel model = createModel();
+        NeuralNetModel copy = (NeuralNetModel) model.prototype();
+        List<FeatureVector> data = createData(200);
+        double before = totalLoss(model, data);
+
+        for (int i = 0; i < 5; ++i)
+        {
+            new SynchronousParallelTrainer(SQUARE_LOSS, 1e-6, 0.1, 4, 10, 42L).trainEpoch(model, data);
+            new SynchronousParallelTrainer(SQUARE_LOSS, 1e-6, 0.1, 4, 10, 42L).trainEpoch(copy, data);
+        }
+        assertSameWeights(model, copy, 0.);
+        assertTrue(totalLoss(model, data) < before);
+    }
+
+    @Test
+    public void testSynchronousMatchesMiniBatch() throws Exception
+    {
+        // Splitting the batch across threads only changes the order of the sums
+        NeuralNetModel model = createModel();
+        NeuralNetModel copy = (NeuralNetModel) model.prototype();
+        List<FeatureVector> data = createData(103);
+
+        new SynchronousParallelTrainer(SQUARE_LOSS, 1e-6, 0.1, 3, 8).trainEpoch(model, data);
+        new MiniBatchTrainer(SQUARE_LOSS, 1e-6, 0.1, 8).trainEpoch(copy, data);
+        assertSameWeights(copy, model, 1e-10);
+    }
+
+    // The model's own dropout is left alone, the other replicas get seeds of their own
+    @Test
+    public void testReplicaDropoutSeeds() throws Exception
+    {
+        DropoutLayer dropout = new DropoutLayer(0.5);
+        dropout.setSeed(42);
+        NeuralNetModel model = new NeuralNetModel(new Layer[] { new FullyConnectedLayer(64, 4), dropout }, false);
+        NeuralNetModel[] replicas = new SynchronousParallelTrainer(SQUARE_LOSS, 0., 0.1, 2, 8, 1234)
+                .createReplicas(model);
+        assertSame(model, replicas[0]);
+
+        DropoutLayer expected = new DropoutLayer(0.5);
+        expected.setSeed(42);
+        Tensor x = new Tensor(64);
+        x.constant(1.);
+        Tensor mask = new Tensor(expected.forward(x));
+        Tensor actual = dropout.forward(x);
+        Tensor other = replicas[1].getLayers()[1].forward(x);
+        boolean differs = false;
+        for (int i = 0; i < mask.size(); ++i)
+        {
+            assertEquals(mask.get(i), actual.get(i));
+            differs |= mask.get(i) != other.get(i);
+        }
+        assertTrue(differs);
+    }
+}
@@ -0,0 +1,172 @@
+package org.n3rd;
+
+import org.junit.Test;
+import org.n3rd.layers.*;
+import org.sgdtk.DenseVectorN;
+import org.sgdtk.FeatureVector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+// The int8 layers should come within a quantization step or so of the layers they came from
+public class QuantizerTest
+{
+    static final int NUM_EXAMPLES = 100;
+
+    Random random = new Random(1234);
+
+    double[] randomInput(int sz)
+    {
+        double[] x = new double[sz];
+        for (int i = 0; i < sz; ++i)
+        {
+            x[i] = random.nextDouble() - 0.5;
+        }
+        return x;
+    }
+
+    void checkLayer(Layer layer, int inputSz)
+    {
+        QuantizedLayer quantized = Quantizer.quantize(layer);
+        quantized.calibrate(0.5);
+        for (int n = 0; n < 5; ++n)
+        {
+            Tensor x = new Tensor(randomInput(inputSz), inputSz);
+            Tensor expected = new Tensor(layer.forward(x));
+            Tensor actual = quantized.forward(x);
+            assertEquals(expected.size(), actual.size());
+            double mx = 0.;
+            for (int i = 0; i < expected.size(); ++i)
+            {
+                mx = Math.max(mx, Math.abs(expected.at(i) - layer.getBiasParams()[0]));
+            }
+            for (int i = 0; i < expected.size(); ++i)
+            {
+                assertEquals(expected.at(i), actual.at(i), 0.02 * mx + 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void testLayers() throws Exception
+    {
+        checkLayer(new FullyConnectedLayer(5, 20), 20);
+        checkLayer(new FullyConnectedLayerBlas(5, 20), 20);
+        checkLayer(new SpatialConvolutionalLayer(3, 3, 3, 2, 7, 7), 2 * 7 * 7);
+        checkLayer(new SpatialConvolutionalLayerBlas(3, 3, 3, 2, 2, 1, 1, 1, 1, new int[] { 2, 7, 7 }), 2 * 7 * 7);
+        checkLayer(new SpatialConvolutionalLayerBlas(3, 2, 2, 1, 1, 0, 0, 2, 2, new int[] { 1, 6, 6 }), 6 * 6);
+        checkLayer(new TemporalConvolutionalLayer(4, 2, 3, 3), 2 * 3 * 10);
+        checkLayer(new TemporalConvolutionalLayerBlas(4, 2, 3), 2 * 12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongInputLength() throws Exception
+    {
+        QuantizedLayer quantized = Quantizer.quantize(new FullyConnectedLayer(5, 20));
+        quantized.forward(new Tensor(randomInput(19), 19));
+    }
+
+    NeuralNetModel createModel()
+    {
+        return new NeuralNetModel(new Layer[] {
+                new TemporalConvolutionalLayerBlas(6, 2, 3),
+                new ReLULayer(),
+                new MaxOverTimePoolingLayer(6),
+                new FullyConnectedLayer(8, 6),
+                new TanhLayer(),
+                new FullyConnectedLayerBlas(3, 8),
+                new LogSoftMaxLayer() }, false);
+    }
+
+    // Label the sample with the original model's predictions, so it scores perfectly
+    List<FeatureVector> createSample(NeuralNetModel model)
+    {
+        List<FeatureVector> sample = new ArrayList<FeatureVector>();
+        for (int n = 0; n < NUM_EXAMPLES; ++n)
+        {
+            FeatureVector fv = new FeatureVector(0, new DenseVectorN(randomInput(2 * 10)));
+            double[] scores = model.score(fv);
+            int best = 0;
+            for (int i = 1; i < scores.length; ++i)
+            {
+                best = scores[i] > scores[best] ? i : best;
+            }
+            sample.add(new FeatureVector(best + 1, fv.getX()));
+        }
+        return sample;
+    }
+
+    @Test
+    public void testQuantize() throws Exception
+    {
+        NeuralNetModel model = createModel();
+        List<FeatureVector> sample = createSample(model);
+        Quantizer.Report report = Quantizer.quantize(model, sample);
+
+        assertEquals(3, report.getNumQuantized());
+        assertEquals(NUM_EXAMPLES, report.getNumExamples());
+        assertEquals(1.0, report.getAccuracy(), 1e-12);
+        assertTrue(report.getAccuracyDelta() > -0.1);
+
+        Layer[] layers = report.getModel().getLayers();
+        assertTrue(layers[0] instanceof QuantizedTemporalConvolutionalLayer);
+        assertTrue(layers[3] instanceof QuantizedFullyConnectedLayer);
+        assertTrue(layers[5] instanceof QuantizedFullyConnectedLayer);
+
+        // The quantized layers still fuse with their activations
+        assertEquals(layers.length - 2, report.getModel().fuse().getLayers().length);
+
+        // And compile
+        CompiledModel compiled = new CompiledModel(report.getModel(), 2 * 10);
+        double[] actual = new double[3];
+        for (FeatureVector fv : sample)
+        {
+            double[] expected = report.getModel().score(fv);
+            compiled.score(((DenseVectorN) fv.getX()).getX().v, actual);
+            for (int i = 0; i < expected.length; ++i)
+            {
+                assertEquals(expected[i], actual[i], 1e-12);
+            }
+        }
+    }
+
+    void assertSameScores(NeuralNetModel expected, NeuralNetModel actual, List<FeatureVector> sample)
+    {
+        for (FeatureVector fv : sample)
+        {
+            double[] e = expected.score(fv);
+            double[] a = actual.score(fv);
+            assertEquals(e.length, a.length);
+            for (int j = 0; j < e.length; ++j)
+            {
+                assertEquals(e[j], a[j], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception
+    {
+        NeuralNetModel model = createModel();
+        List<FeatureVector> sample = createSample(model);
+        NeuralNetModel quantized = Quantizer.quantize(model, sample).getModel();
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        quantized.save(binary);
+        NeuralNetModel fromBinary = new NeuralNetModel();
+        fromBinary.load(new ByteArrayInputStream(binary.toByteArray()));
+        assertSameScores(quantized, fromBinary, sample);
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        quantized.saveJSON(json);
+        NeuralNetModel fromJSON = new NeuralNetModel();
+        fromJSON.loadJSON(new ByteArrayInputStream(json.toByteArray()));
+        assertSameScores(quantized, fromJSON, sample);
+    }
+}
@@ -0,0 +1,147 @@
+package org.n3rd.layers;
+
+import org.junit.Test;
+import org.n3rd.Tensor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+// Whichever implementation the autotuned layers pick, they should give the same answers as the blas layers, and
+// the choices should be cached per shape
+public class AutotunedConvolutionalLayerTest
+{
+    static final double EPS = 1e-6;
+    static final int BATCH_SZ = 3;
+
+    Random random = new Random(1234);
+
+    Tensor randomTensor(int... dims)
+    {
+        Tensor t = new Tensor(dims);
+        for (int i = 0, sz = t.size(); i < sz; ++i)
+        {
+            t.set(i, random.nextDouble() - 0.5);
+        }
+        return t;
+    }
+
+    void assertClose(Tensor expected, Tensor actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i)
+        {
+            assertEquals(expected.at(i), actual.at(i), EPS);
+        }
+    }
+
+    void assertClose(double[] expected, double[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i)
+        {
+            assertEquals(expected[i], actual[i], EPS);
+        }
+    }
+
+    // Force each algorithm in turn, and compare a forward and backward, single and batched, against the reference
+    void checkAlgorithms(AutotunedConvolutionalLayer auto, Layer expected, Tensor x, Tensor chainGrad, Tensor batchX,
+                         Tensor batchChainGrad)
+    {
+        for (String algorithm : auto.algorithms())
+        {
+            ConvolutionAutotuner autotuner = new ConvolutionAutotuner();
+            autotuner.put(autotuner.key(auto.shape(x.size()), 0, true), algorithm);
+            autotuner.put(autotuner.key(auto.shape(x.size()), BATCH_SZ, true), algorithm);
+            auto.setAutotuner(autotuner);
+
+            expected.getParamGrads().constant(0.);
+            auto.getParamGrads().constant(0.);
+            Arrays.fill(expected.getBiasGrads(), 0.);
+            Arrays.fill(auto.getBiasGrads(), 0.);
+            assertClose(expected.forward(x), auto.forward(x));
+            assertEquals(algorithm, auto.algorithm());
+            assertClose(expected.backward(new Tensor(chainGrad), 0.), auto.backward(new Tensor(chainGrad), 0.));
+            assertClose(expected.getParamGrads(), auto.getParamGrads());
+            assertClose(expected.getBiasGrads(), auto.getBiasGrads());
+
+            expected.getParamGrads().constant(0.);
+            auto.getParamGrads().constant(0.);
+            Arrays.fill(expected.getBiasGrads(), 0.);
+            Arrays.fill(auto.getBiasGrads(), 0.);
+            double[] y = new double[BATCH_SZ];
+            assertClose(expected.forwardBatch(batchX), auto.forwardBatch(batchX));
+            assertClose(expected.backwardBatch(batchChainGrad, y), auto.backwardBatch(batchChainGrad, y));
+            assertClose(expected.getParamGrads(), auto.getParamGrads());
+            assertClose(expected.getBiasGrads(), auto.getBiasGrads());
+        }
+    }
+
+    @Test
+    public void testTemporalAlgorithmsAgree() throws Exception
+    {
+        TemporalConvolutionalLayerAuto auto = new TemporalConvolutionalLayerAuto(3, 2, 3);
+        TemporalConvolutionalLayerBlas expected = new TemporalConvolutionalLayerBlas(3, 2, 3);
+        expected.setParams(new Tensor(auto.getParams()).view(6, 3));
+        expected.setBiasParams(Arrays.copyOf(auto.getBiasParams(), 3));
+
+        checkAlgorithms(auto, expected, randomTensor(2, 1, 7), randomTensor(3, 1, 5),
+                randomTensor(BATCH_SZ, 2, 1, 7), randomTensor(BATCH_SZ, 3, 1, 5));
+    }
+
+    @Test
+    public void testSpatialAlgorithmsAgree() throws Exception
+    {
+        SpatialConvolutionalLayerAuto auto = new SpatialConvolutionalLayerAuto(2, 2, 2, 3, 4, 4);
+        SpatialConvolutionalLayerBlas expected = new SpatialConvolutionalLayerBlas(2, 2, 2, 3, 4, 4);
+        expected.setParams(new Tensor(auto.getParams()).view(12, 2));
+        expected.setBiasParams(Arrays.copyOf(auto.getBiasParams(), 2));
+
+        checkAlgorithms(auto, expected, randomTensor(3, 4, 4), randomTensor(2, 3, 3),
+                randomTensor(BATCH_SZ, 3, 4, 4), randomTensor(BATCH_SZ, 2, 3, 3));
+    }
+
+    @Test
+    public void testChoicesAreCachedPerLength() throws Exception
+    {
+        ConvolutionAutotuner autotuner = new ConvolutionAutotuner();
+        autotuner.setTrials(0, 1);
+        TemporalConvolutionalLayerAuto auto = new TemporalConvolutionalLayerAuto(3, 2, 3);
+        auto.setAutotuner(autotuner);
+
+        auto.forward(randomTensor(2, 1, 7));
+        assertTrue(Arrays.asList(auto.algorithms()).contains(auto.algorithm()));
+        auto.forward(randomTensor(2, 1, 7));
+        assertEquals(1, autotuner.getChoices().size());
+        auto.forward(randomTensor(2, 1, 12));
+        assertEquals(2, autotuner.getChoices().size());
+
+        // Scoring is timed separately
+        auto.setIsTraining(false);
+        auto.forward(randomTensor(2, 1, 12));
+        assertEquals(3, autotuner.getChoices().size());
+    }
+
+    @Test
+    public void testCacheFile() throws Exception
+    {
+        File file = File.createTempFile("autotune", ".properties");
+        file.delete();
+        file.deleteOnExit();
+
+        ConvolutionAutotuner autotuner = new ConvolutionAutotuner();
+        autotuner.setTrials(0, 1);
+        autotuner.setCacheFile(file);
+        SpatialConvolutionalLayerAuto auto = new SpatialConvolutionalLayerAuto(2, 2, 2, 3, 4, 4);
+        auto.setAutotuner(autotuner);
+        auto.forward(randomTensor(3, 4, 4));
+        assertTrue(file.exists());
+
+        ConvolutionAutotuner reloaded = new ConvolutionAutotuner();
+        reloaded.setCacheFile(file);
+        assertEquals(autotuner.getChoices(), reloaded.getChoices());
+    }
+}
@@ -1,7 +1,7 @@
 package org.n3rd.layers;
 
-import com.sun.media.sound.FFT;
 import org.junit.Test;
+import org.n3rd.ops.FFT;
 import org.n3rd.ops.FFTOps;
 import org.sgdtk.ArrayDouble;
 
@@ -0,0 +1,232 @@
+package org.n3rd.layers;
+
+import org.junit.Test;
+import org.n3rd.NeuralNetModel;
+import org.n3rd.Tensor;
+import org.n3rd.ops.AdagradUpdate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+// A fused model has to give exactly the same activations, deltas and updates as the layers it was made from
+public class FusedLayerTest
+{
+    static final double EPS = 1e-12;
+
+    Random random = new Random(1234);
+
+    Tensor randomTensor(int... dims)
+    {
+        Tensor t = new Tensor(dims);
+        for (int i = 0, sz = t.size(); i < sz; ++i)
+        {
+            t.set(i, random.nextDouble() - 0.5);
+        }
+        return t;
+    }
+
+    // conv, pool, tanh, then conv, relu, pool, then a hidden layer and a sigmoid output
+    Layer[] lenet()
+    {
+        return new Layer[] {
+                new SpatialConvolutionalLayerBlas(4, 3, 3, 1, 10, 10),
+                new MaxPoolingLayer(2, 2, 4, 8, 8),
+                new TanhLayer(),
+                new SpatialConvolutionalLayerBlas(3, 3, 3, 4, 4, 4),
+                new ReLULayer(),
+                new MaxPoolingLayer(2, 2, 3, 2, 2),
+                new FullyConnectedLayerBlas(5, 3),
+                new ReLULayer(),
+                new FullyConnectedLayer(1, 5),
+                new SigmoidLayer()
+        };
+    }
+
+    void assertSame(Tensor expected, Tensor actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i)
+        {
+            assertEquals(expected.get(i), actual.get(i), EPS);
+        }
+    }
+
+    void assertSameParams(Layer[] expected, Layer[] actual)
+    {
+        for (int i = 0; i < expected.length; ++i)
+        {
+            if (expected[i].getParams() != null)
+            {
+                assertSame(expected[i].getParams(), actual[i].getParams());
+                for (int j = 0; j < expected[i].getBiasParams().length; ++j)
+                {
+                    assertEquals(expected[i].getBiasParams()[j], actual[i].getBiasParams()[j], EPS);
+                }
+            }
+        }
+    }
+
+    Tensor forward(Layer[] layers, Tensor x)
+    {
+        Tensor z = x;
+        for (Layer layer : layers)
+        {
+            z = layer.forward(z);
+        }
+        return z;
+    }
+
+    Tensor backward(Layer[] layers, Tensor chainGrad)
+    {
+        for (int k = layers.length - 1; k >= 0; --k)
+        {
+            chainGrad = layers[k].backward(chainGrad, 0.);
+        }
+        return chainGrad;
+    }
+
+    @Test
+    public void testFuse() throws Exception
+    {
+        Layer[] fused = FusedLayer.fuse(lenet());
+        assertEquals(4, fused.length);
+        assertTrue(((FusedLayer) fused[0]).isPoolFirst());
+        assertEquals(FusedLayer.Activation.TANH, ((FusedLayer) fused[0]).getActivation());
+        assertTrue(!((FusedLayer) fused[1]).isPoolFirst());
+        assertEquals(FusedLayer.Activation.RELU, ((FusedLayer) fused[1]).getActivation());
+        assertEquals(null, ((FusedLayer) fused[2]).getPooling());
+        assertEquals(FusedLayer.Activation.SIGMOID, ((FusedLayer) fused[3]).getActivation());
+
+        // Nothing to fuse without parameters below the activation
+        Layer[] unfusable = new Layer[] { new MaxPoolingLayer(2, 2, 1, 4, 4), new TanhLayer() };
+        assertEquals(2, FusedLayer.fuse(unfusable).length);
+    }
+
+    @Test
+    public void testForwardBackward() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(lenet(), false);
+        Layer[] layers = model.getLayers();
+        Layer[] fused = ((NeuralNetModel) model.prototype()).fuse().getLayers();
+        for (int step = 0; step < 3; ++step)
+        {
+            Tensor x = randomTensor(1, 10, 10);
+            assertSame(new Tensor(forward(layers, x)), forward(fused, x));
+
+            Tensor chainGrad = randomTensor(1);
+            Tensor expected = new Tensor(backward(layers, chainGrad));
+            assertSame(expected, backward(fused, chainGrad));
+            for (int i = 0, j = 0; i < layers.length; ++i)
+            {
+                if (layers[i].getParams() != null)
+                {
+                    assertSame(layers[i].getParamGrads(), fused[j++].getParamGrads());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTrainBatch() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(lenet(), false, new AdagradUpdate(1.0));
+        NeuralNetModel copy = (NeuralNetModel) model.prototype();
+        NeuralNetModel fused = copy.fuse();
+        double[] y = new double[] { 1., -1., 1. };
+        for (int step = 0; step < 3; ++step)
+        {
+            Tensor x = randomTensor(3, 1, 10, 10);
+            assertSame(new Tensor(model.forwardBatch(x)), fused.forwardBatch(x));
+            double[] dLoss = new double[] { random.nextDouble(), -random.nextDouble(), random.nextDouble() };
+            model.updateWeights(0.1, 0.01, dLoss, y);
+            fused.updateWeights(0.1, 0.01, dLoss, y);
+            // The fused model trains the layers it was made from
+            assertSameParams(model.getLayers(), copy.getLayers());
+        }
+    }
+
+    @Test
+    public void testReplicate() throws Exception
+    {
+        for (Layer fused : FusedLayer.fuse(lenet()))
+        {
+            // Replicas share the weights, copies have their own
+            Layer replica = fused.replicate();
+            assertTrue(replica.getParams() == fused.getParams());
+            Layer copy = fused.prototype();
+            assertTrue(copy.getParams() != fused.getParams());
+            assertSame(fused.getParams(), copy.getParams());
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception
+    {
+        NeuralNetModel model = new NeuralNetModel(lenet(), false);
+        NeuralNetModel fused = ((NeuralNetModel) model.prototype()).fuse();
+        Layer[] unfused = FusedLayer.unfuse(fused.getLayers());
+        assertEquals(model.getLayers().length, unfused.length);
+        for (int i = 0; i < unfused.length; ++i)
+        {
+            assertEquals(model.getLayers()[i].getClass(), unfused[i].getClass());
+        }
+
+        // Either format loads back as the unfused model
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        fused.save(binary);
+        NeuralNetModel fromBinary = new NeuralNetModel();
+        fromBinary.load(new ByteArrayInputStream(binary.toByteArray()));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        fused.saveJSON(json);
+        NeuralNetModel fromJSON = new NeuralNetModel();
+        fromJSON.loadJSON(new ByteArrayInputStream(json.toByteArray()));
+
+        for (NeuralNetModel loaded : new NeuralNetModel[] { fromBinary, fromJSON })
+        {
+            assertEquals(model.getLayers().length, loaded.getLayers().length);
+            Tensor x = randomTensor(1, 10, 10);
+            assertSame(new Tensor(forward(model.getLayers(), x)), forward(loaded.getLayers(), x));
+        }
+    }
+
+    @Test
+    public void testSparseGradients() throws Exception
+    {
+        FullyConnectedLayer hidden = new FullyConnectedLayer(3, 6);
+        FusedLayer fused = new FusedLayer(hidden, FusedLayer.Activation.TANH);
+        FusedLayer replica = (FusedLayer) fused.replicate();
+        fused.clearTouchedParams();
+        replica.clearTouchedParams();
+
+        // Only the 2nd and 5th inputs are non-zero, so only their columns are touched
+        Tensor x = new Tensor(new double[] { 0., 0.5, 0., 0., -0.25, 0. }, 6);
+        fused.forward(x);
+        fused.backward(randomTensor(3), 0.);
+        assertEquals(hidden.numTouchedParams(), fused.numTouchedParams());
+        assertEquals(3 * 2, fused.numTouchedParams());
+
+        // Merging a replica's gradients merges the columns it touched
+        replica.forward(new Tensor(new double[] { 0., 0.5, 0., 1., 0., 0. }, 6));
+        replica.backward(randomTensor(3), 0.);
+        fused.mergeTouchedParams(replica);
+        assertEquals(3 * 3, fused.numTouchedParams());
+        int[] indices = new int[fused.numTouchedParams()];
+        fused.touchedParams(indices);
+        for (int index : indices)
+        {
+            final int column = index % 6;
+            assertTrue(column == 1 || column == 3 || column == 4);
+        }
+
+        fused.clearTouchedParams();
+        assertEquals(0, hidden.numTouchedParams());
+
+        // A layer that doesnt keep track has every gradient looked at
+        assertEquals(-1, ((FusedLayer) FusedLayer.fuse(lenet())[0]).numTouchedParams());
+    }
+}
@@ -0,0 +1,192 @@
+package org.n3rd.layers;
+
+import org.junit.Test;
+import org.n3rd.Tensor;
+import org.n3rd.ops.Parallel;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class KMaxPoolingLayerTest
+{
+    // 2 feature maps, embedding size 1, 6 frames
+    double[] X = {
+            3, 1, 4, 1, 5, 9,
+            2, 6, 5, 3, 5, 8
+    };
+
+    // The top 3 in their original order, with the tied 5s going to the earlier frame
+    double[] K3 = {
+            4, 5, 9,
+            6, 5, 8
+    };
+
+    // The k largest in order of frame, with ties to the earlier frame, which is what a stable sort gives
+    static double[] reference(double[] row, int k)
+    {
+        final int n = row.length;
+        boolean[] taken = new boolean[n];
+        for (int p = 0; p < Math.min(k, n); ++p)
+        {
+            int best = -1;
+            for (int i = 0; i < n; ++i)
+            {
+                if (!taken[i] && (best < 0 || row[i] > row[best]))
+                {
+                    best = i;
+                }
+            }
+            taken[best] = true;
+        }
+        double[] pooled = new double[k];
+        for (int i = 0, o = 0; i < n; ++i)
+        {
+            if (taken[i])
+            {
+                pooled[o++] = row[i];
+            }
+        }
+        return pooled;
+    }
+
+    void checkRandom(Random random, int featureMapSz, int embedSz, int numFrames, int k)
+    {
+        Tensor x = new Tensor(featureMapSz, embedSz, numFrames);
+        for (int i = 0; i < x.size(); ++i)
+        {
+            // Lots of ties
+            x.set(i, random.nextInt(5));
+        }
+        KMaxPoolingLayer layer = new KMaxPoolingLayer(k, featureMapSz, embedSz);
+        Tensor z = layer.forward(x);
+        Tensor chainGrad = new Tensor(z.dims);
+        for (int i = 0; i < chainGrad.size(); ++i)
+        {
+            chainGrad.set(i, i + 1);
+        }
+        Tensor grads = layer.backward(chainGrad, 0);
+
+        for (int row = 0; row < featureMapSz * embedSz; ++row)
+        {
+            double[] values = new double[numFrames];
+            System.arraycopy(x.getArray().v, row * numFrames, values, 0, numFrames);
+            double[] expected = reference(values, k);
+            double gradSum = 0.;
+            double expectedGradSum = 0.;
+            for (int i = 0; i < k; ++i)
+            {
+                assertEquals(expected[i], z.get(row * k + i), 0.);
+                expectedGradSum += i < numFrames ? row * k + i + 1 : 0;
+            }
+            for (int i = 0; i < numFrames; ++i)
+            {
+                gradSum += grads.get(row * numFrames + i);
+            }
+            assertEquals(expectedGradSum, gradSum, 1e-9);
+        }
+    }
+
+    @Test
+    public void testForward() throws Exception
+    {
+        KMaxPoolingLayer layer = new KMaxPoolingLayer(3, 2, 1);
+        Tensor z = layer.forward(new Tensor(X, 2, 1, 6));
+        for (int i = 0; i < K3.length; ++i)
+        {
+            assertEquals(K3[i], z.get(i), 0.);
+        }
+    }
+
+    @Test
+    public void testBackward() throws Exception
+    {
+        KMaxPoolingLayer layer = new KMaxPoolingLayer(3, 2, 1);
+        layer.forward(new Tensor(X, 2, 1, 6));
+        Tensor grads = layer.backward(new Tensor(new double[] { 1, 2, 3, 4, 5, 6 }, 2, 1, 3), 0);
+        double[] expected = {
+                0, 0, 1, 0, 2, 3,
+                0, 4, 5, 0, 0, 6
+        };
+        for (int i = 0; i < expected.length; ++i)
+        {
+            assertEquals(expected[i], grads.get(i), 0.);
+        }
+    }
+
+    @Test
+    public void testAgainstSort() throws Exception
+    {
+        Random random = new Random(1234);
+        checkRandom(random, 3, 2, 17, 4);
+        checkRandom(random, 2, 3, 50, 1);
+        checkRandom(random, 4, 1, 9, 9);
+        // Fewer frames than k, so the end of each row is zeros
+        checkRandom(random, 2, 2, 3, 5);
+    }
+
+    @Test
+    public void testParallel() throws Exception
+    {
+        ForkJoinPool pool = Parallel.getPool();
+        long grain = Parallel.getGrain();
+        try
+        {
+            Parallel.setPool(new ForkJoinPool(4));
+            Parallel.setGrain(1);
+            checkRandom(new Random(1234), 20, 3, 31, 5);
+        }
+        finally
+        {
+            Parallel.setPool(pool);
+            Parallel.setGrain(grain);
+        }
+    }
+
+    @Test
+    public void testForwardDoesntAllocate() throws Exception
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported())
+        {
+            return;
+        }
+        KMaxPoolingLayer layer = new KMaxPoolingLayer(3, 2, 1);
+        Tensor x = new Tensor(X, 2, 1, 6);
+        // Let the scratch space grow, and the JIT settle
+        for (int i = 0; i < 20000; ++i)
+        {
+            layer.forward(x);
+        }
+        final long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; ++i)
+        {
+            layer.forward(x);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(id) - before);
+    }
+
+    @Test
+    public void testSelect() throws Exception
+    {
+        Random random = new Random(1234);
+        for (int n = 1; n < 40; ++n)
+        {
+            double[] values = new double[n];
+            for (int i = 0; i < n; ++i)
+            {
+                values[i] = random.nextInt(7);
+            }
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            for (int r = 0; r < n; ++r)
+            {
+                assertEquals(sorted[n - 1 - r], KMaxPoolingLayer.select(values.clone(), n, r), 0.);
+            }
+        }
+    }
+}
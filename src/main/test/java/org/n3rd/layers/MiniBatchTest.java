@@ -0,0 +1,181 @@
+package org.n3rd.layers;
+
+import org.junit.Test;
+import org.n3rd.Tensor;
+
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+// Every layer has to give the same answer for a batch as it does one example at a time, with the parameter
+// gradients summed over the batch
+public class MiniBatchTest
+{
+    static final int BATCH_SZ = 3;
+    static final double EPS = 1e-8;
+
+    Random random = new Random(1234);
+
+    Tensor randomBatch(int... dims)
+    {
+        Tensor t = new Tensor(dims);
+        for (int i = 0, sz = t.size(); i < sz; ++i)
+        {
+            t.set(i, random.nextDouble() - 0.5);
+        }
+        return t;
+    }
+
+    Tensor slice(Tensor batch, int b)
+    {
+        final int sz = batch.size() / batch.dims[0];
+        Tensor example = new Tensor(AbstractLayer.exampleDims(batch.dims));
+        System.arraycopy(batch.getArray().v, b * sz, example.getArray().v, 0, sz);
+        return example;
+    }
+
+    void checkBatch(Layer layer, Tensor x, Tensor chainGrad, double[] y)
+    {
+        final int batchSz = x.dims[0];
+
+        // Do it one at a time first
+        Tensor[] outputs = new Tensor[batchSz];
+        Tensor[] grads = new Tensor[batchSz];
+        Tensor paramGrads = layer.getParamGrads();
+        double[] biasGrads = layer.getBiasGrads();
+        double[] paramGradsSum = paramGrads == null ? null : new double[paramGrads.size()];
+        double[] biasGradsSum = biasGrads == null ? null : new double[biasGrads.length];
+
+        for (int b = 0; b < batchSz; ++b)
+        {
+            outputs[b] = new Tensor(layer.forward(slice(x, b)));
+            if (paramGrads != null)
+            {
+                paramGrads.constant(0.);
+            }
+            if (biasGrads != null)
+            {
+                for (int i = 0; i < biasGrads.length; ++i)
+                {
+                    biasGrads[i] = 0.;
+                }
+            }
+            grads[b] = new Tensor(layer.backward(slice(chainGrad, b), y[b]));
+            for (int i = 0; paramGradsSum != null && i < paramGradsSum.length; ++i)
+            {
+                paramGradsSum[i] += paramGrads.get(i);
+            }
+            for (int i = 0; biasGradsSum != null && i < biasGradsSum.length; ++i)
+            {
+                biasGradsSum[i] += biasGrads[i];
+            }
+        }
+
+        if (paramGrads != null)
+        {
+            paramGrads.constant(0.);
+        }
+        for (int i = 0; biasGrads != null && i < biasGrads.length; ++i)
+        {
+            biasGrads[i] = 0.;
+        }
+
+        Tensor output = layer.forwardBatch(x);
+        assertEquals(batchSz, output.dims[0]);
+        final int oSz = outputs[0].size();
+        assertEquals(batchSz * oSz, output.size());
+        for (int b = 0; b < batchSz; ++b)
+        {
+            for (int i = 0; i < oSz; ++i)
+            {
+                assertEquals(outputs[b].get(i), output.get(b * oSz + i), EPS);
+            }
+        }
+
+        Tensor grad = layer.backwardBatch(chainGrad, y);
+        assertEquals(batchSz, grad.dims[0]);
+        final int gSz = grads[0].size();
+        assertEquals(batchSz * gSz, grad.size());
+        for (int b = 0; b < batchSz; ++b)
+        {
+            for (int i = 0; i < gSz; ++i)
+            {
+                assertEquals(grads[b].get(i), grad.get(b * gSz + i), EPS);
+            }
+        }
+
+        for (int i = 0; paramGradsSum != null && i < paramGradsSum.length; ++i)
+        {
+            assertEquals(paramGradsSum[i], paramGrads.get(i), EPS);
+        }
+        for (int i = 0; biasGradsSum != null && i < biasGradsSum.length; ++i)
+        {
+            assertEquals(biasGradsSum[i], biasGrads[i], EPS);
+        }
+    }
+
+    @Test
+    public void testFullyConnected() throws Exception
+    {
+        FullyConnectedLayer layer = new FullyConnectedLayer(3, 5);
+        checkBatch(layer, randomBatch(BATCH_SZ, 5), randomBatch(BATCH_SZ, 3), new double[BATCH_SZ]);
+    }
+
+    @Test
+    public void testFullyConnectedBlas() throws Exception
+    {
+        FullyConnectedLayerBlas layer = new FullyConnectedLayerBlas(3, 5);
+        checkBatch(layer, randomBatch(BATCH_SZ, 5), randomBatch(BATCH_SZ, 3), new double[BATCH_SZ]);
+    }
+
+    @Test
+    public void testActivations() throws Exception
+    {
+        checkBatch(new TanhLayer(), randomBatch(BATCH_SZ, 4), randomBatch(BATCH_SZ, 4), new double[BATCH_SZ]);
+        checkBatch(new SigmoidLayer(), randomBatch(BATCH_SZ, 4), randomBatch(BATCH_SZ, 4), new double[BATCH_SZ]);
+        checkBatch(new ReLULayer(), randomBatch(BATCH_SZ, 4), randomBatch(BATCH_SZ, 4), new double[BATCH_SZ]);
+    }
+
+    @Test
+    public void testLogSoftMax() throws Exception
+    {
+        checkBatch(new LogSoftMaxLayer(), randomBatch(BATCH_SZ, 4), randomBatch(BATCH_SZ, 1), new double[] { 1, 4, 2 });
+    }
+
+    @Test
+    public void testSpatialConvolution() throws Exception
+    {
+        // This one uses the fallback in AbstractLayer
+        SpatialConvolutionalLayer layer = new SpatialConvolutionalLayer(2, 2, 2, 3, 4, 4);
+        checkBatch(layer, randomBatch(BATCH_SZ, 3, 4, 4), randomBatch(BATCH_SZ, 2, 3, 3), new double[BATCH_SZ]);
+    }
+
+    @Test
+    public void testSpatialConvolutionBlas() throws Exception
+    {
+        SpatialConvolutionalLayerBlas layer = new SpatialConvolutionalLayerBlas(2, 2, 2, 3, 4, 4);
+        checkBatch(layer, randomBatch(BATCH_SZ, 3, 4, 4), randomBatch(BATCH_SZ, 2, 3, 3), new double[BATCH_SZ]);
+    }
+
+    @Test
+    public void testSpatialConvolutionBlasStrided() throws Exception
+    {
+        SpatialConvolutionalLayerBlas layer = new SpatialConvolutionalLayerBlas(2, 3, 3, 2, 2, 1, 1, 1, 1,
+                new int[] { 3, 7, 8 });
+        checkBatch(layer, randomBatch(BATCH_SZ, 3, 7, 8), randomBatch(BATCH_SZ, 2, 4, 4), new double[BATCH_SZ]);
+    }
+
+    @Test
+    public void testTemporalConvolutionBlas() throws Exception
+    {
+        TemporalConvolutionalLayerBlas layer = new TemporalConvolutionalLayerBlas(3, 2, 3);
+        checkBatch(layer, randomBatch(BATCH_SZ, 2, 1, 7), randomBatch(BATCH_SZ, 3, 1, 5), new double[BATCH_SZ]);
+    }
+
+    @Test
+    public void testMaxPooling() throws Exception
+    {
+        MaxPoolingLayer layer = new MaxPoolingLayer(2, 2, 2, 4, 4);
+        checkBatch(layer, randomBatch(BATCH_SZ, 2, 4, 4), randomBatch(BATCH_SZ, 2, 2, 2), new double[BATCH_SZ]);
+    }
+}
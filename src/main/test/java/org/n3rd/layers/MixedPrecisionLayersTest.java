@@ -0,0 +1,115 @@
+package org.n3rd.layers;
+
+import org.junit.Test;
+import org.n3rd.Tensor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+// The mixed-precision layers should match their double-precision counterparts, to within float rounding, one
+// example at a time and over a batch
+public class MixedPrecisionLayersTest
+{
+    static final int BATCH_SZ = 3;
+    static final double EPS = 1e-5;
+
+    Random random = new Random(1234);
+
+    Tensor randomTensor(int... dims)
+    {
+        Tensor t = new Tensor(dims);
+        for (int i = 0, sz = t.size(); i < sz; ++i)
+        {
+            t.set(i, random.nextDouble() - 0.5);
+        }
+        return t;
+    }
+
+    void assertClose(Tensor expected, Tensor actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i)
+        {
+            assertEquals(expected.get(i), actual.get(i), EPS);
+        }
+    }
+
+    void assertClose(double[] expected, double[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i)
+        {
+            assertEquals(expected[i], actual[i], EPS);
+        }
+    }
+
+    void checkLayer(Layer expected, Layer actual, Tensor x, Tensor chainGrad, Tensor batchX, Tensor batchChainGrad)
+    {
+        assertClose(expected.forward(x), actual.forward(x));
+        assertClose(expected.backward(chainGrad, 0), actual.backward(chainGrad, 0));
+        assertClose(expected.getParamGrads(), actual.getParamGrads());
+        assertClose(expected.getBiasGrads(), actual.getBiasGrads());
+
+        expected.getParamGrads().constant(0.);
+        actual.getParamGrads().constant(0.);
+        Arrays.fill(expected.getBiasGrads(), 0.);
+        Arrays.fill(actual.getBiasGrads(), 0.);
+        double[] y = new double[BATCH_SZ];
+        assertClose(expected.forwardBatch(batchX), actual.forwardBatch(batchX));
+        assertClose(expected.backwardBatch(batchChainGrad, y), actual.backwardBatch(batchChainGrad, y));
+        assertClose(expected.getParamGrads(), actual.getParamGrads());
+        assertClose(expected.getBiasGrads(), actual.getBiasGrads());
+    }
+
+    @Test
+    public void testFullyConnected() throws Exception
+    {
+        FullyConnectedLayerBlas expected = new FullyConnectedLayerBlas(3, 5);
+        FullyConnectedLayerMixed actual = new FullyConnectedLayerMixed();
+        actual.setParams(new Tensor(expected.getParams()));
+        actual.setBiasParams(Arrays.copyOf(expected.getBiasParams(), 3));
+        checkLayer(expected, actual, randomTensor(5), randomTensor(3),
+                randomTensor(BATCH_SZ, 5), randomTensor(BATCH_SZ, 3));
+    }
+
+    @Test
+    public void testTemporalConvolution() throws Exception
+    {
+        TemporalConvolutionalLayerBlas expected = new TemporalConvolutionalLayerBlas(3, 2, 3);
+        TemporalConvolutionalLayerMixed actual = new TemporalConvolutionalLayerMixed(3, 2, 3);
+        actual.setParams(new Tensor(expected.getParams()));
+        actual.setBiasParams(Arrays.copyOf(expected.getBiasParams(), 3));
+        checkLayer(expected, actual, randomTensor(2, 1, 7), randomTensor(3, 1, 5),
+                randomTensor(BATCH_SZ, 2, 1, 7), randomTensor(BATCH_SZ, 3, 1, 5));
+    }
+
+    @Test
+    public void testSpatialConvolution() throws Exception
+    {
+        SpatialConvolutionalLayerBlas expected = new SpatialConvolutionalLayerBlas(2, 2, 2, 3, 4, 4);
+        SpatialConvolutionalLayerMixed actual = new SpatialConvolutionalLayerMixed(2, 2, 2, 3, 4, 4);
+        actual.setParams(new Tensor(expected.getParams()));
+        actual.setBiasParams(Arrays.copyOf(expected.getBiasParams(), 2));
+        checkLayer(expected, actual, randomTensor(3, 4, 4), randomTensor(2, 3, 3),
+                randomTensor(BATCH_SZ, 3, 4, 4), randomTensor(BATCH_SZ, 2, 3, 3));
+    }
+
+    @Test
+    public void testWeightsFollowUpdates() throws Exception
+    {
+        FullyConnectedLayerBlas expected = new FullyConnectedLayerBlas(3, 5);
+        FullyConnectedLayerMixed actual = new FullyConnectedLayerMixed();
+        actual.setParams(new Tensor(expected.getParams()));
+        actual.setBiasParams(Arrays.copyOf(expected.getBiasParams(), 3));
+        Tensor x = randomTensor(5);
+        assertClose(expected.forward(x), actual.forward(x));
+
+        // Change the weights outside of training
+        expected.getParams().scale(2.);
+        actual.getParams().scale(2.);
+        actual.weightsChanged();
+        assertClose(expected.forward(x), actual.forward(x));
+    }
+}
@@ -5,6 +5,8 @@ import org.junit.Test;
 import org.n3rd.Tensor;
 import org.sgdtk.ArrayDouble;
 
+import java.util.Random;
+
 import static junit.framework.TestCase.assertEquals;
 
 public class SpatialConvolutionalLayerBlasTest
@@ -173,4 +175,95 @@ public class SpatialConvolutionalLayerBlasTest
 
     }
 
-}
\ No newline at end of file
+    // Is (y, x) inside the input, rather than in the padding?
+    private static boolean inBounds(Tensor x, int y, int z)
+    {
+        return y >= 0 && y < x.dims[1] && z >= 0 && z < x.dims[2];
+    }
+
+    // The input at (l, y, x), or 0 in the padding
+    private static double at(Tensor x, int l, int y, int z)
+    {
+        return inBounds(x, y, z) ? x.get((l * x.dims[1] + y) * x.dims[2] + z) : 0.;
+    }
+
+    @Test
+    public void testStridePadDilation() throws Exception
+    {
+        final int kL = 2, iH = 7, iW = 6, nK = 3, kH = 3, kW = 2;
+        final int sH = 2, sW = 1, pH = 1, pW = 2, dH = 1, dW = 2;
+        Random random = new Random(1234);
+        Tensor x = new Tensor(kL, iH, iW);
+        for (int i = 0; i < x.size(); ++i)
+        {
+            x.set(i, random.nextDouble() - 0.5);
+        }
+        SpatialConvolutionalLayerBlas layer = new SpatialConvolutionalLayerBlas(nK, kH, kW, sH, sW, pH, pW, dH, dW,
+                x.dims);
+        for (int k = 0; k < nK; ++k)
+        {
+            layer.getBiasParams()[k] = 0.1 * k;
+        }
+        final int oH = (iH + 2 * pH - dH * (kH - 1) - 1) / sH + 1;
+        final int oW = (iW + 2 * pW - dW * (kW - 1) - 1) / sW + 1;
+        final int cols = kL * kH * kW;
+
+        Tensor z = layer.forward(x);
+        assertEquals(nK, z.dims[0]);
+        assertEquals(oH, z.dims[1]);
+        assertEquals(oW, z.dims[2]);
+
+        Tensor chainG = new Tensor(nK, oH, oW);
+        for (int i = 0; i < chainG.size(); ++i)
+        {
+            chainG.set(i, random.nextDouble() - 0.5);
+        }
+        Tensor e = layer.backward(new Tensor(chainG), 1);
+
+        Tensor w = layer.getParams();
+        Tensor expectedGrads = new Tensor(kL, iH, iW);
+        Tensor expectedGradsW = new Tensor(cols, nK);
+        for (int k = 0; k < nK; ++k)
+        {
+            double biasGrad = 0.;
+            for (int i = 0; i < oH; ++i)
+            {
+                for (int j = 0; j < oW; ++j)
+                {
+                    final double cg = chainG.get((k * oH + i) * oW + j);
+                    biasGrad += cg;
+                    double acc = layer.getBiasParams()[k];
+                    for (int l = 0; l < kL; ++l)
+                    {
+                        for (int m = 0; m < kH; ++m)
+                        {
+                            for (int n = 0; n < kW; ++n)
+                            {
+                                final int c = (l * kH + m) * kW + n;
+                                final int y = i * sH - pH + m * dH;
+                                final int xx = j * sW - pW + n * dW;
+                                final double xv = at(x, l, y, xx);
+                                acc += w.get(k * cols + c) * xv;
+                                expectedGradsW.addi(k * cols + c, cg * xv);
+                                if (inBounds(x, y, xx))
+                                {
+                                    expectedGrads.addi((l * iH + y) * iW + xx, cg * w.get(k * cols + c));
+                                }
+                            }
+                        }
+                    }
+                    assertEquals(acc, z.get((k * oH + i) * oW + j), 1e-9);
+                }
+            }
+            assertEquals(biasGrad, layer.getBiasGrads()[k], 1e-9);
+        }
+        for (int i = 0; i < e.size(); ++i)
+        {
+            assertEquals(expectedGrads.get(i), e.get(i), 1e-9);
+        }
+        for (int i = 0; i < expectedGradsW.size(); ++i)
+        {
+            assertEquals(expectedGradsW.get(i), layer.getParamGrads().get(i), 1e-9);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.n3rd.layers;
+
+import org.junit.Test;
+import org.n3rd.Tensor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class SpatialConvolutionalLayerFFTTest
+{
+    static final double EPS = 1e-9;
+    static final int BATCH_SZ = 3;
+
+    double[] OIK_2_3_2x2 = {
+            1, 1, 2, 2,
+            1, 1, 1, 1,
+            0, 1, 1, 0,
+            1, 0, 0, 1,
+            2, 1, 2, 1,
+            1, 2, 2, 0
+    };
+    double[] IF_3_3x3 = {
+            1, 2, 0,
+            1, 1, 3,
+            0, 2, 2,
+            0, 2, 1,
+            0, 3, 2,
+            1, 1, 0,
+            1, 2, 1,
+            0, 1, 3,
+            3, 3, 2};
+
+    double[] OFM = {14, 20, 15, 24, 12, 24, 17, 26 };
+
+    Random random = new Random(1234);
+
+    Tensor randomTensor(int... dims)
+    {
+        Tensor t = new Tensor(dims);
+        for (int i = 0, sz = t.size(); i < sz; ++i)
+        {
+            t.set(i, random.nextDouble() - 0.5);
+        }
+        return t;
+    }
+
+    void assertClose(Tensor expected, Tensor actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i)
+        {
+            assertEquals(expected.at(i), actual.at(i), EPS);
+        }
+    }
+
+    void assertClose(double[] expected, double[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i)
+        {
+            assertEquals(expected[i], actual[i], EPS);
+        }
+    }
+
+    // A direct layer with the same parameters
+    SpatialConvolutionalLayer direct(SpatialConvolutionalLayerFFT layer)
+    {
+        SpatialConvolutionalLayer expected = new SpatialConvolutionalLayer(layer.getParams().dims[0],
+                layer.getParams().dims[2], layer.getParams().dims[3], layer.getInputDims());
+        expected.setParams(new Tensor(layer.getParams()));
+        expected.setBiasParams(Arrays.copyOf(layer.getBiasParams(), layer.getBiasParams().length));
+        return expected;
+    }
+
+    @Test
+    public void testForward() throws Exception
+    {
+        Tensor x = new Tensor(IF_3_3x3, 3, 3, 3);
+        SpatialConvolutionalLayerFFT layer = new SpatialConvolutionalLayerFFT(2, 2, 2, x.dims);
+        for (int i = 0; i < layer.getParams().size(); ++i)
+        {
+            layer.getParams().set(i, OIK_2_3_2x2[i]);
+        }
+        layer.weightsChanged();
+        Arrays.fill(layer.getBiasParams(), 0.);
+
+        Tensor z = layer.forward(x);
+        for (int i = 0; i < z.size(); ++i)
+        {
+            assertEquals(OFM[i], z.get(i), EPS);
+        }
+    }
+
+    @Test
+    public void testBackward() throws Exception
+    {
+        SpatialConvolutionalLayerFFT layer = new SpatialConvolutionalLayerFFT(4, 5, 5, 2, 12, 10);
+        for (int i = 0; i < layer.getBiasParams().length; ++i)
+        {
+            layer.getBiasParams()[i] = random.nextDouble();
+        }
+        SpatialConvolutionalLayer expected = direct(layer);
+
+        Tensor x = randomTensor(2, 12, 10);
+        Tensor chainGrad = randomTensor(4, 8, 6);
+        assertClose(expected.forward(x), layer.forward(x));
+        assertClose(expected.backward(new Tensor(chainGrad), 0.), layer.backward(new Tensor(chainGrad), 0.));
+        assertClose(expected.getParamGrads(), layer.getParamGrads());
+        assertClose(expected.getBiasGrads(), layer.getBiasGrads());
+    }
+
+    // The kernel spectra have to be made again once the weights have been updated
+    @Test
+    public void testUpdatedWeights() throws Exception
+    {
+        SpatialConvolutionalLayerFFT layer = new SpatialConvolutionalLayerFFT(2, 3, 3, 1, 6, 6);
+        Tensor x = randomTensor(1, 6, 6);
+        layer.forward(x);
+        layer.backward(randomTensor(2, 4, 4), 0.);
+        layer.getParams().scale(0.5);
+        assertClose(direct(layer).forward(x), layer.forward(x));
+
+        double[] y = new double[BATCH_SZ];
+        Tensor batchX = randomTensor(BATCH_SZ, 1, 6, 6);
+        layer.forwardBatch(batchX);
+        layer.backwardBatch(randomTensor(BATCH_SZ, 2, 4, 4), y);
+        layer.getParams().scale(0.5);
+        assertClose(direct(layer).forwardBatch(batchX), layer.forwardBatch(batchX));
+    }
+
+    @Test
+    public void testBatch() throws Exception
+    {
+        SpatialConvolutionalLayerFFT layer = new SpatialConvolutionalLayerFFT(3, 3, 2, 2, 7, 8);
+        SpatialConvolutionalLayer expected = direct(layer);
+
+        Tensor batchX = randomTensor(BATCH_SZ, 2, 7, 8);
+        Tensor batchChainGrad = randomTensor(BATCH_SZ, 3, 5, 7);
+        double[] y = new double[BATCH_SZ];
+        assertClose(expected.forwardBatch(batchX), layer.forwardBatch(batchX));
+        assertClose(expected.backwardBatch(batchChainGrad, y), layer.backwardBatch(batchChainGrad, y));
+        assertClose(expected.getParamGrads(), layer.getParamGrads());
+        assertClose(expected.getBiasGrads(), layer.getBiasGrads());
+    }
+}
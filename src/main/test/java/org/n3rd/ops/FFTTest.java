@@ -0,0 +1,101 @@
+package org.n3rd.ops;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class FFTTest
+{
+    static final double EPS = 1e-9;
+
+    // Sizes with each kind of pass, including a prime that needs the plain DFT
+    static final int[] SIZES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 12, 15, 16, 30, 45, 60, 64, 100, 120, 210 };
+
+    Random random = new Random(1234);
+
+    double[] dft(double[] x, int n, int sign)
+    {
+        double[] y = new double[2 * n];
+        for (int k = 0; k < n; ++k)
+        {
+            for (int t = 0; t < n; ++t)
+            {
+                double angle = sign * 2. * Math.PI * ((long) k * t % n) / n;
+                y[2 * k] += x[2 * t] * Math.cos(angle) - x[2 * t + 1] * Math.sin(angle);
+                y[2 * k + 1] += x[2 * t] * Math.sin(angle) + x[2 * t + 1] * Math.cos(angle);
+            }
+        }
+        return y;
+    }
+
+    double[] random(int n)
+    {
+        double[] x = new double[n];
+        for (int i = 0; i < n; ++i)
+        {
+            x[i] = random.nextDouble() - 0.5;
+        }
+        return x;
+    }
+
+    @Test
+    public void testTransform() throws Exception
+    {
+        for (int n : SIZES)
+        {
+            for (int sign : new int[] { -1, 1 })
+            {
+                double[] x = random(2 * n);
+                double[] expected = dft(x, n, sign);
+                double[] y = x.clone();
+                new FFT(n, sign).transform(y);
+                for (int i = 0; i < 2 * n; ++i)
+                {
+                    assertEquals(expected[i], y[i], EPS);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRealTransforms() throws Exception
+    {
+        for (int n : SIZES)
+        {
+            double[] x = random(n);
+            double[] complex = new double[2 * n];
+            for (int i = 0; i < n; ++i)
+            {
+                complex[2 * i] = x[i];
+            }
+            double[] expected = dft(complex, n, -1);
+
+            FFT fft = new FFT(n);
+            double[] spectrum = new double[2 * (n / 2 + 1)];
+            fft.realForward(x, spectrum);
+            for (int i = 0; i < spectrum.length; ++i)
+            {
+                assertEquals(expected[i], spectrum[i], EPS);
+            }
+
+            double[] y = new double[n];
+            fft.realInverse(spectrum, y);
+            for (int i = 0; i < n; ++i)
+            {
+                assertEquals(x[i], y[i] / n, EPS);
+            }
+        }
+    }
+
+    @Test
+    public void testGoodSize() throws Exception
+    {
+        assertEquals(2, FFT.goodSize(1));
+        assertEquals(8, FFT.goodSize(7));
+        assertEquals(100, FFT.goodSize(100));
+        assertEquals(270, FFT.goodSize(257));
+        assertEquals(1080, FFT.goodSize(1025));
+    }
+}
@@ -3,6 +3,9 @@ package org.n3rd.ops;
 import org.junit.Test;
 import org.n3rd.Tensor;
 
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
 import static junit.framework.TestCase.assertEquals;
 
 // At this point, I have tested convolution and correlation in 2D and 1D, and zp embed in 1D.
@@ -184,4 +187,318 @@ public class FilterOpsTest
         }
     }
 
-}
\ No newline at end of file
+
+    Tensor randomTensor(Random random, int... dims)
+    {
+        Tensor t = new Tensor(dims);
+        for (int i = 0, sz = t.size(); i < sz; ++i)
+        {
+            t.set(i, random.nextDouble() - 0.5);
+        }
+        return t;
+    }
+
+    // Several input and output feature maps, summed over the inputs
+    @Test
+    public void testFFTFiltMultiFM() throws Exception
+    {
+        Random random = new Random(1234);
+        Tensor data = randomTensor(random, 3, 1, 11);
+        Tensor kernels = randomTensor(random, 3, 3, 1, 4);
+        double[] biases = { 0.5, -1, 2 };
+        FFTOps fft = new FFTOps();
+
+        for (boolean corr : new boolean[] { true, false })
+        {
+            Tensor expected = new Tensor(3, 1, 8);
+            Tensor output = new Tensor(3, 1, 8);
+            if (corr)
+            {
+                FilterOps.corr1(data, kernels, biases, expected);
+            }
+            else
+            {
+                FilterOps.conv1(data, kernels, biases, expected);
+            }
+            FilterOps.fftfilt(fft, data, kernels, biases, corr, output);
+            for (int i = 0; i < expected.size(); ++i)
+            {
+                assertEquals(expected.get(i), output.get(i), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testFFTFiltEmbeddings() throws Exception
+    {
+        Random random = new Random(1234);
+        Tensor data = randomTensor(random, 2, 3, 20);
+        Tensor kernels = randomTensor(random, 4, 2, 3, 5);
+        Tensor expected = new Tensor(4, 3, 16);
+        Tensor output = new Tensor(4, 3, 16);
+        FilterOps.corr1(data, kernels, null, expected);
+        FilterOps.fftfilt(new FFTOps(), data, kernels, null, true, output);
+        for (int i = 0; i < expected.size(); ++i)
+        {
+            assertEquals(expected.get(i), output.get(i), 1e-9);
+        }
+    }
+
+    // The kernel spectra are kept until the kernels change
+    @Test
+    public void testFFTFiltKernelsChanged() throws Exception
+    {
+        Random random = new Random(1234);
+        Tensor data = randomTensor(random, 2, 1, 9);
+        Tensor kernels = randomTensor(random, 2, 2, 1, 3);
+        Tensor expected = new Tensor(2, 1, 7);
+        Tensor output = new Tensor(2, 1, 7);
+        FFTOps fft = new FFTOps();
+        FilterOps.fftfilt(fft, data, kernels, null, true, output);
+
+        kernels.scale(2.);
+        FilterOps.corr1(data, kernels, null, expected);
+        fft.kernelsChanged();
+        FilterOps.fftfilt(fft, data, kernels, null, true, output);
+        for (int i = 0; i < expected.size(); ++i)
+        {
+            assertEquals(expected.get(i), output.get(i), 1e-9);
+        }
+
+        // Same kernels, new data
+        data = randomTensor(random, 2, 1, 9);
+        FilterOps.corr1(data, kernels, null, expected);
+        FilterOps.fftfilt(fft, data, kernels, null, true, output);
+        for (int i = 0; i < expected.size(); ++i)
+        {
+            assertEquals(expected.get(i), output.get(i), 1e-9);
+        }
+    }
+
+    // A long signal with a short kernel, split up every way
+    @Test
+    public void testFFTFiltBlocks() throws Exception
+    {
+        Random random = new Random(1234);
+        Tensor data = randomTensor(random, 2, 2, 300);
+        Tensor kernels = randomTensor(random, 3, 2, 2, 7);
+        double[] biases = { 0.5, -1, 2 };
+        Tensor expected = new Tensor(3, 2, 294);
+        Tensor output = new Tensor(3, 2, 294);
+        FFTOps fft = new FFTOps();
+
+        for (boolean corr : new boolean[] { true, false })
+        {
+            if (corr)
+            {
+                FilterOps.corr1(data, kernels, biases, expected);
+            }
+            else
+            {
+                FilterOps.conv1(data, kernels, biases, expected);
+            }
+            for (FFTOps.Mode mode : FFTOps.Mode.values())
+            {
+                for (int blockSize : new int[] { 0, 20, 64 })
+                {
+                    fft.setMode(mode, blockSize);
+                    FilterOps.fftfilt(fft, data, kernels, biases, corr, output);
+                    for (int i = 0; i < expected.size(); ++i)
+                    {
+                        assertEquals(expected.get(i), output.get(i), 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFFTFilt2() throws Exception
+    {
+        Random random = new Random(1234);
+        Tensor data = randomTensor(random, 3, 9, 7);
+        Tensor kernels = randomTensor(random, 2, 3, 4, 3);
+        double[] biases = { 0.5, -1 };
+        Tensor expected = new Tensor(2, 6, 5);
+        Tensor output = new Tensor(2, 6, 5);
+        FFTOps fft = new FFTOps();
+
+        for (boolean corr : new boolean[] { true, false })
+        {
+            if (corr)
+            {
+                FilterOps.corr2(data, kernels, biases, expected);
+            }
+            else
+            {
+                FilterOps.conv2(data, kernels, biases, expected);
+            }
+            FilterOps.fftfilt2(fft, data, kernels, biases, corr, output);
+            for (int i = 0; i < expected.size(); ++i)
+            {
+                assertEquals(expected.get(i), output.get(i), 1e-9);
+            }
+        }
+    }
+
+    // The input gradient is the full convolution of the chain gradient with the transposed kernels, and the weight
+    // gradient is corr2Weights
+    @Test
+    public void testFFTFilt2Backward() throws Exception
+    {
+        Random random = new Random(1234);
+        Tensor data = randomTensor(random, 3, 9, 7);
+        Tensor kernels = randomTensor(random, 2, 3, 4, 3);
+        Tensor chainGrad = randomTensor(random, 2, 6, 5);
+        FFTOps fft = new FFTOps();
+        FilterOps.fftfilt2(fft, data, kernels, null, true, new Tensor(2, 6, 5));
+
+        Tensor grads = new Tensor(3, 9, 7);
+        Tensor weightGrads = new Tensor(2, 3, 4, 3);
+        fft.filter2Backward(chainGrad, grads.getArray().v, weightGrads.getArray().v);
+
+        Tensor expectedGrads = new Tensor(3, 9, 7);
+        FilterOps.conv2(chainGrad.embed(6, 4), kernels.transposeWeight4D(), null, expectedGrads);
+        for (int i = 0; i < expectedGrads.size(); ++i)
+        {
+            assertEquals(expectedGrads.get(i), grads.get(i), 1e-9);
+        }
+
+        Tensor expectedWeightGrads = new Tensor(2, 3, 4, 3);
+        FilterOps.corr2Weights(data, chainGrad, expectedWeightGrads);
+        for (int i = 0; i < expectedWeightGrads.size(); ++i)
+        {
+            assertEquals(expectedWeightGrads.get(i), weightGrads.get(i), 1e-9);
+        }
+    }
+
+    // Split every loop into single rows on a pool of 4, and check it against the same ops on one thread
+    @Test
+    public void testParallel() throws Exception
+    {
+        Random random = new Random(1234);
+        Tensor data1 = randomTensor(random, 2, 3, 13);
+        Tensor kernels1 = randomTensor(random, 4, 2, 3, 4);
+        Tensor ygrad1 = randomTensor(random, 4, 3, 10);
+        Tensor data2 = randomTensor(random, 3, 9, 8);
+        Tensor kernels2 = randomTensor(random, 2, 3, 3, 4);
+        Tensor ygrad2 = randomTensor(random, 2, 7, 5);
+        double[] biases = { 0.5, -0.25, 1.0, 2.0 };
+
+        Tensor[] expected = new Tensor[6];
+        Tensor[] actual = new Tensor[6];
+        ForkJoinPool pool = Parallel.getPool();
+        long grain = Parallel.getGrain();
+        try
+        {
+            for (int pass = 0; pass < 2; ++pass)
+            {
+                Tensor[] outputs = pass == 0 ? expected : actual;
+                Parallel.setPool(pass == 0 ? pool : new ForkJoinPool(4));
+                Parallel.setGrain(pass == 0 ? Long.MAX_VALUE : 1);
+                outputs[0] = new Tensor(4, 3, 10);
+                FilterOps.corr1(data1, kernels1, biases, outputs[0]);
+                outputs[1] = new Tensor(4, 3, 10);
+                FilterOps.conv1(data1, kernels1, biases, outputs[1]);
+                outputs[2] = FilterOps.corr1Weights(data1, ygrad1, new Tensor(4, 2, 3, 4));
+                outputs[3] = new Tensor(2, 7, 5);
+                FilterOps.corr2(data2, kernels2, biases, outputs[3]);
+                outputs[4] = new Tensor(2, 7, 5);
+                FilterOps.conv2(data2, kernels2, biases, outputs[4]);
+                outputs[5] = new Tensor(2, 3, 3, 4);
+                FilterOps.corr2Weights(data2, ygrad2, outputs[5]);
+            }
+        }
+        finally
+        {
+            Parallel.setPool(pool);
+            Parallel.setGrain(grain);
+        }
+
+        for (int i = 0; i < expected.length; ++i)
+        {
+            assertEquals(expected[i].size(), actual[i].size());
+            for (int j = 0; j < expected[i].size(); ++j)
+            {
+                assertEquals(expected[i].get(j), actual[i].get(j), 1e-12);
+            }
+        }
+    }
+
+    // The naive loops, which the blocked ones have to match
+    static double naive2(Tensor data, Tensor kernels, double[] biases, boolean conv, int k, int i, int j)
+    {
+        final int kL = kernels.dims[1];
+        final int kH = kernels.dims[2];
+        final int kW = kernels.dims[3];
+        double acc = biases[k];
+        for (int l = 0; l < kL; ++l)
+        {
+            for (int m = 0; m < kH; ++m)
+            {
+                for (int n = 0; n < kW; ++n)
+                {
+                    int mh = conv ? kH - m - 1 : m;
+                    int nw = conv ? kW - n - 1 : n;
+                    acc += data.get((l * data.dims[1] + i + m) * data.dims[2] + j + n) *
+                            kernels.get(((k * kL + l) * kH + mh) * kW + nw);
+                }
+            }
+        }
+        return acc;
+    }
+
+    // A number of kernels that isn't a multiple of the block, rows longer than a block of columns, and kernels that
+    // are off-heap
+    @Test
+    public void testBlocked() throws Exception
+    {
+        Random random = new Random(1234);
+        final int nK = 6;
+        Tensor data = randomTensor(random, 2, 4, 2 * FilterOps.COL_BLOCK + 9);
+        Tensor kernels = randomTensor(random, nK, 2, 4, 5);
+        Tensor offHeap = Tensor.allocateDirect(kernels.dims);
+        offHeap.set(kernels.getArray().v);
+        double[] biases = { 0.5, -0.25, 1.0, 2.0, 0., -1.0 };
+        final int oW = data.dims[2] - 5 + 1;
+
+        for (boolean conv : new boolean[] { false, true })
+        {
+            Tensor output1 = new Tensor(nK, 4, oW);
+            Tensor output2 = new Tensor(nK, 1, oW);
+            if (conv)
+            {
+                FilterOps.conv1(data, kernels, biases, output1);
+                FilterOps.conv2(data, offHeap, biases, output2);
+            }
+            else
+            {
+                FilterOps.corr1(data, offHeap, biases, output1);
+                FilterOps.corr2(data, kernels, biases, output2);
+            }
+            for (int k = 0; k < nK; ++k)
+            {
+                for (int j = 0; j < oW; ++j)
+                {
+                    assertEquals(naive2(data, kernels, biases, conv, k, 0, j), output2.get(k * oW + j), 1e-12);
+
+                    // In 1D, each embedding row is filtered with its own kernel row
+                    for (int e = 0; e < 4; ++e)
+                    {
+                        double acc = biases[k];
+                        for (int l = 0; l < 2; ++l)
+                        {
+                            for (int m = 0; m < 5; ++m)
+                            {
+                                acc += data.get((l * 4 + e) * data.dims[2] + j + m) *
+                                        kernels.get(((k * 2 + l) * 4 + e) * 5 + (conv ? 4 - m : m));
+                            }
+                        }
+                        assertEquals(acc, output1.get((k * 4 + e) * oW + j), 1e-12);
+                    }
+                }
+            }
+        }
+    }
+
+}
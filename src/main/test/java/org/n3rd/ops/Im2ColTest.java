@@ -0,0 +1,131 @@
+package org.n3rd.ops;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+// Unrolling against the definition, for strides, padding and dilation, and rolling back up against the transpose
+public class Im2ColTest
+{
+    Random random = new Random(1234);
+
+    double[] random(int n)
+    {
+        double[] x = new double[n];
+        for (int i = 0; i < n; ++i)
+        {
+            x[i] = random.nextDouble() - 0.5;
+        }
+        return x;
+    }
+
+    // The input at tap (l, m, n) of output pixel (i, j), or 0 in the padding
+    static double tap(Im2Col g, double[] x, int x0, int l, int m, int n, int i, int j)
+    {
+        final int y = i * g.strideH - g.padH + m * g.dilationH;
+        final int z = j * g.strideW - g.padW + n * g.dilationW;
+        if (y < 0 || y >= g.iH || z < 0 || z >= g.iW)
+        {
+            return 0.;
+        }
+        return x[x0 + (l * g.iH + y) * g.iW + z];
+    }
+
+    void check(Im2Col g)
+    {
+        final int rows = g.rows();
+        final int cols = g.cols();
+        final int inputSz = g.kL * g.iH * g.iW;
+        // Two examples, with the second one starting part way down a taller matrix
+        final int ld = 2 * rows + 3;
+        double[] x = random(2 * inputSz);
+        double[] u = random(ld * cols);
+        g.unwrap(x, 0, u, ld, 1);
+        g.unwrap(x, inputSz, u, ld, 1 + rows);
+
+        int c = 0;
+        for (int l = 0; l < g.kL; ++l)
+        {
+            for (int m = 0; m < g.kH; ++m)
+            {
+                for (int n = 0; n < g.kW; ++n, ++c)
+                {
+                    for (int b = 0; b < 2; ++b)
+                    {
+                        for (int i = 0; i < g.oH; ++i)
+                        {
+                            for (int j = 0; j < g.oW; ++j)
+                            {
+                                double expected = tap(g, x, b * inputSz, l, m, n, i, j);
+                                assertEquals(expected, u[c * ld + 1 + b * rows + i * g.oW + j], 0.);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // Rolling up is the transpose of unrolling, so <unwrap(x), v> == <x, wrap(v)>
+        double[] v = random(ld * cols);
+        double[] wrapped = new double[2 * inputSz];
+        g.wrap(v, ld, 1, wrapped, 0);
+        g.wrap(v, ld, 1 + rows, wrapped, inputSz);
+        double lhs = 0.;
+        for (int p = 0; p < cols; ++p)
+        {
+            for (int r = 1; r < 1 + 2 * rows; ++r)
+            {
+                lhs += u[p * ld + r] * v[p * ld + r];
+            }
+        }
+        double rhs = 0.;
+        for (int p = 0; p < x.length; ++p)
+        {
+            rhs += x[p] * wrapped[p];
+        }
+        assertEquals(lhs, rhs, 1e-9);
+    }
+
+    @Test
+    public void testValid() throws Exception
+    {
+        Im2Col g = new Im2Col(3, 5, 6, 2, 3);
+        assertTrue(g.isDense());
+        assertEquals(4, g.oH);
+        assertEquals(4, g.oW);
+        check(g);
+    }
+
+    @Test
+    public void testStridePadDilation() throws Exception
+    {
+        check(new Im2Col(2, 7, 8, 3, 3, 2, 2, 0, 0, 1, 1));
+        check(new Im2Col(2, 5, 6, 3, 3, 1, 1, 1, 1, 1, 1));
+        check(new Im2Col(1, 9, 9, 3, 3, 1, 1, 0, 0, 2, 3));
+        check(new Im2Col(3, 6, 7, 3, 2, 2, 3, 2, 1, 2, 1));
+        // Padding wider than the kernel reach, so some rows and columns are all zeros
+        check(new Im2Col(1, 3, 3, 2, 2, 1, 1, 3, 3, 1, 1));
+
+        Im2Col g = new Im2Col(2, 7, 8, 3, 3, 2, 2, 1, 1, 2, 2);
+        assertEquals(3, g.oH);
+        assertEquals(3, g.oW);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooBig() throws Exception
+    {
+        new Im2Col(1, 4, 4, 3, 3, 1, 1, 0, 0, 2, 2);
+    }
+
+    @Test
+    public void testWorkspaceGrows() throws Exception
+    {
+        ConvolutionWorkspace workspace = ConvolutionWorkspace.get();
+        double[] big = workspace.columns(workspace.capacity() + 100);
+        assertTrue(workspace.columns(10) == big);
+        assertTrue(workspace.capacity() >= big.length);
+    }
+}
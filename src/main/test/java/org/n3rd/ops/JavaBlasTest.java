@@ -0,0 +1,220 @@
+package org.n3rd.ops;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+// The Java BLAS against the definitions, for every transpose, with offsets, leading dimensions bigger than the
+// matrices, and strides, both on one thread and split up
+public class JavaBlasTest
+{
+    static final double EPS = 1e-9;
+    static final double EPS_F = 1e-3;
+
+    Random random = new Random(1234);
+
+    double[] random(int n)
+    {
+        double[] x = new double[n];
+        for (int i = 0; i < n; ++i)
+        {
+            x[i] = random.nextDouble() - 0.5;
+        }
+        return x;
+    }
+
+    float[] toFloat(double[] x)
+    {
+        float[] f = new float[x.length];
+        for (int i = 0; i < x.length; ++i)
+        {
+            f[i] = (float) x[i];
+        }
+        return f;
+    }
+
+    // op(x)[i, j] of a column-major matrix at offset x0
+    static double op(double[] x, int x0, int ld, boolean trans, int i, int j)
+    {
+        return trans ? x[x0 + j + i * ld] : x[x0 + i + j * ld];
+    }
+
+    static double[] gemm(boolean tA, boolean tB, int m, int n, int k, double alpha, double[] a, int aIdx, int lda,
+                         double[] b, int bIdx, int ldb, double beta, double[] c, int cIdx, int ldc)
+    {
+        double[] expected = c.clone();
+        for (int i = 0; i < m; ++i)
+        {
+            for (int j = 0; j < n; ++j)
+            {
+                double acc = 0.;
+                for (int p = 0; p < k; ++p)
+                {
+                    acc += op(a, aIdx, lda, tA, i, p) * op(b, bIdx, ldb, tB, p, j);
+                }
+                expected[cIdx + i + j * ldc] = alpha * acc + beta * c[cIdx + i + j * ldc];
+            }
+        }
+        return expected;
+    }
+
+    void checkGemm(JavaBlas blas, int m, int n, int k)
+    {
+        for (char transA : new char[] { 'N', 'T' })
+        {
+            for (char transB : new char[] { 'N', 'T' })
+            {
+                for (double beta : new double[] { 0., 0.5, 1. })
+                {
+                    final boolean tA = transA == 'T';
+                    final boolean tB = transB == 'T';
+                    final int lda = (tA ? k : m) + 3;
+                    final int ldb = (tB ? n : k) + 1;
+                    final int ldc = m + 2;
+                    double[] a = random(5 + lda * (tA ? m : k));
+                    double[] b = random(2 + ldb * (tB ? k : n));
+                    double[] c = random(7 + ldc * n);
+                    double[] expected = gemm(tA, tB, m, n, k, 0.75, a, 5, lda, b, 2, ldb, beta, c, 7, ldc);
+
+                    double[] actual = c.clone();
+                    blas.dgemm(transA, transB, m, n, k, 0.75, a, 5, lda, b, 2, ldb, beta, actual, 7, ldc);
+                    for (int i = 0; i < c.length; ++i)
+                    {
+                        assertEquals(expected[i], actual[i], EPS);
+                    }
+
+                    float[] actualF = toFloat(c);
+                    blas.sgemm(transA, transB, m, n, k, 0.75f, toFloat(a), 5, lda, toFloat(b), 2, ldb, (float) beta,
+                            actualF, 7, ldc);
+                    for (int i = 0; i < c.length; ++i)
+                    {
+                        assertEquals(expected[i], actualF[i], EPS_F);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGemm() throws Exception
+    {
+        JavaBlas blas = new JavaBlas(1);
+        checkGemm(blas, 1, 1, 1);
+        checkGemm(blas, 7, 5, 3);
+        checkGemm(blas, 13, 6, 9);
+        // More than one packed block in each direction
+        checkGemm(blas, JavaBlas.MC + 5, 3, JavaBlas.KC + 7);
+    }
+
+    @Test
+    public void testParallelGemm() throws Exception
+    {
+        JavaBlas blas = new JavaBlas(3);
+        assertTrue(80L * 70 * 60 >= JavaBlas.PARALLEL_THRESHOLD);
+        // The panels go to Parallel's pool, which has to have more than one thread, however many cores there are
+        ForkJoinPool pool = Parallel.getPool();
+        Parallel.setPool(new ForkJoinPool(3));
+        try
+        {
+            // Split by columns, and by rows
+            checkGemm(blas, 80, 70, 60);
+            checkGemm(blas, 1200, 2, 150);
+        }
+        finally
+        {
+            Parallel.getPool().shutdown();
+            Parallel.setPool(pool);
+        }
+    }
+
+    @Test
+    public void testGemv() throws Exception
+    {
+        JavaBlas blas = new JavaBlas(1);
+        final int m = 11;
+        final int n = 9;
+        final int lda = m + 2;
+        double[] a = random(3 + lda * n);
+        for (char trans : new char[] { 'N', 'T' })
+        {
+            for (int inc : new int[] { 1, 2 })
+            {
+                for (double beta : new double[] { 0., 1. })
+                {
+                    final boolean t = trans == 'T';
+                    final int lenX = t ? m : n;
+                    final int lenY = t ? n : m;
+                    double[] x = random(1 + lenX * inc);
+                    double[] y = random(4 + lenY * inc);
+                    double[] expected = y.clone();
+                    for (int i = 0; i < lenY; ++i)
+                    {
+                        double acc = 0.;
+                        for (int j = 0; j < lenX; ++j)
+                        {
+                            acc += op(a, 3, lda, t, i, j) * x[1 + j * inc];
+                        }
+                        expected[4 + i * inc] = 1.5 * acc + beta * y[4 + i * inc];
+                    }
+
+                    double[] actual = y.clone();
+                    blas.dgemv(trans, m, n, 1.5, a, 3, lda, x, 1, inc, beta, actual, 4, inc);
+                    float[] actualF = toFloat(y);
+                    blas.sgemv(trans, m, n, 1.5f, toFloat(a), 3, lda, toFloat(x), 1, inc, (float) beta, actualF, 4,
+                            inc);
+                    for (int i = 0; i < y.length; ++i)
+                    {
+                        assertEquals(expected[i], actual[i], EPS);
+                        assertEquals(expected[i], actualF[i], EPS_F);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGer() throws Exception
+    {
+        JavaBlas blas = new JavaBlas(1);
+        final int m = 6;
+        final int n = 5;
+        final int lda = 8;
+        double[] x = random(2 + m * 2);
+        double[] y = random(n);
+        double[] a = random(1 + lda * n);
+        double[] expected = a.clone();
+        for (int i = 0; i < m; ++i)
+        {
+            for (int j = 0; j < n; ++j)
+            {
+                expected[1 + i + j * lda] += 0.5 * x[2 + i * 2] * y[j];
+            }
+        }
+        blas.dger(m, n, 0.5, x, 2, 2, y, 0, 1, a, 1, lda);
+        for (int i = 0; i < a.length; ++i)
+        {
+            assertEquals(expected[i], a[i], EPS);
+        }
+    }
+
+    @Test
+    public void testForName() throws Exception
+    {
+        assertTrue(Blas.forName(Blas.JAVA) instanceof JavaBlas);
+        Blas shared = Blas.getInstance();
+        try
+        {
+            JavaBlas blas = new JavaBlas(1);
+            Blas.setInstance(blas);
+            assertTrue(Blas.getInstance() == blas);
+        }
+        finally
+        {
+            Blas.setInstance(shared);
+        }
+    }
+}
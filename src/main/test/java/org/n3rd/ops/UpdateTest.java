@@ -0,0 +1,346 @@
+package org.n3rd.ops;
+
+import org.junit.Test;
+import org.n3rd.Tensor;
+import org.n3rd.layers.FullyConnectedLayer;
+import org.n3rd.layers.Layer;
+
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+// The updates against their definitions, on the weights and the biases, and sparse Adagrad against decaying every
+// weight on every step, once its lazy decay is caught up
+public class UpdateTest
+{
+    static final double EPS = 1e-12;
+
+    Random random = new Random(1234);
+
+    // Gradients where about half of the weights have none
+    void randomGradients(Layer layer)
+    {
+        Tensor grads = layer.getParamGrads();
+        for (int i = 0; i < grads.size(); ++i)
+        {
+            grads.set(i, random.nextBoolean() ? random.nextDouble() - 0.5 : 0.);
+        }
+    }
+
+    @Test
+    public void testAdagrad() throws Exception
+    {
+        FullyConnectedLayer layer = new FullyConnectedLayer(4, 6);
+        randomGradients(layer);
+        Tensor w = new Tensor(layer.getParams());
+        Tensor gw = new Tensor(layer.getParamGrads());
+        Tensor gg = new Tensor(layer.getWeightAccum());
+        for (int i = 0; i < gg.size(); ++i)
+        {
+            layer.getWeightAccum().set(i, 0.5);
+        }
+
+        new AdagradUpdate(0.9).run(layer, 0.1, 0.01);
+        for (int i = 0; i < w.size(); ++i)
+        {
+            // Weights without a gradient are left alone
+            if (gw.get(i) == 0.)
+            {
+                assertEquals(0.5, layer.getWeightAccum().get(i), EPS);
+                assertEquals(w.get(i), layer.getParams().get(i), EPS);
+                continue;
+            }
+            final double ggi = 0.9 * 0.5 + gw.get(i) * gw.get(i);
+            assertEquals(ggi, layer.getWeightAccum().get(i), EPS);
+            final double wi = w.get(i) * (1 - 0.1 * 0.01) - 0.1 * gw.get(i) / Math.sqrt(ggi + 1e-8);
+            assertEquals(wi, layer.getParams().get(i), EPS);
+            assertEquals(0., layer.getParamGrads().get(i));
+        }
+    }
+
+    @Test
+    public void testMomentum() throws Exception
+    {
+        FullyConnectedLayer layer = new FullyConnectedLayer(4, 6);
+        SGDWithMomentumUpdate update = new SGDWithMomentumUpdate(0.9);
+        Tensor w = new Tensor(layer.getParams());
+        Tensor v = new Tensor(layer.getWeightAccum());
+        for (int step = 0; step < 3; ++step)
+        {
+            randomGradients(layer);
+            Tensor gw = new Tensor(layer.getParamGrads());
+            update.run(layer, 0.1, 0.01);
+            for (int i = 0; i < w.size(); ++i)
+            {
+                final double delta = -0.1 * gw.get(i) + 0.9 * v.get(i);
+                v.set(i, delta);
+                w.set(i, w.get(i) * (1 - 0.1 * 0.01) + delta);
+                assertEquals(v.get(i), layer.getWeightAccum().get(i), EPS);
+                assertEquals(w.get(i), layer.getParams().get(i), EPS);
+                assertEquals(0., layer.getParamGrads().get(i));
+            }
+        }
+    }
+
+    // An input where about half of the columns are zero
+    Tensor sparseInput(int sz)
+    {
+        Tensor x = new Tensor(sz);
+        for (int j = 0; j < sz; ++j)
+        {
+            x.set(j, random.nextBoolean() ? random.nextDouble() - 0.5 : 0.);
+        }
+        return x;
+    }
+
+    @Test
+    public void testSparseAdagrad() throws Exception
+    {
+        // An alpha of 0 zeroes the squared gradients that sat out each step
+        for (double alpha : new double[] { 1.0, 0.9, 0. })
+        {
+            final int outputLength = 5;
+            final int inputLength = 7;
+            FullyConnectedLayer layer = new FullyConnectedLayer(outputLength, inputLength);
+            AdagradUpdate update = new AdagradUpdate(alpha, true);
+            final int n = layer.getParams().size();
+            double[] w = new double[n];
+            double[] a = new double[n];
+            for (int i = 0; i < n; ++i)
+            {
+                w[i] = layer.getParams().get(i);
+            }
+
+            // The learning rate changes, so the decay is different every step
+            for (int step = 0; step < 10; ++step)
+            {
+                final double eta = 0.1 / (1 + step);
+                Tensor x = sparseInput(inputLength);
+                layer.forward(x);
+                layer.backward(new Tensor(randomInput(outputLength), outputLength), 0.);
+                Tensor g = new Tensor(layer.getParamGrads());
+                Tensor before = new Tensor(layer.getParams());
+                // The first step doesn't know which gradients were touched yet, and looks at all of them
+                assertEquals(step == 0 ? -1 : outputLength * nonZero(x), layer.numTouchedParams());
+                update.run(layer, eta, 0.05);
+
+                for (int i = 0; i < n; ++i)
+                {
+                    a[i] = alpha * a[i] + g.get(i) * g.get(i);
+                    w[i] = w[i] * (1 - eta * 0.05) - eta * g.get(i) / Math.sqrt(a[i] + 1e-8);
+                    // A weight in a column that was zero in the input isn't visited until later
+                    if (x.get(i % inputLength) == 0.)
+                    {
+                        assertEquals(before.get(i), layer.getParams().get(i));
+                    }
+                }
+            }
+            update.flush(layer);
+            for (int i = 0; i < n; ++i)
+            {
+                assertEquals(w[i], layer.getParams().get(i), 1e-10);
+                assertEquals(a[i], layer.getWeightAccum().get(i), 1e-10);
+            }
+        }
+    }
+
+    double[] randomInput(int sz)
+    {
+        double[] x = new double[sz];
+        for (int i = 0; i < sz; ++i)
+        {
+            x[i] = random.nextDouble() - 0.5;
+        }
+        return x;
+    }
+
+    int nonZero(Tensor x)
+    {
+        int count = 0;
+        for (int i = 0; i < x.size(); ++i)
+        {
+            count += x.get(i) != 0. ? 1 : 0;
+        }
+        return count;
+    }
+
+    @Test
+    public void testLazyDecay() throws Exception
+    {
+        LazyDecay lazy = new LazyDecay(2);
+        lazy.step(0.5);
+        assertEquals(0.5, lazy.catchUp(0), EPS);
+        lazy.step(0.5);
+        lazy.step(0.8);
+        assertEquals(0.4, lazy.catchUp(0), EPS);
+        assertEquals(0.2, lazy.catchUp(1), EPS);
+        assertEquals(1.0, lazy.catchUp(1), EPS);
+
+        // eta * lambda >= 1 zeroes everything, even what hasn't been visited in a while
+        lazy.step(0.5);
+        lazy.step(0.);
+        lazy.step(0.5);
+        assertEquals(0., lazy.catchUp(0), EPS);
+        lazy.step(0.5);
+        assertEquals(0.5, lazy.catchUp(0), EPS);
+        assertEquals(0., lazy.catchUp(1), EPS);
+    }
+
+    // Run an update for a few steps on the weights and the biases, and check both against the reference
+    void checkStateful(Update update, double eta, double lambda, Reference reference)
+    {
+        FullyConnectedLayer layer = new FullyConnectedLayer(3, 4);
+        // A replica shares its parameters, and so its state
+        Layer replica = layer.replicate();
+        final int n = layer.getParams().size();
+        final int nb = layer.getBiasParams().length;
+        double[] w = new double[n];
+        double[] b = layer.getBiasParams().clone();
+        for (int i = 0; i < n; ++i)
+        {
+            w[i] = layer.getParams().get(i);
+        }
+        double[][] state = new double[2][n];
+        double[][] biasState = new double[2][nb];
+        for (int t = 1; t <= 4; ++t)
+        {
+            Layer stepLayer = t % 2 == 0 ? replica : layer;
+            randomGradients(stepLayer);
+            double[] g = new double[n];
+            for (int i = 0; i < n; ++i)
+            {
+                g[i] = stepLayer.getParamGrads().get(i);
+            }
+            double[] bg = new double[nb];
+            for (int i = 0; i < nb; ++i)
+            {
+                bg[i] = stepLayer.getBiasGrads()[i] = random.nextDouble() - 0.5;
+            }
+
+            update.run(stepLayer, eta, lambda);
+            ((BiasUpdate) update).runBias(stepLayer, eta);
+            reference.update(state, w, g, t, eta, lambda);
+            reference.update(biasState, b, bg, t, eta, 0.);
+            for (int i = 0; i < n; ++i)
+            {
+                assertEquals(w[i], layer.getParams().get(i), 1e-10);
+                assertEquals(0., stepLayer.getParamGrads().get(i));
+            }
+            for (int i = 0; i < nb; ++i)
+            {
+                assertEquals(b[i], layer.getBiasParams()[i], 1e-10);
+                assertEquals(0., stepLayer.getBiasGrads()[i]);
+            }
+        }
+        // One entry for the weights and one for the biases
+        assertEquals(2, ((StatefulUpdate) update).getState().size());
+    }
+
+    interface Reference
+    {
+        void update(double[][] state, double[] w, double[] g, int t, double eta, double lambda);
+    }
+
+    @Test
+    public void testAdam() throws Exception
+    {
+        for (final boolean decoupled : new boolean[] { false, true })
+        {
+            Update update = decoupled ? new AdamWUpdate(0.8, 0.99, 1e-8) : new AdamUpdate(0.8, 0.99, 1e-8, false);
+            checkStateful(update, 0.01, 0.1, new Reference()
+            {
+                @Override
+                public void update(double[][] state, double[] w, double[] g, int t, double eta, double lambda)
+                {
+                    for (int i = 0; i < w.length; ++i)
+                    {
+                        final double gi = decoupled ? g[i] : g[i] + lambda * w[i];
+                        state[0][i] = 0.8 * state[0][i] + 0.2 * gi;
+                        state[1][i] = 0.99 * state[1][i] + 0.01 * gi * gi;
+                        final double mHat = state[0][i] / (1 - Math.pow(0.8, t));
+                        final double vHat = state[1][i] / (1 - Math.pow(0.99, t));
+                        w[i] = (decoupled ? w[i] * (1 - eta * lambda) : w[i]) - eta * mHat / (Math.sqrt(vHat) + 1e-8);
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testRMSProp() throws Exception
+    {
+        checkStateful(new RMSPropUpdate(0.9, 1e-8), 0.01, 0.1, new Reference()
+        {
+            @Override
+            public void update(double[][] state, double[] w, double[] g, int t, double eta, double lambda)
+            {
+                for (int i = 0; i < w.length; ++i)
+                {
+                    state[0][i] = 0.9 * state[0][i] + 0.1 * g[i] * g[i];
+                    w[i] = w[i] * (1 - eta * lambda) - eta * g[i] / Math.sqrt(state[0][i] + 1e-8);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testAdaDelta() throws Exception
+    {
+        checkStateful(new AdaDeltaUpdate(0.95, 1e-6), 1.0, 0.01, new Reference()
+        {
+            @Override
+            public void update(double[][] state, double[] w, double[] g, int t, double eta, double lambda)
+            {
+                for (int i = 0; i < w.length; ++i)
+                {
+                    state[0][i] = 0.95 * state[0][i] + 0.05 * g[i] * g[i];
+                    final double delta = -Math.sqrt(state[1][i] + 1e-6) / Math.sqrt(state[0][i] + 1e-6) * g[i];
+                    state[1][i] = 0.95 * state[1][i] + 0.05 * delta * delta;
+                    w[i] = w[i] * (1 - eta * lambda) + eta * delta;
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testStripedBias() throws Exception
+    {
+        FullyConnectedLayer layer = new FullyConnectedLayer(3, 4);
+        layer.getBiasGrads()[1] = 2.;
+        // Without a bias rule of its own, the update gets plain SGD
+        new StripedLockUpdate(new AdagradUpdate(1.0)).runBias(layer, 0.5);
+        assertEquals(-1., layer.getBiasParams()[1], EPS);
+        assertEquals(0., layer.getBiasGrads()[1]);
+
+        AdamUpdate adam = new AdamUpdate();
+        layer.getBiasGrads()[1] = 2.;
+        new StripedLockUpdate(adam).runBias(layer, 0.5);
+        // Adam's first step is the learning rate, whatever the gradient
+        assertEquals(-1.5, layer.getBiasParams()[1], 1e-6);
+        assertEquals(1, adam.getState().size());
+    }
+
+    @Test
+    public void testStateGoesWithLayer() throws Exception
+    {
+        AdamUpdate adam = new AdamUpdate();
+        FullyConnectedLayer layer = new FullyConnectedLayer(3, 4);
+        randomGradients(layer);
+        adam.run(layer, 0.1, 0.);
+        adam.runBias(layer, 0.1);
+        assertEquals(2, adam.getState().size());
+
+        // Nothing else refers to the copy's parameters, so its state can be collected along with it
+        FullyConnectedLayer copy = (FullyConnectedLayer) layer.prototype();
+        randomGradients(copy);
+        adam.run(copy, 0.1, 0.);
+        assertEquals(3, adam.getState().size());
+        copy = null;
+        for (int i = 0; i < 50 && adam.getState().size() > 2; ++i)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(2, adam.getState().size());
+    }
+}